@@ -42,4 +42,16 @@ public class AuthenticationProperties {
   @ConfigurableField( description = "Web session lifetime in minutes", initial = "1440", displayName = "sessionlife" )
   public static Long WEBSESSION_LIFE_IN_MINUTES = 24 * 60L;// 24 hours in minutes
   
+  @ConfigurableField( description = "Maximum number of compiled principal authorizations to cache (0 disables the cache)", initial = "1024", displayName = "authorization_cache_size" )
+  public static Integer AUTHORIZATION_CACHE_SIZE = 1024;
+  
+  @ConfigurableField( description = "Lifetime in seconds of cached compiled authorizations (0 disables the cache)", initial = "60", displayName = "authorization_cache_ttl" )
+  public static Integer AUTHORIZATION_CACHE_TTL = 60;
+  
+  @ConfigurableField( description = "Maximum number of access keys and certificates to cache for authentication (0 disables the cache)", initial = "4096", displayName = "credential_cache_size" )
+  public static Integer CREDENTIAL_CACHE_SIZE = 4096;
+  
+  @ConfigurableField( description = "Lifetime in seconds of cached access keys and certificates (0 disables the cache)", initial = "60", displayName = "credential_cache_ttl" )
+  public static Integer CREDENTIAL_CACHE_TTL = 60;
+  
 }
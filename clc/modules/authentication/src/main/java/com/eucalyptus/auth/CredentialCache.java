@@ -0,0 +1,145 @@
+package com.eucalyptus.auth;
+
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import com.eucalyptus.auth.principal.AccessKey;
+import com.eucalyptus.auth.principal.User;
+import com.google.common.collect.MapMaker;
+
+/**
+ * Cache of the credentials used to authenticate requests: access key ID to the key and its user,
+ * and certificate PEM to the user. Unknown keys and certificates are cached as well, so repeated
+ * requests with a bad key do not reach the database either.
+ *
+ * Cached {@link Credentials} are immutable snapshots taken in a single transaction; the user
+ * proxies they hold already know their account. Any change to keys, certificates, users or
+ * accounts must call {@link #invalidate()}, which discards every cached entry. Entries also
+ * expire after {@link AuthenticationProperties#CREDENTIAL_CACHE_TTL} seconds so that changes made
+ * by another host sharing the database are eventually observed.
+ */
+public class CredentialCache {
+
+  private static final AtomicLong generation = new AtomicLong( 0l );
+  private static volatile ConcurrentMap<String, Entry> entries;
+  private static volatile int size;
+  private static volatile int ttl;
+
+  /**
+   * A key or certificate and its user as of when they were loaded. The key and user are null if
+   * there was no such key or certificate.
+   */
+  public static class Credentials {
+    private final AccessKey key;
+    private final User      user;
+    private final boolean   active;
+    private final boolean   enabled;
+
+    Credentials( AccessKey key, User user, boolean active, boolean enabled ) {
+      this.key = key;
+      this.user = user;
+      this.active = active;
+      this.enabled = enabled;
+    }
+
+    static Credentials unknown( ) {
+      return new Credentials( null, null, false, false );
+    }
+
+    public AccessKey getKey( ) {
+      return this.key;
+    }
+
+    public User getUser( ) {
+      return this.user;
+    }
+
+    /**
+     * @return true if the key is active, or the certificate is active and not revoked.
+     */
+    public boolean isActive( ) {
+      return this.active;
+    }
+
+    public boolean isEnabled( ) {
+      return this.enabled;
+    }
+
+    /**
+     * @return true if the credentials can be used to authenticate their user.
+     */
+    public boolean isValid( ) {
+      return this.user != null && this.active && this.enabled;
+    }
+  }
+
+  private static class Entry {
+    private final long        generation;
+    private final Credentials credentials;
+
+    Entry( long generation, Credentials credentials ) {
+      this.generation = generation;
+      this.credentials = credentials;
+    }
+  }
+
+  /**
+   * Discard all cached credentials.
+   */
+  public static void invalidate( ) {
+    generation.incrementAndGet( );
+  }
+
+  /**
+   * The generation to pass to {@link #put(String, long, Credentials)}; it must be read
+   * <b>before</b> the credentials are loaded.
+   */
+  static long getGeneration( ) {
+    return generation.get( );
+  }
+
+  static Credentials lookup( String key ) {
+    ConcurrentMap<String, Entry> map = entries( );
+    if ( map == null ) {
+      return null;
+    }
+    Entry entry = map.get( key );
+    if ( entry == null ) {
+      return null;
+    } else if ( entry.generation != generation.get( ) ) {
+      map.remove( key, entry );
+      return null;
+    } else {
+      return entry.credentials;
+    }
+  }
+
+  static void put( String key, long loadedGeneration, Credentials credentials ) {
+    ConcurrentMap<String, Entry> map = entries( );
+    if ( map != null && loadedGeneration == generation.get( ) ) {
+      map.put( key, new Entry( loadedGeneration, credentials ) );
+    }
+  }
+
+  /**
+   * The backing map is rebuilt when the configured size or lifetime changes; a size or lifetime of
+   * zero disables caching.
+   */
+  private static ConcurrentMap<String, Entry> entries( ) {
+    int configuredSize = AuthenticationProperties.CREDENTIAL_CACHE_SIZE;
+    int configuredTtl = AuthenticationProperties.CREDENTIAL_CACHE_TTL;
+    if ( configuredSize <= 0 || configuredTtl <= 0 ) {
+      return null;
+    } else if ( entries == null || size != configuredSize || ttl != configuredTtl ) {
+      synchronized ( CredentialCache.class ) {
+        if ( entries == null || size != configuredSize || ttl != configuredTtl ) {
+          entries = new MapMaker( ).maximumSize( configuredSize ).expireAfterWrite( configuredTtl, TimeUnit.SECONDS ).makeMap( );
+          size = configuredSize;
+          ttl = configuredTtl;
+        }
+      }
+    }
+    return entries;
+  }
+
+}
@@ -19,10 +19,18 @@ public class DatabaseAccessKeyProxy implements AccessKey {
   
   private AccessKeyEntity delegate;
   
+  // Known user of the key, see CredentialCache
+  private User user;
+  
   public DatabaseAccessKeyProxy( AccessKeyEntity delegate ) {
     this.delegate = delegate;
   }
   
+  DatabaseAccessKeyProxy( AccessKeyEntity delegate, User user ) {
+    this.delegate = delegate;
+    this.user = user;
+  }
+  
   @Override
   public Boolean isActive( ) {
     return this.delegate.isActive( );
@@ -36,6 +44,7 @@ public class DatabaseAccessKeyProxy implements AccessKey {
           t.setActive( active );
         }
       } );
+      CredentialCache.invalidate( );
     } catch ( ExecutionException e ) {
       Debugging.logError( LOG, e, "Failed to setActive for " + this.delegate );
       throw new AuthException( e );
@@ -55,6 +64,7 @@ public class DatabaseAccessKeyProxy implements AccessKey {
           t.setSecretKey( key );
         }
       } );
+      CredentialCache.invalidate( );
     } catch ( ExecutionException e ) {
       Debugging.logError( LOG, e, "Failed to setKey for " + this.delegate );
       throw new AuthException( e );
@@ -82,6 +92,9 @@ public class DatabaseAccessKeyProxy implements AccessKey {
   
   @Override
   public User getUser( ) throws AuthException {
+    if ( this.user != null ) {
+      return this.user;
+    }
     final List<User> results = Lists.newArrayList( );
     try {
       DatabaseAuthUtils.invokeUnique( AccessKeyEntity.class, "accessKey", this.delegate.getAccessKey( ), new Tx<AccessKeyEntity>( ) {
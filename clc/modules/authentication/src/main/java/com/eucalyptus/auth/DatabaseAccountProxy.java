@@ -20,6 +20,7 @@ import com.eucalyptus.auth.principal.Authorization;
 import com.eucalyptus.auth.principal.Group;
 import com.eucalyptus.auth.principal.User;
 import com.eucalyptus.auth.principal.Authorization.EffectType;
+import com.eucalyptus.auth.policy.AuthorizationCache;
 import com.eucalyptus.crypto.Crypto;
 import com.eucalyptus.crypto.Hmacs;
 import com.eucalyptus.entities.EntityWrapper;
@@ -78,6 +79,7 @@ public class DatabaseAccountProxy implements Account {
             t.setName( name );
           }
         } );
+        CredentialCache.invalidate( );
       } catch ( Exception e ) {
         Debugging.logError( LOG, e, "Failed to setName for " + this.delegate );
         throw new AuthException( e );
@@ -235,6 +237,8 @@ public class DatabaseAccountProxy implements Account {
       }
       db.delete( user );
       db.commit( );
+      AuthorizationCache.invalidate( );
+      CredentialCache.invalidate( );
     } catch ( Exception e ) {
       db.rollback( );
       Debugging.logError( LOG, e, "Failed to delete user: " + userName + " in " + accountName );
@@ -308,6 +312,7 @@ public class DatabaseAccountProxy implements Account {
       GroupEntity group = DatabaseAuthUtils.getUniqueGroup( db, groupName, accountName );
       db.delete( group );
       db.commit( );
+      AuthorizationCache.invalidate( );
     } catch ( Exception e ) {
       db.rollback( );
       Debugging.logError( LOG, e, "Failed to delete group " + groupName + " in " + accountName );
@@ -83,6 +83,7 @@ import com.eucalyptus.auth.principal.Certificate;
 import com.eucalyptus.auth.principal.Group;
 import com.eucalyptus.auth.principal.User;
 import com.eucalyptus.auth.util.X509CertHelper;
+import com.eucalyptus.auth.policy.AuthorizationCache;
 import com.eucalyptus.entities.EntityWrapper;
 import com.google.common.collect.Lists;
 
@@ -149,24 +150,11 @@ public class DatabaseAuthProvider implements AccountProvider {
     if ( keyId == null || "".equals( keyId) ) {
       throw new AuthException( "Empty key ID" );
     }
-    EntityWrapper<UserEntity> db = EntityWrapper.get( UserEntity.class );
-    try {
-      @SuppressWarnings( "unchecked" )
-      UserEntity result = ( UserEntity ) db
-          .createCriteria( UserEntity.class ).setCacheable( true ).add( Restrictions.eq( "enabled", true ) )
-          .createCriteria( "keys" ).setCacheable( true ).add( 
-              Restrictions.and( Restrictions.eq( "accessKey", keyId ), Restrictions.eq( "active", true ) ) )
-          .uniqueResult( );
-      if ( result == null ) {
-        throw new NoSuchElementException( "Can not find user with key " + keyId );
-      }
-      db.commit( );
-      return new DatabaseUserProxy( result );
-    } catch ( Exception e ) {
-      db.rollback( );
-      Debugging.logError( LOG, e, "Failed to find user with access key ID : " + keyId );
-      throw new AuthException( AuthException.NO_SUCH_USER, e );
+    CredentialCache.Credentials credentials = lookupAccessKeyCredentials( keyId );
+    if ( !credentials.isValid( ) ) {
+      throw new AuthException( AuthException.NO_SUCH_USER );
     }
+    return credentials.getUser( );
   }
   
   /**
@@ -181,28 +169,39 @@ public class DatabaseAuthProvider implements AccountProvider {
     if ( cert == null ) {
       throw new AuthException( "Empty input cert" );
     }
-    EntityWrapper<UserEntity> db = EntityWrapper.get( UserEntity.class );
-    try {
-      @SuppressWarnings( "unchecked" )
-      UserEntity result = ( UserEntity ) db
-          .createCriteria( UserEntity.class ).setCacheable( true ).add( Restrictions.eq( "enabled", true ) )
-          .createCriteria( "certificates" ).setCacheable( true ).add( 
-              Restrictions.and( 
-                  Restrictions.eq( "pem", X509CertHelper.fromCertificate( cert ) ), 
-                  Restrictions.and( 
-                      Restrictions.eq( "active", true ),
-                      Restrictions.eq( "revoked", false ) ) ) )
-          .uniqueResult( );
-      if ( result == null ) {
-        throw new NoSuchElementException( "Can not find user with specific cert" );
+    String pem = X509CertHelper.fromCertificate( cert );
+    String cacheKey = "cert:" + pem;
+    CredentialCache.Credentials credentials = CredentialCache.lookup( cacheKey );
+    if ( credentials == null ) {
+      long generation = CredentialCache.getGeneration( );
+      EntityWrapper<CertificateEntity> db = EntityWrapper.get( CertificateEntity.class );
+      try {
+        @SuppressWarnings( "unchecked" )
+        List<CertificateEntity> certs = ( List<CertificateEntity> ) db
+            .createCriteria( CertificateEntity.class ).setCacheable( true ).add( Restrictions.eq( "pem", pem ) )
+            .list( );
+        credentials = CredentialCache.Credentials.unknown( );
+        for ( CertificateEntity certEntity : certs ) {
+          if ( certEntity.getUser( ) != null ) {
+            boolean active = Boolean.TRUE.equals( certEntity.isActive( ) ) && !Boolean.TRUE.equals( certEntity.isRevoked( ) );
+            credentials = new CredentialCache.Credentials( null, newCachedUser( certEntity.getUser( ) ), active, Boolean.TRUE.equals( certEntity.getUser( ).isEnabled( ) ) );
+            if ( credentials.isValid( ) ) {
+              break;
+            }
+          }
+        }
+        db.commit( );
+      } catch ( Exception e ) {
+        db.rollback( );
+        Debugging.logError( LOG, e, "Failed to find user with certificate : " + cert );
+        throw new AuthException( AuthException.NO_SUCH_USER, e );
       }
-      db.commit( );
-      return new DatabaseUserProxy( result );
-    } catch ( Exception e ) {
-      db.rollback( );
-      Debugging.logError( LOG, e, "Failed to find user with certificate : " + cert );
-      throw new AuthException( AuthException.NO_SUCH_USER, e );
+      CredentialCache.put( cacheKey, generation, credentials );
+    }
+    if ( !credentials.isValid( ) ) {
+      throw new AuthException( AuthException.NO_SUCH_USER );
     }
+    return credentials.getUser( );
   }
   
   @Override
@@ -292,6 +291,8 @@ public class DatabaseAuthProvider implements AccountProvider {
       }
       db.delete( account );
       db.commit( );
+      AuthorizationCache.invalidate( );
+      CredentialCache.invalidate( );
     } catch ( Exception e ) {
       db.rollback( );
       Debugging.logError( LOG, e, "Failed to delete account " + accountName );
@@ -418,16 +419,55 @@ public class DatabaseAuthProvider implements AccountProvider {
     if ( keyId == null ) {
       throw new AuthException( "Empty access key ID" );
     }
-    EntityWrapper<AccessKeyEntity> db = EntityWrapper.get( AccessKeyEntity.class );
-    try {
-      AccessKeyEntity keyEntity = DatabaseAuthUtils.getUnique( db, AccessKeyEntity.class, "accessKey", keyId );
-      db.commit( );
-      return new DatabaseAccessKeyProxy( keyEntity );
-    } catch ( Exception e ) {
-      db.rollback( );
-      Debugging.logError( LOG, e, "Failed to find access key with ID " + keyId );
-      throw new AuthException( "Failed to find access key", e );      
+    CredentialCache.Credentials credentials = lookupAccessKeyCredentials( keyId );
+    if ( credentials.getKey( ) == null ) {
+      throw new AuthException( "Failed to find access key" );
+    }
+    return credentials.getKey( );
+  }
+  
+  /**
+   * Loads the key, its user and the user's account in one transaction, or returns them from the
+   * {@link CredentialCache}.
+   */
+  private static CredentialCache.Credentials lookupAccessKeyCredentials( final String keyId ) throws AuthException {
+    String cacheKey = "key:" + keyId;
+    CredentialCache.Credentials credentials = CredentialCache.lookup( cacheKey );
+    if ( credentials == null ) {
+      long generation = CredentialCache.getGeneration( );
+      EntityWrapper<AccessKeyEntity> db = EntityWrapper.get( AccessKeyEntity.class );
+      try {
+        AccessKeyEntity keyEntity = ( AccessKeyEntity ) db
+            .createCriteria( AccessKeyEntity.class ).setCacheable( true ).add( Restrictions.eq( "accessKey", keyId ) )
+            .uniqueResult( );
+        if ( keyEntity == null || keyEntity.getUser( ) == null ) {
+          credentials = CredentialCache.Credentials.unknown( );
+        } else {
+          User user = newCachedUser( keyEntity.getUser( ) );
+          credentials = new CredentialCache.Credentials( new DatabaseAccessKeyProxy( keyEntity, user ), user,
+                                                         Boolean.TRUE.equals( keyEntity.isActive( ) ), Boolean.TRUE.equals( keyEntity.getUser( ).isEnabled( ) ) );
+        }
+        db.commit( );
+      } catch ( Exception e ) {
+        db.rollback( );
+        Debugging.logError( LOG, e, "Failed to find access key with ID " + keyId );
+        throw new AuthException( "Failed to find access key", e );
+      }
+      CredentialCache.put( cacheKey, generation, credentials );
+    }
+    return credentials;
+  }
+  
+  /**
+   * Must call within a transaction.
+   */
+  private static User newCachedUser( UserEntity user ) {
+    Account account = null;
+    for ( GroupEntity group : user.getGroups( ) ) {
+      account = new DatabaseAccountProxy( group.getAccount( ) );
+      break;
     }
+    return new DatabaseUserProxy( user, account );
   }
 
   @Override
@@ -58,6 +58,7 @@ public class DatabaseCertificateProxy implements Certificate {
           t.setActive( active );
         }
       } );
+      CredentialCache.invalidate( );
     } catch ( ExecutionException e ) {
       Debugging.logError( LOG, e, "Failed to setActive for " + this.delegate );
       throw new AuthException( e );
@@ -77,6 +78,7 @@ public class DatabaseCertificateProxy implements Certificate {
           t.setRevoked( revoked );
         }
       } );
+      CredentialCache.invalidate( );
     } catch ( ExecutionException e ) {
       Debugging.logError( LOG, e, "Failed to setRevoked for " + this.delegate );
       throw new AuthException( e );
@@ -131,6 +133,7 @@ public class DatabaseCertificateProxy implements Certificate {
           t.setPem( X509CertHelper.fromCertificate( x509 ) );
         }
       } );
+      CredentialCache.invalidate( );
     } catch ( ExecutionException e ) {
       Debugging.logError( LOG, e, "Failed to setX509Certificate for " + this.delegate );
       throw new AuthException( e );
@@ -16,6 +16,7 @@ import com.eucalyptus.auth.entities.GroupEntity;
 import com.eucalyptus.auth.entities.PolicyEntity;
 import com.eucalyptus.auth.entities.StatementEntity;
 import com.eucalyptus.auth.entities.UserEntity;
+import com.eucalyptus.auth.policy.AuthorizationCache;
 import com.eucalyptus.auth.policy.PolicyParser;
 import com.eucalyptus.auth.principal.Account;
 import com.eucalyptus.auth.principal.Group;
@@ -145,6 +146,7 @@ public class DatabaseGroupProxy implements Group {
       groupEntity.getUsers( ).add( userEntity );
       userEntity.getGroups( ).add( groupEntity );
       db.commit( );
+      AuthorizationCache.invalidate( );
     } catch ( Exception e ) {
       db.rollback( );
       Debugging.logError( LOG, e, "Failed to add user " + userName + " to group " + this.delegate );
@@ -161,6 +163,7 @@ public class DatabaseGroupProxy implements Group {
       groupEntity.getUsers( ).remove( userEntity );
       userEntity.getGroups( ).remove( groupEntity );
       db.commit( );
+      AuthorizationCache.invalidate( );
     } catch ( Exception e ) {
       db.rollback( );
       Debugging.logError( LOG, e, "Failed to remove user " + userName + " from group " + this.delegate );
@@ -236,6 +239,7 @@ public class DatabaseGroupProxy implements Group {
       }
       groupEntity.getPolicies( ).add( parsedPolicy );
       db.commit( );
+      AuthorizationCache.invalidate( );
       return new DatabasePolicyProxy( parsedPolicy );
     } catch ( Exception e ) {
       db.rollback( );
@@ -257,6 +261,7 @@ public class DatabaseGroupProxy implements Group {
         db.recast( PolicyEntity.class ).delete( policy );
       }
       db.commit( );
+      AuthorizationCache.invalidate( );
     } catch ( Exception e ) {
       db.rollback( );
       Debugging.logError( LOG, e, "Failed to remove policy " + name + " in " + this.delegate );
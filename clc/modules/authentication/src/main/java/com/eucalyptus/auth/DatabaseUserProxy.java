@@ -18,6 +18,7 @@ import com.eucalyptus.auth.entities.GroupEntity;
 import com.eucalyptus.auth.entities.PolicyEntity;
 import com.eucalyptus.auth.entities.StatementEntity;
 import com.eucalyptus.auth.entities.UserEntity;
+import com.eucalyptus.auth.policy.AuthorizationCache;
 import com.eucalyptus.auth.policy.PolicyParser;
 import com.eucalyptus.auth.principal.AccessKey;
 import com.eucalyptus.auth.principal.Account;
@@ -50,10 +51,18 @@ public class DatabaseUserProxy implements User {
   
   private UserEntity delegate;
   
+  // Known account of the user, see CredentialCache
+  private Account account;
+  
   public DatabaseUserProxy( UserEntity delegate ) {
     this.delegate = delegate;
   }
   
+  DatabaseUserProxy( UserEntity delegate, Account account ) {
+    this.delegate = delegate;
+    this.account = account;
+  }
+  
   @Override
   public String toString( ) {
     final StringBuilder sb = new StringBuilder( );
@@ -103,6 +112,8 @@ public class DatabaseUserProxy implements User {
           }
         }
         db.commit( );
+        AuthorizationCache.invalidate( );
+        CredentialCache.invalidate( );
       } catch ( Exception t ) {
         Debugging.logError( LOG, t, "Failed to setName for " + this.delegate );
         db.rollback( );
@@ -171,6 +182,7 @@ public class DatabaseUserProxy implements User {
           t.setEnabled( enabled );
         }
       } );
+      CredentialCache.invalidate( );
     } catch ( ExecutionException e ) {
       Debugging.logError( LOG, e, "Failed to setEnabled for " + this.delegate );
       throw new AuthException( e );
@@ -400,6 +412,7 @@ public class DatabaseUserProxy implements User {
       user.getKeys( ).remove( keyEntity );
       db.recast( AccessKeyEntity.class ).delete( keyEntity );
       db.commit( );
+      CredentialCache.invalidate( );
     } catch ( Exception e ) {
       db.rollback( );
       Debugging.logError( LOG, e, "Failed to get delete key " + keyId );
@@ -417,6 +430,7 @@ public class DatabaseUserProxy implements User {
       db.recast( AccessKeyEntity.class ).add( keyEntity );
       user.getKeys( ).add( keyEntity );
       db.commit( );
+      CredentialCache.invalidate( );
       return new DatabaseAccessKeyProxy( keyEntity );
     } catch ( Exception e ) {
       db.rollback( );
@@ -470,6 +484,7 @@ public class DatabaseUserProxy implements User {
       certEntity.setUser( user );
       user.getCertificates( ).add( certEntity );
       db.commit( );
+      CredentialCache.invalidate( );
       return new DatabaseCertificateProxy( certEntity );
     } catch ( Exception e ) {
       db.rollback( );
@@ -488,6 +503,7 @@ public class DatabaseUserProxy implements User {
       CertificateEntity certificateEntity = DatabaseAuthUtils.getUnique( db, CertificateEntity.class, "certificateId", certificateId );
       certificateEntity.setRevoked( true );
       db.commit( );
+      CredentialCache.invalidate( );
     } catch ( Exception e ) {
       db.rollback( );
       Debugging.logError( LOG, e, "Failed to get delete certificate " + certificateId );
@@ -515,6 +531,9 @@ public class DatabaseUserProxy implements User {
 
   @Override
   public Account getAccount( ) throws AuthException {
+    if ( this.account != null ) {
+      return this.account;
+    }
     final List<Account> results = Lists.newArrayList( );
     try {
       DatabaseAuthUtils.invokeUnique( UserEntity.class, "userId", this.delegate.getUserId( ), new Tx<UserEntity>( ) {
@@ -620,6 +639,7 @@ public class DatabaseUserProxy implements User {
       }
       groupEntity.getPolicies( ).add( parsedPolicy );
       db.commit( );
+      AuthorizationCache.invalidate( );
       return new DatabasePolicyProxy( parsedPolicy );
     } catch ( Exception e ) {
       db.rollback( );
@@ -645,6 +665,7 @@ public class DatabaseUserProxy implements User {
         db.recast( PolicyEntity.class ).delete( policy );
       }
       db.commit( );
+      AuthorizationCache.invalidate( );
     } catch ( Exception e ) {
       db.rollback( );
       Debugging.logError( LOG, e, "Failed to remove policy " + name + " in " + this.delegate );
@@ -1,15 +1,21 @@
 package com.eucalyptus.auth.ldap;
 
+import java.io.IOException;
+import java.util.List;
 import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
 import javax.naming.directory.Attributes;
 import javax.naming.directory.SearchControls;
 import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
 import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
 import org.apache.log4j.Logger;
 import com.eucalyptus.auth.LdapException;
 import com.eucalyptus.auth.ldap.authentication.AuthenticationUtil;
 import com.eucalyptus.auth.ldap.authentication.LdapAuthenticatorFactory;
+import com.google.common.collect.Lists;
 
 public class LdapClient {
   
@@ -67,6 +73,62 @@ public class LdapClient {
   
   public synchronized NamingEnumeration<SearchResult> search( String baseDn, String filter, String[] attrs ) throws LdapException {
     if ( DEBUG ) { LOG.debug( "<search> " + baseDn + ": filter = " + filter ); }
+    try {
+      return context.search( baseDn, filter, searchControls( attrs ) );
+    } catch ( NamingException e ) {
+      LOG.error( e, e );
+      throw new LdapException( "Searching " + baseDn + "failed using " + filter, e );
+    }
+  }
+  
+  /**
+   * Search using the paged results control (RFC 2696), so that the server returns at most pageSize
+   * entries at a time and does not hit its size limit. The control is not critical: servers
+   * without paging support return all results in one go.
+   */
+  public synchronized List<SearchResult> pagedSearch( String baseDn, String filter, String[] attrs, int pageSize ) throws LdapException {
+    if ( DEBUG ) { LOG.debug( "<pagedSearch> " + baseDn + ": filter = " + filter + ", pageSize = " + pageSize ); }
+    List<SearchResult> results = Lists.newArrayList( );
+    SearchControls searchControls = searchControls( attrs );
+    try {
+      byte[] cookie = null;
+      do {
+        context.setRequestControls( new Control[]{ new PagedResultsControl( pageSize, cookie, Control.NONCRITICAL ) } );
+        NamingEnumeration<SearchResult> page = context.search( baseDn, filter, searchControls );
+        try {
+          while ( page.hasMore( ) ) {
+            results.add( page.next( ) );
+          }
+        } finally {
+          page.close( );
+        }
+        cookie = null;
+        Control[] controls = context.getResponseControls( );
+        if ( controls != null ) {
+          for ( Control control : controls ) {
+            if ( control instanceof PagedResultsResponseControl ) {
+              cookie = ( ( PagedResultsResponseControl ) control ).getCookie( );
+            }
+          }
+        }
+      } while ( cookie != null && cookie.length > 0 );
+      return results;
+    } catch ( NamingException e ) {
+      LOG.error( e, e );
+      throw new LdapException( "Searching " + baseDn + "failed using " + filter, e );
+    } catch ( IOException e ) {
+      LOG.error( e, e );
+      throw new LdapException( "Searching " + baseDn + "failed using " + filter, e );
+    } finally {
+      try {
+        context.setRequestControls( null );
+      } catch ( NamingException e ) {
+        LOG.error( e, e );
+      }
+    }
+  }
+  
+  private static SearchControls searchControls( String[] attrs ) {
     SearchControls searchControls = new SearchControls( );
     if ( attrs != null ) {
       searchControls.setReturningAttributes( attrs );
@@ -74,12 +136,7 @@ public class LdapClient {
     searchControls.setDerefLinkFlag( true );
     searchControls.setSearchScope( SearchControls.SUBTREE_SCOPE );
     searchControls.setTimeLimit( TIMEOUT_IN_MILLIS );
-    try {
-      return context.search( baseDn, filter, searchControls );
-    } catch ( NamingException e ) {
-      LOG.error( e, e );
-      throw new LdapException( "Searching " + baseDn + "failed using " + filter, e );
-    }
+    return searchControls;
   }
   
   public synchronized NamingEnumeration<SearchResult> search( String baseDn, Attributes matchingAttrs, String[] attrs ) throws LdapException {
@@ -28,6 +28,9 @@ public class LdapIntegrationConfiguration {
   private boolean autoSync;
   private long syncInterval;
   private boolean cleanDeletion;
+  private boolean incrementalSync;
+  private int pageSize = 500;
+  private String changeAttribute = "modifyTimestamp";
   
   private boolean hasAccountingGroups;
   
@@ -73,6 +76,9 @@ public class LdapIntegrationConfiguration {
     sb.append( '\t' ).append( "auto:" ).append( this.autoSync ).append( '\n' );
     sb.append( '\t' ).append( "interval:" ).append( this.syncInterval ).append( '\n' );
     sb.append( '\t' ).append( "clean-deletion:" ).append( this.cleanDeletion ).append( '\n' );
+    sb.append( '\t' ).append( "incremental:" ).append( this.incrementalSync ).append( '\n' );
+    sb.append( '\t' ).append( "page-size:" ).append( this.pageSize ).append( '\n' );
+    sb.append( '\t' ).append( "change-attribute:" ).append( this.changeAttribute ).append( '\n' );
     if ( this.hasAccountingGroups ) {
       sb.append( "accounting-groups:\n" );
       sb.append( '\t' ).append( "base-dn:" ).append( this.accountingGroupBaseDn ).append( '\n' );
@@ -309,6 +315,30 @@ public class LdapIntegrationConfiguration {
     return cleanDeletion;
   }
 
+  public void setIncrementalSync( boolean incrementalSync ) {
+    this.incrementalSync = incrementalSync;
+  }
+
+  public boolean isIncrementalSync( ) {
+    return incrementalSync;
+  }
+
+  public void setPageSize( int pageSize ) {
+    this.pageSize = pageSize;
+  }
+
+  public int getPageSize( ) {
+    return pageSize;
+  }
+
+  public void setChangeAttribute( String changeAttribute ) {
+    this.changeAttribute = changeAttribute;
+  }
+
+  public String getChangeAttribute( ) {
+    return changeAttribute;
+  }
+
   public String getUserSaslIdAttribute() {
     return userSaslIdAttribute;
   }
@@ -0,0 +1,154 @@
+package com.eucalyptus.auth.ldap;
+
+import java.util.Map;
+import java.util.Set;
+import org.apache.log4j.Logger;
+import com.google.common.base.Strings;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * The users, groups and accounting groups retrieved from LDAP/AD, keyed by lower case DN, kept
+ * between syncs so that an incremental sync only has to fetch what changed.
+ *
+ * The highest value of the change attribute (modifyTimestamp, or uSNChanged for AD) seen by each
+ * sync is recorded. A sync fetches the entries whose value is at least the one recorded by the
+ * sync before the previous one, so entries changed while the previous sync was running are not
+ * missed; the first two syncs against a snapshot fetch everything. Deleted entries are found by
+ * listing the DNs of the selection and passing them to the retain methods.
+ *
+ * Members are kept as DNs and only mapped to IDs when the snapshot is resolved, since a group may
+ * refer to users which were not known when the group was retrieved.
+ */
+class LdapSnapshot {
+
+  private static final Logger LOG = Logger.getLogger( LdapSnapshot.class );
+
+  private final LdapIntegrationConfiguration lic;
+  private final Map<String, String> userIds = Maps.newHashMap( );
+  private final Map<String, Map<String, String>> userInfo = Maps.newHashMap( );
+  private final Map<String, String> groupIds = Maps.newHashMap( );
+  private final Map<String, Set<String>> groupMembers = Maps.newHashMap( );
+  private final Map<String, String> accountingGroupIds = Maps.newHashMap( );
+  private final Map<String, Set<String>> accountingGroupMembers = Maps.newHashMap( );
+  private String since;
+  private String lastSeen;
+  private String seen;
+
+  LdapSnapshot( LdapIntegrationConfiguration lic ) {
+    this.lic = lic;
+  }
+
+  LdapIntegrationConfiguration getLic( ) {
+    return this.lic;
+  }
+
+  /**
+   * @return the lowest change attribute value to fetch, or null to fetch everything.
+   */
+  String getSince( ) {
+    return this.since;
+  }
+
+  void begin( ) {
+    this.seen = this.lastSeen;
+  }
+
+  void completed( ) {
+    this.since = this.lastSeen;
+    this.lastSeen = this.seen;
+    if ( this.lastSeen == null && this.lic.isIncrementalSync( ) ) {
+      LOG.warn( "No " + this.lic.getChangeAttribute( ) + " values retrieved from LDAP/AD, incremental sync will fetch all entries" );
+    }
+  }
+
+  void observe( String change ) {
+    if ( !Strings.isNullOrEmpty( change ) && ( this.seen == null || compare( change, this.seen ) > 0 ) ) {
+      this.seen = change;
+    }
+  }
+
+  /**
+   * Change attributes are either numbers (USNs) or generalized times, which sort as strings.
+   */
+  private static int compare( String a, String b ) {
+    try {
+      return Long.valueOf( a ).compareTo( Long.valueOf( b ) );
+    } catch ( NumberFormatException e ) {
+      return a.compareTo( b );
+    }
+  }
+
+  void putUser( String dn, String id, Map<String, String> info ) {
+    this.userIds.put( dn, id );
+    this.userInfo.put( dn, info );
+  }
+
+  void putGroup( String dn, String id, Set<String> memberDns ) {
+    this.groupIds.put( dn, id );
+    this.groupMembers.put( dn, memberDns );
+  }
+
+  void putAccountingGroup( String dn, String id, Set<String> memberDns ) {
+    this.accountingGroupIds.put( dn, id );
+    this.accountingGroupMembers.put( dn, memberDns );
+  }
+
+  void retainUsers( Set<String> dns ) {
+    this.userIds.keySet( ).retainAll( dns );
+    this.userInfo.keySet( ).retainAll( dns );
+  }
+
+  void retainGroups( Set<String> dns ) {
+    this.groupIds.keySet( ).retainAll( dns );
+    this.groupMembers.keySet( ).retainAll( dns );
+  }
+
+  void retainAccountingGroups( Set<String> dns ) {
+    this.accountingGroupIds.keySet( ).retainAll( dns );
+    this.accountingGroupMembers.keySet( ).retainAll( dns );
+  }
+
+  /**
+   * @return user ID -> user info
+   */
+  Map<String, Map<String, String>> getUsers( ) {
+    Map<String, Map<String, String>> users = Maps.newHashMap( );
+    for ( Map.Entry<String, String> entry : this.userIds.entrySet( ) ) {
+      users.put( entry.getValue( ), this.userInfo.get( entry.getKey( ) ) );
+    }
+    return users;
+  }
+
+  /**
+   * @return group ID -> user IDs
+   */
+  Map<String, Set<String>> getGroups( ) {
+    return resolve( this.groupIds, this.groupMembers, this.userIds );
+  }
+
+  /**
+   * @return accounting group ID -> group IDs
+   */
+  Map<String, Set<String>> getAccountingGroups( ) {
+    return resolve( this.accountingGroupIds, this.accountingGroupMembers, this.groupIds );
+  }
+
+  private static Map<String, Set<String>> resolve( Map<String, String> ids, Map<String, Set<String>> members, Map<String, String> memberIds ) {
+    Map<String, Set<String>> resolved = Maps.newHashMap( );
+    for ( Map.Entry<String, String> entry : ids.entrySet( ) ) {
+      Set<String> resolvedMembers = Sets.newHashSet( );
+      for ( String memberDn : members.get( entry.getKey( ) ) ) {
+        String memberId = memberIds.get( memberDn );
+        if ( Strings.isNullOrEmpty( memberId ) ) {
+          LOG.warn( "Can not map member DN " + memberDn + " to ID for " + entry.getKey( ) + ". Check corresponding selection section in your LIC." );
+        } else {
+          resolvedMembers.add( memberId.toLowerCase( ) );
+        }
+      }
+      resolved.put( entry.getValue( ), resolvedMembers );
+    }
+    return resolved;
+  }
+
+}
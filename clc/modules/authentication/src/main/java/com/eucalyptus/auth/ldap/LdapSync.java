@@ -2,6 +2,7 @@ package com.eucalyptus.auth.ldap;
 
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 import javax.naming.InvalidNameException;
 import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
@@ -27,11 +28,18 @@ import com.eucalyptus.event.SystemClock;
 import com.eucalyptus.system.Threads;
 import com.google.common.base.Strings;
 import com.google.common.collect.Maps;
+import com.google.common.collect.ObjectArrays;
 import com.google.common.collect.Sets;
 
 /**
  * Logic to perform LDAP sync.
  * 
+ * Searches are paged. With incremental sync enabled in the LIC, the entries retrieved are kept in
+ * an {@link LdapSnapshot} and later syncs only fetch the entries changed since (see
+ * {@link LdapIntegrationConfiguration#getChangeAttribute()}). Either way the wanted state is diffed
+ * against a {@link LocalIdentities} snapshot of the local auth database and only the differences
+ * are written. Authentication does not wait for a running sync.
+ * 
  * @author wenye
  *
  */
@@ -48,12 +56,17 @@ public class LdapSync {
   private static final boolean VERBOSE = true;
   
   private static final String LDAP_SYNC_THREAD = "LDAP sync";
+  
+  // Requests no attributes, just the DN
+  private static final String NO_ATTRIBUTES = "1.1";
 
   private static final LdapIntegrationConfiguration DEFAULT_LIC = new LdapIntegrationConfiguration( );
   
-  private static LdapIntegrationConfiguration lic = DEFAULT_LIC;
-  private static boolean inSync = false;
+  private static volatile LdapIntegrationConfiguration lic = DEFAULT_LIC;
+  private static final AtomicBoolean inSync = new AtomicBoolean( false );
   private static long timeTillNextSync;
+  // Only used by the sync thread
+  private static LdapSnapshot snapshot;
   
   private static final ClockTickListener TIMER_LISTENER = new ClockTickListener( );
   
@@ -68,8 +81,8 @@ public class LdapSync {
     
   }
   
-  public static synchronized boolean inSync( ) {
-    return inSync;
+  public static boolean inSync( ) {
+    return inSync.get( );
   }
   
   public static synchronized void start( ) {
@@ -81,7 +94,7 @@ public class LdapSync {
     }
   }
   
-  public static synchronized LdapIntegrationConfiguration getLic( ) {
+  public static LdapIntegrationConfiguration getLic( ) {
     return lic;
   }
   
@@ -106,13 +119,14 @@ public class LdapSync {
     }
   }
   
-  public static synchronized boolean check( ) {
-    if ( !lic.isSyncEnabled( ) ) {
+  public static boolean check( ) {
+    LdapIntegrationConfiguration config = lic;
+    if ( !config.isSyncEnabled( ) ) {
       return true;
     }
     LdapClient ldap = null;
     try {
-      ldap = LdapClient.authenticateClient( lic );
+      ldap = LdapClient.authenticateClient( config );
       return true;
     } catch ( LdapException e ) {
       LOG.error( e, e );
@@ -133,15 +147,16 @@ public class LdapSync {
    * @return
    * @throws LdapException
    */
-  public static synchronized void authenticate( User user, String password ) throws LdapException {
-    if ( !lic.isSyncEnabled( ) ) {
+  public static void authenticate( User user, String password ) throws LdapException {
+    LdapIntegrationConfiguration config = lic;
+    if ( !config.isSyncEnabled( ) ) {
       throw new LdapException( "LDAP sync is not enabled" );
     }
     LdapClient ldap = null;
     try {
       // Get proper user LDAP principal based on authentication method
       String login = null;
-      if ( LicParser.LDAP_AUTH_METHOD_SIMPLE.equals( lic.getRealUserAuthMethod( ) ) ) {
+      if ( LicParser.LDAP_AUTH_METHOD_SIMPLE.equals( config.getRealUserAuthMethod( ) ) ) {
         // Simple requires full user DN
         login = user.getInfo( User.DN );
       } else {
@@ -156,7 +171,7 @@ public class LdapSync {
       if ( Strings.isNullOrEmpty( login ) ) {
         throw new LdapException( "Invalid login user" );
       }
-      ldap = LdapClient.authenticateUser( lic, login, password );
+      ldap = LdapClient.authenticateUser( config, login, password );
     } catch ( AuthException e ) {
       LOG.error( e, e );
       LOG.debug( "Failed to get auth information for user " + user );
@@ -175,16 +190,10 @@ public class LdapSync {
   /**
    * @return true if LDAP sync is enabled.
    */
-  public static synchronized boolean enabled( ) {
+  public static boolean enabled( ) {
     return lic.isSyncEnabled( );
   }
   
-  private static synchronized boolean getAndSetSync( boolean newValue ) {
-    boolean old = inSync;
-    inSync = newValue;
-    return old;
-  }
-  
   private static synchronized void periodicSync( ) {
     if ( lic.isSyncEnabled( ) && lic.isAutoSync( ) ) {
       timeTillNextSync -= SystemClock.getRate( );
@@ -198,15 +207,18 @@ public class LdapSync {
     LOG.debug( "A new sync initiated." );
     
     timeTillNextSync = lic.getSyncInterval( );
-    if ( !getAndSetSync( true ) ) {
+    if ( !inSync.getAndSet( true ) ) {
       
       Threads.newThread( new Runnable( ) {
         
         @Override
         public void run( ) {
           LOG.debug( "Sync started" );
-          sync( lic );
-          getAndSetSync( false );
+          try {
+            sync( lic );
+          } finally {
+            inSync.set( false );
+          }
           LOG.debug( "Sync ended" );
         }
         
@@ -215,23 +227,30 @@ public class LdapSync {
   }
   
   public static void sync( final LdapIntegrationConfiguration lic ) {
+    LdapSnapshot remote = snapshot;
+    snapshot = null;
+    if ( remote == null || remote.getLic( ) != lic || !lic.isIncrementalSync( ) ) {
+      remote = new LdapSnapshot( lic );
+    }
     // Get users/groups from LDAP
-    Map<String, Set<String>> accountingGroups = Maps.newHashMap( );
-    Map<String, String> groupDnToId = Maps.newHashMap( );
-    Map<String, Set<String>> groups = Maps.newHashMap( );
-    Map<String, String> userDnToId = Maps.newHashMap( );
-    Map<String, Map<String, String>> users = Maps.newHashMap( );
+    Map<String, Set<String>> accountingGroups = null;
+    Map<String, Set<String>> groups = null;
+    Map<String, Map<String, String>> users = null;
     LdapClient ldap = null;
     try {
       ldap = LdapClient.authenticateClient( lic );
       
-      loadLdapUsers( ldap, lic, userDnToId, users );
-      loadLdapGroups( ldap, lic, userDnToId, groupDnToId, groups );
+      remote.begin( );
+      loadLdapUsers( ldap, lic, remote );
+      loadLdapGroups( ldap, lic, remote );
       if ( lic.hasAccountingGroups( ) ) {
-        loadLdapAccountingGroups( ldap, lic, groupDnToId, accountingGroups );
+        loadLdapAccountingGroups( ldap, lic, remote );
+        accountingGroups = remote.getAccountingGroups( );
       } else {
-        accountingGroups = lic.getGroupsPartition( );
+        accountingGroups = Maps.newHashMap( lic.getGroupsPartition( ) );
       }
+      groups = remote.getGroups( );
+      users = remote.getUsers( );
     } catch ( Exception e ) {
       LOG.error( e, e );
       LOG.error( "Failed to sync with LDAP", e );
@@ -249,6 +268,8 @@ public class LdapSync {
     
     checkConflictingIdentities( accountingGroups, groups, users );
     rebuildLocalAuthDatabase( lic, accountingGroups, groups, users );
+    remote.completed( );
+    snapshot = remote;
   }
   
   private static void checkConflictingIdentities( Map<String, Set<String>> accountingGroups, Map<String, Set<String>> groups, Map<String, Map<String, String>> users ) {
@@ -271,18 +292,30 @@ public class LdapSync {
   private static void rebuildLocalAuthDatabase( LdapIntegrationConfiguration lic, Map<String, Set<String>> accountingGroups,
                                                 Map<String, Set<String>> groups, Map<String, Map<String, String>> users ) {
     try {
-      Set<String> oldAccountSet = getLocalAccountSet( );      
+      LocalIdentities local = LocalIdentities.load( );
+      Set<String> oldAccountSet = Sets.newHashSet( local.getAccounts( ) );
+      Map<String, Set<String>> obsoleteUsers = Maps.newHashMap( );
+      Map<String, Set<String>> obsoleteGroups = Maps.newHashMap( );
       for ( Map.Entry<String, Set<String>> entry : accountingGroups.entrySet( ) ) {
         String accountName = entry.getKey( );
         Set<String> accountMembers = entry.getValue( );
         if ( oldAccountSet.contains( accountName ) ) {
           // Remove common elements from old account set
           oldAccountSet.remove( accountName );
-          updateAccount( lic, accountName, accountMembers, groups, users );
+          updateAccount( lic, local, accountName, accountMembers, groups, users, obsoleteUsers, obsoleteGroups );
         } else {
           addNewAccount( accountName, accountMembers, groups, users );
         }
       }
+      // Membership changes go first, obsolete users and groups may still be members
+      int applied = local.apply( );
+      LOG.debug( "Applied " + applied + " user info and group membership changes" );
+      for ( Map.Entry<String, Set<String>> entry : obsoleteUsers.entrySet( ) ) {
+        removeObsoleteUsers( entry.getKey( ), entry.getValue( ) );
+      }
+      for ( Map.Entry<String, Set<String>> entry : obsoleteGroups.entrySet( ) ) {
+        removeObsoleteGroups( entry.getKey( ), entry.getValue( ) );
+      }
       if ( lic.isCleanDeletion( ) ) {
         // Remaining accounts are obsolete
         removeObsoleteAccounts( oldAccountSet );
@@ -349,23 +382,21 @@ public class LdapSync {
     return userSet;
   }
   
-  private static void updateAccount( LdapIntegrationConfiguration lic, String accountName, Set<String> accountMembers, Map<String, Set<String>> groups, Map<String, Map<String, String>> users ) {
+  private static void updateAccount( LdapIntegrationConfiguration lic, LocalIdentities local, String accountName, Set<String> accountMembers,
+                                     Map<String, Set<String>> groups, Map<String, Map<String, String>> users,
+                                     Map<String, Set<String>> obsoleteUsers, Map<String, Set<String>> obsoleteGroups ) {
     LOG.debug( "Updating account " + accountName );
     Account account = null;
     try {
       account = Accounts.lookupAccountByName( accountName );
       // Update users first
       Set<String> newUserSet = getAccountUserSet( accountMembers, groups );
-      Set<String> oldUserSet = getLocalUserSet( account );
+      Map<String, String> localUsers = local.getUsers( accountName );
+      Set<String> oldUserSet = Sets.newHashSet( localUsers.keySet( ) );
       for ( String user : newUserSet ) {
         if ( oldUserSet.contains( user ) ) {
           oldUserSet.remove( user );
-          try {
-            updateUser( account, user, users.get( user ) );
-          } catch ( AuthException e ) {
-            LOG.error( e, e );
-            LOG.warn( "Failed to update user " + user + " in " + accountName, e );
-          }
+          updateUser( local, accountName, user, localUsers.get( user ), users.get( user ) );
         } else {
           try {
             addNewUser( account, user, users.get( user ) );
@@ -376,20 +407,21 @@ public class LdapSync {
         }
       }
       if ( lic.isCleanDeletion( ) ) {
-        removeObsoleteUsers( account, oldUserSet );
+        obsoleteUsers.put( accountName, oldUserSet );
       }
       // Now update groups
-      Set<String> oldGroupSet = getLocalGroupSet( account );
+      Map<String, String> localGroups = local.getGroups( accountName );
+      Set<String> oldGroupSet = Sets.newHashSet( localGroups.keySet( ) );
       for ( String group : accountMembers ) {
         if ( oldGroupSet.contains( group ) ) {
           oldGroupSet.remove( group );
-          updateGroup( account, group, groups.get( group ) );
+          updateGroup( local, accountName, group, localGroups.get( group ), groups.get( group ) );
         } else {
           addNewGroup( account, group, groups.get( group ) );
         }
       }
       if ( lic.isCleanDeletion( ) ) {
-        removeObsoleteGroups( account, oldGroupSet );
+        obsoleteGroups.put( accountName, oldGroupSet );
       }
     } catch ( AuthException e ) {
       LOG.error( e, e );
@@ -397,14 +429,24 @@ public class LdapSync {
     }
   }
   
-  private static void removeObsoleteGroups( Account account, Set<String> oldGroupSet ) {
-    for ( String group : oldGroupSet ) {
-      try {
-        account.deleteGroup( group, true/* recursive */ );
-      } catch ( AuthException e ) {
-        LOG.error( e, e );
-        LOG.warn( "Failed to delete group " + group + " in " + account.getName( ), e );
+  private static void removeObsoleteGroups( String accountName, Set<String> oldGroupSet ) {
+    if ( oldGroupSet.isEmpty( ) ) {
+      return;
+    }
+    LOG.debug( "Removing obsolete groups: " + oldGroupSet + ", in account " + accountName );
+    try {
+      Account account = Accounts.lookupAccountByName( accountName );
+      for ( String group : oldGroupSet ) {
+        try {
+          account.deleteGroup( group, true/* recursive */ );
+        } catch ( AuthException e ) {
+          LOG.error( e, e );
+          LOG.warn( "Failed to delete group " + group + " in " + accountName, e );
+        }
       }
+    } catch ( AuthException e ) {
+      LOG.error( e, e );
+      LOG.warn( "Failed to delete groups " + oldGroupSet + " in " + accountName, e );
     }
   }
 
@@ -426,58 +468,48 @@ public class LdapSync {
     }
   }
 
-  private static void updateGroup( Account account, String group, Set<String> users ) {
-    LOG.debug( "Updating group " + group + " in account " + account.getName( ) );
+  private static void updateGroup( LocalIdentities local, String accountName, String group, String groupId, Set<String> users ) {
     if ( users == null ) {
       LOG.error( "Empty new user set of group " + group );
       return;
     }
-    try {
-      // Get local user set of the group
-      Set<String> localUserSet = Sets.newHashSet( );
-      Group g = account.lookupGroupByName( group );
-      for ( User u : g.getUsers( ) ) {
-        localUserSet.add( u.getName( ) );
-      }
-      // Update group by adding new users and remove obsolete users
-      for ( String user : users ) {
-        if ( localUserSet.contains( user ) ) {
-          localUserSet.remove( user );
-        } else {
-          LOG.debug( "Adding " + user + " to " + g.getName( ) );
-          g.addUserByName( user );
-        }
-      }
-      for ( String user : localUserSet ) {
-        LOG.debug( "Removing " + user + " from " + g.getName( ) );
-        g.removeUserByName( user );
+    // Update group by adding new users and remove obsolete users
+    Set<String> localUserSet = Sets.newHashSet( local.getGroupMembers( groupId ) );
+    for ( String user : users ) {
+      if ( localUserSet.contains( user ) ) {
+        localUserSet.remove( user );
+      } else {
+        LOG.debug( "Adding " + user + " to " + group + " in account " + accountName );
+        local.addMember( accountName, groupId, user );
       }
-    } catch ( AuthException e ) {
-      LOG.error( e, e );
-      LOG.warn( "Failed to update group " + group + " in " + account.getName( ), e );
     }
-  }
-
-  private static Set<String> getLocalGroupSet( Account account ) throws AuthException {
-    Set<String> groupSet = Sets.newHashSet( );
-    for ( Group group : account.getGroups( ) ) {
-      groupSet.add( group.getName( ) );
+    for ( String user : localUserSet ) {
+      LOG.debug( "Removing " + user + " from " + group + " in account " + accountName );
+      local.removeMember( accountName, groupId, user );
     }
-    return groupSet;
   }
 
-  private static void removeObsoleteUsers( Account account, Set<String> oldUserSet ) {
+  private static void removeObsoleteUsers( String accountName, Set<String> oldUserSet ) {
     // We don't want to remove account admin when updating an account
     oldUserSet.remove( User.ACCOUNT_ADMIN );
+    if ( oldUserSet.isEmpty( ) ) {
+      return;
+    }
     
-    LOG.debug( "Removing obsolete users: " + oldUserSet + ", in account " + account.getName( ) );
-    for ( String user : oldUserSet ) {
-      try {
-        account.deleteUser( user, true/* forceDeleteAdmin */, true /* recursive */ );
-      } catch ( AuthException e ) {
-        LOG.error( e, e );
-        LOG.warn( "Failed to delete user " + user + " in " + account.getName( ) );
+    LOG.debug( "Removing obsolete users: " + oldUserSet + ", in account " + accountName );
+    try {
+      Account account = Accounts.lookupAccountByName( accountName );
+      for ( String user : oldUserSet ) {
+        try {
+          account.deleteUser( user, true/* forceDeleteAdmin */, true /* recursive */ );
+        } catch ( AuthException e ) {
+          LOG.error( e, e );
+          LOG.warn( "Failed to delete user " + user + " in " + accountName );
+        }
       }
+    } catch ( AuthException e ) {
+      LOG.error( e, e );
+      LOG.warn( "Failed to delete users " + oldUserSet + " in " + accountName, e );
     }
   }
 
@@ -489,23 +521,18 @@ public class LdapSync {
     account.addUser( user, "/", true/* skipRegistration */, true/* enabled */, info );
   }
 
-  private static void updateUser( Account account, String user, Map<String, String> map ) throws AuthException {
-    LOG.debug( "Updating user " + user + " in account " + account.getName( ) );
+  private static void updateUser( LocalIdentities local, String accountName, String user, String userId, Map<String, String> map ) {
     if ( map == null ) {
       LOG.error( "Empty info map of user " + user );
-    } else {
-      account.lookupUserByName( user ).setInfo( map );
+      return;
     }
-  }
-
-  private static Set<String> getLocalUserSet( Account account ) throws AuthException {
-    Set<String> userSet = Sets.newHashSet( );
-    for ( User user : account.getUsers( ) ) {
-      userSet.add( user.getName( ) );
+    Map<String, String> info = LocalIdentities.normalize( map );
+    if ( !info.equals( local.getUserInfo( userId ) ) ) {
+      LOG.debug( "Updating user " + user + " in account " + accountName );
+      local.setInfo( userId, info );
     }
-    return userSet;
   }
-  
+
   private static void removeObsoleteAccounts( Set<String> oldAccountSet ) {
     // We don't want to remove system account
     oldAccountSet.remove( Account.SYSTEM_ACCOUNT );
@@ -521,14 +548,6 @@ public class LdapSync {
     }
   }
   
-  private static Set<String> getLocalAccountSet( ) throws AuthException {
-    Set<String> accountSet = Sets.newHashSet( );
-    for ( Account account : Accounts.listAllAccounts( ) ) {
-      accountSet.add( account.getName( ) );
-    }
-    return accountSet;
-  }
-  
   /**
    * Following RFC 2253
    * 
@@ -578,36 +597,50 @@ public class LdapSync {
     return id.toLowerCase( );
   }
 
-  private static Set<String> getMembers( String memberAttrName, Attributes attrs, final Map<String, String> dnToId ) throws NamingException {
+  private static Set<String> getMemberDns( String memberAttrName, Attributes attrs ) throws NamingException {
     Set<String> members = Sets.newHashSet( );
     Attribute membersAttr = attrs.get( memberAttrName );
     if ( membersAttr != null ) {
       NamingEnumeration<?> names = membersAttr.getAll( );
       while ( names.hasMore( ) ) {
-        String memberDn = ( String ) names.next( );
-        String memberId = dnToId.get( memberDn.toLowerCase( ) );
-        if ( Strings.isNullOrEmpty( memberId ) ) {
-          LOG.warn( "Can not map member DN " + memberDn + " to ID for " + attrs + ". Check corresponding selection section in your LIC." );
-        } else {
-          members.add( memberId.toLowerCase( ) );
-        }
+        members.add( ( ( String ) names.next( ) ).toLowerCase( ) );
       }
     }
     return members;
   }
 
-  private static void retrieveSelection( LdapClient ldap, String baseDn, Selection selection, String[] attrNames, LdapEntryProcessor processor ) throws LdapException {
+  /**
+   * Retrieve the selected entries, or only those changed since the snapshot was last synced.
+   * 
+   * @return the DNs of all the selected entries, for detecting deleted entries
+   */
+  private static Set<String> retrieveSelection( LdapClient ldap, LdapIntegrationConfiguration lic, LdapSnapshot snapshot, String baseDn, Selection selection, String[] attrNames, LdapEntryProcessor processor ) throws LdapException {
+    String changeAttr = lic.getChangeAttribute( );
+    String since = snapshot.getSince( );
+    String[] attrs = ObjectArrays.concat( attrNames, changeAttr );
     if ( VERBOSE ) {
-      LOG.debug( "Search users by: baseDn=" + baseDn + ", attributes=" + attrNames + ", selection=" + selection );
+      LOG.debug( "Search by: baseDn=" + baseDn + ", attributes=" + attrs + ", selection=" + selection + ", since=" + since );
     }
+    Set<String> dns = Sets.newHashSet( );
     try {
+      String filter = selection.getSearchFilter( );
+      if ( since != null ) {
+        // List everything for deletions, then fetch what changed
+        for ( SearchResult res : ldap.pagedSearch( baseDn, filter, new String[]{ NO_ATTRIBUTES }, lic.getPageSize( ) ) ) {
+          if ( !selection.getNotSelected( ).contains( res.getNameInNamespace( ) ) ) {
+            dns.add( res.getNameInNamespace( ).toLowerCase( ) );
+          }
+        }
+        filter = "(&" + parenthesize( filter ) + "(" + changeAttr + ">=" + since + "))";
+      }
       // Search by filter first.
-      NamingEnumeration<SearchResult> results = ldap.search( baseDn, selection.getSearchFilter( ), attrNames );
-      while ( results.hasMore( ) ) {
-        SearchResult res = results.next( );
+      for ( SearchResult res : ldap.pagedSearch( baseDn, filter, attrs, lic.getPageSize( ) ) ) {
         try {
           if ( !selection.getNotSelected( ).contains( res.getNameInNamespace( ) ) ) {
-            processor.processLdapEntry( res.getNameInNamespace( ).toLowerCase( ), res.getAttributes( ) );
+            String dn = res.getNameInNamespace( ).toLowerCase( );
+            processor.processLdapEntry( dn, res.getAttributes( ) );
+            snapshot.observe( getChange( res.getAttributes( ), changeAttr ) );
+            dns.add( dn );
           }
         } catch ( NamingException e ) {
           LOG.debug( "Failed to retrieve entry " + res );
@@ -616,12 +649,14 @@ public class LdapSync {
       }
       // Get one-off DNs
       for ( String dn : selection.getSelected( ) ) {
-        Attributes attrs = null;
+        Attributes entryAttrs = null;
         try {
-          attrs = ldap.getContext( ).getAttributes( dn, attrNames );
-          processor.processLdapEntry( dn.toLowerCase( ), attrs );
+          entryAttrs = ldap.getContext( ).getAttributes( dn, attrs );
+          processor.processLdapEntry( dn.toLowerCase( ), entryAttrs );
+          snapshot.observe( getChange( entryAttrs, changeAttr ) );
+          dns.add( dn.toLowerCase( ) );
         } catch ( NamingException e ) {
-          LOG.debug( "Failed to retrieve entry " + attrs );
+          LOG.debug( "Failed to retrieve entry " + entryAttrs );
           LOG.error( e, e );
         }
       }
@@ -629,9 +664,22 @@ public class LdapSync {
       LOG.error( e, e );
       throw new LdapException( e );
     }
+    if ( VERBOSE ) {
+      LOG.debug( "Selected " + dns.size( ) + " entries under " + baseDn );
+    }
+    return dns;
+  }
+  
+  private static String parenthesize( String filter ) {
+    return filter.startsWith( "(" ) ? filter : "(" + filter + ")";
+  }
+  
+  private static String getChange( Attributes attrs, String changeAttr ) throws NamingException {
+    Attribute attr = attrs.get( changeAttr );
+    return attr != null ? ( String ) attr.get( ) : null;
   }
   
-  private static void loadLdapAccountingGroups( LdapClient ldap, final LdapIntegrationConfiguration lic, final Map<String, String> groupDnToId, final Map<String, Set<String>> accountingGroups ) throws LdapException {
+  private static void loadLdapAccountingGroups( LdapClient ldap, final LdapIntegrationConfiguration lic, final LdapSnapshot snapshot ) throws LdapException {
     if ( VERBOSE ) {
       LOG.debug( "Loading accounting groups from LDAP/AD" );
     }
@@ -643,22 +691,22 @@ public class LdapSync {
     if ( VERBOSE ) {
       LOG.debug( "Attributes to load for accounting groups: " + attrNames );
     }
-    retrieveSelection( ldap, lic.getAccountingGroupBaseDn( ), lic.getAccountingGroupsSelection( ), attrNames.toArray( new String[0] ), new LdapEntryProcessor( ) {
+    snapshot.retainAccountingGroups( retrieveSelection( ldap, lic, snapshot, lic.getAccountingGroupBaseDn( ), lic.getAccountingGroupsSelection( ), attrNames.toArray( new String[0] ), new LdapEntryProcessor( ) {
 
       @Override
       public void processLdapEntry( String dn, Attributes attrs ) throws NamingException {
         if ( VERBOSE ) {
           LOG.debug( "Retrieved accounting group: " + dn + " -> " + attrs );
         }
-        accountingGroups.put( sanitizeAccountId( getId( dn, lic.getAccountingGroupIdAttribute( ), attrs ) ),
-                              getMembers( lic.getGroupsAttribute( ), attrs, groupDnToId ) );
+        snapshot.putAccountingGroup( dn, sanitizeAccountId( getId( dn, lic.getAccountingGroupIdAttribute( ), attrs ) ),
+                                     getMemberDns( lic.getGroupsAttribute( ), attrs ) );
         
       }
       
-    } );    
+    } ) );
   }
   
-  private static void loadLdapGroups( LdapClient ldap, final LdapIntegrationConfiguration lic, final Map<String, String> userDnToId, final Map<String, String> groupDnToId, final Map<String, Set<String>> groups ) throws LdapException {
+  private static void loadLdapGroups( LdapClient ldap, final LdapIntegrationConfiguration lic, final LdapSnapshot snapshot ) throws LdapException {
     if ( VERBOSE ) {
       LOG.debug( "Loading groups from LDAP/AD" );
     }
@@ -670,7 +718,7 @@ public class LdapSync {
     if ( VERBOSE ) {
       LOG.debug( "Attributes to load for groups: " + attrNames );
     }
-    retrieveSelection( ldap, lic.getGroupBaseDn( ), lic.getGroupsSelection( ), attrNames.toArray( new String[0] ), new LdapEntryProcessor( ) {
+    snapshot.retainGroups( retrieveSelection( ldap, lic, snapshot, lic.getGroupBaseDn( ), lic.getGroupsSelection( ), attrNames.toArray( new String[0] ), new LdapEntryProcessor( ) {
 
       @Override
       public void processLdapEntry( String dn, Attributes attrs ) throws NamingException {
@@ -678,14 +726,13 @@ public class LdapSync {
           LOG.debug( "Retrieved group: " + dn + " -> " + attrs );
         }
         String id = sanitizeUserGroupId( getId( dn, lic.getGroupIdAttribute( ), attrs ) ); 
-        groupDnToId.put( dn, id );
-        groups.put( id, getMembers( lic.getUsersAttribute( ), attrs, userDnToId ) );
+        snapshot.putGroup( dn, id, getMemberDns( lic.getUsersAttribute( ), attrs ) );
       }
       
-    } );    
+    } ) );
   }
   
-  private static void loadLdapUsers( LdapClient ldap, final LdapIntegrationConfiguration lic, final Map<String, String> userDnToId, final Map<String, Map<String, String>> users ) throws LdapException {
+  private static void loadLdapUsers( LdapClient ldap, final LdapIntegrationConfiguration lic, final LdapSnapshot snapshot ) throws LdapException {
     if ( VERBOSE ) {
       LOG.debug( "Loading users from LDAP/AD" );
     }
@@ -702,7 +749,7 @@ public class LdapSync {
       LOG.debug( "Attributes to load for users: " + attrNames );
     }
     // Retrieving from LDAP using a search
-    retrieveSelection( ldap, lic.getUserBaseDn( ), lic.getUsersSelection( ), attrNames.toArray( new String[0] ), new LdapEntryProcessor( ) {
+    snapshot.retainUsers( retrieveSelection( ldap, lic, snapshot, lic.getUserBaseDn( ), lic.getUsersSelection( ), attrNames.toArray( new String[0] ), new LdapEntryProcessor( ) {
 
       @Override
       public void processLdapEntry( String dn, Attributes attrs ) throws NamingException {
@@ -710,7 +757,6 @@ public class LdapSync {
           LOG.debug( "Retrieved user: " + dn + " -> " + attrs );
         }
         String id = sanitizeUserGroupId( getId( dn, lic.getUserIdAttribute( ), attrs ) );
-        userDnToId.put( dn, id );
         Map<String, String> infoMap = Maps.newHashMap( );
         for ( String attrName : lic.getUserInfoAttributes( ).keySet( ) ) {
           String infoKey = lic.getUserInfoAttributes( ).get( attrName );
@@ -723,10 +769,10 @@ public class LdapSync {
         if ( !Strings.isNullOrEmpty( lic.getUserSaslIdAttribute( ) ) ) {
           infoMap.put( User.SASLID, getAttrWithNullCheck( attrs, lic.getUserSaslIdAttribute( ) ) );
         }
-        users.put( id, infoMap );
+        snapshot.putUser( dn, id, infoMap );
       }
       
-    } );
+    } ) );
   }
 
   private static String getAttrWithNullCheck( Attributes attrs, String attrName ) throws NamingException {
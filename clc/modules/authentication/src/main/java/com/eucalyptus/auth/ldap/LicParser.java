@@ -217,6 +217,19 @@ public class LicParser {
         throw new JSONException( "Invalid sync interval value" );
       }
       lic.setCleanDeletion( "true".equalsIgnoreCase( JsonUtils.getByType( String.class, sync, LicSpec.CLEAN_DELETION ) ) );
+      lic.setIncrementalSync( "true".equalsIgnoreCase( JsonUtils.getByType( String.class, sync, LicSpec.INCREMENTAL_SYNC ) ) );
+      String pageSize = JsonUtils.getByType( String.class, sync, LicSpec.PAGE_SIZE );
+      if ( pageSize != null ) {
+        try {
+          lic.setPageSize( Integer.parseInt( pageSize ) );
+        } catch ( NumberFormatException e ) {
+          throw new JSONException( "Invalid page size value" );
+        }
+      }
+      String changeAttribute = JsonUtils.getByType( String.class, sync, LicSpec.CHANGE_ATTRIBUTE );
+      if ( !Strings.isNullOrEmpty( changeAttribute ) ) {
+        lic.setChangeAttribute( changeAttribute );
+      }
     }
   }
   
@@ -0,0 +1,231 @@
+package com.eucalyptus.auth.ldap;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.log4j.Logger;
+import com.eucalyptus.auth.AuthException;
+import com.eucalyptus.auth.DatabaseAuthUtils;
+import com.eucalyptus.auth.entities.AccountEntity;
+import com.eucalyptus.auth.entities.GroupEntity;
+import com.eucalyptus.auth.entities.UserEntity;
+import com.eucalyptus.auth.policy.AuthorizationCache;
+import com.eucalyptus.entities.EntityWrapper;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Snapshot of the accounts, users and groups in the local auth database, which LDAP sync diffs
+ * against instead of looking each identity up through its proxy.
+ *
+ * The snapshot is loaded with a handful of queries in a single transaction. Changes to the info of
+ * existing users and to the membership of existing groups are queued and then applied directly to
+ * the entities, {@link #BATCH_SIZE} changes per transaction.
+ */
+class LocalIdentities {
+
+  private static final Logger LOG = Logger.getLogger( LocalIdentities.class );
+
+  static final int BATCH_SIZE = 100;
+
+  private final Set<String> accounts = Sets.newHashSet( );
+  // account name -> user name -> user ID
+  private final Map<String, Map<String, String>> users = Maps.newHashMap( );
+  // user ID -> info
+  private final Map<String, Map<String, String>> userInfo = Maps.newHashMap( );
+  // account name -> group name -> group ID, without the user groups
+  private final Map<String, Map<String, String>> groups = Maps.newHashMap( );
+  // group ID -> user names
+  private final Map<String, Set<String>> groupMembers = Maps.newHashMap( );
+
+  private final List<Change> changes = Lists.newArrayList( );
+
+  private LocalIdentities( ) {
+  }
+
+  static LocalIdentities load( ) throws AuthException {
+    LocalIdentities local = new LocalIdentities( );
+    EntityWrapper<AccountEntity> db = EntityWrapper.get( AccountEntity.class );
+    try {
+      for ( Object name : db.createQuery( "select a.name from AccountEntity a" ).list( ) ) {
+        local.accounts.add( ( String ) name );
+      }
+      for ( Object[] row : rows( db, "select g.account.name, u.name, u.userId from GroupEntity g join g.users u where g.userGroup = true" ) ) {
+        get( local.users, ( String ) row[0] ).put( ( String ) row[1], ( String ) row[2] );
+      }
+      for ( Object[] row : rows( db, "select u.userId, index( i ), i from UserEntity u join u.info i" ) ) {
+        get( local.userInfo, ( String ) row[0] ).put( ( String ) row[1], ( String ) row[2] );
+      }
+      for ( Object[] row : rows( db, "select g.account.name, g.name, g.groupId from GroupEntity g where g.userGroup = false" ) ) {
+        get( local.groups, ( String ) row[0] ).put( ( String ) row[1], ( String ) row[2] );
+      }
+      for ( Object[] row : rows( db, "select g.groupId, u.name from GroupEntity g join g.users u where g.userGroup = false" ) ) {
+        Set<String> members = local.groupMembers.get( row[0] );
+        if ( members == null ) {
+          local.groupMembers.put( ( String ) row[0], members = Sets.newHashSet( ) );
+        }
+        members.add( ( String ) row[1] );
+      }
+      db.commit( );
+      return local;
+    } catch ( Exception e ) {
+      db.rollback( );
+      throw new AuthException( "Failed to load local identities", e );
+    }
+  }
+
+  @SuppressWarnings( "unchecked" )
+  private static List<Object[]> rows( EntityWrapper<?> db, String query ) {
+    return ( List<Object[]> ) db.createQuery( query ).list( );
+  }
+
+  private static Map<String, String> get( Map<String, Map<String, String>> map, String key ) {
+    Map<String, String> value = map.get( key );
+    if ( value == null ) {
+      map.put( key, value = Maps.newHashMap( ) );
+    }
+    return value;
+  }
+
+  /**
+   * @return user info as it is stored: lower case keys and no null values.
+   */
+  static Map<String, String> normalize( Map<String, String> info ) {
+    Map<String, String> normalized = Maps.newHashMap( );
+    for ( Map.Entry<String, String> entry : info.entrySet( ) ) {
+      if ( entry.getValue( ) != null ) {
+        normalized.put( entry.getKey( ).toLowerCase( ), entry.getValue( ) );
+      }
+    }
+    return normalized;
+  }
+
+  Set<String> getAccounts( ) {
+    return Collections.unmodifiableSet( this.accounts );
+  }
+
+  /**
+   * @return user name -> user ID of the users in the account
+   */
+  Map<String, String> getUsers( String accountName ) {
+    Map<String, String> accountUsers = this.users.get( accountName );
+    return accountUsers == null ? Collections.<String, String>emptyMap( ) : Collections.unmodifiableMap( accountUsers );
+  }
+
+  Map<String, String> getUserInfo( String userId ) {
+    Map<String, String> info = this.userInfo.get( userId );
+    return info == null ? Collections.<String, String>emptyMap( ) : Collections.unmodifiableMap( info );
+  }
+
+  /**
+   * @return group name -> group ID of the groups in the account, without the user groups
+   */
+  Map<String, String> getGroups( String accountName ) {
+    Map<String, String> accountGroups = this.groups.get( accountName );
+    return accountGroups == null ? Collections.<String, String>emptyMap( ) : Collections.unmodifiableMap( accountGroups );
+  }
+
+  Set<String> getGroupMembers( String groupId ) {
+    Set<String> members = this.groupMembers.get( groupId );
+    return members == null ? Collections.<String>emptySet( ) : Collections.unmodifiableSet( members );
+  }
+
+  void setInfo( final String userId, final Map<String, String> info ) {
+    this.changes.add( new Change( "set info of user " + userId ) {
+      @Override
+      void apply( EntityWrapper<UserEntity> db ) throws Exception {
+        UserEntity user = DatabaseAuthUtils.getUnique( db, UserEntity.class, "userId", userId );
+        user.getInfo( ).clear( );
+        user.getInfo( ).putAll( info );
+      }
+    } );
+  }
+
+  void addMember( final String accountName, final String groupId, final String userName ) {
+    this.changes.add( new Change( "add " + userName + " to group " + groupId ) {
+      @Override
+      void apply( EntityWrapper<UserEntity> db ) throws Exception {
+        GroupEntity group = DatabaseAuthUtils.getUnique( db.recast( GroupEntity.class ), GroupEntity.class, "groupId", groupId );
+        UserEntity user = DatabaseAuthUtils.getUniqueUser( db, userName, accountName );
+        group.getUsers( ).add( user );
+        user.getGroups( ).add( group );
+      }
+    } );
+  }
+
+  void removeMember( final String accountName, final String groupId, final String userName ) {
+    this.changes.add( new Change( "remove " + userName + " from group " + groupId ) {
+      @Override
+      void apply( EntityWrapper<UserEntity> db ) throws Exception {
+        GroupEntity group = DatabaseAuthUtils.getUnique( db.recast( GroupEntity.class ), GroupEntity.class, "groupId", groupId );
+        UserEntity user = DatabaseAuthUtils.getUniqueUser( db, userName, accountName );
+        group.getUsers( ).remove( user );
+        user.getGroups( ).remove( group );
+      }
+    } );
+  }
+
+  /**
+   * Apply the queued changes, {@link #BATCH_SIZE} per transaction. If a batch fails its changes are
+   * retried one per transaction so that a single bad change does not hold back the others.
+   *
+   * @return the number of changes applied
+   */
+  int apply( ) {
+    int applied = 0;
+    for ( List<Change> batch : Lists.partition( this.changes, BATCH_SIZE ) ) {
+      if ( applyAll( batch ) ) {
+        applied += batch.size( );
+      } else {
+        LOG.debug( "Failed to apply " + batch.size( ) + " changes in one batch, applying them one by one" );
+        for ( Change change : batch ) {
+          if ( applyAll( Collections.singletonList( change ) ) ) {
+            applied++;
+          } else {
+            LOG.warn( "Failed to " + change );
+          }
+        }
+      }
+    }
+    if ( applied > 0 ) {
+      AuthorizationCache.invalidate( );
+    }
+    this.changes.clear( );
+    return applied;
+  }
+
+  private static boolean applyAll( List<Change> batch ) {
+    EntityWrapper<UserEntity> db = EntityWrapper.get( UserEntity.class );
+    try {
+      for ( Change change : batch ) {
+        change.apply( db );
+      }
+      db.commit( );
+      return true;
+    } catch ( Exception e ) {
+      db.rollback( );
+      LOG.debug( e, e );
+      return false;
+    }
+  }
+
+  private static abstract class Change {
+
+    private final String description;
+
+    Change( String description ) {
+      this.description = description;
+    }
+
+    abstract void apply( EntityWrapper<UserEntity> db ) throws Exception;
+
+    @Override
+    public String toString( ) {
+      return this.description;
+    }
+
+  }
+
+}
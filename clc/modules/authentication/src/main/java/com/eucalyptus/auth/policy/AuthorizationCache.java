@@ -0,0 +1,93 @@
+package com.eucalyptus.auth.policy;
+
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import com.eucalyptus.auth.AuthenticationProperties;
+import com.google.common.collect.MapMaker;
+
+/**
+ * Cache of {@link CompiledAuthorizations} keyed by principal and resource type.
+ *
+ * Any change to policies, group membership, users, groups or accounts must call
+ * {@link #invalidate()}, which discards every cached entry. Entries also expire after
+ * {@link AuthenticationProperties#AUTHORIZATION_CACHE_TTL} seconds so that changes made by
+ * another host sharing the database are eventually observed.
+ */
+public class AuthorizationCache {
+
+  private static final AtomicLong generation = new AtomicLong( 0l );
+  private static volatile ConcurrentMap<String, Entry> entries;
+  private static volatile int size;
+  private static volatile int ttl;
+
+  private static class Entry {
+    private final long                   generation;
+    private final CompiledAuthorizations authorizations;
+
+    Entry( long generation, CompiledAuthorizations authorizations ) {
+      this.generation = generation;
+      this.authorizations = authorizations;
+    }
+  }
+
+  /**
+   * Discard all compiled authorizations.
+   */
+  public static void invalidate( ) {
+    generation.incrementAndGet( );
+  }
+
+  /**
+   * The generation to pass to {@link #put(String, long, CompiledAuthorizations)}; it must be
+   * read <b>before</b> the authorizations are loaded.
+   */
+  public static long getGeneration( ) {
+    return generation.get( );
+  }
+
+  public static CompiledAuthorizations lookup( String key ) {
+    ConcurrentMap<String, Entry> map = entries( );
+    if ( map == null ) {
+      return null;
+    }
+    Entry entry = map.get( key );
+    if ( entry == null ) {
+      return null;
+    } else if ( entry.generation != generation.get( ) ) {
+      map.remove( key, entry );
+      return null;
+    } else {
+      return entry.authorizations;
+    }
+  }
+
+  public static void put( String key, long loadedGeneration, CompiledAuthorizations authorizations ) {
+    ConcurrentMap<String, Entry> map = entries( );
+    if ( map != null && loadedGeneration == generation.get( ) ) {
+      map.put( key, new Entry( loadedGeneration, authorizations ) );
+    }
+  }
+
+  /**
+   * The backing map is rebuilt when the configured size or lifetime changes; a size or lifetime of
+   * zero disables caching.
+   */
+  private static ConcurrentMap<String, Entry> entries( ) {
+    int configuredSize = AuthenticationProperties.AUTHORIZATION_CACHE_SIZE;
+    int configuredTtl = AuthenticationProperties.AUTHORIZATION_CACHE_TTL;
+    if ( configuredSize <= 0 || configuredTtl <= 0 ) {
+      return null;
+    } else if ( entries == null || size != configuredSize || ttl != configuredTtl ) {
+      synchronized ( AuthorizationCache.class ) {
+        if ( entries == null || size != configuredSize || ttl != configuredTtl ) {
+          entries = new MapMaker( ).maximumSize( configuredSize ).expireAfterWrite( configuredTtl, TimeUnit.SECONDS ).makeMap( );
+          size = configuredSize;
+          ttl = configuredTtl;
+        }
+      }
+    }
+    return entries;
+  }
+
+}
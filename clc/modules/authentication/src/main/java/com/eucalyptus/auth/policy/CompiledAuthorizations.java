@@ -0,0 +1,238 @@
+package com.eucalyptus.auth.policy;
+
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import com.eucalyptus.auth.AuthException;
+import com.eucalyptus.auth.policy.condition.ConditionOp;
+import com.eucalyptus.auth.policy.condition.Conditions;
+import com.eucalyptus.auth.policy.ern.AddressUtil;
+import com.eucalyptus.auth.policy.key.Key;
+import com.eucalyptus.auth.policy.key.Keys;
+import com.eucalyptus.auth.principal.Authorization;
+import com.eucalyptus.auth.principal.Authorization.EffectType;
+import com.eucalyptus.auth.principal.Condition;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * The authorizations applying to one principal and resource type, compiled for repeated evaluation.
+ *
+ * Each statement's action and resource patterns are split into literals, matched by hash lookup,
+ * and wildcards, which are compiled once into a single alternation. Conditions are resolved to
+ * their operator and key instances up front. Statements are additionally indexed by literal
+ * action so that only the statements which could match a request action are visited; the
+ * original statement order is preserved.
+ */
+public class CompiledAuthorizations {
+
+  private final List<Statement>     statements;
+  private final Map<String, BitSet> byAction;
+  private final BitSet              scanned;
+
+  public static class Statement {
+    private final EffectType                effect;
+    private final String                    type;
+    private final boolean                   notAction;
+    private final boolean                   notResource;
+    private final PatternSet                actions;
+    private final PatternSet                resources;
+    private final List<String>              addresses;
+    private final List<CompiledCondition>   conditions;
+
+    Statement( Authorization auth ) throws AuthException {
+      this.effect = auth.getEffect( );
+      this.type = auth.getType( );
+      this.notAction = Boolean.TRUE.equals( auth.isNotAction( ) );
+      this.notResource = Boolean.TRUE.equals( auth.isNotResource( ) );
+      this.actions = new PatternSet( auth.getActions( ) );
+      if ( PolicySpec.EC2_RESOURCE_ADDRESS.equals( this.type ) ) {
+        this.resources = null;
+        this.addresses = ImmutableList.copyOf( auth.getResources( ) );
+      } else {
+        this.resources = new PatternSet( auth.getResources( ) );
+        this.addresses = null;
+      }
+      List<CompiledCondition> conds = Lists.newArrayList( );
+      for ( Condition cond : auth.getConditions( ) ) {
+        conds.add( new CompiledCondition( cond ) );
+      }
+      this.conditions = ImmutableList.copyOf( conds );
+    }
+
+    public EffectType getEffect( ) {
+      return this.effect;
+    }
+
+    public String getType( ) {
+      return this.type;
+    }
+
+    public List<CompiledCondition> getConditions( ) {
+      return this.conditions;
+    }
+
+    public boolean matchAction( String action ) {
+      return this.actions.matches( action ) != this.notAction;
+    }
+
+    public boolean matchResource( String resource ) {
+      boolean matched = false;
+      if ( this.addresses != null ) {
+        for ( String pattern : this.addresses ) {
+          if ( pattern != null && AddressUtil.addressRangeMatch( pattern, resource ) ) {
+            matched = true;
+            break;
+          }
+        }
+      } else {
+        matched = this.resources.matches( resource );
+      }
+      return matched != this.notResource;
+    }
+  }
+
+  public static class CompiledCondition {
+    private final ConditionOp op;
+    private final Key         key;
+    private final Set<String> values;
+
+    CompiledCondition( Condition cond ) throws AuthException {
+      this.op = Conditions.getOpInstance( Conditions.getConditionOpClass( cond.getType( ) ) );
+      this.key = Keys.getKeyInstance( Keys.getKeyClass( cond.getKey( ) ) );
+      this.values = ImmutableSet.copyOf( cond.getValues( ) );
+    }
+
+    public ConditionOp getOp( ) {
+      return this.op;
+    }
+
+    public Key getKey( ) {
+      return this.key;
+    }
+
+    public Set<String> getValues( ) {
+      return this.values;
+    }
+  }
+
+  /**
+   * IAM patterns split into exact literals and a single compiled pattern for the wildcards.
+   */
+  private static class PatternSet {
+    private final Set<String> literals;
+    private final Pattern     wildcards;
+
+    PatternSet( Set<String> patterns ) {
+      Set<String> literals = Sets.newHashSet( );
+      StringBuilder wildcards = new StringBuilder( );
+      for ( String pattern : patterns ) {
+        if ( pattern == null ) {
+          continue;
+        } else if ( isLiteral( pattern ) ) {
+          literals.add( pattern );
+        } else {
+          wildcards.append( wildcards.length( ) > 0 ? "|" : "" ).append( "(?:" ).append( PatternUtils.toJavaPattern( pattern ) ).append( ")" );
+        }
+      }
+      this.literals = ImmutableSet.copyOf( literals );
+      this.wildcards = ( wildcards.length( ) > 0 ? Pattern.compile( wildcards.toString( ) ) : null );
+    }
+
+    boolean matches( String instance ) {
+      return this.literals.contains( instance ) || ( this.wildcards != null && this.wildcards.matcher( instance ).matches( ) );
+    }
+  }
+
+  private CompiledAuthorizations( List<Statement> statements ) {
+    this.statements = statements;
+    this.byAction = Maps.newHashMap( );
+    this.scanned = new BitSet( statements.size( ) );
+    for ( int i = 0; i < statements.size( ); i++ ) {
+      Statement statement = statements.get( i );
+      if ( statement.notAction || statement.actions.wildcards != null ) {
+        this.scanned.set( i );
+      } else {
+        for ( String action : statement.actions.literals ) {
+          BitSet indexes = this.byAction.get( action );
+          if ( indexes == null ) {
+            this.byAction.put( action, indexes = new BitSet( statements.size( ) ) );
+          }
+          indexes.set( i );
+        }
+      }
+    }
+  }
+
+  /**
+   * Compile {@code authorizations}, preserving their order.
+   */
+  public static CompiledAuthorizations compile( List<Authorization> authorizations ) throws AuthException {
+    List<Statement> statements = Lists.newArrayList( );
+    for ( Authorization auth : authorizations ) {
+      statements.add( new Statement( auth ) );
+    }
+    return new CompiledAuthorizations( ImmutableList.copyOf( statements ) );
+  }
+
+  /**
+   * @return the statements, in their original order, whose action element may match
+   *         {@code action}; the caller must still check the action, resource and conditions
+   */
+  public Iterable<Statement> candidates( String action ) {
+    BitSet literal = this.byAction.get( action );
+    final BitSet indexes;
+    if ( literal == null ) {
+      indexes = this.scanned;
+    } else if ( this.scanned.isEmpty( ) ) {
+      indexes = literal;
+    } else {
+      indexes = ( BitSet ) this.scanned.clone( );
+      indexes.or( literal );
+    }
+    if ( indexes.isEmpty( ) ) {
+      return Collections.emptyList( );
+    }
+    return new Iterable<Statement>( ) {
+      @Override
+      public Iterator<Statement> iterator( ) {
+        return new Iterator<Statement>( ) {
+          private int next = indexes.nextSetBit( 0 );
+
+          @Override
+          public boolean hasNext( ) {
+            return this.next >= 0;
+          }
+
+          @Override
+          public Statement next( ) {
+            Statement statement = statements.get( this.next );
+            this.next = indexes.nextSetBit( this.next + 1 );
+            return statement;
+          }
+
+          @Override
+          public void remove( ) {
+            throw new UnsupportedOperationException( );
+          }
+        };
+      }
+    };
+  }
+
+  public int size( ) {
+    return this.statements.size( );
+  }
+
+  private static boolean isLiteral( String pattern ) {
+    return pattern.indexOf( '*' ) < 0 && pattern.indexOf( '?' ) < 0;
+  }
+
+}
@@ -9,7 +9,6 @@ import com.eucalyptus.auth.AuthException;
 import com.eucalyptus.auth.Contract;
 import com.eucalyptus.auth.api.PolicyEngine;
 import com.eucalyptus.auth.policy.condition.ConditionOp;
-import com.eucalyptus.auth.policy.condition.Conditions;
 import com.eucalyptus.auth.policy.condition.NumericGreaterThan;
 import com.eucalyptus.auth.policy.ern.AddressUtil;
 import com.eucalyptus.auth.policy.key.CachedKeyEvaluator;
@@ -166,7 +165,7 @@ public class PolicyEngineImpl implements PolicyEngine {
   /**
    * Process a list of authorizations against the current request. Collecting contracts from matching authorizations.
    * 
-   * @param authorizations The list of authorizations to process
+   * @param authorizations The compiled authorizations to process
    * @param action The request action
    * @param resource The requested resource
    * @param keyEval The key cache for condition evaluation (optimization purpose)
@@ -174,13 +173,13 @@ public class PolicyEngineImpl implements PolicyEngine {
    * @return The final decision: DEFAULT - no matching authorization, DENY - explicit deny, ALLOW = explicit allow
    * @throws AuthException
    */
-  private Decision processAuthorizations( List<Authorization> authorizations, String action, String resource, CachedKeyEvaluator keyEval, ContractKeyEvaluator contractEval ) throws AuthException {
+  private Decision processAuthorizations( CompiledAuthorizations authorizations, String action, String resource, CachedKeyEvaluator keyEval, ContractKeyEvaluator contractEval ) throws AuthException {
     Decision result = Decision.DEFAULT; 
-    for ( Authorization auth : authorizations ) {
-      if ( !matchActions( auth, action ) ) {
+    for ( CompiledAuthorizations.Statement auth : authorizations.candidates( action ) ) {
+      if ( !auth.matchAction( action ) ) {
         continue;
       }
-      if ( !matchResources( auth, resource ) ) {
+      if ( !auth.matchResource( resource ) ) {
         continue;
       }
       if ( !evaluateConditions( auth.getConditions( ), action, auth.getType( ), keyEval, contractEval ) ) {
@@ -232,10 +231,10 @@ public class PolicyEngineImpl implements PolicyEngine {
    * @return
    * @throws AuthException
    */
-  private boolean evaluateConditions( List<? extends Condition> conditions, String action, String resourceType, CachedKeyEvaluator keyEval, ContractKeyEvaluator contractEval ) throws AuthException {
-    for ( Condition cond : conditions ) {
-      ConditionOp op = Conditions.getOpInstance( Conditions.getConditionOpClass( cond.getType( ) ) );
-      Key key = Keys.getKeyInstance( Keys.getKeyClass( cond.getKey( ) ) );
+  private boolean evaluateConditions( List<CompiledAuthorizations.CompiledCondition> conditions, String action, String resourceType, CachedKeyEvaluator keyEval, ContractKeyEvaluator contractEval ) throws AuthException {
+    for ( CompiledAuthorizations.CompiledCondition cond : conditions ) {
+      ConditionOp op = cond.getOp( );
+      Key key = cond.getKey( );
       if ( !key.canApply( action, resourceType ) ) {
         continue;
       }
@@ -262,16 +261,23 @@ public class PolicyEngineImpl implements PolicyEngine {
    * 
    * @param resourceType Type of the resource
    * @param accountId The ID of the account of the request user
-   * @return The list of global authorizations apply to the request user
+   * @return The compiled global authorizations apply to the request user
    * @throws AuthException for any error
    */
-  private List<Authorization> lookupGlobalAuthorizations( String resourceType, Account account ) throws AuthException {
-    List<Authorization> results = Lists.newArrayList( );
-    results.addAll( account.lookupAccountGlobalAuthorizations( resourceType ) );
-    if ( !PolicySpec.ALL_RESOURCE.equals( resourceType ) ) {
-      results.addAll( account.lookupAccountGlobalAuthorizations( PolicySpec.ALL_RESOURCE ) );
+  private CompiledAuthorizations lookupGlobalAuthorizations( String resourceType, Account account ) throws AuthException {
+    String cacheKey = "global:" + account.getAccountNumber( ) + ":" + resourceType;
+    CompiledAuthorizations compiled = AuthorizationCache.lookup( cacheKey );
+    if ( compiled == null ) {
+      long generation = AuthorizationCache.getGeneration( );
+      List<Authorization> results = Lists.newArrayList( );
+      results.addAll( account.lookupAccountGlobalAuthorizations( resourceType ) );
+      if ( !PolicySpec.ALL_RESOURCE.equals( resourceType ) ) {
+        results.addAll( account.lookupAccountGlobalAuthorizations( PolicySpec.ALL_RESOURCE ) );
+      }
+      compiled = CompiledAuthorizations.compile( results );
+      AuthorizationCache.put( cacheKey, generation, compiled );
     }
-    return results;
+    return compiled;
   }
   
   /**
@@ -279,16 +285,23 @@ public class PolicyEngineImpl implements PolicyEngine {
    * 
    * @param resourceType Type of the resource
    * @param userId The ID of the request user
-   * @return The list of local authorization apply to the request user
+   * @return The compiled local authorization apply to the request user
    * @throws AuthException for any error
    */
-  private List<Authorization> lookupLocalAuthorizations( String resourceType, User user ) throws AuthException {
-    List<Authorization> results = Lists.newArrayList( );
-    results.addAll( user.lookupAuthorizations( resourceType ) );
-    if ( !PolicySpec.ALL_RESOURCE.equals( resourceType ) ) {
-      results.addAll( user.lookupAuthorizations( PolicySpec.ALL_RESOURCE ) );
+  private CompiledAuthorizations lookupLocalAuthorizations( String resourceType, User user ) throws AuthException {
+    String cacheKey = "local:" + user.getUserId( ) + ":" + resourceType;
+    CompiledAuthorizations compiled = AuthorizationCache.lookup( cacheKey );
+    if ( compiled == null ) {
+      long generation = AuthorizationCache.getGeneration( );
+      List<Authorization> results = Lists.newArrayList( );
+      results.addAll( user.lookupAuthorizations( resourceType ) );
+      if ( !PolicySpec.ALL_RESOURCE.equals( resourceType ) ) {
+        results.addAll( user.lookupAuthorizations( PolicySpec.ALL_RESOURCE ) );
+      }
+      compiled = CompiledAuthorizations.compile( results );
+      AuthorizationCache.put( cacheKey, generation, compiled );
     }
-    return results;
+    return compiled;
   }
   
   /**
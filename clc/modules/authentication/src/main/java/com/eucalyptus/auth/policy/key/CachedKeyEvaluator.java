@@ -13,7 +13,7 @@ public class CachedKeyEvaluator {
   }
   
   public String getValue( Key key ) throws AuthException {
-    String value = cache.get( key );
+    String value = cache.get( key.getClass( ) );
     if ( value == null ) {
       value = key.value( );
       cache.put( key.getClass( ), value );
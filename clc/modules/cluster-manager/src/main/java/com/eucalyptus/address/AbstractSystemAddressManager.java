@@ -4,10 +4,13 @@ import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Set;
 import java.util.concurrent.ConcurrentNavigableMap;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.persistence.EntityTransaction;
 import org.apache.log4j.Logger;
 import com.eucalyptus.auth.principal.Principals;
@@ -28,10 +31,13 @@ import com.eucalyptus.util.OwnerFullName;
 import com.eucalyptus.util.RestrictedTypes;
 import com.eucalyptus.util.async.AsyncRequests;
 import com.eucalyptus.vm.VmInstance;
+import com.eucalyptus.vm.VmInstanceIndex;
 import com.eucalyptus.vm.VmInstance.VmState;
 import com.eucalyptus.vm.VmInstance.VmStateSet;
 import com.eucalyptus.vm.VmInstances;
 import com.google.common.base.Predicate;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import edu.ucsb.eucalyptus.cloud.exceptions.ExceptionList;
 import edu.ucsb.eucalyptus.msgs.ClusterAddressInfo;
 
@@ -137,47 +143,99 @@ public abstract class AbstractSystemAddressManager {
     
   }
   
+  /**
+   * Reconcile the addresses reported by {@code cluster} with the known addresses and instances.
+   * Instances are found in a single snapshot taken for the whole update rather than being looked up
+   * for each address; see {@link Reconciliation}.
+   */
   public void update( final Cluster cluster, final List<ClusterAddressInfo> ccList ) {
-    Helper.loadStoredAddresses( );
+    Helper.maybeLoadStoredAddresses( );
+    final Reconciliation reconciliation = Reconciliation.snapshot( cluster );
     for ( final ClusterAddressInfo addrInfo : ccList ) {
       try {
-        final Address address = Helper.lookupOrCreate( cluster, addrInfo );
-        if ( address.isAssigned( ) && !addrInfo.hasMapping( ) && !address.isPending( ) ) {
-          if ( Principals.nobodyFullName( ).equals( address.getOwner( ) ) ) {
-            Helper.markAsAllocated( cluster, addrInfo, address );
-          }
-          try {
-            final VmInstance vm = VmInstances.lookupByPrivateIp( addrInfo.getInstanceIp( ) );
-            clearOrphan( addrInfo );
-          } catch ( final NoSuchElementException e ) {
-            try {
-              final VmInstance vm = VmInstances.lookup( address.getInstanceId( ) );
-              clearOrphan( addrInfo );
-            } catch ( final NoSuchElementException ex ) {
-              InetAddress addr = null;
-              try {
-                addr = Inet4Address.getByName( addrInfo.getInstanceIp( ) );
-              } catch ( final UnknownHostException e1 ) {
-                LOG.debug( e1, e1 );
-              }
-              if ( ( addr == null ) || !addr.isLoopbackAddress( ) ) {
-                handleOrphan( cluster, addrInfo );
-              }
-            }
-          }
-        } else if ( address.isAllocated( ) && Principals.nobodyFullName( ).equals( address.getOwner( ) ) && !address.isPending( ) ) {
-          Helper.markAsAllocated( cluster, addrInfo, address );
-        }
+        reconciliation.reconcile( addrInfo );
       } catch ( final Exception e ) {
         LOG.debug( e, e );
       }
     }
+    reconciliation.apply( );
   }
   
-  protected static class Helper {
-    protected static Address lookupOrCreate( final Cluster cluster, final ClusterAddressInfo addrInfo ) {
+  /**
+   * One pass over the addresses reported by a cluster.
+   * 
+   * The instances are snapshotted once, from the {@link VmInstanceIndex} when it is loaded and
+   * otherwise with a single query, and indexed by instance id, private address and public address.
+   * Each reported address is then compared against the snapshot. Orphan bookkeeping is applied
+   * as it is found, since it is in memory. Assignments and stale public addresses need the
+   * instances themselves; they are collected and applied by {@link #apply()} with one query.
+   */
+  protected static class Reconciliation {
+    private final Cluster             cluster;
+    private final Map<String, Vm>     byId               = Maps.newHashMap( );
+    private final Map<String, Vm>     runningByPrivateIp = Maps.newHashMap( );
+    private final Map<String, Vm>     runningByPublicIp  = Maps.newHashMap( );
+    private final Map<Address, String> assignments       = Maps.newLinkedHashMap( );
+    private final Map<String, String> stalePublicIps     = Maps.newHashMap( );
+    
+    private Reconciliation( final Cluster cluster ) {
+      this.cluster = cluster;
+    }
+    
+    static Reconciliation snapshot( final Cluster cluster ) {
+      final Reconciliation reconciliation = new Reconciliation( cluster );
+      if ( VmInstanceIndex.isLoaded( ) ) {
+        for ( final VmInstanceIndex.Entry entry : VmInstanceIndex.list( null ) ) {
+          reconciliation.add( new Vm( entry.getInstanceId( ), entry.getState( ), entry.getPrivateAddress( ), entry.getPublicAddress( ) ) );
+        }
+      } else {
+        for ( final VmInstance vm : VmInstances.list( null ) ) {
+          reconciliation.add( new Vm( vm.getInstanceId( ), vm.getState( ), vm.getPrivateAddress( ), vm.getPublicAddress( ) ) );
+        }
+      }
+      return reconciliation;
+    }
+    
+    private void add( final Vm vm ) {
+      if ( !VmStateSet.DONE.contains( vm.state ) ) {
+        this.byId.put( vm.instanceId, vm );
+      }
+      if ( VmStateSet.RUN.contains( vm.state ) ) {
+        if ( vm.privateAddress != null ) {
+          this.runningByPrivateIp.put( vm.privateAddress, vm );
+        }
+        if ( vm.publicAddress != null ) {
+          this.runningByPublicIp.put( vm.publicAddress, vm );
+        }
+      }
+    }
+    
+    void reconcile( final ClusterAddressInfo addrInfo ) {
+      final Address address = this.lookupOrCreate( addrInfo );
+      if ( address.isAssigned( ) && !addrInfo.hasMapping( ) && !address.isPending( ) ) {
+        if ( Principals.nobodyFullName( ).equals( address.getOwner( ) ) ) {
+          this.markAsAllocated( addrInfo, address );
+        }
+        if ( this.runningByPrivateIp.containsKey( addrInfo.getInstanceIp( ) ) || this.byId.containsKey( address.getInstanceId( ) ) ) {
+          clearOrphan( addrInfo );
+        } else {
+          InetAddress addr = null;
+          try {
+            addr = Inet4Address.getByName( addrInfo.getInstanceIp( ) );
+          } catch ( final UnknownHostException e1 ) {
+            LOG.debug( e1, e1 );
+          }
+          if ( ( addr == null ) || !addr.isLoopbackAddress( ) ) {
+            handleOrphan( this.cluster, addrInfo );
+          }
+        }
+      } else if ( address.isAllocated( ) && Principals.nobodyFullName( ).equals( address.getOwner( ) ) && !address.isPending( ) ) {
+        this.markAsAllocated( addrInfo, address );
+      }
+    }
+    
+    private Address lookupOrCreate( final ClusterAddressInfo addrInfo ) {
       Address addr = null;
-      VmInstance vm = null;
       try {
         addr = Addresses.getInstance( ).lookupDisabled( addrInfo.getAddress( ) );
         LOG.trace( "Found address in the inactive set cache: " + addr );
@@ -188,26 +246,24 @@ public abstract class AbstractSystemAddressManager {
         } catch ( final NoSuchElementException e ) {}
       }
       if ( addrInfo.hasMapping( ) ) {
-        vm = Helper.maybeFindVm( addr != null
+        final Vm vm = this.findVm( addr != null
           ? addr.getInstanceId( )
           : null, addrInfo.getAddress( ), addrInfo.getInstanceIp( ) );
         if ( ( addr != null ) && ( vm != null ) ) {
-          Helper.ensureAllocated( addr, vm );
+          this.assignments.put( addr, vm.instanceId );
           clearOrphan( addrInfo );
-        } else if ( addr != null && !addr.isPending( ) && vm != null && VmStateSet.DONE.apply( vm ) ) {
-          handleOrphan( cluster, addrInfo );
         } else if ( ( addr != null && addr.isAssigned( ) && !addr.isPending( ) ) && ( vm == null ) ) {
-          handleOrphan( cluster, addrInfo );
+          handleOrphan( this.cluster, addrInfo );
         } else if ( ( addr == null ) && ( vm != null ) ) {
-          addr = new Address( Principals.systemFullName( ), addrInfo.getAddress( ), vm.getInstanceId( ), vm.getPrivateAddress( ) );
+          addr = new Address( Principals.systemFullName( ), addrInfo.getAddress( ), vm.instanceId, vm.privateAddress );
           clearOrphan( addrInfo );
         } else if ( ( addr == null ) && ( vm == null ) ) {
-          addr = new Address( addrInfo.getAddress( ), cluster.getPartition( ) );
-          handleOrphan( cluster, addrInfo );
+          addr = new Address( addrInfo.getAddress( ), this.cluster.getPartition( ) );
+          handleOrphan( this.cluster, addrInfo );
         }
       } else {
         if ( ( addr != null ) && addr.isAssigned( ) && !addr.isPending( ) ) {
-          handleOrphan( cluster, addrInfo );
+          handleOrphan( this.cluster, addrInfo );
         } else if ( ( addr != null ) && !addr.isAssigned( ) && !addr.isPending( ) && addr.isSystemOwned( ) ) {
           try {
             addr.release( );
@@ -215,36 +271,108 @@ public abstract class AbstractSystemAddressManager {
             LOG.error( ex );
           }
         } else if ( ( addr != null ) && Address.Transition.system.equals( addr.getTransition( ) ) ) {
-          handleOrphan( cluster, addrInfo );
+          handleOrphan( this.cluster, addrInfo );
         } else if ( addr == null ) {
-          addr = new Address( addrInfo.getAddress( ), cluster.getPartition( ) );
-          Helper.clearVmState( addrInfo );
+          addr = new Address( addrInfo.getAddress( ), this.cluster.getPartition( ) );
+          final Vm vm = this.runningByPublicIp.get( addrInfo.getAddress( ) );
+          if ( vm != null ) {
+            this.stalePublicIps.put( vm.instanceId, addrInfo.getAddress( ) );
+          }
         }
       }
       return addr;
     }
     
-    private static void markAsAllocated( final Cluster cluster, final ClusterAddressInfo addrInfo, final Address address ) {
+    /**
+     * @return the running instance which claims {@code publicIp}, found by (in order) the instance
+     *         id recorded for the address, the private address and the public address
+     */
+    private Vm findVm( final String instanceId, final String publicIp, final String privateIp ) {
+      Vm vm = null;
+      if ( instanceId != null ) {
+        vm = this.byId.get( instanceId );
+      }
+      if ( vm == null && privateIp != null ) {
+        vm = this.runningByPrivateIp.get( privateIp );
+      }
+      if ( vm == null && publicIp != null ) {
+        vm = this.runningByPublicIp.get( publicIp );
+      }
+      if ( vm != null && VmState.RUNNING.equals( vm.state ) && publicIp.equals( vm.publicAddress ) ) {
+        Logs.extreme( ).debug( "Found vm which claims this address: " + vm.instanceId + " " + vm.state + " " + publicIp );
+        return vm;
+      } else {
+        return null;
+      }
+    }
+    
+    private void markAsAllocated( final ClusterAddressInfo addrInfo, final Address address ) {
+      if ( !address.isPending( ) ) {
+        final Vm vm = this.runningByPrivateIp.get( addrInfo.getInstanceIp( ) );
+        if ( vm != null && VmState.RUNNING.equals( vm.state ) ) {
+          LOG.warn( "Out of band address state change: " + LogUtil.dumpObject( addrInfo ) + " address=" + address + " vm=" + vm );
+        }
+      }
+    }
+    
+    /**
+     * Load the instances needed by the collected assignments and stale public addresses with a
+     * single query, clear the stale public addresses and then make the assignments.
+     */
+    void apply( ) {
+      if ( this.assignments.isEmpty( ) && this.stalePublicIps.isEmpty( ) ) {
+        return;
+      }
+      final Set<String> instanceIds = Sets.newHashSet( this.assignments.values( ) );
+      instanceIds.addAll( this.stalePublicIps.keySet( ) );
+      final Map<String, VmInstance> vms;
+      final EntityTransaction db = Entities.get( VmInstance.class );
       try {
-        if ( !address.isPending( ) ) {
-          for ( final VmInstance vm : VmInstances.list( VmState.RUNNING ) ) {
-            if ( addrInfo.getInstanceIp( ).equals( vm.getPrivateAddress( ) ) && VmState.RUNNING.equals( vm.getState( ) ) ) {
-              LOG.warn( "Out of band address state change: " + LogUtil.dumpObject( addrInfo ) + " address=" + address + " vm=" + vm );
-//              if ( !address.isAllocated( ) ) {
-//                address.pendingAssignment( ).assign( vm ).clearPending( );
-//              } else {
-//                address.assign( vm ).clearPending( );
-//              }
-//              clearOrphan( addrInfo );
-              return;
-            }
+        vms = VmInstances.lookupAll( instanceIds );
+        for ( final Map.Entry<String, String> stale : this.stalePublicIps.entrySet( ) ) {
+          final VmInstance vm = vms.get( stale.getKey( ) );
+          if ( vm != null && stale.getValue( ).equals( vm.getPublicAddress( ) ) ) {
+            vm.updatePublicAddress( vm.getPrivateAddress( ) );
           }
         }
-      } catch ( final IllegalStateException e ) {
-        LOG.error( e );
+        db.commit( );
+      } catch ( final Exception ex ) {
+        LOG.debug( ex, ex );
+        db.rollback( );
+        return;
       }
+      for ( final Map.Entry<Address, String> assignment : this.assignments.entrySet( ) ) {
+        final VmInstance vm = vms.get( assignment.getValue( ) );
+        if ( vm != null ) {
+          Helper.ensureAllocated( assignment.getKey( ), vm );
+        }
+      }
+    }
+  }
+  
+  private static class Vm {
+    private final String  instanceId;
+    private final VmState state;
+    private final String  privateAddress;
+    private final String  publicAddress;
+    
+    Vm( final String instanceId, final VmState state, final String privateAddress, final String publicAddress ) {
+      this.instanceId = instanceId;
+      this.state = state;
+      this.privateAddress = privateAddress;
+      this.publicAddress = publicAddress;
     }
     
+    @Override
+    public String toString( ) {
+      return this.instanceId + ":" + this.state + ":" + this.privateAddress + ":" + this.publicAddress;
+    }
+  }
+  
+  protected static class Helper {
+    private static final long       STORED_ADDRESS_RELOAD_MILLIS = 60L * 1000;
+    private static final AtomicLong storedAddressesLoaded        = new AtomicLong( 0l );
+    
     private static void clearAddressCachedState( final Address addr ) {
       try {
         if ( !addr.isPending( ) ) {
@@ -255,47 +383,6 @@ public abstract class AbstractSystemAddressManager {
       }
     }
     
-    private static void clearVmState( final ClusterAddressInfo addrInfo ) {
-      try {
-        final VmInstance vm = VmInstances.lookupByPublicIp( addrInfo.getAddress( ) );
-        vm.updatePublicAddress( vm.getPrivateAddress( ) );
-      } catch ( final NoSuchElementException e ) {}
-    }
-    
-    private static VmInstance maybeFindVm( final String instanceId, final String publicIp, final String privateIp ) {
-      VmInstance vm = null;
-      if ( instanceId != null ) {
-        try {
-          vm = VmInstances.lookup( instanceId );
-        } catch ( NoSuchElementException ex ) {
-          Logs.extreme( ).error( ex );
-        }
-      } 
-      if ( vm == null && privateIp != null ) {
-        try {
-          vm = VmInstances.lookupByPrivateIp( privateIp );
-        } catch ( NoSuchElementException ex ) {
-          Logs.extreme( ).error( ex );
-        }
-      } 
-      if ( vm == null && publicIp != null ) {
-        try {
-          vm = VmInstances.lookupByPublicIp( publicIp );
-        } catch ( NoSuchElementException ex ) {
-          Logs.extreme( ).error( ex );
-        }
-      }
-      if ( vm != null && VmState.RUNNING.equals( vm.getState( ) ) && publicIp.equals( vm.getPublicAddress( ) ) ) {
-        Logs.extreme( ).debug( "Candidate vm which claims this address: " + vm.getInstanceId( ) + " " + vm.getState( ) + " " + publicIp );
-        if ( publicIp.equals( vm.getPublicAddress( ) ) ) {
-          Logs.extreme( ).debug( "Found vm which claims this address: " + vm.getInstanceId( ) + " " + vm.getState( ) + " " + publicIp );
-        }
-        return vm;
-      } else {
-        return null;
-      }
-    }
-    
     private static void ensureAllocated( final Address addr, final VmInstance vm ) {
       long lastUpdate = addr.lastUpdateMillis( );
       if ( lastUpdate > 60L * 1000 * AddressingConfiguration.getInstance( ).getOrphanGrace( ) ) {
@@ -324,6 +411,18 @@ public abstract class AbstractSystemAddressManager {
       }
     }
     
+    /**
+     * Load the stored addresses if they have not been loaded in the last minute; addresses created
+     * on this host are registered as they are created.
+     */
+    protected static void maybeLoadStoredAddresses( ) {
+      final long last = storedAddressesLoaded.get( );
+      final long now = System.currentTimeMillis( );
+      if ( now - last > STORED_ADDRESS_RELOAD_MILLIS && storedAddressesLoaded.compareAndSet( last, now ) ) {
+        loadStoredAddresses( );
+      }
+    }
+    
     protected static void loadStoredAddresses( ) {
       final Address clusterAddr = new Address( );
       final EntityTransaction db = Entities.get( Address.class );
@@ -0,0 +1,210 @@
+/*******************************************************************************
+ * Copyright (c) 2009  Eucalyptus Systems, Inc.
+ * 
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, only version 3 of the License.
+ * 
+ * 
+ *  This file is distributed in the hope that it will be useful, but WITHOUT
+ *  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ *  FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ *  Please contact Eucalyptus Systems, Inc., 130 Castilian
+ *  Dr., Goleta, CA 93101 USA or visit <http://www.eucalyptus.com/licenses/>
+ *  if you need additional information or have any questions.
+ * 
+ *  This file may incorporate work covered under the following copyright and
+ *  permission notice:
+ * 
+ *    Software License Agreement (BSD License)
+ * 
+ *    Copyright (c) 2008, Regents of the University of California
+ *    All rights reserved.
+ * 
+ *    Redistribution and use of this software in source and binary forms, with
+ *    or without modification, are permitted provided that the following
+ *    conditions are met:
+ * 
+ *      Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * 
+ *      Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ * 
+ *    THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ *    IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ *    TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ *    PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ *    OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *    EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ *    PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ *    PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ *    LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ *    NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *    SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. USERS OF
+ *    THIS SOFTWARE ACKNOWLEDGE THE POSSIBLE PRESENCE OF OTHER OPEN SOURCE
+ *    LICENSED MATERIAL, COPYRIGHTED MATERIAL OR PATENTED MATERIAL IN THIS
+ *    SOFTWARE, AND IF ANY SUCH MATERIAL IS DISCOVERED THE PARTY DISCOVERING
+ *    IT MAY INFORM DR. RICH WOLSKI AT THE UNIVERSITY OF CALIFORNIA, SANTA
+ *    BARBARA WHO WILL THEN ASCERTAIN THE MOST APPROPRIATE REMEDY, WHICH IN
+ *    THE REGENTS' DISCRETION MAY INCLUDE, WITHOUT LIMITATION, REPLACEMENT
+ *    OF THE CODE SO IDENTIFIED, LICENSING OF THE CODE SO IDENTIFIED, OR
+ *    WITHDRAWAL OF THE CODE CAPABILITY TO THE EXTENT NEEDED TO COMPLY WITH
+ *    ANY SUCH LICENSES OR RIGHTS.
+ *******************************************************************************
+ */
+package com.eucalyptus.blockstorage;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.apache.log4j.Logger;
+import com.eucalyptus.component.Partitions;
+import com.eucalyptus.component.ServiceConfiguration;
+import com.eucalyptus.component.Topology;
+import com.eucalyptus.component.id.Storage;
+import com.eucalyptus.event.ClockSchedule;
+import com.eucalyptus.event.EventListener;
+import com.eucalyptus.event.Hertz;
+import com.eucalyptus.event.Listeners;
+import com.eucalyptus.records.Logs;
+import com.eucalyptus.util.EucalyptusCloudException;
+import com.eucalyptus.util.async.AsyncRequests;
+import com.eucalyptus.util.async.CheckedListenableFuture;
+import com.eucalyptus.util.async.Futures;
+import com.eucalyptus.vm.VmInstances;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import edu.ucsb.eucalyptus.msgs.DescribeStorageVolumesResponseType;
+import edu.ucsb.eucalyptus.msgs.DescribeStorageVolumesType;
+import edu.ucsb.eucalyptus.msgs.StorageVolume;
+
+/**
+ * Waits for newly created volumes to become available.
+ * 
+ * Volumes being watched are grouped by storage controller and, every {@value #POLL_MILLIS}ms,
+ * each storage controller is sent a single DescribeStorageVolumes for all of its volumes. The
+ * future returned by {@link #watch(Volume)} is set to the storage controller's configuration when
+ * its volume is available, or fails when the volume fails, is not available within
+ * {@link VmInstances#EBS_VOLUME_CREATION_TIMEOUT} minutes or can not be described
+ * {@value #MAX_DESCRIBE_ERRORS} times in a row.
+ */
+@ClockSchedule( period = VolumeReadiness.POLL_MILLIS )
+public class VolumeReadiness implements EventListener<Hertz> {
+  private static Logger                                                      LOG                 = Logger.getLogger( VolumeReadiness.class );
+  static final long                                                          POLL_MILLIS         = 5000L;
+  private static final int                                                   MAX_DESCRIBE_ERRORS = 5;
+  private static final VolumeReadiness                                       instance            = new VolumeReadiness( );
+  private static final AtomicBoolean                                         registered          = new AtomicBoolean( false );
+  private final ConcurrentMap<ServiceConfiguration, ConcurrentMap<String, Pending>> pending      = Maps.newConcurrentMap( );
+  
+  private VolumeReadiness( ) {}
+  
+  /**
+   * @return a future set to the configuration of the volume's storage controller once the volume
+   *         is available
+   */
+  public static CheckedListenableFuture<ServiceConfiguration> watch( final Volume vol ) {
+    final ServiceConfiguration scConfig = Topology.lookup( Storage.class, Partitions.lookupByName( vol.getPartition( ) ) );
+    if ( registered.compareAndSet( false, true ) ) {
+      Listeners.register( Hertz.class, instance );
+    }
+    ConcurrentMap<String, Pending> volumes = instance.pending.get( scConfig );
+    if ( volumes == null ) {
+      instance.pending.putIfAbsent( scConfig, Maps.<String, Pending>newConcurrentMap( ) );
+      volumes = instance.pending.get( scConfig );
+    }
+    final Pending watched = new Pending( );
+    final Pending previous = volumes.putIfAbsent( vol.getDisplayName( ), watched );
+    return ( previous != null ? previous : watched ).future;
+  }
+  
+  @Override
+  public void fireEvent( final Hertz event ) {
+    final Map<ServiceConfiguration, CheckedListenableFuture<DescribeStorageVolumesResponseType>> requests = Maps.newHashMap( );
+    for ( final Entry<ServiceConfiguration, ConcurrentMap<String, Pending>> entry : this.pending.entrySet( ) ) {
+      final List<String> volumeIds = Lists.newArrayList( entry.getValue( ).keySet( ) );
+      if ( !volumeIds.isEmpty( ) ) {
+        try {
+          requests.put( entry.getKey( ), AsyncRequests.<DescribeStorageVolumesType, DescribeStorageVolumesResponseType>dispatch( entry.getKey( ), new DescribeStorageVolumesType( volumeIds ) ) );
+        } catch ( final Exception ex ) {
+          this.describeFailed( entry.getKey( ), volumeIds, ex );
+        }
+      }
+    }
+    for ( final Entry<ServiceConfiguration, CheckedListenableFuture<DescribeStorageVolumesResponseType>> request : requests.entrySet( ) ) {
+      final ServiceConfiguration scConfig = request.getKey( );
+      final Map<String, Pending> volumes = this.pending.get( scConfig );
+      final List<String> described = Lists.newArrayList( );
+      try {
+        for ( final StorageVolume storageVolume : request.getValue( ).get( POLL_MILLIS, TimeUnit.MILLISECONDS ).getVolumeSet( ) ) {
+          final Pending watched = volumes.get( storageVolume.getVolumeId( ) );
+          if ( watched == null ) {
+            continue;
+          }
+          Logs.extreme( ).debug( "Got storage volume info: " + storageVolume );
+          described.add( storageVolume.getVolumeId( ) );
+          watched.describeErrors = 0;
+          if ( "available".equals( storageVolume.getStatus( ) ) ) {
+            volumes.remove( storageVolume.getVolumeId( ) );
+            watched.future.set( scConfig );
+          } else if ( "failed".equals( storageVolume.getStatus( ) ) ) {
+            volumes.remove( storageVolume.getVolumeId( ) );
+            watched.future.setException( new EucalyptusCloudException( "volume creation failed" ) );
+          }
+        }
+        final List<String> missing = Lists.newArrayList( volumes.keySet( ) );
+        missing.removeAll( described );
+        if ( !missing.isEmpty( ) ) {
+          this.describeFailed( scConfig, missing, new EucalyptusCloudException( "volumes not found: " + missing ) );
+        }
+      } catch ( final InterruptedException ex ) {
+        Thread.currentThread( ).interrupt( );
+        return;
+      } catch ( final Exception ex ) {
+        this.describeFailed( scConfig, Lists.newArrayList( volumes.keySet( ) ), ex );
+      }
+    }
+    this.expire( );
+  }
+  
+  private void describeFailed( final ServiceConfiguration scConfig, final List<String> volumeIds, final Exception ex ) {
+    LOG.debug( "Failed to describe volumes " + volumeIds + " on " + scConfig.getName( ) + ": " + ex.getMessage( ) );
+    final Map<String, Pending> volumes = this.pending.get( scConfig );
+    for ( final String volumeId : volumeIds ) {
+      final Pending watched = volumes.get( volumeId );
+      if ( watched != null && ++watched.describeErrors > MAX_DESCRIBE_ERRORS && volumes.remove( volumeId, watched ) ) {
+        LOG.error( "Failed to describe volume " + volumeId + ": " + ex.getMessage( ) );
+        watched.future.setException( ex );
+      }
+    }
+  }
+  
+  private void expire( ) {
+    final long timeout = TimeUnit.MINUTES.toMillis( VmInstances.EBS_VOLUME_CREATION_TIMEOUT );
+    final long now = System.currentTimeMillis( );
+    for ( final Map<String, Pending> volumes : this.pending.values( ) ) {
+      for ( final Entry<String, Pending> entry : volumes.entrySet( ) ) {
+        final Pending watched = entry.getValue( );
+        if ( now - watched.started > timeout && volumes.remove( entry.getKey( ), watched ) ) {
+          watched.future.setException( new EucalyptusCloudException( "volume " + entry.getKey( ) + " was not created in time" ) );
+        }
+      }
+    }
+  }
+  
+  private static class Pending {
+    private final CheckedListenableFuture<ServiceConfiguration> future  = Futures.newGenericeFuture( );
+    private final long                                          started = System.currentTimeMillis( );
+    private int                                                 describeErrors;
+  }
+}
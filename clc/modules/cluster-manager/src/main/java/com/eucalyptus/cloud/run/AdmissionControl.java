@@ -107,8 +107,6 @@ import com.google.common.base.Supplier;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Multimap;
-import com.google.common.collect.TreeMultimap;
 import edu.ucsb.eucalyptus.msgs.RunInstancesType;
 
 public class AdmissionControl {
@@ -249,7 +247,7 @@ public class AdmissionControl {
       String zoneName = ( clusterName != null )
         ? clusterName
         : "default";
-      List<Cluster> authorizedClusters = this.doPrivilegedLookup( zoneName, vmTypeName );
+      List<Cluster> authorizedClusters = this.doPrivilegedLookup( zoneName, allocInfo );
       int remaining = maxAmount;
       int available = 0;
       LOG.info( "Found authorized clusters: " + Iterables.transform( authorizedClusters, HasName.GET_NAME ) );
@@ -302,17 +300,13 @@ public class AdmissionControl {
       return available;
     }
     
-    private List<Cluster> doPrivilegedLookup( String partitionName, String vmTypeName ) throws NotEnoughResourcesException {
+    private List<Cluster> doPrivilegedLookup( String partitionName, Allocation allocInfo ) throws NotEnoughResourcesException {
       if ( "default".equals( partitionName ) ) {
-        Iterable<Cluster> authorizedClusters = Iterables.filter( Clusters.getInstance( ).listValues( ), RestrictedTypes.filterPrivileged( ) );
-        Multimap<VmTypeAvailability, Cluster> sorted = TreeMultimap.create( );
-        for ( Cluster c : authorizedClusters ) {
-          sorted.put( c.getNodeState( ).getAvailability( vmTypeName ), c );
-        }
-        if ( sorted.isEmpty( ) ) {
+        List<Cluster> authorizedClusters = Lists.newArrayList( Iterables.filter( Clusters.getInstance( ).listValues( ), RestrictedTypes.filterPrivileged( ) ) );
+        if ( authorizedClusters.isEmpty( ) ) {
           throw new NotEnoughResourcesException( "Not enough resources: no availability zone is available in which you have permissions to run instances." );
         } else {
-          return Lists.newArrayList( sorted.values( ) );
+          return Placements.lookup( ).order( allocInfo.getVmType( ), allocInfo.getMaxCount( ), authorizedClusters );
         }
       } else {
         ServiceConfiguration ccConfig = Topology.lookup( ClusterController.class, Partitions.lookupByName( partitionName ) );
@@ -390,20 +384,22 @@ public class AdmissionControl {
     
     @Override
     public void allocate( Allocation allocInfo ) throws Exception {
-      if ( NetworkGroups.networkingConfiguration( ).hasNetworking( ) ) {
-        for ( ResourceToken rscToken : allocInfo.getAllocationTokens( ) ) {
-          EntityTransaction db = Entities.get( ExtantNetwork.class );
-          try {
-            ExtantNetwork exNet = Entities.merge( rscToken.getExtantNetwork( ) );
-            assertThat( exNet, notNullValue( ) );
-            PrivateNetworkIndex addrIndex = exNet.allocateNetworkIndex( );
-            rscToken.setNetworkIndex( addrIndex );
-            rscToken.setExtantNetwork( Entities.merge( exNet ) );
-            db.commit( );
-          } catch ( Exception ex ) {
-            db.rollback( );
-            throw new NotEnoughResourcesException( "Not enough addresses left in the private network subnet assigned to requested group: " + rscToken, ex );
+      if ( NetworkGroups.networkingConfiguration( ).hasNetworking( ) && !allocInfo.getAllocationTokens( ).isEmpty( ) ) {
+        final List<ResourceToken> tokens = allocInfo.getAllocationTokens( );
+        EntityTransaction db = Entities.get( ExtantNetwork.class );
+        try {
+          ExtantNetwork exNet = Entities.merge( tokens.get( 0 ).getExtantNetwork( ) );
+          assertThat( exNet, notNullValue( ) );
+          final List<PrivateNetworkIndex> addrIndexes = exNet.allocateNetworkIndexes( tokens.size( ) );
+          exNet = Entities.merge( exNet );
+          for ( int i = 0; i < tokens.size( ); i++ ) {
+            tokens.get( i ).setNetworkIndex( addrIndexes.get( i ) );
+            tokens.get( i ).setExtantNetwork( exNet );
           }
+          db.commit( );
+        } catch ( Exception ex ) {
+          db.rollback( );
+          throw new NotEnoughResourcesException( "Not enough addresses left in the private network subnet assigned to requested group: " + tokens, ex );
         }
       }
     }
@@ -64,12 +64,18 @@
 package com.eucalyptus.cloud.run;
 
 import static com.eucalyptus.images.Images.findEbsRootOptionalSnapshot;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import javax.persistence.EntityTransaction;
 import org.apache.log4j.Logger;
 import com.eucalyptus.blockstorage.Volume;
+import com.eucalyptus.blockstorage.VolumeReadiness;
 import com.eucalyptus.blockstorage.Volumes;
 import com.eucalyptus.cloud.ResourceToken;
 import com.eucalyptus.cloud.VmRunType;
@@ -81,7 +87,6 @@ import com.eucalyptus.cluster.Clusters;
 import com.eucalyptus.cluster.Nodes;
 import com.eucalyptus.cluster.callback.StartNetworkCallback;
 import com.eucalyptus.cluster.callback.VmRunCallback;
-import com.eucalyptus.component.Partitions;
 import com.eucalyptus.component.ServiceConfiguration;
 import com.eucalyptus.component.Topology;
 import com.eucalyptus.component.id.ClusterController;
@@ -101,6 +106,7 @@ import com.eucalyptus.util.EucalyptusCloudException;
 import com.eucalyptus.util.Exceptions;
 import com.eucalyptus.util.LogUtil;
 import com.eucalyptus.util.async.AsyncRequests;
+import com.eucalyptus.util.async.CheckedListenableFuture;
 import com.eucalyptus.util.async.Request;
 import com.eucalyptus.util.async.StatefulMessageSet;
 import com.eucalyptus.vm.VmInstance;
@@ -110,22 +116,20 @@ import com.eucalyptus.vm.VmVolumeAttachment;
 import com.google.common.base.Function;
 import com.google.common.base.Predicate;
 import com.google.common.collect.Iterables;
-import com.google.common.collect.Lists;
-import edu.emory.mathcs.backport.java.util.concurrent.TimeUnit;
+import com.google.common.collect.Maps;
 import edu.ucsb.eucalyptus.cloud.VirtualBootRecord;
 import edu.ucsb.eucalyptus.cloud.VmKeyInfo;
 import edu.ucsb.eucalyptus.cloud.VmRunResponseType;
 import edu.ucsb.eucalyptus.msgs.AttachStorageVolumeResponseType;
 import edu.ucsb.eucalyptus.msgs.AttachStorageVolumeType;
 import edu.ucsb.eucalyptus.msgs.BlockDeviceMappingItemType;
-import edu.ucsb.eucalyptus.msgs.DescribeStorageVolumesResponseType;
-import edu.ucsb.eucalyptus.msgs.DescribeStorageVolumesType;
-import edu.ucsb.eucalyptus.msgs.StorageVolume;
+import edu.ucsb.eucalyptus.msgs.DeleteStorageVolumeType;
 import edu.ucsb.eucalyptus.msgs.VmTypeInfo;
 
 public class ClusterAllocator implements Runnable {
-  private static final long BYTES_PER_GB = ( 1024L * 1024L * 1024L );
-  private static Logger     LOG          = Logger.getLogger( ClusterAllocator.class );
+  private static final long BYTES_PER_GB        = ( 1024L * 1024L * 1024L );
+  private static final int  ROOT_VOLUME_WORKERS = 16;
+  private static Logger     LOG                 = Logger.getLogger( ClusterAllocator.class );
   
   enum State {
     START,
@@ -141,9 +145,10 @@ public class ClusterAllocator implements Runnable {
   }
   
   public static Boolean             SPLIT_REQUESTS = true; //TODO:GRZE:@Configurable
-  private StatefulMessageSet<State> messages;
-  private final Allocation          allocInfo;
-  private Cluster                   cluster;
+  private StatefulMessageSet<State>                                         messages;
+  private final Allocation                                                  allocInfo;
+  private Cluster                                                           cluster;
+  private final Map<ResourceToken, CheckedListenableFuture<ServiceConfiguration>> rootVolumes = Maps.newLinkedHashMap( );
   
   enum SubmitAllocation implements Predicate<Allocation> {
     INSTANCE;
@@ -210,8 +215,12 @@ public class ClusterAllocator implements Runnable {
     }
     
     try {
-      for ( final ResourceToken token : allocInfo.getAllocationTokens( ) ) {
-        this.setupVmMessages( token );
+      if ( this.rootVolumes.isEmpty( ) ) {
+        for ( final ResourceToken token : allocInfo.getAllocationTokens( ) ) {
+          this.setupVmMessages( token );
+        }
+      } else {
+        this.setupVmMessagesAsVolumesBecomeReady( );
       }
     } catch ( final Exception e ) {
       LOG.error( e );
@@ -230,7 +239,11 @@ public class ClusterAllocator implements Runnable {
     }
   }
   
-  private void setupVolumeMessages( ) throws NoSuchElementException, MetadataException, ExecutionException {
+  /**
+   * Root volumes are created concurrently and then watched by {@link VolumeReadiness}, which
+   * completes {@link #rootVolumes} as they become available.
+   */
+  private void setupVolumeMessages( ) throws NoSuchElementException, MetadataException, ExecutionException, InterruptedException {
     if ( this.allocInfo.getBootSet( ).getMachine( ) instanceof BlockStorageImageInfo ) {
       final ServiceConfiguration sc = Topology.lookup( Storage.class, this.cluster.getConfiguration( ).lookupPartition( ) );
       final VirtualBootRecord root = this.allocInfo.getVmTypeInfo( ).lookupRoot( );
@@ -248,27 +261,88 @@ public class ClusterAllocator implements Runnable {
         }
         final int sizeGb = ( int ) Math.ceil( volSizeBytes / BYTES_PER_GB );
         LOG.debug( "About to prepare root volume using bootable block storage: " + imgInfo + " and vbr: " + root );
+        final Map<ResourceToken, Future<Volume>> creating = Maps.newLinkedHashMap( );
         for ( final ResourceToken token : this.allocInfo.getAllocationTokens( ) ) {
           final VmInstance vm = VmInstances.lookup( token.getInstanceId( ) );
-          final Volume vol;
           if ( !vm.getBootRecord( ).hasPersistentVolumes( ) ) {
-            vol = Volumes.createStorageVolume( sc, this.allocInfo.getOwnerFullName( ), imgInfo.getSnapshotId( ), sizeGb, this.allocInfo.getRequest( ) );
-            if ( deleteOnTerminate ) {
-              vm.addPersistentVolume( rootDevName, vol );
-            } else {
-              vm.addPermanentVolume( rootDevName, vol );
-            }
-            token.setRootVolume( vol );
+            creating.put( token, Threads.lookup( Storage.class, ClusterAllocator.class, "root-volumes" ).limitTo( ROOT_VOLUME_WORKERS ).submit( new Callable<Volume>( ) {
+              @Override
+              public Volume call( ) throws Exception {
+                return Volumes.createStorageVolume( sc, ClusterAllocator.this.allocInfo.getOwnerFullName( ), imgInfo.getSnapshotId( ), sizeGb,
+                                                    ClusterAllocator.this.allocInfo.getRequest( ) );
+              }
+            } ) );
           } else {
             final VmVolumeAttachment volumeAttachment = vm.getBootRecord( ).getPersistentVolumes( ).iterator( ).next( );
-            vol = Volumes.lookup( null, volumeAttachment.getVolumeId( ) );
+            final Volume vol = Volumes.lookup( null, volumeAttachment.getVolumeId( ) );
             token.setRootVolume( vol );
+            this.rootVolumes.put( token, VolumeReadiness.watch( vol ) );
+          }
+        }
+        //:: wait for every volume so that none are left behind when one of them fails :://
+        final Map<ResourceToken, Volume> created = Maps.newLinkedHashMap( );
+        ExecutionException failure = null;
+        for ( final Map.Entry<ResourceToken, Future<Volume>> entry : creating.entrySet( ) ) {
+          try {
+            created.put( entry.getKey( ), entry.getValue( ).get( ) );
+          } catch ( final ExecutionException ex ) {
+            LOG.error( "Failed to create root volume for " + entry.getKey( ).getInstanceId( ) + ": " + ex.getMessage( ) );
+            Logs.extreme( ).error( ex, ex );
+            if ( failure == null ) {
+              failure = ex;
+            }
+          }
+        }
+        if ( failure != null ) {
+          for ( final Volume vol : created.values( ) ) {
+            deleteVolume( sc, vol );
           }
+          throw failure;
+        }
+        for ( final Map.Entry<ResourceToken, Volume> entry : created.entrySet( ) ) {
+          final ResourceToken token = entry.getKey( );
+          final VmInstance vm = VmInstances.lookup( token.getInstanceId( ) );
+          final Volume vol = entry.getValue( );
+          if ( deleteOnTerminate ) {
+            vm.addPersistentVolume( rootDevName, vol );
+          } else {
+            vm.addPermanentVolume( rootDevName, vol );
+          }
+          token.setRootVolume( vol );
+          this.rootVolumes.put( token, VolumeReadiness.watch( vol ) );
         }
       }
     }
   }
   
+  /**
+   * Delete a root volume created for an allocation which failed before the volume was attached.
+   * This runs on its own thread since the caller's transaction is about to be rolled back.
+   */
+  private static void deleteVolume( final ServiceConfiguration sc, final Volume vol ) {
+    Threads.enqueue( Storage.class, ClusterAllocator.class, new Callable<Boolean>( ) {
+      @Override
+      public Boolean call( ) {
+        try {
+          AsyncRequests.sendSync( sc, new DeleteStorageVolumeType( vol.getDisplayName( ) ) );
+          final EntityTransaction db = Entities.get( Volume.class );
+          try {
+            Entities.uniqueResult( Volume.named( null, vol.getDisplayName( ) ) ).setState( com.eucalyptus.blockstorage.State.ANNIHILATING );
+            db.commit( );
+          } catch ( final Exception ex ) {
+            db.rollback( );
+            throw ex;
+          }
+          return true;
+        } catch ( final Exception ex ) {
+          LOG.error( "Failed to delete root volume " + vol.getDisplayName( ) + " of a failed allocation: " + ex.getMessage( ) );
+          Logs.extreme( ).error( ex, ex );
+          return false;
+        }
+      }
+    } );
+  }
+  
   @SuppressWarnings( "unchecked" )
   private void setupNetworkMessages( ) throws NotEnoughResourcesException {
     final NetworkGroup net = this.allocInfo.getPrimaryNetwork( );
@@ -280,6 +354,29 @@ public class ClusterAllocator implements Runnable {
     }
   }
   
+  /**
+   * Attach root volumes and queue their RunInstances in the order the volumes become available,
+   * rather than waiting on each in turn.
+   */
+  private void setupVmMessagesAsVolumesBecomeReady( ) throws Exception {
+    final BlockingQueue<ResourceToken> ready = new LinkedBlockingQueue<ResourceToken>( );
+    for ( final Map.Entry<ResourceToken, CheckedListenableFuture<ServiceConfiguration>> entry : this.rootVolumes.entrySet( ) ) {
+      entry.getValue( ).addListener( new Runnable( ) {
+        @Override
+        public void run( ) {
+          ready.offer( entry.getKey( ) );
+        }
+      } );
+    }
+    for ( int i = 0; i < this.rootVolumes.size( ); i++ ) {
+      final ResourceToken token = ready.poll( VmInstances.EBS_VOLUME_CREATION_TIMEOUT + 1, TimeUnit.MINUTES );
+      if ( token == null ) {
+        throw new EucalyptusCloudException( "Root volumes were not created in time for: " + this.allocInfo.getAllocationTokens( ) );
+      }
+      this.setupVmMessages( token );
+    }
+  }
+  
   private void setupVmMessages( final ResourceToken token ) throws Exception {
     final String networkName = NetworkGroups.networkingConfiguration( ).hasNetworking( )
                                                                                         ? this.allocInfo.getPrimaryNetwork( ).getNaturalId( )
@@ -307,7 +404,7 @@ public class ClusterAllocator implements Runnable {
     if ( root.isBlockStorage( ) ) {
       childVmInfo = vmInfo.child( );
       final Volume vol = token.getRootVolume( );
-      final ServiceConfiguration scConfig = waitForVolume( vol );
+      final ServiceConfiguration scConfig = getReady( this.rootVolumes.get( token ) );
       
       VirtualBootRecord vbrRootDevice = childVmInfo.lookupRoot( );
       String volumeId = vol.getDisplayName( );
@@ -346,44 +443,20 @@ public class ClusterAllocator implements Runnable {
   }
   
   public ServiceConfiguration waitForVolume( final Volume vol ) throws Exception {
-    final ServiceConfiguration scConfig = Topology.lookup( Storage.class, Partitions.lookupByName( vol.getPartition( ) ) );
-    long startTime = System.currentTimeMillis( );
-    int numDescVolError = 0;
-    while ( ( System.currentTimeMillis( ) - startTime ) < VmInstances.EBS_VOLUME_CREATION_TIMEOUT * 60 * 1000L ) {
-      try {
-        DescribeStorageVolumesResponseType volState = null;
-        try {
-          final DescribeStorageVolumesType describeMsg = new DescribeStorageVolumesType( Lists.newArrayList( vol.getDisplayName( ) ) );
-          volState = AsyncRequests.sendSync( scConfig, describeMsg );
-        } catch ( final Exception e ) {
-          if ( numDescVolError++ < 5 ) {
-            try {
-              TimeUnit.SECONDS.sleep( 5 );
-            } catch ( final InterruptedException ex ) {
-              Thread.currentThread( ).interrupt( );
-            }
-            continue;
-          } else {
-            throw e;
-          }
-        }
-        StorageVolume storageVolume = volState.getVolumeSet( ).get( 0 );
-        LOG.debug( "Got storage volume info: " + storageVolume );
-        if ( "available".equals( storageVolume.getStatus( ) ) ) {
-          return scConfig;
-        } else if ( "failed".equals( storageVolume.getStatus( ) ) ) {
-          throw new EucalyptusCloudException( "volume creation failed" );
-        } else {
-          TimeUnit.SECONDS.sleep( 5 );
-        }
-      } catch ( final InterruptedException ex ) {
-        Thread.currentThread( ).interrupt( );
-      } catch ( final Exception ex ) {
-        LOG.error( ex, ex );
+    return getReady( VolumeReadiness.watch( vol ) );
+  }
+  
+  private static ServiceConfiguration getReady( final CheckedListenableFuture<ServiceConfiguration> volumeReady ) throws Exception {
+    try {
+      return volumeReady.get( );
+    } catch ( final ExecutionException ex ) {
+      LOG.error( ex.getCause( ), ex.getCause( ) );
+      if ( ex.getCause( ) instanceof Exception ) {
+        throw ( Exception ) ex.getCause( );
+      } else {
         throw ex;
       }
     }
-    throw new EucalyptusCloudException( "volume " + vol.getDisplayName( ) + " was not created in time" );
   }
   
   private Request makeRunRequest( final ResourceToken childToken, final VmTypeInfo vmInfo, final String networkName ) {
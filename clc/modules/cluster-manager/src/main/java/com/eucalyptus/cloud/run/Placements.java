@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2009  Eucalyptus Systems, Inc.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, only version 3 of the License.
+ *
+ *
+ *  This file is distributed in the hope that it will be useful, but WITHOUT
+ *  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ *  FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Please contact Eucalyptus Systems, Inc., 130 Castilian
+ *  Dr., Goleta, CA 93101 USA or visit <http://www.eucalyptus.com/licenses/>
+ *  if you need additional information or have any questions.
+ *
+ *  This file may incorporate work covered under the following copyright and
+ *  permission notice:
+ *
+ *    Software License Agreement (BSD License)
+ *
+ *    Copyright (c) 2008, Regents of the University of California
+ *    All rights reserved.
+ *
+ *    Redistribution and use of this software in source and binary forms, with
+ *    or without modification, are permitted provided that the following
+ *    conditions are met:
+ *
+ *      Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ *
+ *      Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *
+ *    THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ *    IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ *    TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ *    PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ *    OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *    EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ *    PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ *    PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ *    LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ *    NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *    SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. USERS OF
+ *    THIS SOFTWARE ACKNOWLEDGE THE POSSIBLE PRESENCE OF OTHER OPEN SOURCE
+ *    LICENSED MATERIAL, COPYRIGHTED MATERIAL OR PATENTED MATERIAL IN THIS
+ *    SOFTWARE, AND IF ANY SUCH MATERIAL IS DISCOVERED THE PARTY DISCOVERING
+ *    IT MAY INFORM DR. RICH WOLSKI AT THE UNIVERSITY OF CALIFORNIA, SANTA
+ *    BARBARA WHO WILL THEN ASCERTAIN THE MOST APPROPRIATE REMEDY, WHICH IN
+ *    THE REGENTS' DISCRETION MAY INCLUDE, WITHOUT LIMITATION, REPLACEMENT
+ *    OF THE CODE SO IDENTIFIED, LICENSING OF THE CODE SO IDENTIFIED, OR
+ *    WITHDRAWAL OF THE CODE CAPABILITY TO THE EXTENT NEEDED TO COMPLY WITH
+ *    ANY SUCH LICENSES OR RIGHTS.
+ *******************************************************************************/
+package com.eucalyptus.cloud.run;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import org.apache.log4j.Logger;
+import com.eucalyptus.cluster.Cluster;
+import com.eucalyptus.cluster.ResourceState;
+import com.eucalyptus.configurable.ConfigurableClass;
+import com.eucalyptus.configurable.ConfigurableField;
+import com.eucalyptus.util.Classes;
+import com.eucalyptus.vm.VmType;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Choice of the availability zone in which to run instances when the request does not name one.
+ * 
+ * The cluster controller chooses the node for each instance and only reports instance counts per
+ * vm type, so placement happens at the cluster level using {@link ResourceState}: the available
+ * count for the requested type and the estimated {@link ResourceState#getLoad() load}.
+ */
+@ConfigurableClass( root = "cloud.placement", description = "Configuration options controlling the placement of new instances." )
+public class Placements {
+  private static Logger                                    LOG        = Logger.getLogger( Placements.class );
+  @ConfigurableField( description = "Order in which availability zones are tried when a request does not name one: SPREAD, BIN_PACK, LEAST_LOADED or the name of a class implementing Placements.Strategy.", initial = "SPREAD" )
+  public static String                                     STRATEGY   = Strategies.SPREAD.name( );
+  private static final ConcurrentMap<String, Strategy>     strategies = Maps.newConcurrentMap( );
+  
+  public interface Strategy {
+    /**
+     * @param clusters the authorized clusters
+     * @return the clusters in the order in which they should be tried for {@code amount} instances
+     *         of {@code vmType}
+     */
+    public List<Cluster> order( VmType vmType, int amount, List<Cluster> clusters );
+  }
+  
+  public enum Strategies implements Strategy {
+    /**
+     * Most instances of the requested type available first.
+     */
+    SPREAD {
+      @Override
+      int compare( final Candidate c1, final Candidate c2, final int amount ) {
+        return c2.available - c1.available;
+      }
+    },
+    /**
+     * Fewest instances of the requested type available, but enough for the request, first; then
+     * the remaining clusters by availability.
+     */
+    BIN_PACK {
+      @Override
+      int compare( final Candidate c1, final Candidate c2, final int amount ) {
+        final boolean fits1 = c1.available >= amount;
+        final boolean fits2 = c2.available >= amount;
+        if ( fits1 != fits2 ) {
+          return fits1 ? -1 : 1;
+        } else if ( fits1 ) {
+          return c1.available - c2.available;
+        } else {
+          return c2.available - c1.available;
+        }
+      }
+    },
+    /**
+     * Lowest estimated use of cores, memory or disk first.
+     */
+    LEAST_LOADED {
+      @Override
+      int compare( final Candidate c1, final Candidate c2, final int amount ) {
+        final int byLoad = Double.compare( c1.load, c2.load );
+        return byLoad != 0 ? byLoad : c2.available - c1.available;
+      }
+    };
+    
+    abstract int compare( Candidate c1, Candidate c2, int amount );
+    
+    /**
+     * Availability changes while admission runs concurrently, so it is read once per cluster
+     * before sorting.
+     */
+    @Override
+    public List<Cluster> order( final VmType vmType, final int amount, final List<Cluster> clusters ) {
+      final List<Candidate> candidates = Lists.newArrayList( );
+      for ( final Cluster cluster : clusters ) {
+        candidates.add( new Candidate( cluster, vmType ) );
+      }
+      Collections.sort( candidates, new Comparator<Candidate>( ) {
+        @Override
+        public int compare( final Candidate c1, final Candidate c2 ) {
+          final int order = Strategies.this.compare( c1, c2, amount );
+          return order != 0 ? order : c1.cluster.compareTo( c2.cluster );
+        }
+      } );
+      final List<Cluster> ordered = Lists.newArrayList( );
+      for ( final Candidate candidate : candidates ) {
+        ordered.add( candidate.cluster );
+      }
+      return ordered;
+    }
+  }
+  
+  private static class Candidate {
+    private final Cluster cluster;
+    private final int     available;
+    private final double  load;
+    
+    Candidate( final Cluster cluster, final VmType vmType ) {
+      final ResourceState state = cluster.getNodeState( );
+      this.cluster = cluster;
+      this.available = state.getAvailability( vmType.getName( ) ).getAvailable( );
+      this.load = state.getLoad( );
+    }
+  }
+  
+  /**
+   * @return the configured strategy, or {@link Strategies#SPREAD} if it can not be found
+   */
+  public static Strategy lookup( ) {
+    final String name = STRATEGY;
+    Strategy strategy = strategies.get( name );
+    if ( strategy == null ) {
+      try {
+        strategy = Strategies.valueOf( name );
+      } catch ( final IllegalArgumentException ex ) {
+        try {
+          strategy = ( Strategy ) Classes.newInstance( Class.forName( name ) );
+        } catch ( final Exception ex1 ) {
+          LOG.error( "Failed to find placement strategy " + name + ", using " + Strategies.SPREAD + ": " + ex1.getMessage( ) );
+          return Strategies.SPREAD;
+        }
+      }
+      strategies.putIfAbsent( name, strategy );
+    }
+    return strategy;
+  }
+}
@@ -66,11 +66,13 @@ package com.eucalyptus.cluster;
 import java.util.Comparator;
 import java.util.List;
 import java.util.NavigableSet;
-import java.util.Set;
 import java.util.TreeSet;
 import java.util.concurrent.ConcurrentNavigableMap;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import org.apache.log4j.Logger;
 import com.eucalyptus.cloud.ResourceToken;
 import com.eucalyptus.cloud.run.Allocations.Allocation;
@@ -92,7 +94,18 @@ public class ResourceState {
   private NavigableSet<ResourceToken>                        pendingTokens;
   private NavigableSet<ResourceToken>                        submittedTokens;
   private NavigableSet<ResourceToken>                        redeemedTokens;
-  private int                                                virtualTimer;
+  private final AtomicInteger                                virtualTimer = new AtomicInteger( );
+  /**
+   * Reservations and token state changes share the read lock so that they do not wait on each
+   * other's token bookkeeping; {@link #update(List)} takes the write lock to see a consistent set of
+   * tokens.
+   */
+  private final ReadWriteLock                                stateLock    = new ReentrantReadWriteLock( );
+  /**
+   * Every type's availability is derived from the same cluster capacity, so the check and
+   * decrement of a reservation, across all types, must not interleave with another reservation.
+   */
+  private final Object                                       reservationLock = new Object( );
   private String                                             clusterName;
   public static class NoSuchTokenException extends Exception {
 
@@ -114,84 +127,109 @@ public class ResourceState {
     this.redeemedTokens = new ConcurrentSkipListSet<ResourceToken>( );
   }
   
-  public synchronized List<ResourceToken> requestResourceAllocation( Allocation allocInfo, int minAmount, int maxAmount ) throws NotEnoughResourcesException {
+  public List<ResourceToken> requestResourceAllocation( Allocation allocInfo, int minAmount, int maxAmount ) throws NotEnoughResourcesException {
     VmTypeAvailability vmTypeStatus = this.typeMap.get( allocInfo.getVmType( ).getName( ) );
-    Integer available = vmTypeStatus.getAvailable( );
-    NavigableSet<VmTypeAvailability> sorted = this.sorted( );
-    LOG.debug( LogUtil.header( "BEFORE ALLOCATE" ) );
-    LOG.debug( sorted );
-    //:: if not enough, then bail out :://
-    Integer quantity = minAmount;
-    if ( vmTypeStatus.getAvailable( ) < minAmount ) {
-      throw new NotEnoughResourcesException( "Not enough resources (" + available + " < " + minAmount + ": vm instances." );
-    } else {
-      quantity = ( maxAmount < available
-                                        ? maxAmount
-                                        : available );
-    }
-    
-    Set<VmTypeAvailability> tailSet = sorted.tailSet( vmTypeStatus );
-    Set<VmTypeAvailability> headSet = sorted.headSet( vmTypeStatus );
-    LOG.debug( LogUtil.header( "DURING ALLOCATE" ) );
-    LOG.debug( LogUtil.subheader( "TAILSET: \n" + tailSet ) );
-    LOG.debug( LogUtil.subheader( "HEADSET: \n" + headSet ) );
-    //:: decrement available resources across the "active" partition :://
-    for ( VmTypeAvailability v : tailSet )
-      v.decrement( quantity );
-    for ( VmTypeAvailability v : headSet )
-      v.setAvailable( vmTypeStatus.getAvailable( ) );
-    LOG.debug( LogUtil.header( "AFTER ALLOCATE" ) );
-    LOG.debug( sorted );
-    int seqNumber = this.virtualTimer++;
-    List<ResourceToken> tokenList = Lists.newArrayList( );
-    for ( int i = 0; i < quantity; i++ ) {
-      try {
-        ResourceToken token = new ResourceToken( allocInfo, seqNumber, i );
-        LOG.debug( EventType.TOKEN_RESERVED.name( ) + ": " + token.toString( ) );
-        this.pendingTokens.add( token );
-        tokenList.add( token );
-      } catch ( Exception ex ) {
-        LOG.error( ex );
-        Logs.extreme( ).error( ex, ex );
-        for ( ResourceToken token : tokenList ) {
-          this.pendingTokens.remove( token );
+    this.stateLock.readLock( ).lock( );
+    try {
+      int quantity;
+      synchronized ( this.reservationLock ) {
+        //:: if not enough, then bail out :://
+        final int available = vmTypeStatus.getAvailable( );
+        if ( available < minAmount ) {
+          throw new NotEnoughResourcesException( "Not enough resources (" + available + " < " + minAmount + ": vm instances." );
+        }
+        quantity = ( maxAmount < available
+                                          ? maxAmount
+                                          : available );
+        vmTypeStatus.setAvailable( available - quantity );
+        //:: decrement available resources across the "active" partition :://
+        for ( VmTypeAvailability v : this.typeMap.values( ) ) {
+          if ( v != vmTypeStatus ) {
+            v.reserved( vmTypeStatus, available, quantity );
+          }
+        }
+      }
+      if ( LOG.isDebugEnabled( ) ) {
+        LOG.debug( LogUtil.header( "AFTER ALLOCATE" ) );
+        LOG.debug( this.sorted( ) );
+      }
+      int seqNumber = this.virtualTimer.getAndIncrement( );
+      List<ResourceToken> tokenList = Lists.newArrayList( );
+      for ( int i = 0; i < quantity; i++ ) {
+        try {
+          ResourceToken token = new ResourceToken( allocInfo, seqNumber, i );
+          LOG.debug( EventType.TOKEN_RESERVED.name( ) + ": " + token.toString( ) );
+          this.pendingTokens.add( token );
+          tokenList.add( token );
+        } catch ( Exception ex ) {
+          LOG.error( ex );
+          Logs.extreme( ).error( ex, ex );
+          for ( ResourceToken token : tokenList ) {
+            this.pendingTokens.remove( token );
+          }
         }
       }
+      return tokenList;
+    } finally {
+      this.stateLock.readLock( ).unlock( );
     }
-    return tokenList;
   }
   
-  public synchronized void releaseToken( ResourceToken token ) {
+  public void releaseToken( ResourceToken token ) {
     LOG.debug( EventType.TOKEN_RELEASED.name( ) + ": " + token.toString( ) );
-    this.pendingTokens.remove( token );
-    this.submittedTokens.remove( token );
-    this.redeemedTokens.remove( token );
+    this.stateLock.readLock( ).lock( );
+    try {
+      this.pendingTokens.remove( token );
+      this.submittedTokens.remove( token );
+      this.redeemedTokens.remove( token );
+    } finally {
+      this.stateLock.readLock( ).unlock( );
+    }
   }
   
-  public synchronized void submitToken( ResourceToken token ) throws NoSuchTokenException {
+  public void submitToken( ResourceToken token ) throws NoSuchTokenException {
     LOG.debug( EventType.TOKEN_SUBMITTED.name( ) + ": " + token.toString( ) );
-    if ( this.pendingTokens.remove( token ) ) {
-      this.submittedTokens.add( token );
-    } else {
-      throw new NoSuchTokenException( token.toString( ) );
+    this.stateLock.readLock( ).lock( );
+    try {
+      if ( this.pendingTokens.remove( token ) ) {
+        this.submittedTokens.add( token );
+      } else {
+        throw new NoSuchTokenException( token.toString( ) );
+      }
+    } finally {
+      this.stateLock.readLock( ).unlock( );
     }
   }
   
-  public synchronized void redeemToken( ResourceToken token ) throws NoSuchTokenException {
+  public void redeemToken( ResourceToken token ) throws NoSuchTokenException {
     LOG.debug( EventType.TOKEN_REDEEMED.name( ) + ": " + token.toString( ) );
-    if ( this.submittedTokens.remove( token ) || this.pendingTokens.remove( token ) ) {
-      this.redeemedTokens.add( token );
-    } else {
-      LOG.error(
-        "Failed to find token: "
-            + token
-            + "\n"
-            + Joiner.on( "\n" ).join( "pending", this.pendingTokens, "submitted", this.submittedTokens, "redeemed", this.redeemedTokens ),
-        new NoSuchTokenException( token.toString( ) ) );
+    this.stateLock.readLock( ).lock( );
+    try {
+      if ( this.submittedTokens.remove( token ) || this.pendingTokens.remove( token ) ) {
+        this.redeemedTokens.add( token );
+        return;
+      }
+    } finally {
+      this.stateLock.readLock( ).unlock( );
     }
+    LOG.error(
+      "Failed to find token: "
+          + token
+          + "\n"
+          + Joiner.on( "\n" ).join( "pending", this.pendingTokens, "submitted", this.submittedTokens, "redeemed", this.redeemedTokens ),
+      new NoSuchTokenException( token.toString( ) ) );
   }
   
-  public synchronized void update( List<ResourceType> rscUpdate ) {
+  public void update( List<ResourceType> rscUpdate ) {
+    this.stateLock.writeLock( ).lock( );
+    try {
+      this.doUpdate( rscUpdate );
+    } finally {
+      this.stateLock.writeLock( ).unlock( );
+    }
+  }
+  
+  private void doUpdate( List<ResourceType> rscUpdate ) {
     int outstandingCount = 0;
     int pending = 0, submitted = 0, redeemed = 0;
     for ( ResourceToken t : this.pendingTokens )
@@ -233,6 +271,36 @@ public class ResourceState {
     return this.typeMap.get( vmTypeName );
   }
   
+  /**
+   * Estimated fraction of the cluster's cores, memory or disk, whichever is highest, which is in
+   * use. The CC only reports instance counts per type; each count times the size of its type is a
+   * lower bound on the free (or total) amount of each resource, so the largest such product is
+   * used in each dimension.
+   * 
+   * @return the estimated load, 1 if the cluster has reported no capacity
+   */
+  public double getLoad( ) {
+    final long[] free = new long[3];
+    final long[] max = new long[3];
+    for ( VmTypeAvailability v : this.typeMap.values( ) ) {
+      final VmType type = v.getType( );
+      final long[] size = { type.getCpu( ), type.getMemory( ), type.getDisk( ) };
+      for ( int i = 0; i < size.length; i++ ) {
+        free[i] = Math.max( free[i], v.getAvailable( ) * size[i] );
+        max[i] = Math.max( max[i], v.getMax( ) * size[i] );
+      }
+    }
+    double load = -1d;
+    for ( int i = 0; i < max.length; i++ ) {
+      if ( max[i] > 0 ) {
+        load = Math.max( load, 1d - ( double ) Math.min( free[i], max[i] ) / max[i] );
+      }
+    }
+    return ( load < 0d )
+                        ? 1d
+                        : load;
+  }
+  
   public static ResourceComparator getComparator( VmTypeInfo vmTypeInfo ) {
     return new ResourceComparator( vmTypeInfo );
   }
@@ -257,14 +325,14 @@ public class ResourceState {
   }
   
   public static class VmTypeAvailability implements Comparable {
-    private VmType type;
-    private int    max;
-    private int    available;
+    private VmType              type;
+    private volatile int        max;
+    private final AtomicInteger available;
     
     public VmTypeAvailability( final VmType type, final int max, final int available ) {
       this.type = type;
       this.max = max;
-      this.available = available;
+      this.available = new AtomicInteger( available );
     }
     
     public VmType getType( ) {
@@ -272,10 +340,34 @@ public class ResourceState {
     }
     
     public void decrement( int quantity ) {
-      this.available -= quantity;
-      this.available = ( this.available < 0 )
+      int current;
+      do {
+        current = this.available.get( );
+      } while ( !this.available.compareAndSet( current, ( current - quantity < 0 )
+                                                                                   ? 0
+                                                                                   : current - quantity ) );
+    }
+    
+    /**
+     * Adjust this type's availability after {@code quantity} instances of {@code reserved} were
+     * taken when it had {@code before} available: types ordered after it (no more available) lose
+     * the same number of instances, while those ordered before it are limited to what is left of
+     * it.
+     */
+    void reserved( final VmTypeAvailability reserved, final int before, final int quantity ) {
+      final int after = before - quantity;
+      int current;
+      int update;
+      do {
+        current = this.available.get( );
+        if ( current < before || ( current == before && this.type.compareTo( reserved.getType( ) ) >= 0 ) ) {
+          update = ( current - quantity < 0 )
                                              ? 0
-                                             : this.available;
+                                             : current - quantity;
+        } else {
+          update = after;
+        }
+      } while ( !this.available.compareAndSet( current, update ) );
     }
     
     public int getMax( ) {
@@ -287,11 +379,11 @@ public class ResourceState {
     }
     
     public int getAvailable( ) {
-      return available;
+      return this.available.get( );
     }
     
     public void setAvailable( final int available ) {
-      this.available = available;
+      this.available.set( available );
     }
     
     @Override
@@ -321,7 +413,7 @@ public class ResourceState {
     public String toString( ) {
       return "VmTypeAvailability " +
              " " + type +
-             " " + available +
+             " " + available.get( ) +
              " / " + max;
     }
     
@@ -185,9 +185,7 @@ public class UnassignAddressCallback extends MessageCallback<UnassignAddressType
         }
       }
       if ( this.system ) {
-        try {
-          VmInstances.lookupByPublicIp( this.address.getDisplayName( ) );
-        } catch ( NoSuchElementException ex ) {
+        if ( !VmInstances.isPublicIpInUse( this.address.getDisplayName( ) ) ) {
           this.address.release( );
         }
       }
@@ -1,6 +1,9 @@
 package com.eucalyptus.cluster.callback;
 
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.concurrent.CancellationException;
@@ -12,6 +15,7 @@ import com.eucalyptus.cluster.Cluster;
 import com.eucalyptus.entities.Entities;
 import com.eucalyptus.entities.TransactionException;
 import com.eucalyptus.records.Logs;
+import com.eucalyptus.reporting.event.InstanceEvent;
 import com.eucalyptus.util.async.FailedRequestException;
 import com.eucalyptus.util.async.SubjectMessageCallback;
 import com.eucalyptus.vm.VmBundleTask.BundleState;
@@ -27,6 +31,9 @@ import com.google.common.base.Predicates;
 import com.google.common.base.Supplier;
 import com.google.common.base.Suppliers;
 import com.google.common.collect.Collections2;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import edu.ucsb.eucalyptus.cloud.VmDescribeResponseType;
 import edu.ucsb.eucalyptus.cloud.VmDescribeType;
@@ -100,15 +107,39 @@ public class VmStateCallback extends StateUpdateMessageCallback<Cluster, VmDescr
       
       final Set<String> unreportedInstances = Sets.newHashSet( Sets.difference( this.initialInstances.get( ), reportedInstances ) );
       final Set<String> restoreInstances = Sets.newHashSet( Sets.difference( reportedInstances, this.initialInstances.get( ) ) );
+      final List<VmInfo> reportedVms = Lists.newArrayList( );
       for ( final VmInfo runVm : reply.getVms( ) ) {
         if ( Databases.isVolatile( ) ) {
           return;
         } else if ( this.initialInstances.get( ).contains( runVm.getInstanceId( ) ) ) {
-          VmStateCallback.handleReportedState( runVm );
+          reportedVms.add( runVm );
         } else if ( restoreInstances.contains( runVm.getInstanceId( ) ) ) {
           VmStateCallback.handleRestore( runVm );
         }
       }
+      VmStateCallback.reconcile( reportedVms, unreportedInstances );
+    }
+  }
+  
+  /**
+   * Apply reported and unreported instance state. When {@link VmInstances#STATE_UPDATE_BATCH_SIZE}
+   * is positive the instances are loaded in chunks and plain state updates are applied in one
+   * transaction per chunk; otherwise each instance is handled in its own transaction.
+   * 
+   * Transitions which stop, terminate or delete an instance update the terminated instance caches
+   * and commit nested transactions, neither of which is undone by a rollback. These are always
+   * applied in a transaction of their own so that a failed chunk can never repeat them.
+   */
+  private static void reconcile( final List<VmInfo> reportedVms, final Collection<String> unreportedInstances ) {
+    final int batchSize = VmInstances.STATE_UPDATE_BATCH_SIZE;
+    if ( batchSize <= 0 ) {
+      for ( final VmInfo runVm : reportedVms ) {
+        if ( Databases.isVolatile( ) ) {
+          return;
+        } else {
+          VmStateCallback.handleReportedState( runVm );
+        }
+      }
       for ( final String vmId : unreportedInstances ) {
         if ( Databases.isVolatile( ) ) {
           return;
@@ -116,6 +147,104 @@ public class VmStateCallback extends StateUpdateMessageCallback<Cluster, VmDescr
           VmStateCallback.handleUnreported( vmId );
         }
       }
+    } else {
+      for ( final List<VmInfo> chunk : Iterables.partition( reportedVms, batchSize ) ) {
+        if ( Databases.isVolatile( ) ) {
+          return;
+        } else {
+          VmStateCallback.handleReportedStates( chunk );
+        }
+      }
+      for ( final List<String> chunk : Iterables.partition( unreportedInstances, batchSize ) ) {
+        if ( Databases.isVolatile( ) ) {
+          return;
+        } else {
+          VmStateCallback.handleUnreported( chunk );
+        }
+      }
+    }
+  }
+  
+  /**
+   * Reconcile a chunk of reported instances. Plain state updates are applied in a single
+   * transaction; if it fails, e.g. due to a concurrent update of one of the instances, each of
+   * them is retried in its own transaction. The usage events for the chunk are only fired once it
+   * has committed. Everything else is deferred until the chunk is done and then applied one
+   * instance at a time.
+   */
+  private static void handleReportedStates( final List<VmInfo> chunk ) {
+    final Map<String, VmInfo> reported = Maps.newHashMap( );
+    for ( final VmInfo runVm : chunk ) {
+      reported.put( runVm.getInstanceId( ), runVm );
+    }
+    final List<VmInfo> updates = Lists.newArrayList( );
+    final List<VmInfo> deferred = Lists.newArrayList( );
+    final List<InstanceEvent> usageEvents = Lists.newArrayList( );
+    final EntityTransaction db = Entities.get( VmInstance.class );
+    try {
+      for ( final VmInstance vm : VmInstances.lookupAll( reported.keySet( ) ).values( ) ) {
+        final VmInfo runVm = reported.get( vm.getInstanceId( ) );
+        if ( VmStateCallback.isReportedTransition( vm, runVm ) ) {
+          deferred.add( runVm );
+        } else {
+          updates.add( runVm );
+          vm.doUpdate( usageEvents ).apply( runVm );
+        }
+      }
+      if ( !updates.isEmpty( ) ) {
+        Entities.commit( db );
+        for ( final InstanceEvent event : usageEvents ) {
+          VmInstance.fireUsageEvent( event );
+        }
+      } else {
+        db.rollback( );
+      }
+    } catch ( final Exception ex ) {
+      db.rollback( );
+      LOG.debug( "Retrying state update for " + updates.size( ) + " instances individually: " + ex.getMessage( ) );
+      Logs.extreme( ).debug( ex, ex );
+      for ( final VmInfo runVm : updates ) {
+        VmStateCallback.handleReportedState( runVm );
+      }
+    }
+    for ( final VmInfo runVm : deferred ) {
+      VmStateCallback.handleReportedState( runVm );
+    }
+  }
+  
+  /**
+   * Reconcile a chunk of unreported instances. The chunk is loaded in one read-only transaction
+   * to find the instances which need a transition; every transition has side effects so each is
+   * then applied in its own transaction.
+   */
+  private static void handleUnreported( final List<String> chunk ) {
+    final List<String> transitions = Lists.newArrayList( );
+    final EntityTransaction db = Entities.get( VmInstance.class );
+    try {
+      final Map<String, VmInstance> vms = VmInstances.lookupAll( chunk );
+      for ( final String vmId : chunk ) {
+        VmInstance vm = vms.get( vmId );
+        if ( vm == null ) {
+          try {
+            vm = VmInstances.cachedLookup( vmId );
+          } catch ( final NoSuchElementException ex ) {
+            continue;
+          }
+        }
+        if ( VmStateCallback.isUnreportedTransition( vm ) ) {
+          transitions.add( vmId );
+        }
+      }
+    } catch ( final Exception ex ) {
+      LOG.debug( "Checking state of " + chunk.size( ) + " unreported instances individually: " + ex.getMessage( ) );
+      Logs.extreme( ).debug( ex, ex );
+      transitions.clear( );
+      transitions.addAll( chunk );
+    } finally {
+      db.rollback( );
+    }
+    for ( final String vmId : transitions ) {
+      VmStateCallback.handleUnreported( vmId );
     }
   }
   
@@ -123,59 +252,71 @@ public class VmStateCallback extends StateUpdateMessageCallback<Cluster, VmDescr
     EntityTransaction db1 = Entities.get( VmInstance.class );
     try {
       VmInstance vm = VmInstances.cachedLookup( vmId );
-      if ( VmState.PENDING.apply( vm ) && vm.lastUpdateMillis( ) < VM_INITIAL_REPORT_TIMEOUT ) {
-        //do nothing during first VM_INITIAL_REPORT_TIMEOUT millis of instance life
-        db1.rollback( );
-        return;
-      } else if ( vm.isBlockStorage( ) && VmInstances.Timeout.UNREPORTED.apply( vm ) ) {
-        VmInstances.stopped( vm );
-      } else if ( VmState.STOPPING.apply( vm ) ) {
-        VmInstances.stopped( vm );
-      } else if ( VmState.SHUTTING_DOWN.apply( vm ) ) {
-        VmInstances.terminated( vm );
-      } else if ( VmInstances.Timeout.TERMINATED.apply( vm ) ) {
-        VmInstances.delete( vm );
-      } else if ( VmInstances.Timeout.SHUTTING_DOWN.apply( vm ) ) {
-        VmInstances.terminated( vm );
-      } else if ( VmInstances.Timeout.STOPPING.apply( vm ) ) {
-        VmInstances.stopped( vm );
-      } else if ( VmInstances.Timeout.UNREPORTED.apply( vm ) ) {
-        VmInstances.terminated( vm );
+      if ( VmStateCallback.applyUnreported( vm ) ) {
+        Entities.commit( db1 );
       } else {
         db1.rollback( );
-        return;
       }
-      Entities.commit( db1 );
     } catch ( final Exception ex ) {
       Logs.extreme( ).error( ex, ex );
       db1.rollback( );
     }
   }
   
+  /**
+   * @return true if {@link #applyUnreported(VmInstance)} would stop, terminate or delete the instance
+   */
+  private static boolean isUnreportedTransition( final VmInstance vm ) {
+    if ( VmState.PENDING.apply( vm ) && vm.lastUpdateMillis( ) < VM_INITIAL_REPORT_TIMEOUT ) {
+      //do nothing during first VM_INITIAL_REPORT_TIMEOUT millis of instance life
+      return false;
+    } else {
+      return ( vm.isBlockStorage( ) && VmInstances.Timeout.UNREPORTED.apply( vm ) )
+             || VmState.STOPPING.apply( vm )
+             || VmState.SHUTTING_DOWN.apply( vm )
+             || VmInstances.Timeout.TERMINATED.apply( vm )
+             || VmInstances.Timeout.SHUTTING_DOWN.apply( vm )
+             || VmInstances.Timeout.STOPPING.apply( vm )
+             || VmInstances.Timeout.UNREPORTED.apply( vm );
+    }
+  }
+  
+  /**
+   * @return true if the instance state was changed
+   */
+  private static boolean applyUnreported( final VmInstance vm ) throws TransactionException {
+    if ( !VmStateCallback.isUnreportedTransition( vm ) ) {
+      return false;
+    } else if ( vm.isBlockStorage( ) && VmInstances.Timeout.UNREPORTED.apply( vm ) ) {
+      VmInstances.stopped( vm );
+    } else if ( VmState.STOPPING.apply( vm ) ) {
+      VmInstances.stopped( vm );
+    } else if ( VmState.SHUTTING_DOWN.apply( vm ) ) {
+      VmInstances.terminated( vm );
+    } else if ( VmInstances.Timeout.TERMINATED.apply( vm ) ) {
+      VmInstances.delete( vm );
+    } else if ( VmInstances.Timeout.SHUTTING_DOWN.apply( vm ) ) {
+      VmInstances.terminated( vm );
+    } else if ( VmInstances.Timeout.STOPPING.apply( vm ) ) {
+      VmInstances.stopped( vm );
+    } else if ( VmInstances.Timeout.UNREPORTED.apply( vm ) ) {
+      VmInstances.terminated( vm );
+    } else {
+      return false;
+    }
+    return true;
+  }
+  
   private static void handleReportedState( final VmInfo runVm ) {
-    final VmState runVmState = VmState.Mapper.get( runVm.getStateName( ) );
     try {
       EntityTransaction db = Entities.get( VmInstance.class );
       try {
         VmInstance vm = VmInstances.lookup( runVm.getInstanceId( ) );
-        if ( VmInstances.Timeout.EXPIRED.apply( vm ) ) {
-          if ( vm.isBlockStorage( ) ) {
-            VmInstances.stopped( vm );
-          } else {
-            VmInstances.shutDown( vm );
-          }
-        } else if ( VmState.SHUTTING_DOWN.equals( runVmState ) ) {
-          VmStateCallback.handleReportedTeardown( vm, runVm );
-        } else if ( VmStateSet.RUN.apply( vm ) ) {
-          vm.doUpdate( ).apply( runVm );
-        } else if ( !VmStateSet.RUN.apply( vm ) && VmStateSet.RUN.contains( runVmState )
-                    && vm.lastUpdateMillis( ) > ( VmInstances.VOLATILE_STATE_TIMEOUT_SEC * 1000l ) ) {
-          vm.doUpdate( ).apply( runVm );
+        if ( VmStateCallback.applyReportedState( vm, runVm ) ) {
+          Entities.commit( db );
         } else {
           db.rollback( );
-          return;
         }
-        Entities.commit( db );
       } catch ( Exception ex ) {
         LOG.error( ex );
         Logs.extreme( ).error( ex, ex );
@@ -192,6 +333,43 @@ public class VmStateCallback extends StateUpdateMessageCallback<Cluster, VmDescr
     }
   }
   
+  /**
+   * @return false only if {@link #applyReportedState(VmInstance, VmInfo)} would update the fields
+   *         of a pending or running instance whose state is unchanged; any state transition,
+   *         bundle task update or teardown is a transition
+   */
+  private static boolean isReportedTransition( final VmInstance vm, final VmInfo runVm ) {
+    final VmState runVmState = VmState.Mapper.get( runVm.getStateName( ) );
+    return VmInstances.Timeout.EXPIRED.apply( vm )
+           || !VmStateSet.RUN.apply( vm )
+           || !vm.getState( ).equals( runVmState )
+           || vm.getRuntimeState( ).isBundling( );
+  }
+  
+  /**
+   * @return true if the instance state was changed
+   */
+  private static boolean applyReportedState( final VmInstance vm, final VmInfo runVm ) throws TransactionException {
+    final VmState runVmState = VmState.Mapper.get( runVm.getStateName( ) );
+    if ( VmInstances.Timeout.EXPIRED.apply( vm ) ) {
+      if ( vm.isBlockStorage( ) ) {
+        VmInstances.stopped( vm );
+      } else {
+        VmInstances.shutDown( vm );
+      }
+    } else if ( VmState.SHUTTING_DOWN.equals( runVmState ) ) {
+      VmStateCallback.handleReportedTeardown( vm, runVm );
+    } else if ( VmStateSet.RUN.apply( vm ) ) {
+      vm.doUpdate( ).apply( runVm );
+    } else if ( !VmStateSet.RUN.apply( vm ) && VmStateSet.RUN.contains( runVmState )
+                && vm.lastUpdateMillis( ) > ( VmInstances.VOLATILE_STATE_TIMEOUT_SEC * 1000l ) ) {
+      vm.doUpdate( ).apply( runVm );
+    } else {
+      return false;
+    }
+    return true;
+  }
+  
   private static void handleRestore( final VmInfo runVm ) {
     final VmState runVmState = VmState.Mapper.get( runVm.getStateName( ) );
     if ( VmStateSet.RUN.contains( runVmState ) ) {
@@ -275,13 +453,13 @@ public class VmStateCallback extends StateUpdateMessageCallback<Cluster, VmDescr
     
     @Override
     public void fire( VmDescribeResponseType reply ) {
+      final List<VmInfo> reportedVms = Lists.newArrayList( );
       for ( final VmInfo runVm : reply.getVms( ) ) {
-        if ( Databases.isVolatile( ) ) {
-          return;
-        } else if ( this.initialInstances.get( ).contains( runVm.getInstanceId( ) ) ) {
-          VmStateCallback.handleReportedState( runVm );
+        if ( this.initialInstances.get( ).contains( runVm.getInstanceId( ) ) ) {
+          reportedVms.add( runVm );
         }
       }
+      VmStateCallback.reconcile( reportedVms, Collections.<String>emptySet( ) );
     }
     
     /**
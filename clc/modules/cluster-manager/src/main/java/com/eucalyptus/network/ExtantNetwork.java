@@ -64,6 +64,7 @@
 package com.eucalyptus.network;
 
 import java.util.HashSet;
+import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -97,7 +98,7 @@ import com.eucalyptus.entities.TransactionExecutionException;
 import com.eucalyptus.entities.TransientEntityException;
 import com.eucalyptus.records.Logs;
 import com.eucalyptus.util.FullName;
-import com.eucalyptus.util.Numbers;
+import com.google.common.collect.Lists;
 
 @Entity
 @javax.persistence.Entity
@@ -187,6 +188,7 @@ public class ExtantNetwork extends UserMetadata<Reference.State> {
     } else if ( !Entities.isPersistent( this ) ) {
       throw new TransientEntityException( this.toString( ) );
     } else {
+      NetworkBitmaps.indexes( this.tag ).claim( idx );
       try {
         return Entities.uniqueResult( PrivateNetworkIndex.named( this, idx ) );
       } catch ( final Exception ex ) {
@@ -196,9 +198,22 @@ public class ExtantNetwork extends UserMetadata<Reference.State> {
   }
   
   public PrivateNetworkIndex allocateNetworkIndex( ) throws TransactionException {
+    return this.allocateNetworkIndexes( 1 ).get( 0 );
+  }
+  
+  /**
+   * Allocate {@code count} private network indexes in a single transaction; either all or none are
+   * allocated. Candidates are taken from the network's {@link NetworkBitmaps} rather than probing
+   * the whole interval.
+   */
+  public List<PrivateNetworkIndex> allocateNetworkIndexes( final int count ) throws TransactionException {
+    final List<PrivateNetworkIndex> allocated = Lists.newArrayList( );
     if ( !NetworkGroups.networkingConfiguration( ).hasNetworking( ) ) {
       try {
-        return PrivateNetworkIndex.bogus( ).allocate( );
+        for ( int n = 0; n < count; n++ ) {
+          allocated.add( PrivateNetworkIndex.bogus( ).allocate( ) );
+        }
+        return allocated;
       } catch ( final ResourceAllocationException ex ) {
         throw new RuntimeException( "BUG BUG BUG: failed to call PrivateNetworkIndex.allocate() on the .bogus() index." );
       }
@@ -206,27 +221,45 @@ public class ExtantNetwork extends UserMetadata<Reference.State> {
       throw new TransientEntityException( this.toString( ) );
     } else {
       EntityTransaction db = Entities.get( PrivateNetworkIndex.class );
+      NetworkBitmaps.Bitmap free = null;
       try {
-        for ( final Long i : Numbers.shuffled( NetworkGroups.networkIndexInterval( ) ) ) {
+        free = NetworkBitmaps.indexes( this.tag );
+        boolean reloaded = false;
+        while ( allocated.size( ) < count ) {
+          final long i = free.next( );
+          if ( i < 0 && !reloaded ) {
+            NetworkBitmaps.reloadIndexes( this.tag, free );
+            for ( final PrivateNetworkIndex netIdx : allocated ) {
+              free.claim( netIdx.getIndex( ) );
+            }
+            reloaded = true;
+            continue;
+          } else if ( i < 0 ) {
+            throw new NoSuchElementException( );
+          }
           try {
             Entities.uniqueResult( PrivateNetworkIndex.named( this, i ) );
             continue;
           } catch ( final Exception ex ) {
             try {
               PrivateNetworkIndex netIdx = Entities.persist( PrivateNetworkIndex.create( this, i ) );
-              PrivateNetworkIndex ref = netIdx.allocate( );
-              db.commit( );
-              return ref;
+              allocated.add( netIdx.allocate( ) );
             } catch ( final Exception ex1 ) {
               continue;
             }
           }
         }
-        throw new NoSuchElementException( );
+        db.commit( );
+        return allocated;
       } catch ( Exception ex ) {
         Logs.exhaust( ).error( ex, ex );
         db.rollback( );
-        throw new TransactionExecutionException( "Failed to allocate a private network index in network: " + this.displayName, ex );
+        if ( free != null ) {
+          for ( final PrivateNetworkIndex netIdx : allocated ) {
+            free.release( netIdx.getIndex( ) );
+          }
+        }
+        throw new TransactionExecutionException( "Failed to allocate " + count + " private network indexes in network: " + this.displayName, ex );
       }
     }
   }
@@ -346,6 +379,7 @@ public class ExtantNetwork extends UserMetadata<Reference.State> {
       }
     }
     this.indexes.clear( );
+    NetworkBitmaps.releaseTag( this.tag );
     return true;
   }
 }
@@ -0,0 +1,292 @@
+/*******************************************************************************
+ * Copyright (c) 2009  Eucalyptus Systems, Inc.
+ * 
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, only version 3 of the License.
+ * 
+ * 
+ *  This file is distributed in the hope that it will be useful, but WITHOUT
+ *  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ *  FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ *  Please contact Eucalyptus Systems, Inc., 130 Castilian
+ *  Dr., Goleta, CA 93101 USA or visit <http://www.eucalyptus.com/licenses/>
+ *  if you need additional information or have any questions.
+ * 
+ *  This file may incorporate work covered under the following copyright and
+ *  permission notice:
+ * 
+ *    Software License Agreement (BSD License)
+ * 
+ *    Copyright (c) 2008, Regents of the University of California
+ *    All rights reserved.
+ * 
+ *    Redistribution and use of this software in source and binary forms, with
+ *    or without modification, are permitted provided that the following
+ *    conditions are met:
+ * 
+ *      Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * 
+ *      Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ * 
+ *    THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ *    IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ *    TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ *    PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ *    OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *    EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ *    PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ *    PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ *    LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ *    NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *    SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. USERS OF
+ *    THIS SOFTWARE ACKNOWLEDGE THE POSSIBLE PRESENCE OF OTHER OPEN SOURCE
+ *    LICENSED MATERIAL, COPYRIGHTED MATERIAL OR PATENTED MATERIAL IN THIS
+ *    SOFTWARE, AND IF ANY SUCH MATERIAL IS DISCOVERED THE PARTY DISCOVERING
+ *    IT MAY INFORM DR. RICH WOLSKI AT THE UNIVERSITY OF CALIFORNIA, SANTA
+ *    BARBARA WHO WILL THEN ASCERTAIN THE MOST APPROPRIATE REMEDY, WHICH IN
+ *    THE REGENTS' DISCRETION MAY INCLUDE, WITHOUT LIMITATION, REPLACEMENT
+ *    OF THE CODE SO IDENTIFIED, LICENSING OF THE CODE SO IDENTIFIED, OR
+ *    WITHDRAWAL OF THE CODE CAPABILITY TO THE EXTENT NEEDED TO COMPLY WITH
+ *    ANY SUCH LICENSES OR RIGHTS.
+ *******************************************************************************
+ * @author chris grzegorczyk <grze@eucalyptus.com>
+ */
+
+package com.eucalyptus.network;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentMap;
+import org.apache.log4j.Logger;
+import org.hibernate.criterion.Projections;
+import org.hibernate.criterion.Restrictions;
+import com.eucalyptus.entities.Entities;
+import com.eucalyptus.network.NetworkGroups.NetworkRangeConfiguration;
+import com.google.common.collect.Maps;
+
+/**
+ * Free/used bitmaps of the private network indexes of each extant network and of the network tags.
+ * 
+ * A bitmap is loaded from the {@link PrivateNetworkIndex} (or {@link ExtantNetwork}) rows the first
+ * time it is needed, or when the configured range changes, and then kept up to date as values are
+ * allocated and released. Allocation still checks the chosen value against the database, so a stale
+ * bit only costs a retry; a bitmap which appears full is reloaded once before giving up.
+ * 
+ * Loading must be done within a transaction.
+ */
+final class NetworkBitmaps {
+  private static Logger                               LOG     = Logger.getLogger( NetworkBitmaps.class );
+  private static final ConcurrentMap<Integer, Bitmap> indexes = Maps.newConcurrentMap( );
+  private static volatile Bitmap                      tags;
+  
+  private NetworkBitmaps( ) {}
+  
+  /**
+   * @return the private network indexes of the extant network with the given tag
+   */
+  static Bitmap indexes( final Integer tag ) {
+    final NetworkRangeConfiguration range = NetworkGroups.networkingConfiguration( );
+    final Bitmap bitmap = indexes.get( tag );
+    if ( bitmap != null && bitmap.covers( range.getMinNetworkIndex( ), range.getMaxNetworkIndex( ) ) ) {
+      return bitmap;
+    } else {
+      synchronized ( indexes ) {
+        final Bitmap current = indexes.get( tag );
+        if ( current != null && current.covers( range.getMinNetworkIndex( ), range.getMaxNetworkIndex( ) ) ) {
+          return current;
+        }
+        final Bitmap loaded = new Bitmap( range.getMinNetworkIndex( ), range.getMaxNetworkIndex( ) );
+        reloadIndexes( tag, loaded );
+        indexes.put( tag, loaded );
+        return loaded;
+      }
+    }
+  }
+  
+  static void reloadIndexes( final Integer tag, final Bitmap bitmap ) {
+    @SuppressWarnings( "unchecked" )
+    final List<Long> used = Entities.createCriteria( PrivateNetworkIndex.class )
+                                    .add( Restrictions.like( "bogusId", tag + ":%" ) )
+                                    .setProjection( Projections.property( "index" ) )
+                                    .setReadOnly( true )
+                                    .setCacheable( false )
+                                    .list( );
+    bitmap.reset( used );
+    LOG.debug( "Loaded private network indexes for network tag " + tag + ": " + bitmap );
+  }
+  
+  /**
+   * @return the network tags
+   */
+  static Bitmap tags( ) {
+    final NetworkRangeConfiguration range = NetworkGroups.networkingConfiguration( );
+    final Bitmap bitmap = tags;
+    if ( bitmap != null && bitmap.covers( range.getMinNetworkTag( ), range.getMaxNetworkTag( ) ) ) {
+      return bitmap;
+    } else {
+      synchronized ( indexes ) {
+        final Bitmap current = tags;
+        if ( current != null && current.covers( range.getMinNetworkTag( ), range.getMaxNetworkTag( ) ) ) {
+          return current;
+        }
+        final Bitmap loaded = new Bitmap( range.getMinNetworkTag( ), range.getMaxNetworkTag( ) );
+        reloadTags( loaded );
+        tags = loaded;
+        return loaded;
+      }
+    }
+  }
+  
+  static void reloadTags( final Bitmap bitmap ) {
+    @SuppressWarnings( "unchecked" )
+    final List<Integer> used = Entities.createCriteria( ExtantNetwork.class )
+                                       .setProjection( Projections.property( "tag" ) )
+                                       .setReadOnly( true )
+                                       .setCacheable( false )
+                                       .list( );
+    bitmap.reset( used );
+    LOG.debug( "Loaded network tags: " + bitmap );
+  }
+  
+  /**
+   * Called when a private network index is released; does nothing if the bitmap is not loaded.
+   */
+  static void releaseIndex( final Integer tag, final Long index ) {
+    final Bitmap bitmap = indexes.get( tag );
+    if ( bitmap != null ) {
+      bitmap.release( index );
+    }
+  }
+  
+  /**
+   * Called when an extant network is torn down.
+   */
+  static void releaseTag( final Integer tag ) {
+    indexes.remove( tag );
+    final Bitmap bitmap = tags;
+    if ( bitmap != null ) {
+      bitmap.release( tag );
+    }
+  }
+  
+  /**
+   * Bitmap over the interval [min, max) in which set bits are in use.
+   */
+  static final class Bitmap {
+    private static final Random random = new Random( );
+    private final long          min;
+    private final long          max;
+    private final long[]        words;
+    private int                 used;
+    
+    Bitmap( final long min, final long max ) {
+      this.min = min;
+      this.max = Math.max( min, max );
+      this.words = new long[( int ) ( ( this.max - this.min + 63 ) >>> 6 )];
+    }
+    
+    boolean covers( final long min, final long max ) {
+      return this.min == min && this.max == Math.max( min, max );
+    }
+    
+    synchronized void reset( final Collection<? extends Number> inUse ) {
+      Arrays.fill( this.words, 0l );
+      this.used = 0;
+      for ( final Number value : inUse ) {
+        if ( value != null ) {
+          this.claim( value.longValue( ) );
+        }
+      }
+    }
+    
+    /**
+     * @return a free value, chosen at random and now marked used, or -1 if there are none
+     */
+    synchronized long next( ) {
+      final int size = ( int ) ( this.max - this.min );
+      if ( this.used >= size ) {
+        return -1l;
+      }
+      final int start = random.nextInt( size );
+      int bit = this.nextClear( start, size );
+      if ( bit < 0 ) {
+        bit = this.nextClear( 0, start );
+      }
+      if ( bit < 0 ) {
+        return -1l;
+      }
+      this.words[bit >>> 6] |= 1l << bit;
+      this.used++;
+      return this.min + bit;
+    }
+    
+    /**
+     * @return false if the value was already in use or is outside of the interval
+     */
+    synchronized boolean claim( final long value ) {
+      if ( value < this.min || value >= this.max ) {
+        return false;
+      }
+      final int bit = ( int ) ( value - this.min );
+      final long mask = 1l << bit;
+      if ( ( this.words[bit >>> 6] & mask ) != 0 ) {
+        return false;
+      }
+      this.words[bit >>> 6] |= mask;
+      this.used++;
+      return true;
+    }
+    
+    synchronized void release( final long value ) {
+      if ( value < this.min || value >= this.max ) {
+        return;
+      }
+      final int bit = ( int ) ( value - this.min );
+      final long mask = 1l << bit;
+      if ( ( this.words[bit >>> 6] & mask ) != 0 ) {
+        this.words[bit >>> 6] &= ~mask;
+        this.used--;
+      }
+    }
+    
+    synchronized int free( ) {
+      return ( int ) ( this.max - this.min ) - this.used;
+    }
+    
+    /**
+     * @return the first clear bit in [from, to), or -1
+     */
+    private int nextClear( final int from, final int to ) {
+      if ( from >= to ) {
+        return -1;
+      }
+      for ( int w = from >>> 6; w <= ( to - 1 ) >>> 6; w++ ) {
+        long clear = ~this.words[w];
+        if ( w == from >>> 6 ) {
+          clear &= -1l << from;
+        }
+        if ( clear != 0 ) {
+          final int bit = ( w << 6 ) + Long.numberOfTrailingZeros( clear );
+          return bit < to ? bit : -1;
+        }
+      }
+      return -1;
+    }
+    
+    @Override
+    public String toString( ) {
+      return "Bitmap:[" + this.min + "," + this.max + "):free=" + this.free( );
+    }
+  }
+}
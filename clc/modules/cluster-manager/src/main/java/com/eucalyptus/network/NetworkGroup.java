@@ -98,7 +98,6 @@ import com.eucalyptus.component.id.Eucalyptus;
 import com.eucalyptus.entities.Entities;
 import com.eucalyptus.entities.TransientEntityException;
 import com.eucalyptus.util.FullName;
-import com.eucalyptus.util.Numbers;
 import com.eucalyptus.util.OwnerFullName;
 import com.google.common.base.Function;
 import com.google.common.collect.Collections2;
@@ -268,6 +267,7 @@ public class NetworkGroup extends UserMetadata<NetworkGroup.State> implements Ne
     } else if ( !Entities.isPersistent( this ) ) {
       throw new TransientEntityException( this.toString( ) );
     } else {
+      NetworkBitmaps.tags( ).claim( i );
       return Entities.persist( ExtantNetwork.create( this, i ) );
     }
   }
@@ -283,12 +283,21 @@ public class NetworkGroup extends UserMetadata<NetworkGroup.State> implements Ne
     } else {
       ExtantNetwork exNet = this.getExtantNetwork( );
       if ( exNet == null ) {
-        for ( Integer i : Numbers.shuffled( NetworkGroups.networkTagInterval( ) ) ) {
+        final NetworkBitmaps.Bitmap free = NetworkBitmaps.tags( );
+        boolean reloaded = false;
+        for ( long i = free.next( );; i = free.next( ) ) {
+          if ( i < 0 && !reloaded ) {
+            NetworkBitmaps.reloadTags( free );
+            reloaded = true;
+            continue;
+          } else if ( i < 0 ) {
+            break;
+          }
           try {
-            Entities.uniqueResult( ExtantNetwork.named( i ) );
+            Entities.uniqueResult( ExtantNetwork.named( ( int ) i ) );
             continue;
           } catch ( Exception ex ) {
-            exNet = ExtantNetwork.create( this, i );
+            exNet = ExtantNetwork.create( this, ( int ) i );
             Entities.persist( exNet );
             this.setExtantNetwork( exNet );
             return this.getExtantNetwork( );
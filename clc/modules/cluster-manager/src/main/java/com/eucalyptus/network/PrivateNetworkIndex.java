@@ -270,6 +270,9 @@ public class PrivateNetworkIndex extends PersistentReference<PrivateNetworkIndex
   
   @Override
   public PrivateNetworkIndex release( ) throws ResourceAllocationException {
+    if ( this.extantNetwork != null && this.index != null ) {
+      NetworkBitmaps.releaseIndex( this.extantNetwork.getTag( ), this.index );
+    }
     this.extantNetwork = null;
     return super.release( );
   }
@@ -205,37 +205,50 @@ public class VmControl {
       ? null
       : ctx.getUserFullName( ).asAccountFullName( );
     try {
-      for ( final VmInstance vm : VmInstances.list( ownerFullName, filter ) ) {
-        if ( !instancesSet.isEmpty( ) && !instancesSet.contains( vm.getInstanceId( ) ) ) {
+      final List<String> uncached = Lists.newArrayList( );
+      for ( final VmInstanceIndex.Entry entry : VmInstanceIndex.list( ownerFullName ) ) {
+        if ( !instancesSet.isEmpty( ) && !instancesSet.contains( entry.getInstanceId( ) ) ) {
+          continue;
+        } else if ( !filter.apply( entry.asExample( ) ) ) {
           continue;
         }
+        final RunningInstancesItemType item = entry.getDescribe( );
+        if ( item == null || entry.getNetworkNames( ) == null ) {
+          uncached.add( entry.getInstanceId( ) );
+        } else if ( instanceMap.put( entry.getReservationId( ), item ) && !reservations.containsKey( entry.getReservationId( ) ) ) {
+          reservations.put( entry.getReservationId( ), new ReservationInfoType( entry.getReservationId( ), entry.getOwnerAccountNumber( ), entry.getNetworkNames( ) ) );
+        }
+      }
+      if ( !uncached.isEmpty( ) ) {
         EntityTransaction db = Entities.get( VmInstance.class );
         try {
-          VmInstance v = Entities.merge( vm );
-          if ( instanceMap.put( v.getReservationId( ), VmInstances.transform( v ) ) && !reservations.containsKey( v.getReservationId( ) ) ) {
-            reservations.put( v.getReservationId( ), new ReservationInfoType( v.getReservationId( ), v.getOwner( ).getAccountNumber( ), v.getNetworkNames( ) ) );
+          for ( final VmInstance v : VmInstances.lookupAll( uncached ).values( ) ) {
+            try {
+              if ( instanceMap.put( v.getReservationId( ), VmInstances.transform( v ) ) && !reservations.containsKey( v.getReservationId( ) ) ) {
+                reservations.put( v.getReservationId( ), new ReservationInfoType( v.getReservationId( ), v.getOwner( ).getAccountNumber( ), v.getNetworkNames( ) ) );
+              }
+            } catch ( Exception ex ) {
+              LOG.error( ex, ex );
+            }
           }
+        } finally {
           db.rollback( );
-        } catch ( Exception ex ) {
-          Logs.exhaust( ).error( ex, ex );
-          db.rollback( );
-          try {
-            if ( vm != null ) {
-              try {
-                RunningInstancesItemType ret = VmInstances.transform( vm );
-                if ( ret != null && vm.getReservationId( ) != null ) {
-                  if ( instanceMap.put( vm.getReservationId( ), VmInstances.transform( vm ) ) && !reservations.containsKey( vm.getReservationId( ) ) ) {
-                    reservations.put( vm.getReservationId( ),
-                                      new ReservationInfoType( vm.getReservationId( ), vm.getOwner( ).getAccountNumber( ), vm.getNetworkNames( ) ) );
-                  }
-                }
-              } catch ( Exception ex1 ) {
-                LOG.error( ex1, ex1 );
-              }
+        }
+      }
+      for ( final VmInstance vm : VmInstances.listTerminated( filter ) ) {
+        if ( !instancesSet.isEmpty( ) && !instancesSet.contains( vm.getInstanceId( ) ) ) {
+          continue;
+        }
+        try {
+          RunningInstancesItemType ret = VmInstances.transform( vm );
+          if ( ret != null && vm.getReservationId( ) != null ) {
+            if ( instanceMap.put( vm.getReservationId( ), ret ) && !reservations.containsKey( vm.getReservationId( ) ) ) {
+              reservations.put( vm.getReservationId( ),
+                                new ReservationInfoType( vm.getReservationId( ), vm.getOwner( ).getAccountNumber( ), vm.getNetworkNames( ) ) );
             }
-          } catch ( Exception ex1 ) {
-            LOG.error( ex1, ex1 );
           }
+        } catch ( Exception ex1 ) {
+          LOG.error( ex1, ex1 );
         }
       }
       List<ReservationInfoType> replyReservations = reply.getReservationSet( );
@@ -82,11 +82,13 @@ import javax.persistence.JoinColumn;
 import javax.persistence.ManyToMany;
 import javax.persistence.OneToOne;
 import javax.persistence.PersistenceContext;
+import javax.persistence.PostLoad;
 import javax.persistence.PreRemove;
 import javax.persistence.Table;
 import javax.persistence.Transient;
 import org.apache.log4j.Logger;
 import org.bouncycastle.util.encoders.Base64;
+import org.hibernate.Hibernate;
 import org.hibernate.annotations.Cache;
 import org.hibernate.annotations.CacheConcurrencyStrategy;
 import org.hibernate.annotations.Entity;
@@ -115,6 +117,7 @@ import com.eucalyptus.component.Topology;
 import com.eucalyptus.component.id.ClusterController;
 import com.eucalyptus.component.id.Dns;
 import com.eucalyptus.component.id.Eucalyptus;
+import com.eucalyptus.entities.CommitListener;
 import com.eucalyptus.entities.Entities;
 import com.eucalyptus.entities.TransactionExecutionException;
 import com.eucalyptus.entities.TransientEntityException;
@@ -155,7 +158,7 @@ import edu.ucsb.eucalyptus.msgs.RunningInstancesItemType;
 @PersistenceContext( name = "eucalyptus_cloud" )
 @Table( name = "metadata_instances" )
 @Cache( usage = CacheConcurrencyStrategy.TRANSACTIONAL )
-public class VmInstance extends UserMetadata<VmState> implements VmInstanceMetadata {
+public class VmInstance extends UserMetadata<VmState> implements VmInstanceMetadata, CommitListener {
   private static final long    serialVersionUID = 1L;
 
   private static final Logger        LOG                  = Logger.getLogger( VmInstance.class );
@@ -218,6 +221,46 @@ public class VmInstance extends UserMetadata<VmState> implements VmInstanceMetad
     }
   }
   
+  @PostLoad
+  private void updateIndex( ) {
+    VmInstanceIndex.update( this );
+  }
+  
+  @Override
+  public void afterCommit( final boolean deleted ) {
+    if ( deleted ) {
+      VmInstanceIndex.remove( this );
+    } else {
+      VmInstanceIndex.update( this );
+    }
+  }
+  
+  /**
+   * @return the security groups and volume attachments of this instance in a form which changes
+   *         whenever they do, or null if they have not been loaded
+   */
+  String getChildState( ) {
+    if ( !Hibernate.isInitialized( this.networkGroups ) || ( this.bootRecord == null )
+         || !Hibernate.isInitialized( this.bootRecord.getPersistentVolumes( ) )
+         || ( ( this.transientVolumeState != null ) && !Hibernate.isInitialized( this.transientVolumeState.getAttachments( ) ) ) ) {
+      return null;
+    } else {
+      final Set<String> children = Sets.newTreeSet( );
+      if ( this.networkGroups != null ) {
+        for ( final NetworkGroup group : this.networkGroups ) {
+          children.add( "group:" + group.getDisplayName( ) );
+        }
+      }
+      final Iterable<VmVolumeAttachment> volumes = ( this.transientVolumeState == null )
+        ? this.bootRecord.getPersistentVolumes( )
+        : Iterables.concat( this.bootRecord.getPersistentVolumes( ), this.transientVolumeState.getAttachments( ) );
+      for ( final VmVolumeAttachment volume : volumes ) {
+        children.add( "volume:" + volume.getVolumeId( ) + ":" + volume.getDevice( ) + ":" + volume.getStatus( ) );
+      }
+      return children.toString( );
+    }
+  }
+  
   public enum Filters implements Predicate<VmInstance> {
     BUNDLING {
       
@@ -975,6 +1018,27 @@ public class VmInstance extends UserMetadata<VmState> implements VmInstanceMetad
   }
   
   private void fireUsageEvent( ) {
+    final InstanceEvent event = this.usageEvent( );
+    if ( event != null ) {
+      VmInstance.fireUsageEvent( event );
+    }
+  }
+  
+  /**
+   * Fire a usage event which was collected by {@link #doUpdate(List)}.
+   */
+  public static void fireUsageEvent( final InstanceEvent event ) {
+    try {
+      ListenerRegistry.getInstance( ).fireEvent( event );
+    } catch ( final Exception ex ) {
+      LOG.error( ex, ex );
+    }
+  }
+  
+  /**
+   * @return the usage event for this instance, or null if it is not running
+   */
+  private InstanceEvent usageEvent( ) {
     if ( VmState.RUNNING.equals( this.getState( ) ) ) {
       try {
     	final OwnerFullName owner = this.getOwner();
@@ -988,13 +1052,14 @@ public class VmInstance extends UserMetadata<VmState> implements VmInstanceMetad
     	final Long diskBytes = this.usageStats.getBlockBytes();
     	final String instanceType = this.bootRecord.getVmType().getName();
     	
-        ListenerRegistry.getInstance( ).fireEvent( new InstanceEvent( this.getInstanceUuid(), this.getDisplayName(),
-                                                                      instanceType, userId, userName, accountId, accountName,
-                                                                      clusterName, zoneName, networkBytes, diskBytes ) );
+        return new InstanceEvent( this.getInstanceUuid(), this.getDisplayName(),
+                                  instanceType, userId, userName, accountId, accountName,
+                                  clusterName, zoneName, networkBytes, diskBytes );
       } catch ( final Exception ex ) {
         LOG.error( ex, ex );
       }
     }
+    return null;
   }
   
   public String getByKey( final String pathArg ) {
@@ -1518,6 +1583,14 @@ public class VmInstance extends UserMetadata<VmState> implements VmInstanceMetad
    * @return
    */
   public Predicate<VmInfo> doUpdate( ) {
+    return this.doUpdate( null );
+  }
+  
+  /**
+   * Like {@link #doUpdate()}, but if {@code usageEvents} is not null the usage event is added to
+   * it rather than fired, so that the caller can fire it once its own transaction has committed.
+   */
+  public Predicate<VmInfo> doUpdate( final List<InstanceEvent> usageEvents ) {
     return new Predicate<VmInfo>( ) {
       
       @Override
@@ -1547,7 +1620,14 @@ public class VmInstance extends UserMetadata<VmState> implements VmInstanceMetad
             } else {
               this.updateState( runVm );
             }
-            VmInstance.this.fireUsageEvent( );
+            if ( usageEvents == null ) {
+              VmInstance.this.fireUsageEvent( );
+            } else {
+              final InstanceEvent event = VmInstance.this.usageEvent( );
+              if ( event != null ) {
+                usageEvents.add( event );
+              }
+            }
             db.commit( );
           } catch ( final Exception ex ) {
             Logs.extreme( ).error( ex, ex );
@@ -0,0 +1,541 @@
+/*******************************************************************************
+ *Copyright (c) 2009  Eucalyptus Systems, Inc.
+ * 
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, only version 3 of the License.
+ * 
+ * 
+ *  This file is distributed in the hope that it will be useful, but WITHOUT
+ *  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ *  FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ *  Please contact Eucalyptus Systems, Inc., 130 Castilian
+ *  Dr., Goleta, CA 93101 USA or visit <http://www.eucalyptus.com/licenses/>
+ *  if you need additional information or have any questions.
+ * 
+ *  This file may incorporate work covered under the following copyright and
+ *  permission notice:
+ * 
+ *    Software License Agreement (BSD License)
+ * 
+ *    Copyright (c) 2008, Regents of the University of California
+ *    All rights reserved.
+ * 
+ *    Redistribution and use of this software in source and binary forms, with
+ *    or without modification, are permitted provided that the following
+ *    conditions are met:
+ * 
+ *      Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * 
+ *      Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ * 
+ *    THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ *    IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ *    TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ *    PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ *    OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *    EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ *    PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ *    PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ *    LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ *    NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *    SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. USERS OF
+ *    THIS SOFTWARE ACKNOWLEDGE THE POSSIBLE PRESENCE OF OTHER OPEN SOURCE
+ *    LICENSED MATERIAL, COPYRIGHTED MATERIAL OR PATENTED MATERIAL IN THIS
+ *    SOFTWARE, AND IF ANY SUCH MATERIAL IS DISCOVERED THE PARTY DISCOVERING
+ *    IT MAY INFORM DR. RICH WOLSKI AT THE UNIVERSITY OF CALIFORNIA, SANTA
+ *    BARBARA WHO WILL THEN ASCERTAIN THE MOST APPROPRIATE REMEDY, WHICH IN
+ *    THE REGENTS' DISCRETION MAY INCLUDE, WITHOUT LIMITATION, REPLACEMENT
+ *    OF THE CODE SO IDENTIFIED, LICENSING OF THE CODE SO IDENTIFIED, OR
+ *    WITHDRAWAL OF THE CODE CAPABILITY TO THE EXTENT NEEDED TO COMPLY WITH
+ *    ANY SUCH LICENSES OR RIGHTS.
+ *******************************************************************************/
+
+package com.eucalyptus.vm;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.persistence.EntityTransaction;
+import org.apache.log4j.Logger;
+import com.eucalyptus.auth.principal.AccountFullName;
+import com.eucalyptus.auth.principal.Principals;
+import com.eucalyptus.auth.principal.UserFullName;
+import com.eucalyptus.component.ComponentIds;
+import com.eucalyptus.component.id.Dns;
+import com.eucalyptus.entities.Entities;
+import com.eucalyptus.records.Logs;
+import com.eucalyptus.util.OwnerFullName;
+import com.eucalyptus.vm.VmInstance.VmState;
+import com.eucalyptus.vm.VmInstance.VmStateSet;
+import com.eucalyptus.ws.StackConfiguration;
+import com.google.common.base.Objects;
+import com.google.common.collect.Lists;
+import edu.ucsb.eucalyptus.msgs.EbsInstanceBlockDeviceMapping;
+import edu.ucsb.eucalyptus.msgs.InstanceBlockDeviceMapping;
+import edu.ucsb.eucalyptus.msgs.RunningInstancesItemType;
+
+/**
+ * In-memory index of instance state keyed by instance id, owning account, reservation and
+ * private/public address.
+ * 
+ * The index is populated with a single query on first use. It is kept current by
+ * {@link VmInstance#afterCommit(boolean)}, so changes become visible here only once the
+ * transaction making them has committed, and by loads, which never replace a newer version.
+ * Each {@link Entry} is an immutable snapshot tagged with the entity version and the state of the
+ * security groups and volume attachments it was taken from; the describe representation of an
+ * instance is cached against both and discarded when either changes. The describe representation
+ * also depends on whether instance DNS names are in use, so it is only returned while that setting
+ * is the same as when it was computed.
+ */
+public class VmInstanceIndex {
+  private static Logger                                    LOG         = Logger.getLogger( VmInstanceIndex.class );
+  private static final ConcurrentMap<String, Entry>        byId        = new ConcurrentHashMap<String, Entry>( );
+  private static final ConcurrentMap<String, String>       byPrivateIp = new ConcurrentHashMap<String, String>( );
+  private static final ConcurrentMap<String, String>       byPublicIp  = new ConcurrentHashMap<String, String>( );
+  private static final ConcurrentMap<String, Set<String>>  byAccount   = new ConcurrentHashMap<String, Set<String>>( );
+  private static final ConcurrentMap<String, Set<String>>  byReservation = new ConcurrentHashMap<String, Set<String>>( );
+  private static final ConcurrentMap<String, AtomicLong>  generations = new ConcurrentHashMap<String, AtomicLong>( );
+  private static volatile boolean                          loaded      = false;
+  private static final Object                              updateLock  = new Object( );
+  
+  public static class Entry {
+    private final String                  instanceId;
+    private final Integer                 version;
+    private final String                  ownerAccountNumber;
+    private final String                  ownerUserId;
+    private final String                  reservationId;
+    private final String                  partition;
+    private final VmState                 state;
+    private final String                  privateAddress;
+    private final String                  publicAddress;
+    private final String                  privateDnsName;
+    private final String                  publicDnsName;
+    private volatile String               children;
+    private volatile VmInstance           example;
+    private volatile Describe             describe;
+    private volatile NavigableSet<String> networkNames;
+    
+    Entry( final VmInstance vm ) {
+      this.instanceId = vm.getInstanceId( );
+      this.version = vm.getVersion( );
+      this.ownerAccountNumber = vm.getOwnerAccountNumber( );
+      this.ownerUserId = vm.getOwnerUserId( );
+      this.reservationId = vm.getReservationId( );
+      this.partition = vm.getPartition( );
+      this.state = vm.getState( );
+      this.privateAddress = vm.getPrivateAddress( );
+      this.publicAddress = vm.getPublicAddress( );
+      this.privateDnsName = vm.getPrivateDnsName( );
+      this.publicDnsName = vm.getPublicDnsName( );
+      this.children = vm.getChildState( );
+    }
+    
+    public String getInstanceId( ) {
+      return this.instanceId;
+    }
+    
+    public Integer getVersion( ) {
+      return this.version;
+    }
+    
+    public String getOwnerAccountNumber( ) {
+      return this.ownerAccountNumber;
+    }
+    
+    public String getReservationId( ) {
+      return this.reservationId;
+    }
+    
+    public String getPartition( ) {
+      return this.partition;
+    }
+    
+    public VmState getState( ) {
+      return this.state;
+    }
+    
+    public String getPrivateAddress( ) {
+      return this.privateAddress;
+    }
+    
+    public String getPublicAddress( ) {
+      return this.publicAddress;
+    }
+    
+    public String getPrivateDnsName( ) {
+      return this.privateDnsName;
+    }
+    
+    public String getPublicDnsName( ) {
+      return this.publicDnsName;
+    }
+    
+    /**
+     * @return a copy of the cached describe representation, or null if it has not been computed
+     *         for this version of the instance and the current instance DNS setting
+     */
+    public RunningInstancesItemType getDescribe( ) {
+      final Describe cached = this.describe;
+      return ( cached == null || cached.dns != isInstanceDns( ) ? null : copyOf( cached.item ) );
+    }
+    
+    public NavigableSet<String> getNetworkNames( ) {
+      return this.networkNames;
+    }
+    
+    /**
+     * Transient instance carrying only the owner and id, suitable for the privilege checks in
+     * {@link com.eucalyptus.util.RestrictedTypes}.
+     */
+    public VmInstance asExample( ) {
+      if ( this.example == null ) {
+        this.example = VmInstance.named( this.resolveOwner( ), this.instanceId );
+      }
+      return this.example;
+    }
+    
+    private OwnerFullName resolveOwner( ) {
+      if ( this.ownerUserId == null ) {
+        return AccountFullName.getInstance( this.ownerAccountNumber );
+      } else if ( Principals.nobodyFullName( ).getUserId( ).equals( this.ownerUserId ) ) {
+        return Principals.nobodyFullName( );
+      } else if ( Principals.systemFullName( ).getUserId( ).equals( this.ownerUserId ) ) {
+        return Principals.systemFullName( );
+      } else {
+        return UserFullName.getInstance( this.ownerUserId );
+      }
+    }
+    
+    boolean isRunning( ) {
+      return VmStateSet.RUN.contains( this.state );
+    }
+    
+    boolean isSameNaming( final Entry that ) {
+      return this.isRunning( ) == that.isRunning( )
+             && Objects.equal( this.privateAddress, that.privateAddress )
+             && Objects.equal( this.publicAddress, that.publicAddress )
+             && Objects.equal( this.privateDnsName, that.privateDnsName )
+             && Objects.equal( this.publicDnsName, that.publicDnsName );
+    }
+    
+    @Override
+    public String toString( ) {
+      return String.format( "VmInstanceIndex.Entry:%s:version=%s:state=%s:private=%s:public=%s", this.instanceId, this.version, this.state,
+                            this.privateAddress, this.publicAddress );
+    }
+  }
+  
+  private static class Describe {
+    private final RunningInstancesItemType item;
+    private final boolean                  dns;
+    
+    Describe( final RunningInstancesItemType item, final boolean dns ) {
+      this.item = item;
+      this.dns = dns;
+    }
+  }
+  
+  /**
+   * @return true if instances are described with their DNS names rather than their addresses
+   */
+  static boolean isInstanceDns( ) {
+    return StackConfiguration.USE_INSTANCE_DNS && !ComponentIds.lookup( Dns.class ).runLimitedServices( );
+  }
+  
+  /**
+   * Record the current state of {@code vm}. Called when an instance is loaded and after a
+   * transaction changing it has committed.
+   */
+  static void update( final VmInstance vm ) {
+    if ( vm.getInstanceId( ) == null ) {
+      return;
+    }
+    try {
+      final Entry entry = new Entry( vm );
+      synchronized ( updateLock ) {
+        updateEntry( entry );
+      }
+    } catch ( final RuntimeException ex ) {
+      LOG.error( "Failed to update instance index for " + vm.getInstanceId( ) + ": " + ex.getMessage( ) );
+      Logs.extreme( ).error( ex, ex );
+      synchronized ( updateLock ) {
+        final Entry previous = byId.remove( vm.getInstanceId( ) );
+        if ( previous != null ) {
+          unindex( previous );
+          advance( previous );
+        }
+      }
+    }
+  }
+  
+  private static void updateEntry( final Entry entry ) {
+    final Entry previous = byId.get( entry.getInstanceId( ) );
+    if ( previous != null && isOlder( entry, previous ) ) {
+      return;
+    } else if ( previous != null && Objects.equal( previous.getVersion( ), entry.getVersion( ) ) ) {
+      if ( entry.children == null ) {
+        entry.children = previous.children;
+      }
+      if ( Objects.equal( previous.children, entry.children ) ) {
+        entry.describe = previous.describe;
+        entry.networkNames = previous.networkNames;
+      }
+    }
+    byId.put( entry.getInstanceId( ), entry );
+    if ( previous != null ) {
+      unindex( previous );
+    }
+    index( entry );
+    if ( previous == null || !previous.isSameNaming( entry ) ) {
+      if ( previous != null ) {
+        advance( previous );
+      }
+      advance( entry );
+    }
+  }
+  
+  /**
+   * Forget {@code vm}. Called after a transaction deleting it has committed.
+   */
+  static void remove( final VmInstance vm ) {
+    if ( vm.getInstanceId( ) != null ) {
+      synchronized ( updateLock ) {
+        final Entry previous = byId.remove( vm.getInstanceId( ) );
+        if ( previous != null ) {
+          unindex( previous );
+          advance( previous );
+        }
+      }
+    }
+  }
+  
+  /**
+   * The naming generation of {@code address} is advanced whenever an instance holding it is added
+   * or removed, or changes its state, addresses or DNS names. Callers caching answers derived from
+   * the index for an address (e.g. the DNS instance records) compare against it to detect stale
+   * entries, so a change only invalidates the answers for the addresses it touches.
+   */
+  public static long getGeneration( final String address ) {
+    final AtomicLong generation = generations.get( address );
+    return generation == null ? 0l : generation.get( );
+  }
+  
+  /**
+   * Counters are kept for every address seen rather than dropped with the instance, so a
+   * generation never repeats for an address; the set of addresses is bounded by the address pools.
+   */
+  private static void advance( final Entry entry ) {
+    advance( entry.getPrivateAddress( ) );
+    advance( entry.getPublicAddress( ) );
+  }
+  
+  private static void advance( final String address ) {
+    if ( address != null ) {
+      AtomicLong generation = generations.get( address );
+      if ( generation == null ) {
+        final AtomicLong newGeneration = new AtomicLong( 0l );
+        generation = generations.putIfAbsent( address, newGeneration );
+        if ( generation == null ) {
+          generation = newGeneration;
+        }
+      }
+      generation.incrementAndGet( );
+    }
+  }
+  
+  /**
+   * Cache a copy of the describe representation of {@code vm} if the index entry is for the same
+   * version and the same security groups and volume attachments.
+   * 
+   * @param dns the value of {@link #isInstanceDns()} read before {@code item} was computed
+   */
+  static void describe( final VmInstance vm, final RunningInstancesItemType item, final boolean dns ) {
+    final Entry entry = byId.get( vm.getInstanceId( ) );
+    final String children = vm.getChildState( );
+    if ( entry != null && children != null && entry.getVersion( ) != null && entry.getVersion( ).equals( vm.getVersion( ) ) ) {
+      if ( entry.children == null ) {
+        entry.children = children;
+      }
+      if ( children.equals( entry.children ) ) {
+        entry.networkNames = vm.getNetworkNames( );
+        entry.describe = new Describe( copyOf( item ), dns );
+      }
+    }
+  }
+  
+  private static boolean isOlder( final Entry entry, final Entry than ) {
+    return entry.getVersion( ) != null && than.getVersion( ) != null && entry.getVersion( ) < than.getVersion( );
+  }
+  
+  /**
+   * Cached describe items are handed out to many replies, each of which may modify its items, so
+   * every reply gets its own copy.
+   */
+  private static RunningInstancesItemType copyOf( final RunningInstancesItemType item ) {
+    final RunningInstancesItemType copy = ( RunningInstancesItemType ) item.clone( );
+    copy.setProductCodes( Lists.newArrayList( item.getProductCodes( ) ) );
+    if ( item.getLaunchTime( ) != null ) {
+      copy.setLaunchTime( new Date( item.getLaunchTime( ).getTime( ) ) );
+    }
+    final ArrayList<InstanceBlockDeviceMapping> blockDevices = Lists.newArrayList( );
+    for ( final InstanceBlockDeviceMapping device : item.getBlockDevices( ) ) {
+      final InstanceBlockDeviceMapping deviceCopy = ( InstanceBlockDeviceMapping ) device.clone( );
+      if ( device.getEbs( ) != null ) {
+        final EbsInstanceBlockDeviceMapping ebs = ( EbsInstanceBlockDeviceMapping ) device.getEbs( ).clone( );
+        if ( ebs.getAttachTime( ) != null ) {
+          ebs.setAttachTime( new Date( ebs.getAttachTime( ).getTime( ) ) );
+        }
+        deviceCopy.setEbs( ebs );
+      }
+      blockDevices.add( deviceCopy );
+    }
+    copy.setBlockDevices( blockDevices );
+    return copy;
+  }
+  
+  private static void index( final Entry entry ) {
+    if ( entry.getPrivateAddress( ) != null ) {
+      byPrivateIp.put( entry.getPrivateAddress( ), entry.getInstanceId( ) );
+    }
+    if ( entry.getPublicAddress( ) != null ) {
+      byPublicIp.put( entry.getPublicAddress( ), entry.getInstanceId( ) );
+    }
+    keys( byAccount, entry.getOwnerAccountNumber( ) ).add( entry.getInstanceId( ) );
+    keys( byReservation, entry.getReservationId( ) ).add( entry.getInstanceId( ) );
+  }
+  
+  private static void unindex( final Entry previous ) {
+    final Entry current = byId.get( previous.getInstanceId( ) );
+    if ( previous.getPrivateAddress( ) != null
+         && ( current == null || !previous.getPrivateAddress( ).equals( current.getPrivateAddress( ) ) ) ) {
+      byPrivateIp.remove( previous.getPrivateAddress( ), previous.getInstanceId( ) );
+    }
+    if ( previous.getPublicAddress( ) != null
+         && ( current == null || !previous.getPublicAddress( ).equals( current.getPublicAddress( ) ) ) ) {
+      byPublicIp.remove( previous.getPublicAddress( ), previous.getInstanceId( ) );
+    }
+    if ( current == null ) {
+      keys( byAccount, previous.getOwnerAccountNumber( ) ).remove( previous.getInstanceId( ) );
+      keys( byReservation, previous.getReservationId( ) ).remove( previous.getInstanceId( ) );
+    }
+  }
+  
+  private static Set<String> keys( final ConcurrentMap<String, Set<String>> map, final String key ) {
+    final String k = ( key == null ? "" : key );
+    Set<String> ret = map.get( k );
+    if ( ret == null ) {
+      final Set<String> newSet = Collections.newSetFromMap( new ConcurrentHashMap<String, Boolean>( ) );
+      ret = map.putIfAbsent( k, newSet );
+      if ( ret == null ) {
+        ret = newSet;
+      }
+    }
+    return ret;
+  }
+  
+  /**
+   * Load every instance once so that the lifecycle callbacks populate the index.
+   */
+  private static void ensureLoaded( ) {
+    if ( !loaded ) {
+      synchronized ( VmInstanceIndex.class ) {
+        if ( !loaded ) {
+          final EntityTransaction db = Entities.get( VmInstance.class );
+          try {
+            for ( final VmInstance vm : Entities.query( VmInstance.named( null, null ) ) ) {
+              update( vm );
+            }
+            db.rollback( );
+            loaded = true;
+          } catch ( final Exception ex ) {
+            Logs.extreme( ).error( ex, ex );
+            db.rollback( );
+          }
+        }
+      }
+    }
+  }
+  
+  /**
+   * @return true once the index has been populated and can answer lookups authoritatively
+   */
+  public static boolean isLoaded( ) {
+    ensureLoaded( );
+    return loaded;
+  }
+  
+  public static Entry lookup( final String instanceId ) {
+    ensureLoaded( );
+    return byId.get( instanceId );
+  }
+  
+  /**
+   * @return the PENDING or RUNNING instance with the given private address, or null
+   */
+  public static Entry lookupByPrivateIp( final String ip ) {
+    ensureLoaded( );
+    final String instanceId = byPrivateIp.get( ip );
+    final Entry entry = ( instanceId == null ? null : byId.get( instanceId ) );
+    return ( entry != null && entry.isRunning( ) && ip.equals( entry.getPrivateAddress( ) ) ? entry : null );
+  }
+  
+  /**
+   * @return the PENDING or RUNNING instance with the given public address, or null
+   */
+  public static Entry lookupByPublicIp( final String ip ) {
+    ensureLoaded( );
+    final String instanceId = byPublicIp.get( ip );
+    final Entry entry = ( instanceId == null ? null : byId.get( instanceId ) );
+    return ( entry != null && entry.isRunning( ) && ip.equals( entry.getPublicAddress( ) ) ? entry : null );
+  }
+  
+  /**
+   * @param ownerFullName owning account, or null for all instances
+   */
+  public static List<Entry> list( final OwnerFullName ownerFullName ) {
+    ensureLoaded( );
+    if ( ownerFullName == null ) {
+      return Lists.newArrayList( byId.values( ) );
+    } else {
+      return entries( byAccount.get( ownerFullName.getAccountNumber( ) ) );
+    }
+  }
+  
+  public static List<Entry> listByReservation( final String reservationId ) {
+    ensureLoaded( );
+    return entries( byReservation.get( reservationId ) );
+  }
+  
+  private static List<Entry> entries( final Collection<String> instanceIds ) {
+    final List<Entry> ret = Lists.newArrayList( );
+    if ( instanceIds != null ) {
+      for ( final String instanceId : instanceIds ) {
+        final Entry entry = byId.get( instanceId );
+        if ( entry != null ) {
+          ret.add( entry );
+        }
+      }
+    }
+    return ret;
+  }
+  
+  public static int size( ) {
+    return byId.size( );
+  }
+}
@@ -64,12 +64,15 @@
 package com.eucalyptus.vm;
 
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import javax.persistence.EntityTransaction;
 import org.apache.log4j.Logger;
+import org.hibernate.Criteria;
 import org.hibernate.criterion.Example;
 import org.hibernate.criterion.MatchMode;
 import org.hibernate.criterion.Projections;
@@ -108,6 +111,7 @@ import com.google.common.base.Predicate;
 import com.google.common.collect.Collections2;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import edu.ucsb.eucalyptus.msgs.AttachedVolume;
 import edu.ucsb.eucalyptus.msgs.DeleteStorageVolumeType;
 import edu.ucsb.eucalyptus.msgs.DetachStorageVolumeType;
@@ -229,6 +233,9 @@ public class VmInstances {
   @ConfigurableField( description = "Amount of time (in minutes) before a EBS volume backing the instance is created",
                       initial = "30" )
   public static Integer   EBS_VOLUME_CREATION_TIMEOUT   = 30;
+  @ConfigurableField( description = "Maximum number of reported instances whose state is reconciled in a single transaction (0 to reconcile each instance separately).",
+                      initial = "100" )
+  public static Integer   STATE_UPDATE_BATCH_SIZE       = 100;
   
   public static class SubdomainListener implements PropertyChangeListener {
     @Override
@@ -277,7 +284,31 @@ public class VmInstances {
     return vmId;
   }
   
+  /**
+   * The index only narrows the lookup to a single instance id; the instance itself is still read
+   * from the database because callers either need the full entity (e.g. instance metadata) or
+   * update it. Callers which only need to know whether the address is in use should use
+   * {@link VmInstanceIndex#lookupByPrivateIp(String)} directly.
+   */
   public static VmInstance lookupByPrivateIp( final String ip ) throws NoSuchElementException {
+    if ( VmInstanceIndex.isLoaded( ) ) {
+      final VmInstanceIndex.Entry entry = VmInstanceIndex.lookupByPrivateIp( ip );
+      if ( entry == null ) {
+        throw new NoSuchElementException( "VmInstance with private ip: " + ip );
+      }
+      try {
+        final VmInstance vm = VmInstances.lookup( entry.getInstanceId( ) );
+        if ( ip.equals( vm.getPrivateAddress( ) ) && VmStateSet.RUN.apply( vm ) ) {
+          return vm;
+        }
+      } catch ( final NoSuchElementException ex ) {
+        Logs.exhaust( ).debug( ex, ex );
+      }
+    }
+    return lookupPersistentByPrivateIp( ip );
+  }
+  
+  private static VmInstance lookupPersistentByPrivateIp( final String ip ) throws NoSuchElementException {
     EntityTransaction db = Entities.get( VmInstance.class );
     try {
       VmInstance vmExample = VmInstance.exampleWithPrivateIp( ip );
@@ -324,7 +355,46 @@ public class VmInstances {
     
   }
   
+  /**
+   * @see #lookupByPrivateIp(String)
+   * @see #isPublicIpInUse(String)
+   */
   public static VmInstance lookupByPublicIp( final String ip ) throws NoSuchElementException {
+    if ( VmInstanceIndex.isLoaded( ) ) {
+      final VmInstanceIndex.Entry entry = VmInstanceIndex.lookupByPublicIp( ip );
+      if ( entry == null ) {
+        throw new NoSuchElementException( "VmInstance with public ip: " + ip );
+      }
+      try {
+        final VmInstance vm = VmInstances.lookup( entry.getInstanceId( ) );
+        if ( ip.equals( vm.getPublicAddress( ) ) && VmStateSet.RUN.apply( vm ) ) {
+          return vm;
+        }
+      } catch ( final NoSuchElementException ex ) {
+        Logs.exhaust( ).debug( ex, ex );
+      }
+    }
+    return lookupPersistentByPublicIp( ip );
+  }
+  
+  /**
+   * @return true if a PENDING or RUNNING instance has the public address {@code ip}, answered from
+   *         the {@link VmInstanceIndex} without a database read once it is loaded
+   */
+  public static boolean isPublicIpInUse( final String ip ) {
+    if ( VmInstanceIndex.isLoaded( ) ) {
+      return VmInstanceIndex.lookupByPublicIp( ip ) != null;
+    } else {
+      try {
+        lookupPersistentByPublicIp( ip );
+        return true;
+      } catch ( final NoSuchElementException ex ) {
+        return false;
+      }
+    }
+  }
+  
+  private static VmInstance lookupPersistentByPublicIp( final String ip ) throws NoSuchElementException {
     EntityTransaction db = Entities.get( VmInstance.class );
     try {
       VmInstance vmExample = VmInstance.exampleWithPublicIp( ip );
@@ -484,6 +554,30 @@ public class VmInstances {
     return PersistentLookup.INSTANCE.apply( name );
   }
   
+  /**
+   * Load the instances named by {@code instanceIds} using a single query. Must be called from
+   * within a {@link VmInstance} transaction; instances which are already terminated are omitted.
+   * 
+   * @param instanceIds
+   * @return map of instance id to instance
+   */
+  @SuppressWarnings( "unchecked" )
+  public static Map<String, VmInstance> lookupAll( final Collection<String> instanceIds ) {
+    final Map<String, VmInstance> ret = Maps.newHashMap( );
+    if ( !instanceIds.isEmpty( ) ) {
+      final List<VmInstance> vms = Entities.createCriteria( VmInstance.class )
+                                           .add( Restrictions.in( "displayName", instanceIds ) )
+                                           .setResultTransformer( Criteria.DISTINCT_ROOT_ENTITY )
+                                           .list( );
+      for ( final VmInstance vm : vms ) {
+        if ( !terminateDescribeCache.containsKey( vm.getDisplayName( ) ) ) {
+          ret.put( vm.getDisplayName( ), vm );
+        }
+      }
+    }
+    return ret;
+  }
+  
   public static VmInstance register( final VmInstance vm ) {
     if ( !terminateDescribeCache.containsKey( vm.getInstanceId( ) ) ) {
       return Transitions.REGISTER.apply( vm );
@@ -645,10 +739,20 @@ public class VmInstances {
     if ( terminateDescribeCache.containsKey( vm.getDisplayName( ) ) ) {
       return terminateDescribeCache.get( vm.getDisplayName( ) );
     } else {
-      return VmInstance.Transform.INSTANCE.apply( vm );
+      final boolean dns = VmInstanceIndex.isInstanceDns( );
+      final RunningInstancesItemType ret = VmInstance.Transform.INSTANCE.apply( vm );
+      VmInstanceIndex.describe( vm, ret, dns );
+      return ret;
     }
   }
   
+  /**
+   * @return terminated instances which are still reported, filtered by {@code predicate}
+   */
+  public static List<VmInstance> listTerminated( Predicate<VmInstance> predicate ) {
+    return Lists.newArrayList( Collections2.filter( terminateCache.values( ), checkPredicate( predicate ) ) );
+  }
+  
   enum PersistentLookup implements Function<String, VmInstance> {
     INSTANCE;
     
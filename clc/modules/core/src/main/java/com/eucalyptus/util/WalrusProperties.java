@@ -109,6 +109,7 @@ public class WalrusProperties {
 	public static boolean trackUsageStatistics = false;
 	public static boolean enableTorrents = false;
 	public static boolean enableVirtualHosting = true;
+	public static boolean enableZeroCopyTransfer = System.getProperty("euca.walrus.zerocopy.disable") == null;
 	public static long CACHE_PROGRESS_TIMEOUT = 600000L; //ten minutes
 	public static long IMAGE_CACHE_RETRY_TIMEOUT = 1000L;
 	public static int IMAGE_CACHE_RETRY_LIMIT = 3;
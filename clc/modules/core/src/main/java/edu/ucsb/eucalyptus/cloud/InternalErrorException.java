@@ -60,29 +60,24 @@
  *******************************************************************************/
 /*
  *
- * Author: Neil Soman neil@eucalyptus.com
+ * Author: Sunil Soman sunils@cs.ucsb.edu
  */
-package edu.ucsb.eucalyptus.util;
 
-import java.util.concurrent.LinkedBlockingQueue;
+package edu.ucsb.eucalyptus.cloud;
+
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+
 
 @SuppressWarnings("serial")
-public class WalrusDataQueue<T> extends LinkedBlockingQueue<T> {
-	public boolean interrupted;
-	
-	public WalrusDataQueue() {
-		super();
-	}
+public class InternalErrorException extends WalrusException {
 
-	public WalrusDataQueue(int dataQueueSize) {
-		super(dataQueueSize);
+	public InternalErrorException()
+	{
+		super( "InternalError" );
 	}
-	
-	public void setInterrupted(boolean value) {
-		this.interrupted = value;
-	}
-	
-	public boolean getInterrupted() {
-		return this.interrupted;
+
+	public InternalErrorException(String entityType, String entity)
+	{
+		super("InternalError", "We encountered an internal error. Please try again.", entityType, entity, HttpResponseStatus.INTERNAL_SERVER_ERROR);
 	}
 }
@@ -0,0 +1,134 @@
+/*******************************************************************************
+ *Copyright (c) 2009  Eucalyptus Systems, Inc.
+ * 
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, only version 3 of the License.
+ * 
+ * 
+ *  This file is distributed in the hope that it will be useful, but WITHOUT
+ *  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ *  FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ *  Please contact Eucalyptus Systems, Inc., 130 Castilian
+ *  Dr., Goleta, CA 93101 USA or visit <http://www.eucalyptus.com/licenses/>
+ *  if you need additional information or have any questions.
+ * 
+ *  This file may incorporate work covered under the following copyright and
+ *  permission notice:
+ * 
+ *    Software License Agreement (BSD License)
+ * 
+ *    Copyright (c) 2008, Regents of the University of California
+ *    All rights reserved.
+ * 
+ *    Redistribution and use of this software in source and binary forms, with
+ *    or without modification, are permitted provided that the following
+ *    conditions are met:
+ * 
+ *      Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * 
+ *      Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ * 
+ *    THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ *    IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ *    TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ *    PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ *    OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *    EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ *    PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ *    PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ *    LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ *    NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *    SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. USERS OF
+ *    THIS SOFTWARE ACKNOWLEDGE THE POSSIBLE PRESENCE OF OTHER OPEN SOURCE
+ *    LICENSED MATERIAL, COPYRIGHTED MATERIAL OR PATENTED MATERIAL IN THIS
+ *    SOFTWARE, AND IF ANY SUCH MATERIAL IS DISCOVERED THE PARTY DISCOVERING
+ *    IT MAY INFORM DR. RICH WOLSKI AT THE UNIVERSITY OF CALIFORNIA, SANTA
+ *    BARBARA WHO WILL THEN ASCERTAIN THE MOST APPROPRIATE REMEDY, WHICH IN
+ *    THE REGENTS' DISCRETION MAY INCLUDE, WITHOUT LIMITATION, REPLACEMENT
+ *    OF THE CODE SO IDENTIFIED, LICENSING OF THE CODE SO IDENTIFIED, OR
+ *    WITHDRAWAL OF THE CODE CAPABILITY TO THE EXTENT NEEDED TO COMPLY WITH
+ *    ANY SUCH LICENSES OR RIGHTS.
+ *******************************************************************************/
+package edu.ucsb.eucalyptus.cloud.entities;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Supplier;
+
+/**
+ * Holds the last loaded copy of a singleton configuration entity so that hot paths (e.g., resolving
+ * an object path) do not need a transaction. The copy is tagged with the version it was loaded at;
+ * {@link #invalidate()} bumps the version so the next {@link #get()} reloads. Invalidation must
+ * happen after the changing transaction commits (see {@link com.eucalyptus.entities.CommitListener})
+ * and only reaches this host, so copies also expire after a fixed time to pick up changes made
+ * on other hosts.
+ */
+class ConfigurationCache<T> {
+	private static final long EXPIRY_MILLIS = TimeUnit.SECONDS.toMillis( 15 );
+	private final Supplier<T> loader;
+	private final AtomicLong version = new AtomicLong( );
+	private final AtomicLong lookups = new AtomicLong( );
+	private final AtomicLong loads = new AtomicLong( );
+	private volatile Versioned<T> cached;
+
+	ConfigurationCache( final Supplier<T> loader ) {
+		this.loader = loader;
+	}
+
+	T get( ) {
+		this.lookups.incrementAndGet( );
+		final long current = this.version.get( );
+		final Versioned<T> last = this.cached;
+		if ( last != null && last.version == current && !last.isExpired( ) ) {
+			return last.value;
+		}
+		this.loads.incrementAndGet( );
+		final T value = this.loader.get( );
+		//NOTE: a commit after the version was read invalidates after it, so a copy loaded before that commit is tagged stale and the next get() reloads.
+		this.cached = new Versioned<T>( current, value );
+		return value;
+	}
+
+	void invalidate( ) {
+		this.version.incrementAndGet( );
+	}
+
+	/**
+	 * @return number of configuration lookups served, from cache or otherwise
+	 */
+	long getLookups( ) {
+		return this.lookups.get( );
+	}
+
+	/**
+	 * @return number of lookups which had to go to the database
+	 */
+	long getLoads( ) {
+		return this.loads.get( );
+	}
+
+	private static class Versioned<T> {
+		private final long version;
+		private final T value;
+		private final long loaded = System.currentTimeMillis( );
+
+		Versioned( final long version, final T value ) {
+			this.version = version;
+			this.value = value;
+		}
+
+		boolean isExpired( ) {
+			return System.currentTimeMillis( ) - this.loaded > EXPIRY_MILLIS;
+		}
+	}
+}
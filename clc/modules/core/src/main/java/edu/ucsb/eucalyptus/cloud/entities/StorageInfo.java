@@ -77,17 +77,30 @@ import com.eucalyptus.configurable.ConfigurableField;
 import com.eucalyptus.configurable.ConfigurableFieldType;
 import com.eucalyptus.configurable.ConfigurableIdentifier;
 import com.eucalyptus.entities.AbstractPersistent;
+import com.eucalyptus.entities.CommitListener;
 import com.eucalyptus.entities.EntityWrapper;
 import com.eucalyptus.util.EucalyptusCloudException;
+import com.eucalyptus.util.Mbeans;
 import com.eucalyptus.util.StorageProperties;
+import com.google.common.base.Supplier;
 
 @Entity @javax.persistence.Entity
 @PersistenceContext(name="eucalyptus_storage")
 @Table( name = "storage_info" )
 @Cache( usage = CacheConcurrencyStrategy.TRANSACTIONAL )
 @ConfigurableClass(root = "storage", alias="basic", description = "Basic storage controller configuration.", singleton=false, deferred = true)
-public class StorageInfo extends AbstractPersistent {
+public class StorageInfo extends AbstractPersistent implements CommitListener {
 	private static Logger LOG = Logger.getLogger( StorageInfo.class );
+	private static final ConfigurationCache<StorageInfo> cache = new ConfigurationCache<StorageInfo>( new Supplier<StorageInfo>( ) {
+		@Override
+		public StorageInfo get( ) {
+			return lookupStorageInfo( );
+		}
+	} );
+
+	static {
+		Mbeans.register( new StorageInfoCacheStatistics( ) );
+	}
 
 	@ConfigurableIdentifier
 	@Column( name = "storage_name", unique=true)
@@ -184,7 +197,42 @@ public class StorageInfo extends AbstractPersistent {
 		return this.name;
 	}
 
+	/**
+	 * Property updates (and any other write) invalidate the cached copy handed out by
+	 * {@link #getStorageInfo()} once they have committed.
+	 */
+	@Override
+	public void afterCommit(boolean deleted) {
+		cache.invalidate();
+	}
+
+	/**
+	 * @return the cached configuration; callers must treat it as read-only
+	 */
 	public static StorageInfo getStorageInfo() {
+		return cache.get();
+	}
+
+	/**
+	 * Configuration cache counters, exported through {@link Mbeans}.
+	 */
+	public static class StorageInfoCacheStatistics {
+		/**
+		 * @return number of configuration lookups served, from cache or otherwise
+		 */
+		public long getLookups() {
+			return cache.getLookups();
+		}
+
+		/**
+		 * @return number of lookups which had to go to the database
+		 */
+		public long getLoads() {
+			return cache.getLoads();
+		}
+	}
+
+	private static StorageInfo lookupStorageInfo() {
 		EntityWrapper<StorageInfo> storageDb = EntityWrapper.get(StorageInfo.class);
 		StorageInfo conf = null;
 		try {
@@ -203,6 +251,7 @@ public class StorageInfo extends AbstractPersistent {
 		catch (Exception t) {
 			LOG.error("Unable to get storage info for: " + StorageProperties.NAME);
 			storageDb.rollback();
+			cache.invalidate();//do not keep serving the defaults once the database is reachable again
 			return new StorageInfo(StorageProperties.NAME, 
 					StorageProperties.MAX_TOTAL_VOLUME_SIZE, 
 					StorageProperties.MAX_VOLUME_SIZE,
@@ -71,16 +71,30 @@ import org.hibernate.annotations.CacheConcurrencyStrategy;
 import com.eucalyptus.configurable.ConfigurableClass;
 import com.eucalyptus.configurable.ConfigurableField;
 import com.eucalyptus.entities.AbstractPersistent;
+import com.eucalyptus.entities.CommitListener;
 import com.eucalyptus.entities.EntityWrapper;
 import com.eucalyptus.util.EucalyptusCloudException;
+import com.eucalyptus.util.Mbeans;
 import com.eucalyptus.util.WalrusProperties;
+import com.google.common.base.Supplier;
 
 @Entity @javax.persistence.Entity
 @PersistenceContext(name="eucalyptus_walrus")
 @Table( name = "walrus_info" )
 @Cache( usage = CacheConcurrencyStrategy.TRANSACTIONAL )
 @ConfigurableClass(root = "walrus", description = "Walrus configuration.", deferred = true)
-public class WalrusInfo extends AbstractPersistent {
+public class WalrusInfo extends AbstractPersistent implements CommitListener {
+	private static final ConfigurationCache<WalrusInfo> cache = new ConfigurationCache<WalrusInfo>( new Supplier<WalrusInfo>( ) {
+		@Override
+		public WalrusInfo get( ) {
+			return lookupWalrusInfo( );
+		}
+	} );
+
+	static {
+		Mbeans.register( new WalrusInfoCacheStatistics( ) );
+	}
+
 	@Column(name = "walrus_name", unique=true)
 	private String name;
 	@ConfigurableField( description = "Path to buckets storage", displayName = "Buckets Path" )
@@ -189,7 +203,42 @@ public class WalrusInfo extends AbstractPersistent {
 		return true;
 	}
 
+	/**
+	 * Property updates (and any other write) invalidate the cached copy handed out by
+	 * {@link #getWalrusInfo()} once they have committed.
+	 */
+	@Override
+	public void afterCommit(boolean deleted) {
+		cache.invalidate();
+	}
+
+	/**
+	 * @return the cached configuration; callers must treat it as read-only
+	 */
 	public static WalrusInfo getWalrusInfo() {
+		return cache.get();
+	}
+
+	/**
+	 * Configuration cache counters, exported through {@link Mbeans}.
+	 */
+	public static class WalrusInfoCacheStatistics {
+		/**
+		 * @return number of configuration lookups served, from cache or otherwise
+		 */
+		public long getLookups() {
+			return cache.getLookups();
+		}
+
+		/**
+		 * @return number of lookups which had to go to the database
+		 */
+		public long getLoads() {
+			return cache.getLoads();
+		}
+	}
+
+	private static WalrusInfo lookupWalrusInfo() {
 		EntityWrapper<WalrusInfo> db = EntityWrapper.get(WalrusInfo.class);
 		WalrusInfo walrusInfo;
 		try {
@@ -64,61 +64,90 @@
  */
 package edu.ucsb.eucalyptus.util;
 
+import java.io.IOException;
 import java.util.concurrent.ConcurrentHashMap;
 import org.apache.log4j.Logger;
+import org.jboss.netty.channel.Channel;
+import com.eucalyptus.util.EucalyptusCloudException;
+import edu.ucsb.eucalyptus.msgs.BaseMessage;
 
-// A concurrent hash map that holds a map of queues, which can be used for passing data
-// Currently, the queues are a WalrusDataQueue and producers/consumers do not timeout.
+// A concurrent hash map that holds the uploads in progress for each object key, which are used for passing
+// data from the channel to the operation. A newer upload to the same key interrupts the older ones.
 
 public class WalrusDataMessenger {
 	private static Logger LOG = Logger.getLogger( WalrusDataMessenger.class );
-	private static final int DATA_QUEUE_SIZE = 3;
 
-	private ConcurrentHashMap<String, ConcurrentHashMap<String,WalrusDataQueue<WalrusDataMessage>>> queueMap;
+	private ConcurrentHashMap<String, ConcurrentHashMap<String,WalrusUploadStream>> uploadMap;
 	private ConcurrentHashMap<String, WalrusMonitor> monitorMap;
+	private volatile UploadCheck uploadCheck;
+
+	/**
+	 * Checks run against a bound upload request before any of its data is accepted.
+	 */
+	public interface UploadCheck {
+		void check(BaseMessage request) throws EucalyptusCloudException;
+	}
 
 	public WalrusDataMessenger() {
-		queueMap = new ConcurrentHashMap<String, ConcurrentHashMap<String,WalrusDataQueue<WalrusDataMessage>>>();
+		uploadMap = new ConcurrentHashMap<String, ConcurrentHashMap<String,WalrusUploadStream>>();
 		monitorMap = new ConcurrentHashMap<String, WalrusMonitor>();
 	}
 
-	public WalrusDataQueue<WalrusDataMessage> getQueue(String key1, String key2) {
-		ConcurrentHashMap<String,WalrusDataQueue<WalrusDataMessage>> queues = queueMap.putIfAbsent(key1, new ConcurrentHashMap<String, WalrusDataQueue<WalrusDataMessage>>());
-		if (queues == null) {
-			queues = queueMap.get(key1);
+	public void setUploadCheck(UploadCheck uploadCheck) {
+		this.uploadCheck = uploadCheck;
+	}
+
+	public void checkUpload(BaseMessage request) throws EucalyptusCloudException {
+		UploadCheck check = uploadCheck;
+		if (check != null) {
+			check.check(request);
 		}
-		WalrusDataQueue<WalrusDataMessage> queue = queues.putIfAbsent(key2, new WalrusDataQueue<WalrusDataMessage>(DATA_QUEUE_SIZE));
-		if (queue == null) {
-			queue = queues.get(key2);
+	}
+
+	public WalrusUploadStream startUpload(Channel channel, String bucketName, String objectName, String key1, String key2) throws IOException {
+		//open the file first so that a failed start does not interrupt the uploads in progress
+		WalrusUploadStream upload = new WalrusUploadStream(channel, bucketName, objectName);
+		ConcurrentHashMap<String,WalrusUploadStream> uploads = uploadMap.putIfAbsent(key1, new ConcurrentHashMap<String, WalrusUploadStream>());
+		if (uploads == null) {
+			uploads = uploadMap.get(key1);
 		}
-		return queue;
+		for (WalrusUploadStream current: uploads.values()) {
+			current.setInterrupted(true);
+		}
+		uploads.put(key2, upload);
+		return upload;
+	}
+
+	public WalrusUploadStream getUpload(String key1, String key2) {
+		ConcurrentHashMap<String,WalrusUploadStream> uploads = uploadMap.get(key1);
+		return uploads == null ? null : uploads.get(key2);
 	}
 
-	public WalrusDataQueue<WalrusDataMessage> interruptAllAndGetQueue(String key1, String key2) {
-		ConcurrentHashMap<String,WalrusDataQueue<WalrusDataMessage>> queues = queueMap.get(key1);
-		if(queues != null) {
-			for (WalrusDataQueue<WalrusDataMessage> queue: queues.values()) {
-				queue.setInterrupted(true);
+	public void clearUploads(String key1) {
+		ConcurrentHashMap<String,WalrusUploadStream> uploads = uploadMap.get(key1);
+		if(uploads != null) {
+			for (WalrusUploadStream upload: uploads.values()) {
+				upload.setInterrupted(false);
 			}
 		}
-		return getQueue(key1, key2);
 	}
 
-	public void clearQueues(String key1) {
-		ConcurrentHashMap<String,WalrusDataQueue<WalrusDataMessage>> queues = queueMap.get(key1);
-		if(queues != null) {
-			for (WalrusDataQueue<WalrusDataMessage> queue: queues.values()) {
-				queue.setInterrupted(false);
-			}
+	public WalrusUploadStream removeUpload(String key1, String key2) {
+		ConcurrentHashMap<String,WalrusUploadStream> uploads = uploadMap.get(key1);
+		if(uploads != null) {
+			return uploads.remove(key2);
 		}
+		return null;
 	}
 
-	public void removeQueue(String key1, String key2) {
-		if(queueMap.containsKey(key1)) {
-			ConcurrentHashMap<String, WalrusDataQueue<WalrusDataMessage>> queues = queueMap.get(key1);
-			if(queues.containsKey(key2)) {
-				queues.remove(key2);
-			}
+	/**
+	 * Removes the upload and discards whatever it has written.
+	 */
+	public void abortUpload(String key1, String key2) {
+		WalrusUploadStream upload = removeUpload(key1, key2);
+		if(upload != null) {
+			upload.abort();
+			upload.delete();
 		}
 	}
 
@@ -0,0 +1,334 @@
+/*******************************************************************************
+ *Copyright (c) 2009  Eucalyptus Systems, Inc.
+ * 
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, only version 3 of the License.
+ * 
+ * 
+ *  This file is distributed in the hope that it will be useful, but WITHOUT
+ *  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ *  FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ *  Please contact Eucalyptus Systems, Inc., 130 Castilian
+ *  Dr., Goleta, CA 93101 USA or visit <http://www.eucalyptus.com/licenses/>
+ *  if you need additional information or have any questions.
+ * 
+ *  This file may incorporate work covered under the following copyright and
+ *  permission notice:
+ * 
+ *    Software License Agreement (BSD License)
+ * 
+ *    Copyright (c) 2008, Regents of the University of California
+ *    All rights reserved.
+ * 
+ *    Redistribution and use of this software in source and binary forms, with
+ *    or without modification, are permitted provided that the following
+ *    conditions are met:
+ * 
+ *      Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * 
+ *      Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ * 
+ *    THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ *    IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ *    TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ *    PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ *    OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *    EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ *    PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ *    PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ *    LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ *    NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *    SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. USERS OF
+ *    THIS SOFTWARE ACKNOWLEDGE THE POSSIBLE PRESENCE OF OTHER OPEN SOURCE
+ *    LICENSED MATERIAL, COPYRIGHTED MATERIAL OR PATENTED MATERIAL IN THIS
+ *    SOFTWARE, AND IF ANY SUCH MATERIAL IS DISCOVERED THE PARTY DISCOVERING
+ *    IT MAY INFORM DR. RICH WOLSKI AT THE UNIVERSITY OF CALIFORNIA, SANTA
+ *    BARBARA WHO WILL THEN ASCERTAIN THE MOST APPROPRIATE REMEDY, WHICH IN
+ *    THE REGENTS' DISCRETION MAY INCLUDE, WITHOUT LIMITATION, REPLACEMENT
+ *    OF THE CODE SO IDENTIFIED, LICENSING OF THE CODE SO IDENTIFIED, OR
+ *    WITHDRAWAL OF THE CODE CAPABILITY TO THE EXTENT NEEDED TO COMPLY WITH
+ *    ANY SUCH LICENSES OR RIGHTS.
+ *******************************************************************************/
+package edu.ucsb.eucalyptus.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+
+import com.eucalyptus.auth.util.Hashes;
+import com.eucalyptus.component.id.Walrus;
+import com.eucalyptus.crypto.Digest;
+import com.eucalyptus.records.Logs;
+import com.eucalyptus.system.Threads;
+import com.eucalyptus.util.WalrusProperties;
+
+import edu.ucsb.eucalyptus.cloud.entities.WalrusInfo;
+
+// Receives the content of a PUT/POST: the channel handler offers the request content as it arrives and a
+// pooled writer appends it to a temporary object, updating the MD5 as it goes.
+// Reads on the channel are suspended while more than HIGH_WATERMARK bytes are waiting for the disk.
+
+public class WalrusUploadStream {
+	private static Logger LOG = Logger.getLogger( WalrusUploadStream.class );
+	private static final long HIGH_WATERMARK = 32L * WalrusProperties.IO_CHUNK_SIZE;
+	private static final long LOW_WATERMARK = 8L * WalrusProperties.IO_CHUNK_SIZE;
+	private static final ChannelBuffer EOF = ChannelBuffers.buffer(0);
+
+	private final Channel channel;
+	private final String bucketName;
+	private final String objectName;
+	private final File file;
+	private final FileChannel out;
+	private final MessageDigest digest = Digest.MD5.get();
+	private final Queue<ChannelBuffer> pending = new ConcurrentLinkedQueue<ChannelBuffer>();
+	private final AtomicLong pendingBytes = new AtomicLong(0);
+	private final AtomicBoolean scheduled = new AtomicBoolean(false);
+	private final AtomicBoolean finished = new AtomicBoolean(false);
+	private final CountDownLatch done = new CountDownLatch(1);
+	private final List<Runnable> listeners = new ArrayList<Runnable>();
+	private boolean suspended = false;
+	private volatile boolean interrupted = false;
+	private volatile IOException failure;
+	private long size = 0;
+	private String md5;
+	private long completionTime;
+
+	private final Runnable drainer = new Runnable() {
+		@Override
+		public void run() {
+			drain();
+		}
+	};
+
+	public WalrusUploadStream(Channel channel, String bucketName, String objectName) throws IOException {
+		this.channel = channel;
+		this.bucketName = bucketName;
+		this.objectName = objectName;
+		this.file = new File(WalrusInfo.getWalrusInfo().getStorageDir() + File.separator + bucketName + File.separator + objectName);
+		this.out = new FileOutputStream(this.file).getChannel();
+	}
+
+	public String getBucketName() {
+		return this.bucketName;
+	}
+
+	/**
+	 * @return name of the temporary object the content is written to
+	 */
+	public String getObjectName() {
+		return this.objectName;
+	}
+
+	public void setInterrupted(boolean value) {
+		this.interrupted = value;
+	}
+
+	public boolean isInterrupted() {
+		return this.interrupted;
+	}
+
+	public boolean isDone() {
+		return this.done.getCount() == 0;
+	}
+
+	/**
+	 * Called from the I/O thread; the buffer is queued as is and must not be modified afterwards.
+	 */
+	public void write(ChannelBuffer buffer) {
+		if (!buffer.readable() || this.finished.get()) {
+			return;
+		}
+		this.pending.offer(buffer);
+		if (this.pendingBytes.addAndGet(buffer.readableBytes()) > HIGH_WATERMARK) {
+			this.updateReadable();
+		}
+		this.schedule();
+	}
+
+	/**
+	 * Marks the end of the content, the stream completes once everything queued is on disk.
+	 */
+	public void finish() {
+		if (this.finished.compareAndSet(false, true)) {
+			this.pending.offer(EOF);
+			this.schedule();
+		}
+	}
+
+	/**
+	 * Stops an upload which has not completed (e.g., the client went away) and removes its data.
+	 */
+	public void abort() {
+		if (!this.isDone()) {
+			this.failure = new IOException("Upload aborted: " + this.bucketName + "/" + this.objectName);
+			this.finish();
+			this.whenComplete(new Runnable() {
+				@Override
+				public void run() {
+					delete();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Removes the temporary object, if it still exists.
+	 */
+	public void delete() {
+		if (this.file.exists() && !this.file.delete()) {
+			LOG.error("Unable to delete: " + this.file.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * Runs the listener once the content is on disk (or the upload failed); immediately if that already happened.
+	 */
+	public void whenComplete(Runnable listener) {
+		synchronized (this.listeners) {
+			if (!this.isDone()) {
+				this.listeners.add(listener);
+				return;
+			}
+		}
+		listener.run();
+	}
+
+	public void await() throws InterruptedException {
+		this.done.await();
+	}
+
+	public IOException getFailure() {
+		return this.failure;
+	}
+
+	/**
+	 * The following are only meaningful once the upload is done.
+	 */
+	public long getSize() {
+		return this.size;
+	}
+
+	public String getMd5() {
+		return this.md5;
+	}
+
+	public long getCompletionTime() {
+		return this.completionTime;
+	}
+
+	private void schedule() {
+		if (this.scheduled.compareAndSet(false, true)) {
+			Threads.lookup(Walrus.class, WalrusUploadStream.class).execute(this.drainer);
+		}
+	}
+
+	private void drain() {
+		try {
+			ChannelBuffer buffer;
+			while ((buffer = this.pending.poll()) != null) {
+				if (buffer == EOF) {
+					this.complete();
+					return;
+				}
+				this.transfer(buffer);
+			}
+		} finally {
+			this.scheduled.set(false);
+			if (!this.pending.isEmpty()) {
+				this.schedule();
+			}
+		}
+	}
+
+	private void transfer(ChannelBuffer buffer) {
+		final int length = buffer.readableBytes();
+		try {
+			if (this.failure == null) {
+				final ByteBuffer[] buffers = buffer.toByteBuffers();
+				for (ByteBuffer b : buffers) {
+					this.digest.update(b.duplicate());
+				}
+				long remaining = length;
+				while (remaining > 0) {
+					remaining -= this.out.write(buffers);
+				}
+				this.size += length;
+			}
+		} catch (IOException ex) {
+			LOG.error(ex);
+			Logs.extreme().error(ex, ex);
+			this.failure = ex;
+		} finally {
+			this.pendingBytes.addAndGet(-length);
+			this.updateReadable();
+		}
+	}
+
+	private void complete() {
+		try {
+			this.out.close();
+		} catch (IOException ex) {
+			LOG.error(ex);
+			if (this.failure == null) {
+				this.failure = ex;
+			}
+		}
+		this.md5 = Hashes.bytesToHex(this.digest.digest());
+		this.completionTime = System.currentTimeMillis();
+		this.pendingBytes.set(0);
+		this.updateReadable();
+		final List<Runnable> fire;
+		synchronized (this.listeners) {
+			this.done.countDown();
+			fire = new ArrayList<Runnable>(this.listeners);
+			this.listeners.clear();
+		}
+		for (Runnable listener : fire) {
+			try {
+				listener.run();
+			} catch (Exception ex) {
+				LOG.error(ex, ex);
+			}
+		}
+	}
+
+	private void updateReadable() {
+		if (this.channel == null) {
+			return;
+		}
+		synchronized (this.drainer) {
+			final long waiting = this.pendingBytes.get();
+			if (!this.suspended && waiting > HIGH_WATERMARK) {
+				this.suspended = true;
+				this.channel.setReadable(false);
+			} else if (this.suspended && waiting < LOW_WATERMARK) {
+				this.suspended = false;
+				this.channel.setReadable(true);
+			}
+		}
+	}
+}
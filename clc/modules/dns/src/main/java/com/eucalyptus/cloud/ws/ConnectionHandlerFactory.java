@@ -65,16 +65,16 @@
 
 package com.eucalyptus.cloud.ws;
 
-import java.net.DatagramSocket;
 import java.net.Socket;
+import java.nio.channels.DatagramChannel;
 
 public class ConnectionHandlerFactory {
     public static void handle(Object s) {
         if (s instanceof Socket) {
             TCPHandler handler = new TCPHandler((Socket)s);
             handler.start();
-        } else if(s instanceof DatagramSocket) {
-            UDPHandler handler = new UDPHandler((DatagramSocket)s);
+        } else if(s instanceof DatagramChannel) {
+            UDPHandler handler = new UDPHandler((DatagramChannel)s);
             handler.start();
         }
     }
@@ -66,6 +66,8 @@
 package com.eucalyptus.cloud.ws;
 
 import com.eucalyptus.config.Configuration;
+import com.eucalyptus.configurable.ConfigurableClass;
+import com.eucalyptus.configurable.ConfigurableField;
 import com.eucalyptus.context.Contexts;
 import com.eucalyptus.dns.TransientZone;
 import com.eucalyptus.entities.EntityWrapper;
@@ -81,10 +83,21 @@ import org.xbill.DNS.*;
 import java.net.UnknownHostException;
 import java.util.List;
 
+@ConfigurableClass( root = "dns",
+                    description = "Parameters controlling the DNS service." )
 public class DNSControl {
 
 	private static Logger LOG = Logger.getLogger( DNSControl.class );
 
+	@ConfigurableField( description = "Number of threads answering UDP queries.", initial = "8" )
+	public static Integer SERVER_POOL_SIZE = 8;
+	@ConfigurableField( description = "Maximum number of UDP queries waiting for a thread; further queries are answered with SERVFAIL.", initial = "256" )
+	public static Integer SERVER_QUEUE_SIZE = 256;
+	@ConfigurableField( description = "Maximum number of cached instance A and PTR answers (0 disables the cache).", initial = "4096" )
+	public static Integer INSTANCE_CACHE_SIZE = 4096;
+	@ConfigurableField( description = "Maximum time, in seconds, a cached instance answer is reused (0 disables the cache).", initial = "30" )
+	public static Integer INSTANCE_CACHE_TTL = 30;
+
 	static UDPListener udpListener;
 	static TCPListener tcpListener;
 	private static void initializeUDP() throws Exception {
@@ -71,66 +71,115 @@
 package com.eucalyptus.cloud.ws;
 
 import org.apache.log4j.Logger;
+import org.xbill.DNS.Header;
 import org.xbill.DNS.Message;
+import org.xbill.DNS.Rcode;
+
+import com.eucalyptus.component.id.Dns;
+import com.eucalyptus.records.Logs;
+import com.eucalyptus.system.Threads;
 
 import java.io.IOException;
-import java.io.InterruptedIOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
+/**
+ * Receives queries on the UDP channel and hands each datagram to a pool of
+ * {@link DNSControl#SERVER_POOL_SIZE} workers which generate and send the reply.
+ * At most {@link DNSControl#SERVER_QUEUE_SIZE} queries wait for a worker; queries
+ * arriving beyond that are answered with SERVFAIL straight away.
+ */
 public class UDPHandler extends ConnectionHandler {
     private static Logger LOG = Logger.getLogger( UDPHandler.class );
+    private static final int UDP_LENGTH = 512;
 
-    DatagramSocket socket;
-    public UDPHandler(DatagramSocket s) {
-        this.socket = s;
+    DatagramChannel channel;
+    private final AtomicInteger pending = new AtomicInteger(0);
+    public UDPHandler(DatagramChannel channel) {
+        this.channel = channel;
     }
 
     public void run() {
         try {
-            final short udpLength = 512;
-            byte [] in = new byte[udpLength];
-            DatagramPacket indp = new DatagramPacket(in, in.length);
-            DatagramPacket outdp = null;
             while (true) {
-                indp.setLength(in.length);
-                try {
-                    socket.receive(indp);
-                }
-                catch (InterruptedIOException e) {
+                final ByteBuffer buffer = ByteBuffer.allocate(UDP_LENGTH);
+                final SocketAddress source = channel.receive(buffer);
+                if (source == null)
+                    continue;
+                final byte [] in = new byte[buffer.position()];
+                buffer.flip();
+                buffer.get(in);
+                if (pending.incrementAndGet() > DNSControl.SERVER_POOL_SIZE + DNSControl.SERVER_QUEUE_SIZE) {
+                    pending.decrementAndGet();
+                    send(servfailMessage(in), source);
                     continue;
                 }
-                Message query;
-                byte [] response = null;
-                try {
-                    query = new Message(in);
-                    response = generateReply(query, in,
-                            indp.getLength(),
-                            null);
-                    if (response == null)
-                        continue;
-                }
-                catch (IOException e) {
-                    response = formerrMessage(in);
-                }
-                if (outdp == null)
-                    outdp = new DatagramPacket(response,
-                            response.length,
-                            indp.getAddress(),
-                            indp.getPort());
-                else {
-                    outdp.setData(response);
-                    outdp.setLength(response.length);
-                    outdp.setAddress(indp.getAddress());
-                    outdp.setPort(indp.getPort());
-                }
-                socket.send(outdp);
+                workers().execute(new Runnable() {
+                    public void run() {
+                        try {
+                            reply(in, source);
+                        }
+                        finally {
+                            pending.decrementAndGet();
+                        }
+                    }
+                });
             }
         }
+        catch (ClosedChannelException e) {
+            LOG.debug("DNS UDP channel closed");
+        }
+        catch (IOException e) {
+            LOG.error(e);
+        }
+    }
+
+    private void reply(byte [] in, SocketAddress source) {
+        byte [] response = null;
+        try {
+            Message query = new Message(in);
+            response = generateReply(query, in, in.length, null);
+        }
+        catch (IOException e) {
+            response = formerrMessage(in);
+        }
+        catch (RuntimeException e) {
+            LOG.error(e);
+            Logs.extreme().error(e, e);
+            response = formerrMessage(in);
+        }
+        send(response, source);
+    }
+
+    private void send(byte [] response, SocketAddress source) {
+        if (response == null)
+            return;
+        try {
+            channel.send(ByteBuffer.wrap(response), source);
+        }
         catch (IOException e) {
             LOG.error(e);
         }
+    }
+
+    private byte []
+    servfailMessage(byte [] in) {
+        Header header;
+        try {
+            header = new Header(in);
+        }
+        catch (IOException e) {
+            return null;
+        }
+        return buildErrorMessage(header, Rcode.SERVFAIL, null);
+    }
 
+    private static ExecutorService workers() {
+        return Threads.lookup(Dns.class, UDPHandler.class).limitTo(DNSControl.SERVER_POOL_SIZE);
     }
 }
@@ -68,37 +68,47 @@ package com.eucalyptus.cloud.ws;
 import org.apache.log4j.Logger;
 
 import java.io.IOException;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
 
 public class UDPListener extends Thread {
 	private static Logger LOG = Logger.getLogger( UDPListener.class );
 	InetAddress address;
 	int port;
-	DatagramSocket socket;
+	DatagramChannel channel;
 
 	public UDPListener(InetAddress address, int port) throws Exception {
 		this.address = address;
 		this.port = port;
 		try {
-			socket = new DatagramSocket(port, address);
+			channel = DatagramChannel.open();
+			channel.socket().bind(new InetSocketAddress(address, port));
 		} catch(Exception ex) {
 			LOG.error(ex);
+			if (channel != null) {
+				channel.close();
+				channel = null;
+			}
 			throw ex;
 		}
 	}
 
 	public void run() {
-		if(socket != null)
-			ConnectionHandlerFactory.handle(socket);
+		if(channel != null)
+			ConnectionHandlerFactory.handle(channel);
 		else
 			LOG.error("Cannot start service. Invalid socket.");
 	}
 
 	public void close() {
-		if (socket != null) {
-			socket.close();
-			socket = null;
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException ex) {
+				LOG.error(ex);
+			}
+			channel = null;
 		}
 	}
 }
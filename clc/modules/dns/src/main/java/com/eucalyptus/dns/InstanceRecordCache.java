@@ -0,0 +1,149 @@
+/*******************************************************************************
+ *Copyright (c) 2009 Eucalyptus Systems, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, only version 3 of the License.
+ * 
+ * 
+ * This file is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Please contact Eucalyptus Systems, Inc., 130 Castilian
+ * Dr., Goleta, CA 93101 USA or visit <http://www.eucalyptus.com/licenses/>
+ * if you need additional information or have any questions.
+ * 
+ * This file may incorporate work covered under the following copyright and
+ * permission notice:
+ * 
+ * Software License Agreement (BSD License)
+ * 
+ * Copyright (c) 2008, Regents of the University of California
+ * All rights reserved.
+ * 
+ * Redistribution and use of this software in source and binary forms, with
+ * or without modification, are permitted provided that the following
+ * conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. USERS OF
+ * THIS SOFTWARE ACKNOWLEDGE THE POSSIBLE PRESENCE OF OTHER OPEN SOURCE
+ * LICENSED MATERIAL, COPYRIGHTED MATERIAL OR PATENTED MATERIAL IN THIS
+ * SOFTWARE, AND IF ANY SUCH MATERIAL IS DISCOVERED THE PARTY DISCOVERING
+ * IT MAY INFORM DR. RICH WOLSKI AT THE UNIVERSITY OF CALIFORNIA, SANTA
+ * BARBARA WHO WILL THEN ASCERTAIN THE MOST APPROPRIATE REMEDY, WHICH IN
+ * THE REGENTS' DISCRETION MAY INCLUDE, WITHOUT LIMITATION, REPLACEMENT
+ * OF THE CODE SO IDENTIFIED, LICENSING OF THE CODE SO IDENTIFIED, OR
+ * WITHDRAWAL OF THE CODE CAPABILITY TO THE EXTENT NEEDED TO COMPLY WITH
+ * ANY SUCH LICENSES OR RIGHTS.
+ *******************************************************************************/
+package com.eucalyptus.dns;
+
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import org.xbill.DNS.Name;
+import com.eucalyptus.cloud.ws.DNSControl;
+import com.eucalyptus.vm.VmInstanceIndex;
+import com.google.common.collect.MapMaker;
+
+/**
+ * Bounded cache of the synthesized instance A and PTR answers served by {@link TransientZone}.
+ * 
+ * An answer is reused only while it is younger than both its record TTL and
+ * {@link DNSControl#INSTANCE_CACHE_TTL}, and while the {@link VmInstanceIndex} naming generation
+ * of the address it was derived from is unchanged; an instance being added, removed, re-addressed
+ * or leaving the running states invalidates only the answers for its addresses.
+ */
+public class InstanceRecordCache {
+  private static volatile ConcurrentMap<Name, Answer> answers;
+  private static volatile int                         size;
+  
+  private static class Answer {
+    private final String      address;
+    private final long        generation;
+    private final long        expires;
+    private final SetResponse response;
+    
+    Answer( final String address, final long generation, final long expires, final SetResponse response ) {
+      this.address = address;
+      this.generation = generation;
+      this.expires = expires;
+      this.response = response;
+    }
+  }
+  
+  /**
+   * @return the cached answer for {@code name}, or null if there is none or it is stale
+   */
+  public static SetResponse lookup( final Name name ) {
+    final ConcurrentMap<Name, Answer> map = answers( );
+    if ( map == null ) {
+      return null;
+    }
+    final Answer answer = map.get( name );
+    if ( answer == null ) {
+      return null;
+    } else if ( answer.generation != VmInstanceIndex.getGeneration( answer.address ) || answer.expires < System.currentTimeMillis( ) ) {
+      map.remove( name, answer );
+      return null;
+    } else {
+      return answer.response;
+    }
+  }
+  
+  /**
+   * Cache {@code response} for {@code name}.
+   * 
+   * @param address the instance address the response was derived from
+   * @param generation the {@link VmInstanceIndex#getGeneration(String)} of {@code address}
+   *          observed <b>before</b> the index was consulted to build the response
+   * @param ttl the TTL, in seconds, of the records in the response
+   */
+  public static void put( final Name name, final String address, final long generation, final long ttl, final SetResponse response ) {
+    final ConcurrentMap<Name, Answer> map = answers( );
+    if ( map != null ) {
+      final long lifetime = TimeUnit.SECONDS.toMillis( Math.min( ttl, DNSControl.INSTANCE_CACHE_TTL ) );
+      map.put( name, new Answer( address, generation, System.currentTimeMillis( ) + lifetime, response ) );
+    }
+  }
+  
+  /**
+   * The backing map is rebuilt when the configured size changes; a size or TTL of zero disables
+   * caching.
+   */
+  private static ConcurrentMap<Name, Answer> answers( ) {
+    final int configuredSize = DNSControl.INSTANCE_CACHE_SIZE;
+    if ( configuredSize <= 0 || DNSControl.INSTANCE_CACHE_TTL <= 0 ) {
+      return null;
+    } else if ( answers == null || size != configuredSize ) {
+      synchronized ( InstanceRecordCache.class ) {
+        if ( answers == null || size != configuredSize ) {
+          answers = new MapMaker( ).maximumSize( configuredSize ).makeMap( );
+          size = configuredSize;
+        }
+      }
+    }
+    return answers;
+  }
+}
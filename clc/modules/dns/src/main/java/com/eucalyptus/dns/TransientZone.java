@@ -80,8 +80,7 @@ import com.eucalyptus.component.id.Eucalyptus;
 import com.eucalyptus.util.EucalyptusCloudException;
 import com.eucalyptus.util.Internets;
 import com.eucalyptus.util.WalrusProperties;
-import com.eucalyptus.vm.VmInstance;
-import com.eucalyptus.vm.VmInstances;
+import com.eucalyptus.vm.VmInstanceIndex;
 import com.eucalyptus.ws.StackConfiguration;
 
 import edu.ucsb.eucalyptus.cloud.entities.SystemConfiguration;
@@ -168,6 +167,10 @@ public class TransientZone extends Zone {
 @Override
   public SetResponse findRecords( Name name, int type ) {
     if( StackConfiguration.USE_INSTANCE_DNS && name.toString( ).matches("euca-.+{3}-.+{3}-.+{3}-.+{3}\\..*") ) {
+      SetResponse cached = InstanceRecordCache.lookup( name );
+      if ( cached != null ) {
+        return cached;
+      }
       try {
         String[] tryIp = name.toString( ).replaceAll( "euca-", "" ).replaceAll("\\.eucalyptus.*","").split("-");
         if( tryIp.length < 4 ) return super.findRecords( name, type );
@@ -176,18 +179,15 @@ public class TransientZone extends Zone {
           .append(tryIp[1]).append(".")
           .append(tryIp[2]).append(".")
           .append(tryIp[3]).toString( );
-        try {
-          VmInstances.lookupByPublicIp( ipCandidate );
-        } catch ( Exception e ) {
-          try {
-            VmInstances.lookupByPrivateIp( ipCandidate );
-          } catch ( Exception e1 ) {
-            return super.findRecords( name, type );
-          }
+        final long generation = VmInstanceIndex.getGeneration( ipCandidate );
+        if ( VmInstanceIndex.lookupByPublicIp( ipCandidate ) == null
+             && VmInstanceIndex.lookupByPrivateIp( ipCandidate ) == null ) {
+          return super.findRecords( name, type );
         }
         InetAddress ip = InetAddress.getByName( ipCandidate );
         SetResponse resp = new SetResponse(SetResponse.SUCCESSFUL);
         resp.addRRset( new RRset( new ARecord( name, 1, ttl, ip ) ) );
+        InstanceRecordCache.put( name, ipCandidate, generation, ttl, resp );
         return resp;
       } catch ( Exception e ) {
         return super.findRecords( name, type );
@@ -204,6 +204,10 @@ public class TransientZone extends Zone {
             return super.findRecords( name, type );
 		}
     } else if (StackConfiguration.USE_INSTANCE_DNS && name.toString().endsWith(".in-addr.arpa.")) {
+  	  SetResponse cached = InstanceRecordCache.lookup( name );
+  	  if ( cached != null ) {
+  	    return cached;
+  	  }
   	  int index = name.toString().indexOf(".in-addr.arpa.");
   	  Name target;
 	  if ( index > 0 ) {
@@ -219,19 +223,22 @@ public class TransientZone extends Zone {
 		} else {
 		  return super.findRecords( name, type );
 		}
+		final long generation = VmInstanceIndex.getGeneration( ipCandidate );
 		try {
-	      VmInstance instance = VmInstances.lookupByPublicIp( ipCandidate );
-	      target = new Name(instance.getPublicDnsName() + ".");
-	    } catch ( Exception e ) {
-	      try {
-	        VmInstance instance = VmInstances.lookupByPrivateIp( ipCandidate );
+	      VmInstanceIndex.Entry instance = VmInstanceIndex.lookupByPublicIp( ipCandidate );
+	      if ( instance != null ) {
+	        target = new Name(instance.getPublicDnsName() + ".");
+	      } else if ( ( instance = VmInstanceIndex.lookupByPrivateIp( ipCandidate ) ) != null ) {
 	        target = new Name(instance.getPrivateDnsName() + ".");
-	      } catch ( Exception e1 ) {
+	      } else {
 	        return super.findRecords( name, type );
 	      }
+	    } catch ( Exception e ) {
+	      return super.findRecords( name, type );
 	    }
         SetResponse resp = new SetResponse(SetResponse.SUCCESSFUL);
         resp.addRRset( new RRset( new PTRRecord( name, DClass.IN, ttl, target ) ) );
+        InstanceRecordCache.put( name, ipCandidate, generation, ttl, resp );
         return resp;
 	  } else {
 	    return super.findRecords( name, type );
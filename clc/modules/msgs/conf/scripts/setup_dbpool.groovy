@@ -114,6 +114,19 @@ PersistenceContexts.list( ).each { String ctx_simplename ->
         'property'(name:'fetchSize', '1000')
         'property'(name:'maxBatchSize', '1000')
       }
+      //NOTE: parallel and differential copy each table in its own transaction, use only against a quiescent database (-Deuca.db.sync.strategy)
+      sync('class':'com.eucalyptus.bootstrap.Databases\$ParallelSynchronizationStrategy', id:'parallel') {
+        'property'(name:'fetchSize', '1000')
+        'property'(name:'maxBatchSize', '1000')
+        'property'(name:'maxThreads', '4')
+      }
+      sync('class':'com.eucalyptus.bootstrap.Databases\$ParallelSynchronizationStrategy', id:'differential') {
+        'property'(name:'fetchSize', '1000')
+        'property'(name:'maxBatchSize', '1000')
+        'property'(name:'maxThreads', '4')
+        'property'(name:'chunkSize', '1000')
+        'property'(name:'differential', 'true')
+      }
       sync('class':'com.eucalyptus.bootstrap.Databases\$PassiveSynchronizationStrategy', id:'passive');
       cluster(id:context_pool_alias,
 //          'auto-activate-schedule':'0 * * ? * *',
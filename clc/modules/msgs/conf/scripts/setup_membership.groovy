@@ -21,6 +21,7 @@ import org.jgroups.protocols.pbcast.GMS
 import org.jgroups.protocols.pbcast.NAKACK
 import org.jgroups.protocols.pbcast.STABLE
 import org.jgroups.protocols.pbcast.STATE_TRANSFER
+import com.eucalyptus.auth.login.ReplayCacheProtocol
 import com.eucalyptus.bootstrap.BootstrapArgs
 import com.eucalyptus.bootstrap.Hosts
 import com.eucalyptus.bootstrap.SystemIds
@@ -130,5 +131,6 @@ return [
   groupMembership,
   flowControl,
   new FRAG2( ),
-  new STATE_TRANSFER()
+  new STATE_TRANSFER(),
+  new ReplayCacheProtocol( )
 ];
@@ -88,8 +88,17 @@ abstract class HmacLoginModuleSupport extends BaseLoginModule<HmacCredentials> {
   public void reset( ) {
   }
 
+  /**
+   * @return the active access key of an enabled user
+   */
   protected AccessKey lookupAccessKey( final HmacCredentials credentials ) throws AuthException {
-    return Accounts.lookupAccessKeyById( credentials.getQueryId( ) );
+    final AccessKey key = Accounts.lookupAccessKeyById( credentials.getQueryId( ) );
+    if ( Boolean.FALSE.equals( key.isActive( ) ) ) {
+      throw new AuthException( "Access key is inactive: " + credentials.getQueryId( ) );
+    } else if ( Boolean.FALSE.equals( key.getUser( ).isEnabled( ) ) ) {
+      throw new AuthException( "User is disabled for access key: " + credentials.getQueryId( ) );
+    }
+    return key;
   }
 
   protected void checkForReplay( final String signature ) throws AuthenticationException {
@@ -0,0 +1,237 @@
+package com.eucalyptus.auth.login;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import com.eucalyptus.ws.StackConfiguration;
+
+/**
+ * Replay detection for request signatures.
+ *
+ * Signatures are reduced to 64-bit fingerprints which are kept, along with the time they were
+ * first seen, in open addressing tables of primitives. Time is divided into {@value #BUCKETS}
+ * buckets spanning the eviction window: a fingerprint is stored in the table of the bucket in
+ * which it was first seen and that table is cleared as a whole when its slot is reused, so a
+ * fingerprint is remembered for at least the eviction window and at most one bucket longer.
+ * Tables are striped by fingerprint to keep lock contention low.
+ *
+ * A signature which has been seen before is still accepted within
+ * {@link StackConfiguration#REPLAY_SKEW_WINDOW_SEC} of when it was first seen.
+ */
+public class ReplayCache {
+  private static final int    STRIPES          = 64;
+  private static final int    BUCKETS          = 16;
+  private static final int    INITIAL_CAPACITY = 64;
+  private final long          origin           = System.nanoTime( );
+  private final long          windowMillis;
+  private final long          bucketMillis;
+  private final Stripe[]      stripes          = new Stripe[STRIPES];
+  private final AtomicLong    requests         = new AtomicLong( );
+  private final AtomicLong    replays          = new AtomicLong( );
+
+  public ReplayCache( final long windowMillis ) {
+    this.windowMillis = windowMillis;
+    this.bucketMillis = Math.max( 1l, ( windowMillis + BUCKETS - 2 ) / ( BUCKETS - 1 ) );
+    for ( int i = 0; i < STRIPES; i++ ) {
+      this.stripes[i] = new Stripe( );
+    }
+  }
+
+  /**
+   * @return false if the signature is a replay
+   */
+  public boolean add( final String signature ) {
+    final long skewMillis = TimeUnit.SECONDS.toMillis( StackConfiguration.REPLAY_SKEW_WINDOW_SEC );
+    if ( skewMillis >= this.windowMillis ) {
+      return true;//replay detection is disabled
+    }
+    this.requests.incrementAndGet( );
+    final long fingerprint = fingerprint( signature );
+    final long now = this.now( );
+    final long firstSeen = this.stripe( fingerprint ).add( fingerprint, now );
+    if ( firstSeen < 0 ) {
+      ReplayCacheProtocol.share( fingerprint );
+      return true;
+    } else if ( skewMillis > 0 && now - firstSeen <= skewMillis ) {
+      return true;
+    } else {
+      this.replays.incrementAndGet( );
+      return false;
+    }
+  }
+
+  /**
+   * Remember a fingerprint seen by another host.
+   */
+  void remember( final long fingerprint ) {
+    this.stripe( fingerprint ).add( fingerprint, this.now( ) );
+  }
+
+  public long getWindowMillis( ) {
+    return this.windowMillis;
+  }
+
+  public long getRequests( ) {
+    return this.requests.get( );
+  }
+
+  public long getReplays( ) {
+    return this.replays.get( );
+  }
+
+  public long getFingerprints( ) {
+    long total = 0;
+    for ( final Stripe stripe : this.stripes ) {
+      total += stripe.size( );
+    }
+    return total;
+  }
+
+  /**
+   * @return the size of the tables, in bytes
+   */
+  public long getTableBytes( ) {
+    long total = 0;
+    for ( final Stripe stripe : this.stripes ) {
+      total += stripe.capacity( ) * ( 8l + 4l );
+    }
+    return total;
+  }
+
+  @Override
+  public String toString( ) {
+    return String.format( "ReplayCache:window=%ds:fingerprints=%d:bytes=%d:requests=%d:replays=%d", TimeUnit.MILLISECONDS.toSeconds( this.windowMillis ),
+                          this.getFingerprints( ), this.getTableBytes( ), this.getRequests( ), this.getReplays( ) );
+  }
+
+  private long now( ) {
+    return TimeUnit.NANOSECONDS.toMillis( System.nanoTime( ) - this.origin );
+  }
+
+  private Stripe stripe( final long fingerprint ) {
+    return this.stripes[( int ) ( fingerprint >>> 58 ) & ( STRIPES - 1 )];
+  }
+
+  /**
+   * FNV-1a over the characters followed by the MurmurHash3 finalizer; never zero, which marks an
+   * empty slot.
+   */
+  static long fingerprint( final String signature ) {
+    long h = 0xcbf29ce484222325l;
+    for ( int i = 0; i < signature.length( ); i++ ) {
+      h ^= signature.charAt( i );
+      h *= 0x100000001b3l;
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdl;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53l;
+    h ^= h >>> 33;
+    return h == 0 ? 1 : h;
+  }
+
+  private final class Stripe {
+    private final long[]  epochs = new long[BUCKETS];
+    private final Table[] tables = new Table[BUCKETS];
+
+    Stripe( ) {
+      Arrays.fill( this.epochs, -1l );
+      for ( int i = 0; i < BUCKETS; i++ ) {
+        this.tables[i] = new Table( );
+      }
+    }
+
+    /**
+     * @return the time the fingerprint was first seen, or -1 if it is new (and now remembered)
+     */
+    synchronized long add( final long fingerprint, final long now ) {
+      final long current = now / ReplayCache.this.bucketMillis;
+      for ( int i = 0; i < BUCKETS; i++ ) {
+        if ( this.epochs[i] > current - BUCKETS ) {
+          final int offset = this.tables[i].get( fingerprint );
+          if ( offset >= 0 ) {
+            return this.epochs[i] * ReplayCache.this.bucketMillis + offset;
+          }
+        }
+      }
+      final int slot = ( int ) ( current % BUCKETS );
+      if ( this.epochs[slot] != current ) {
+        this.tables[slot].clear( );
+        this.epochs[slot] = current;
+      }
+      this.tables[slot].put( fingerprint, ( int ) ( now - current * ReplayCache.this.bucketMillis ) );
+      return -1l;
+    }
+
+    synchronized long size( ) {
+      long size = 0;
+      for ( final Table table : this.tables ) {
+        size += table.size;
+      }
+      return size;
+    }
+
+    synchronized long capacity( ) {
+      long capacity = 0;
+      for ( final Table table : this.tables ) {
+        capacity += table.keys.length;
+      }
+      return capacity;
+    }
+  }
+
+  /**
+   * Linear probing table from fingerprint to the offset (in milliseconds) into its bucket at which
+   * it was first seen; kept at most half full.
+   */
+  private static final class Table {
+    private long[] keys   = new long[INITIAL_CAPACITY];
+    private int[]  values = new int[INITIAL_CAPACITY];
+    private int    size;
+
+    int get( final long key ) {
+      final int mask = this.keys.length - 1;
+      for ( int i = ( int ) key & mask; this.keys[i] != 0; i = ( i + 1 ) & mask ) {
+        if ( this.keys[i] == key ) {
+          return this.values[i];
+        }
+      }
+      return -1;
+    }
+
+    void put( final long key, final int value ) {
+      if ( ( this.size + 1 ) * 2 > this.keys.length ) {
+        final long[] oldKeys = this.keys;
+        final int[] oldValues = this.values;
+        this.keys = new long[oldKeys.length * 2];
+        this.values = new int[oldKeys.length * 2];
+        this.size = 0;
+        for ( int i = 0; i < oldKeys.length; i++ ) {
+          if ( oldKeys[i] != 0 ) {
+            this.put( oldKeys[i], oldValues[i] );
+          }
+        }
+      }
+      final int mask = this.keys.length - 1;
+      int i = ( int ) key & mask;
+      while ( this.keys[i] != 0 && this.keys[i] != key ) {
+        i = ( i + 1 ) & mask;
+      }
+      if ( this.keys[i] == 0 ) {
+        this.size++;
+      }
+      this.keys[i] = key;
+      this.values[i] = value;
+    }
+
+    void clear( ) {
+      if ( this.keys.length > INITIAL_CAPACITY ) {
+        this.keys = new long[INITIAL_CAPACITY];
+        this.values = new int[INITIAL_CAPACITY];
+      } else {
+        Arrays.fill( this.keys, 0l );
+      }
+      this.size = 0;
+    }
+  }
+}
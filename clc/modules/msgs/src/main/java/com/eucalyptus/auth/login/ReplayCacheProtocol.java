@@ -0,0 +1,168 @@
+package com.eucalyptus.auth.login;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Logger;
+import org.jgroups.Address;
+import org.jgroups.Event;
+import org.jgroups.Header;
+import org.jgroups.Message;
+import org.jgroups.stack.Protocol;
+import com.eucalyptus.bootstrap.Hosts;
+import com.eucalyptus.empyrean.Empyrean;
+import com.eucalyptus.event.EventListener;
+import com.eucalyptus.event.Hertz;
+import com.eucalyptus.event.Listeners;
+import com.eucalyptus.system.Threads;
+import com.eucalyptus.ws.StackConfiguration;
+
+/**
+ * Top of the membership protocol stack: shares the fingerprints of newly seen signatures with the
+ * other hosts when {@link StackConfiguration#REPLAY_CACHE_SHARED} is enabled.
+ *
+ * Fingerprints are batched and multicast once a batch is full or older than
+ * {@link #MAX_BATCH_AGE_MILLIS} (checked on each new fingerprint and every second); received
+ * fingerprints are added to the local {@link ReplayCache} and the message is consumed here.
+ */
+public class ReplayCacheProtocol extends Protocol {
+  private static Logger                       LOG                  = Logger.getLogger( ReplayCacheProtocol.class );
+  private static final String                 NAME                 = "EUCA_REPLAY";
+  private static final int                    MAX_BATCH            = 512;
+  private static final long                   MAX_BATCH_AGE_MILLIS = 100;
+  private static volatile ReplayCacheProtocol instance;
+  private static String                       headerName;
+  private final long[]                        batch                = new long[MAX_BATCH];
+  private int                                 batchSize;
+  private long                                batchStarted;
+  private volatile Address                    localAddress;
+
+  public ReplayCacheProtocol( ) {
+    headerName = Hosts.registerHeader( ReplayHeader.class );
+    instance = this;
+    Listeners.register( Hertz.class, new EventListener<Hertz>( ) {
+      @Override
+      public void fireEvent( Hertz event ) {
+        ReplayCacheProtocol.this.flush( );
+      }
+    } );
+  }
+
+  @Override
+  public String getName( ) {
+    return NAME;
+  }
+
+  static void share( final long fingerprint ) {
+    final ReplayCacheProtocol protocol = instance;
+    if ( protocol != null && Boolean.TRUE.equals( StackConfiguration.REPLAY_CACHE_SHARED ) ) {
+      protocol.add( fingerprint );
+    }
+  }
+
+  private void add( final long fingerprint ) {
+    final long[] pending;
+    synchronized ( this.batch ) {
+      if ( this.batchSize == 0 ) {
+        this.batchStarted = System.nanoTime( );
+      }
+      this.batch[this.batchSize++] = fingerprint;
+      pending = this.take( this.batchSize == MAX_BATCH || this.isOld( ) );
+    }
+    this.send( pending );
+  }
+
+  private void flush( ) {
+    final long[] pending;
+    synchronized ( this.batch ) {
+      pending = this.take( this.isOld( ) );
+    }
+    this.send( pending );
+  }
+
+  /**
+   * Must hold the batch lock.
+   */
+  private boolean isOld( ) {
+    return System.nanoTime( ) - this.batchStarted > TimeUnit.MILLISECONDS.toNanos( MAX_BATCH_AGE_MILLIS );
+  }
+
+  /**
+   * Must hold the batch lock.
+   */
+  private long[] take( final boolean take ) {
+    if ( !take || this.batchSize == 0 ) {
+      return null;
+    } else {
+      final long[] taken = new long[this.batchSize];
+      System.arraycopy( this.batch, 0, taken, 0, this.batchSize );
+      this.batchSize = 0;
+      return taken;
+    }
+  }
+
+  private void send( final long[] fingerprints ) {
+    if ( fingerprints == null ) {
+      return;
+    }
+    final ByteBuffer buffer = ByteBuffer.allocate( fingerprints.length * 8 );
+    buffer.asLongBuffer( ).put( fingerprints );
+    final Message msg = new Message( null, null, buffer.array( ) );
+    msg.putHeader( headerName, new ReplayHeader( ) );
+    Threads.lookup( Empyrean.class, ReplayCacheProtocol.class ).limitTo( 1 ).execute( new Runnable( ) {
+      @Override
+      public void run( ) {
+        try {
+          ReplayCacheProtocol.this.down_prot.down( new Event( Event.MSG, msg ) );
+        } catch ( final Exception ex ) {
+          LOG.error( "Failed to share " + fingerprints.length + " signature fingerprints: " + ex.getMessage( ) );
+        }
+      }
+    } );
+  }
+
+  @Override
+  public Object down( final Event evt ) {
+    if ( evt.getType( ) == Event.SET_LOCAL_ADDRESS ) {
+      this.localAddress = ( Address ) evt.getArg( );
+    }
+    return this.down_prot.down( evt );
+  }
+
+  @Override
+  public Object up( final Event evt ) {
+    if ( evt.getType( ) == Event.MSG ) {
+      final Message msg = ( Message ) evt.getArg( );
+      if ( headerName != null && msg.getHeader( headerName ) != null ) {
+        if ( msg.getSrc( ) == null || !msg.getSrc( ).equals( this.localAddress ) ) {
+          final ReplayCache cache = SecurityContext.getReplayCache( );
+          final ByteBuffer buffer = ByteBuffer.wrap( msg.getRawBuffer( ), msg.getOffset( ), msg.getLength( ) );
+          while ( buffer.remaining( ) >= 8 ) {
+            cache.remember( buffer.getLong( ) );
+          }
+        }
+        return null;
+      }
+    }
+    return this.up_prot.up( evt );
+  }
+
+  public static class ReplayHeader extends Header {
+    public ReplayHeader( ) {
+      super( );
+    }
+
+    @Override
+    public void writeTo( final DataOutputStream out ) throws IOException {}
+
+    @Override
+    public void readFrom( final DataInputStream in ) throws IOException, IllegalAccessException, InstantiationException {}
+
+    @Override
+    public int size( ) {
+      return 0;
+    }
+  }
+}
@@ -1,10 +1,14 @@
 package com.eucalyptus.auth.login;
 
 import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
 import javax.security.auth.Subject;
 import javax.security.auth.login.AppConfigurationEntry;
@@ -14,8 +18,8 @@ import javax.security.auth.login.LoginException;
 import javax.security.auth.login.AppConfigurationEntry.LoginModuleControlFlag;
 import javax.security.auth.spi.LoginModule;
 import org.apache.log4j.Logger;
+import com.eucalyptus.auth.api.BaseLoginModule;
 import com.eucalyptus.bootstrap.ServiceJarDiscovery;
-import com.eucalyptus.util.TimedEvictionSet;
 import com.google.common.collect.Lists;
 import com.eucalyptus.ws.StackConfiguration;
 
@@ -27,19 +31,65 @@ public class SecurityContext extends Configuration {
   // For AWS query interface, default expiration time is 15 mins
   // we cache for 15 mins 20 secs to allow for some clock drift
   // (in case creation Timestamp is up to 20 secs in the future)
-  private static TimedEvictionSet<String> replayQueue = new TimedEvictionSet<String>(TimeUnit.MILLISECONDS.convert(900 + StackConfiguration.CLOCK_SKEW_SEC, TimeUnit.SECONDS));
+  private static ReplayCache replayCache = new ReplayCache(TimeUnit.MILLISECONDS.convert(900 + StackConfiguration.CLOCK_SKEW_SEC, TimeUnit.SECONDS));
   private List<String> loginModules = Lists.newArrayList( );
+  private List<Class> loginModuleClasses = Lists.newArrayList( );
+  // Configuration name -> entries for the login modules accepting that type of credentials
+  private ConcurrentMap<String, AppConfigurationEntry[]> entriesByCredentials = new ConcurrentHashMap<String, AppConfigurationEntry[]>( );
   private SecurityContext( ) {}
   
   public static void enqueueSignature( String signature ) throws AuthenticationException {
-    if( !SecurityContext.replayQueue.add( signature ) ) {
+    if( !SecurityContext.replayCache.add( signature ) ) {
     	LOG.info("Replay detected for " + signature);
     	throw new AuthenticationException( "Message replay detected.  Same signature was used within the last 15 minutes");
     }
   }
   
+  static ReplayCache getReplayCache( ) {
+    return replayCache;
+  }
+  
+  /**
+   * The login context is configured with only the login modules which accept the type of the
+   * credentials, so a login goes straight to the matching module rather than through every
+   * registered one.
+   */
   public static LoginContext getLoginContext( WrappedCredentials credentials ) throws LoginException {
-    return new LoginContext( "eucalyptus" , new Subject( ), credentials, singleton );
+    return new LoginContext( singleton.configure( credentials.getClass( ) ), new Subject( ), credentials, singleton );
+  }
+  
+  private String configure( Class credentialsClass ) {
+    String name = credentialsClass.getName( );
+    if ( !this.entriesByCredentials.containsKey( name ) ) {
+      List<String> modules = Lists.newArrayList( );
+      synchronized ( this.loginModules ) {
+        for ( Class loginModuleClass : this.loginModuleClasses ) {
+          if ( getCredentialsType( loginModuleClass ).isAssignableFrom( credentialsClass ) ) {
+            modules.add( loginModuleClass.getName( ) );
+          }
+        }
+      }
+      LOG.debug( "Login modules for " + name + ": " + modules );
+      this.entriesByCredentials.put( name, getEntries( modules ) );
+    }
+    return name;
+  }
+  
+  /**
+   * @return the type argument of {@link BaseLoginModule}, or {@link WrappedCredentials} if the
+   *         login module may accept any credentials.
+   */
+  private static Class getCredentialsType( Class loginModuleClass ) {
+    for ( Class c = loginModuleClass; c != null && !Object.class.equals( c ); c = c.getSuperclass( ) ) {
+      Type type = c.getGenericSuperclass( );
+      if ( type instanceof ParameterizedType && BaseLoginModule.class.equals( ( ( ParameterizedType ) type ).getRawType( ) ) ) {
+        Type credentialsType = ( ( ParameterizedType ) type ).getActualTypeArguments( )[0];
+        if ( credentialsType instanceof Class ) {
+          return ( Class ) credentialsType;
+        }
+      }
+    }
+    return WrappedCredentials.class;
   }
 
   /**
@@ -51,17 +101,21 @@ public class SecurityContext extends Configuration {
    * @return
    */
   public static boolean validateTimestampPeriod(Date expires) {
-	 Long nanoLimit = replayQueue.getEvictionNanos();
+	 Long millisLimit = replayCache.getWindowMillis();
 	 
 	 Date currentDate = new Date();
-	 if((currentDate.getTime() + (nanoLimit / 1000000)) < expires.getTime())
+	 if((currentDate.getTime() + millisLimit) < expires.getTime())
 		 return false;
 	 
 	  return true;
   }
   
   public static void registerLoginModule( Class loginModuleClass ) {
-    singleton.loginModules.add( loginModuleClass.getName( ) );
+    synchronized ( singleton.loginModules ) {
+      singleton.loginModules.add( loginModuleClass.getName( ) );
+      singleton.loginModuleClasses.add( loginModuleClass );
+      singleton.entriesByCredentials.clear( );
+    }
   }
   
   @SuppressWarnings( "unchecked" )
@@ -69,9 +123,19 @@ public class SecurityContext extends Configuration {
   
   @Override
   public AppConfigurationEntry[] getAppConfigurationEntry( String name ) {
-    AppConfigurationEntry[] entries = new AppConfigurationEntry[loginModules.size( )];
+    AppConfigurationEntry[] entries = this.entriesByCredentials.get( name );
+    if ( entries != null ) {
+      return entries;
+    }
+    synchronized ( this.loginModules ) {
+      return getEntries( this.loginModules );
+    }
+  }
+  
+  private static AppConfigurationEntry[] getEntries( List<String> modules ) {
+    AppConfigurationEntry[] entries = new AppConfigurationEntry[modules.size( )];
     for( int i = 0; i < entries.length; i++ ) {
-      entries[i] = new AppConfigurationEntry( loginModules.get( i ), LoginModuleControlFlag.SUFFICIENT, emptyMap );
+      entries[i] = new AppConfigurationEntry( modules.get( i ), LoginModuleControlFlag.SUFFICIENT, emptyMap );
     }
     return entries;
   }
@@ -63,8 +63,6 @@
  */
 package com.eucalyptus.binding;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.StringWriter;
 import java.util.ArrayList;
@@ -72,11 +70,8 @@ import java.util.List;
 import java.util.Map;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamWriter;
-import org.apache.axiom.om.OMDataSource;
 import org.apache.axiom.om.OMElement;
 import org.apache.axiom.om.OMFactory;
-import org.apache.axiom.om.OMNamespace;
-import org.apache.axiom.om.ds.InputStreamDataSource;
 import org.apache.axiom.om.impl.builder.StAXOMBuilder;
 import org.apache.axiom.soap.SOAPEnvelope;
 import org.apache.axiom.soap.SOAPFactory;
@@ -85,6 +80,10 @@ import org.apache.axiom.soap.SOAPFaultCode;
 import org.apache.axiom.soap.SOAPFaultDetail;
 import org.apache.axiom.soap.SOAPFaultReason;
 import org.apache.log4j.Logger;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferInputStream;
+import org.jboss.netty.buffer.ChannelBufferOutputStream;
+import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.handler.codec.http.HttpResponseStatus;
 import org.jibx.runtime.BindingDirectory;
 import org.jibx.runtime.IBindingFactory;
@@ -96,12 +95,14 @@ import org.jibx.runtime.impl.StAXReaderWrapper;
 import org.jibx.runtime.impl.StAXWriter;
 import org.jibx.runtime.impl.UnmarshallingContext;
 import com.eucalyptus.ws.WebServicesException;
+import com.google.common.base.Charsets;
 import com.google.common.collect.Maps;
 import edu.ucsb.eucalyptus.msgs.BaseMessage;
 
 public class Binding {
   
   private static Logger       LOG                 = Logger.getLogger( Binding.class );
+  private static final int    MARSHALL_BUFFER_SIZE = 8192;
   private final String        name;
   private IBindingFactory     bindingFactory;
   private Map<String, Class>  elementToClassMap   = Maps.newHashMap( );
@@ -174,14 +175,48 @@ public class Binding {
     return this.toOM( param, null );
   }
   
+  /**
+   * The returned element only holds the marshalled message; it is parsed again when it is written
+   * out and only built into an object model if something navigates into it (e.g., WS-Security).
+   */
   public OMElement toOM( final Object param, final String altNs ) throws BindingException {
+    final ChannelBuffer buffer = this.toChannelBuffer( param, altNs );
+    final String fqName = ( ( IMarshallable ) param ).JiBX_getName( );
+    final String elementName = this.classToElementMap.get( fqName );
+    final String useNs = altNs != null
+      ? altNs
+      : this.classToNamespaceMap.get( fqName );
+    final OMFactory factory = HoldMe.getOMFactory( );
+    if ( elementName != null && useNs != null ) {
+      return factory.createOMElement( new MarshalledDataSource( buffer ), elementName, factory.createOMNamespace( useNs, "" ) );
+    }
+    HoldMe.canHas.lock( );
+    try {
+      final StAXOMBuilder stAXOMBuilder = HoldMe.getStAXOMBuilder( HoldMe.getXMLStreamReader( new ChannelBufferInputStream( buffer ) ) );
+      return stAXOMBuilder.getDocumentElement( );
+    } catch ( XMLStreamException e ) {
+      LOG.error( e, e );
+      throw new BindingException( this.name + " failed to marshall type " + param.getClass( ).getCanonicalName( ) + " with ns:" + useNs + " caused by: "
+                                  + e.getMessage( ), e );
+    } finally {
+      HoldMe.canHas.unlock( );
+    }
+  }
+  
+  public ChannelBuffer toChannelBuffer( final Object param ) throws BindingException {
+    return this.toChannelBuffer( param, null );
+  }
+  
+  /**
+   * Marshal the message as an XML document directly into a buffer.
+   */
+  public ChannelBuffer toChannelBuffer( final Object param, final String altNs ) throws BindingException {
     if ( param == null ) {
       throw new BindingException( "Cannot bind null value" );
     } else if ( !( param instanceof IMarshallable ) ) {
       throw new BindingException( "No JiBX <mapping> defined for class " + param.getClass( ) );
     }
     
-    final OMFactory factory = HoldMe.getOMFactory( );
     final IMarshallable mrshable = ( IMarshallable ) param;
     final String fqName = mrshable.JiBX_getName( );
     if ( this.bindingFactory == null ) {
@@ -196,34 +231,15 @@ public class Binding {
     final String useNs = altNs != null
       ? altNs
       : origNs;
-    final ByteArrayOutputStream bos = new ByteArrayOutputStream( );
-    final OMElement retVal;
+    final ChannelBuffer buffer = ChannelBuffers.dynamicBuffer( MARSHALL_BUFFER_SIZE );
     HoldMe.canHas.lock( );
     try {
       final IMarshallingContext mctx = this.bindingFactory.createMarshallingContext( );
-      final XMLStreamWriter wrtr = HoldMe.getXMLOutputFactory( ).createXMLStreamWriter( bos, null );
+      final XMLStreamWriter wrtr = HoldMe.getXMLOutputFactory( ).createXMLStreamWriter( new ChannelBufferOutputStream( buffer ), null );
       final StAXWriter staxWriter = new StAXWriter( this.bindingFactory.getNamespaces( ), wrtr );
       mctx.setXmlWriter( staxWriter );
       mctx.marshalDocument( param );
       mctx.getXmlWriter( ).flush( );
-      final OMNamespace appns = factory.createOMNamespace( origNs, "" );
-      final OMDataSource inds = new InputStreamDataSource( new ByteArrayInputStream( bos.toByteArray( ) ), altNs );
-      if ( origNs.equals( altNs ) || altNs == null ) {
-//        retVal = factory.createOMElement( inds, this.bindingFactory.getElementNames( )[index], appns );
-        final StAXOMBuilder stAXOMBuilder = HoldMe.getStAXOMBuilder( HoldMe.getXMLStreamReader( bos.toString( ) ) );
-        retVal = stAXOMBuilder.getDocumentElement( );
-      } else {
-        String retString = bos.toString( );
-        retString = retString.replaceAll( origNs, altNs );
-        HoldMe.canHas.lock( );
-        try {
-          final StAXOMBuilder stAXOMBuilder = HoldMe.getStAXOMBuilder( HoldMe.getXMLStreamReader( retString ) );
-          retVal = stAXOMBuilder.getDocumentElement( );
-        } finally {
-          HoldMe.canHas.unlock( );
-        }
-      }
-      
     } catch ( XMLStreamException e ) {
       LOG.error( e, e );
       throw new BindingException( this.name + " failed to marshall type " + param.getClass( ).getCanonicalName( ) + " with ns:" + useNs + " caused by: "
@@ -239,8 +255,12 @@ public class Binding {
     } finally {
       HoldMe.canHas.unlock( );
     }
-    
-    return retVal;
+    if ( altNs != null && origNs != null && !origNs.equals( altNs ) ) {
+      final String retString = buffer.toString( "UTF-8" ).replaceAll( origNs, altNs );
+      return ChannelBuffers.wrappedBuffer( retString.getBytes( Charsets.UTF_8 ) );
+    } else {
+      return buffer;
+    }
   }
   
   public UnmarshallingContext getNewUnmarshalContext( final OMElement param ) throws JiBXException {
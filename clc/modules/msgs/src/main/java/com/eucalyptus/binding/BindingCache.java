@@ -146,6 +146,7 @@ public class BindingCache {
     private static final Boolean                BINDING_DEBUG                = System.getProperty( "euca.binding.debug" ) != null;
     private static final Boolean                BINDING_DEBUG_EXTREME        = System.getProperty( "euca.binding.debug.extreme" ) != null;
     private static List<URI>                    BINDING_LIST                 = Lists.newArrayList( );
+    private static List<String>                 BINDING_CLASS_NAMES          = Lists.newArrayList( );
     private static ConcurrentMap<String, Class> BINDING_CLASS_MAP            = Maps.newConcurrentMap( );
     private static final String                 BINDING_CACHE_JAR_PREFIX     = "jar.";
     private static final String                 BINDING_CACHE_BINDING_PREFIX = "binding.";
@@ -237,34 +238,49 @@ public class BindingCache {
         CURRENT_PROPS.put( BINDING_CACHE_JAR_PREFIX + f.getName( ), digest );
         final JarFile jar = new JarFile( f );
         final List<JarEntry> jarList = Collections.list( jar.entries( ) );
-        for ( final JarEntry j : jarList ) {
-          try {
+        try {
+          for ( final JarEntry j : jarList ) {
             if ( j.getName( ).matches( FILE_PATTERN ) ) {
               byte[] bindingBytes = ByteStreams.toByteArray( jar.getInputStream( j ) );
               String bindingName = j.getName( );
               String bindingFullPath = "jar:file:" + f.getAbsolutePath( ) + "!/" + bindingName;
               this.addCurrentBinding( bindingBytes, bindingName, bindingFullPath );
-            } else if ( j.getName( ).matches( ".*\\.class.{0,1}" ) ) {
-              final String classGuess = j.getName( ).replaceAll( "/", "." ).replaceAll( "\\.class.{0,1}", "" );
-              final Class candidate = ClassLoader.getSystemClassLoader( ).loadClass( classGuess );
-              if ( MSG_BASE_CLASS.isAssignableFrom( candidate ) || MSG_DATA_CLASS.isAssignableFrom( candidate ) ) {
-                InputSupplier<InputStream> classSupplier = Resources.newInputStreamSupplier( ClassLoader.getSystemResource( j.getName( ) ) );
-                File destClassFile = SubDirectory.CLASSCACHE.getChildFile( j.getName( ) );
-                if ( !destClassFile.exists( ) ) {
-                  Files.createParentDirs( destClassFile );
-                  Files.copy( classSupplier, destClassFile );
-                  Logs.extreme( ).debug( "Caching: " + j.getName( ) + " => " + destClassFile.getAbsolutePath( ) );
-                }
-                BINDING_CLASS_MAP.putIfAbsent( classGuess, candidate );
-              }
             }
-          } catch ( RuntimeException ex ) {
-            LOG.error( ex, ex );
-            jar.close( );
-            throw ex;
           }
+          BINDING_CLASS_NAMES.addAll( ServiceJarDiscovery.classNames( jar ) );
+        } catch ( RuntimeException ex ) {
+          LOG.error( ex, ex );
+          throw ex;
+        } finally {
+          jar.close( );
+        }
+      }
+    }
+    
+    /**
+     * Load the message classes which need bindings and copy them into the class cache. Only needed
+     * when the cache is out of date, so {@link #process(File)} just records the class names.
+     */
+    private void loadMessageClasses( ) throws IOException {
+      for ( final String classGuess : BINDING_CLASS_NAMES ) {
+        final Class candidate;
+        try {
+          candidate = ClassLoader.getSystemClassLoader( ).loadClass( classGuess );
+        } catch ( ClassNotFoundException ex ) {
+          LOG.error( ex, ex );
+          continue;
+        }
+        if ( MSG_BASE_CLASS.isAssignableFrom( candidate ) || MSG_DATA_CLASS.isAssignableFrom( candidate ) ) {
+          final String classFileName = classGuess.replace( ".", "/" ) + ".class";
+          InputSupplier<InputStream> classSupplier = Resources.newInputStreamSupplier( ClassLoader.getSystemResource( classFileName ) );
+          File destClassFile = SubDirectory.CLASSCACHE.getChildFile( classFileName );
+          if ( !destClassFile.exists( ) ) {
+            Files.createParentDirs( destClassFile );
+            Files.copy( classSupplier, destClassFile );
+            Logs.extreme( ).debug( "Caching: " + classFileName + " => " + destClassFile.getAbsolutePath( ) );
+          }
+          BINDING_CLASS_MAP.putIfAbsent( classGuess, candidate );
         }
-        jar.close( );
       }
     }
     
@@ -341,6 +357,8 @@ public class BindingCache {
       } else {
         LOG.info( "Binding cache: regenerating cache." );
         try {
+          LOG.info( "Binding cache: loading message classes." );
+          BindingFileSearch.INSTANCE.loadMessageClasses( );
           LOG.info( "Binding cache: generating internal bindings." );
           // generate msgs-binding
           InternalSoapBindingGenerator gen = new InternalSoapBindingGenerator( );
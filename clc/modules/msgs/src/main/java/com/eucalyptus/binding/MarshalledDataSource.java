@@ -0,0 +1,51 @@
+package com.eucalyptus.binding;
+
+import java.io.OutputStream;
+import java.io.Writer;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+import org.apache.axiom.om.OMDataSource;
+import org.apache.axiom.om.OMOutputFormat;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferInputStream;
+
+/**
+ * Data source for an element which has already been marshalled into a buffer.
+ *
+ * Writing the element streams it from the buffer to the writer without building an object model
+ * for it; the element is only expanded, using {@link #getReader()}, if something navigates into
+ * it. Each read uses its own view of the buffer, so the element can be written any number of times.
+ */
+class MarshalledDataSource implements OMDataSource {
+  private final ChannelBuffer buffer;
+
+  MarshalledDataSource( final ChannelBuffer buffer ) {
+    this.buffer = buffer;
+  }
+
+  @Override
+  public XMLStreamReader getReader( ) throws XMLStreamException {
+    return HoldMe.getXMLStreamReader( new ChannelBufferInputStream( this.buffer.duplicate( ) ) );
+  }
+
+  @Override
+  public void serialize( final XMLStreamWriter writer ) throws XMLStreamException {
+    HoldMe.getStAXOMBuilder( this.getReader( ) ).getDocumentElement( ).serializeAndConsume( writer );
+  }
+
+  @Override
+  public void serialize( final OutputStream out, final OMOutputFormat format ) throws XMLStreamException {
+    final XMLStreamWriter writer = HoldMe.getXMLOutputFactory( ).createXMLStreamWriter( out, format.getCharSetEncoding( ) );
+    this.serialize( writer );
+    writer.flush( );
+  }
+
+  @Override
+  public void serialize( final Writer out, final OMOutputFormat format ) throws XMLStreamException {
+    final XMLStreamWriter writer = HoldMe.getXMLOutputFactory( ).createXMLStreamWriter( out );
+    this.serialize( writer );
+    writer.flush( );
+  }
+
+}
@@ -86,6 +86,10 @@
 package com.eucalyptus.bootstrap;
 
 import java.lang.management.ManagementFactory;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Blob;
+import java.sql.Clob;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
@@ -94,9 +98,11 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Types;
 import java.text.MessageFormat;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
@@ -142,6 +148,7 @@ import com.eucalyptus.util.Internets;
 import com.eucalyptus.util.LogUtil;
 import com.eucalyptus.util.Mbeans;
 import com.eucalyptus.util.async.Futures;
+import com.google.common.base.Charsets;
 import com.google.common.base.Function;
 import com.google.common.base.Joiner;
 import com.google.common.base.Predicate;
@@ -150,9 +157,11 @@ import com.google.common.base.Supplier;
 import com.google.common.base.Suppliers;
 import com.google.common.collect.Collections2;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
 import com.google.common.collect.MapDifference;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.primitives.Ints;
 
 public class Databases {
   public static class DatabaseStateException extends IllegalStateException {
@@ -174,6 +183,7 @@ public class Databases {
   private static final String                 jdbcJmxDomain             = "net.sf.hajdbc";
   private static final ExecutorService        dbSyncExecutors           = Executors.newCachedThreadPool( );                                              //NOTE:GRZE:special case thread handling.
   private static final ReentrantReadWriteLock canHas                    = new ReentrantReadWriteLock( );
+  private static final String                 FULL_SYNC_STRATEGY        = System.getProperty( "euca.db.sync.strategy", "full" );          //NOTE: one of the sync ids registered by setup_dbpool.groovy, see ParallelSynchronizationStrategy before changing the default
   
   enum SyncState {
     IRRELEVANT,
@@ -466,7 +476,7 @@ public class Databases {
                   String syncStrategy = "passive";
                   boolean activated = cluster.getActiveDatabases( ).contains( hostName );
                   boolean deactivated = cluster.getInactiveDatabases( ).contains( hostName );
-                  syncStrategy = ( fullSync ? "full" : "passive" );
+                  syncStrategy = ( fullSync ? FULL_SYNC_STRATEGY : "passive" );
                   if ( activated ) {
 //                    LOG.info( "Deactivating existing database connections to: " + host );
 //                    cluster.deactivate( hostName );
@@ -1433,6 +1443,424 @@ public class Databases {
     }
   }
   
+  /**
+   * Database-independent synchronization strategy which synchronizes tables concurrently, each over
+   * its own pair of connections, preparing a single insert statement per table and executing it in
+   * batches of at most {@link #getMaxBatchSize()} rows.
+   * In differential mode each table having a single column primary key is compared in chunks of
+   * {@link #getChunkSize()} rows ordered by that key: a digest of each chunk read from the active
+   * database is compared with a digest of the same key range read from the inactive database and
+   * only the ranges which differ are deleted and re-inserted. Tables without such a key are copied
+   * in full.
+   * The following algorithm is used:
+   * <ol>
+   * <li>Drop the foreign keys on the inactive database (and, in differential mode, the unique
+   * constraints)</li>
+   * <li>Synchronize the tables using up to {@link #getMaxThreads()} threads</li>
+   * <li>Re-create the dropped constraints on the inactive database</li>
+   * <li>Synchronize identity columns and sequences</li>
+   * </ol>
+   * Trade-off: each table is read in its own transaction over a connection opened outside of the
+   * synchronization context, so the copy is not one consistent snapshot of the active database. A
+   * change committed while the tables are copied may be seen in one table and not in another it
+   * references. The strategy is therefore only safe when the active database is quiescent. The
+   * default remains "full", which reads every table over the single source connection of the
+   * context; this strategy must be chosen explicitly using {@code -Deuca.db.sync.strategy=parallel}
+   * (or {@code differential}).
+   * 
+   * Nothing here makes the source quiescent: {@link #awaitSynchronized()} only delays new
+   * transactions while a host is syncing, gives up after {@link #MAX_TX_START_SYNC_RETRIES}
+   * attempts, and does not wait for transactions which are already running. Whether the cluster
+   * activation lock of HA-JDBC excludes writes for the whole synchronization has not been
+   * established for the version in use, so re-adding a database under live load is not a supported
+   * use of this strategy.
+   */
+  public static class ParallelSynchronizationStrategy implements SynchronizationStrategy {
+    private int     maxBatchSize = 100;
+    private int     fetchSize    = 0;
+    private int     maxThreads   = 4;
+    private int     chunkSize    = 1000;
+    private boolean differential = false;
+
+    @Override
+    public <D> void synchronize( final SynchronizationContext<D> context ) throws SQLException {
+      Connection targetConnection = context.getConnection( context.getTargetDatabase( ) );
+      boolean autoCommit = targetConnection.getAutoCommit( );
+      targetConnection.setAutoCommit( true );
+      SynchronizationSupport.dropForeignKeys( context );
+      if ( this.differential ) {
+        SynchronizationSupport.dropUniqueConstraints( context );
+      }
+      ExecutorService executor = Executors.newFixedThreadPool( Math.max( 1, this.maxThreads ) );
+      try {
+        List<Future<Integer>> futures = Lists.newArrayList( );
+        for ( final TableProperties table : context.getSourceDatabaseProperties( ).getTables( ) ) {
+          futures.add( executor.submit( new Callable<Integer>( ) {
+            @Override
+            public Integer call( ) throws SQLException {
+              return ParallelSynchronizationStrategy.this.synchronize( context, table );
+            }
+          } ) );
+        }
+        for ( Future<Integer> future : futures ) {
+          future.get( );
+        }
+      } catch ( InterruptedException e ) {
+        Thread.currentThread( ).interrupt( );
+        throw SQLExceptionFactory.createSQLException( e );
+      } catch ( ExecutionException e ) {
+        throw SQLExceptionFactory.createSQLException( e.getCause( ) );
+      } finally {
+        executor.shutdownNow( );
+      }
+      if ( this.differential ) {
+        SynchronizationSupport.restoreUniqueConstraints( context );
+      }
+      SynchronizationSupport.restoreForeignKeys( context );
+      SynchronizationSupport.synchronizeIdentityColumns( context );
+      SynchronizationSupport.synchronizeSequences( context );
+      targetConnection.setAutoCommit( autoCommit );
+    }
+
+    /**
+     * Synchronize a single table in its own transaction.
+     *
+     * @return the number of rows inserted into the inactive database
+     */
+    private <D> int synchronize( SynchronizationContext<D> context, TableProperties table ) throws SQLException {
+      net.sf.hajdbc.Database<D> source = context.getSourceDatabase( );
+      net.sf.hajdbc.Database<D> target = context.getTargetDatabase( );
+      Connection sourceConnection = source.connect( source.createConnectionFactory( ) );
+      try {
+        Connection targetConnection = target.connect( target.createConnectionFactory( ) );
+        try {
+          sourceConnection.setAutoCommit( false );
+          targetConnection.setAutoCommit( false );
+          TableSynchronizer synchronizer = new TableSynchronizer( context.getDialect( ), table, sourceConnection, targetConnection );
+          try {
+            int rows = ( this.differential && synchronizer.keyIndex >= 0 )
+              ? synchronizer.differential( )
+              : synchronizer.full( );
+            targetConnection.commit( );
+            return rows;
+          } finally {
+            synchronizer.close( );
+          }
+        } catch ( SQLException e ) {
+          SynchronizationSupport.rollback( targetConnection );
+          throw e;
+        } finally {
+          targetConnection.close( );
+        }
+      } finally {
+        SynchronizationSupport.rollback( sourceConnection );
+        sourceConnection.close( );
+      }
+    }
+
+    private class TableSynchronizer {
+      private final TableProperties                table;
+      private final String                         tableName;
+      private final List<String>                   columns;
+      private final int[]                          types;
+      private final int                            keyIndex;
+      private final String                         selectSQL;
+      private final String                         insertSQL;
+      private final Connection                     source;
+      private final Connection                     target;
+      private final Dialect                        dialect;
+      private final Map<String, PreparedStatement> statements = Maps.newHashMap( );
+
+      TableSynchronizer( Dialect dialect, TableProperties table, Connection source, Connection target ) throws SQLException {
+        this.dialect = dialect;
+        this.table = table;
+        this.tableName = table.getName( );
+        this.columns = Lists.newArrayList( table.getColumns( ) );
+        this.types = new int[this.columns.size( )];
+        for ( int i = 0; i < this.types.length; i++ ) {
+          this.types[i] = dialect.getColumnType( table.getColumnProperties( this.columns.get( i ) ) );
+        }
+        UniqueConstraint primaryKey = table.getPrimaryKey( );
+        this.keyIndex = ( primaryKey != null && primaryKey.getColumnList( ).size( ) == 1 )
+          ? this.columns.indexOf( primaryKey.getColumnList( ).get( 0 ) )
+          : -1;
+        String commaDelimitedColumns = Strings.join( this.columns, Strings.PADDED_COMMA );
+        this.selectSQL = "SELECT " + commaDelimitedColumns + " FROM " + this.tableName; //$NON-NLS-1$ //$NON-NLS-2$
+        this.insertSQL = "INSERT INTO " + this.tableName + " (" + commaDelimitedColumns + ") VALUES (" + Strings.join( Collections.nCopies( this.columns.size( ), Strings.QUESTION ), Strings.PADDED_COMMA ) + ")"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+        this.source = source;
+        this.target = target;
+      }
+
+      /**
+       * Delete all rows from the inactive database table and copy every row from the active one.
+       */
+      int full( ) throws SQLException {
+        String deleteSQL = this.dialect.getTruncateTableSQL( this.table );
+        Logs.extreme( ).info( deleteSQL );
+        Statement deleteStatement = this.target.createStatement( );
+        try {
+          LOG.info( Messages.getMessage( Messages.DELETE_COUNT, deleteStatement.executeUpdate( deleteSQL ), this.tableName ) );
+        } finally {
+          deleteStatement.close( );
+        }
+        Statement selectStatement = this.source.createStatement( );
+        try {
+          selectStatement.setFetchSize( ParallelSynchronizationStrategy.this.fetchSize );
+          Logs.extreme( ).info( this.selectSQL );
+          ResultSet resultSet = selectStatement.executeQuery( this.selectSQL );
+          PreparedStatement insertStatement = this.prepare( this.insertSQL );
+          int rows = 0;
+          while ( resultSet.next( ) ) {
+            this.addBatch( insertStatement, this.read( resultSet ), ++rows );
+          }
+          insertStatement.executeBatch( );
+          insertStatement.clearBatch( );
+          LOG.info( Messages.getMessage( Messages.INSERT_COUNT, rows, this.tableName ) );
+          return rows;
+        } finally {
+          selectStatement.close( );
+        }
+      }
+
+      /**
+       * Compare the active and inactive tables chunk by chunk in primary key order, copying only the
+       * chunks which differ. Chunk {@code n} covers the keys greater than the last key of chunk
+       * {@code n-1} up to and including its own last key, so that rows present only in the inactive
+       * database are found as well.
+       */
+      int differential( ) throws SQLException {
+        String keyColumn = this.columns.get( this.keyIndex );
+        Statement selectStatement = this.source.createStatement( );
+        try {
+          selectStatement.setFetchSize( ParallelSynchronizationStrategy.this.fetchSize );
+          String orderedSQL = this.selectSQL + " ORDER BY " + keyColumn; //$NON-NLS-1$
+          Logs.extreme( ).info( orderedSQL );
+          ResultSet resultSet = selectStatement.executeQuery( orderedSQL );
+          List<Object[]> chunk = Lists.newArrayListWithCapacity( ParallelSynchronizationStrategy.this.chunkSize );
+          int chunks = 0;
+          int changedChunks = 0;
+          int rows = 0;
+          Object lower = null;
+          boolean more = resultSet.next( );
+          while ( more ) {
+            chunk.clear( );
+            do {
+              chunk.add( this.read( resultSet ) );
+              more = resultSet.next( );
+            } while ( more && chunk.size( ) < ParallelSynchronizationStrategy.this.chunkSize );
+            Object upper = chunk.get( chunk.size( ) - 1 )[this.keyIndex];
+            chunks++;
+            if ( !Arrays.equals( this.digest( chunk ), this.digest( lower, upper, chunk.size( ) ) ) ) {
+              changedChunks++;
+              this.delete( lower, upper );
+              PreparedStatement insertStatement = this.prepare( this.insertSQL );
+              for ( Object[] row : chunk ) {
+                this.addBatch( insertStatement, row, ++rows );
+              }
+              insertStatement.executeBatch( );
+              insertStatement.clearBatch( );
+            }
+            lower = upper;
+          }
+          int deleted = this.delete( lower, null );
+          LOG.info( "Differential synchronization of " + this.tableName + ": copied " + changedChunks + "/" + chunks + " chunks (" + rows
+                    + " rows), deleted " + deleted + " trailing rows" );
+          return rows;
+        } finally {
+          selectStatement.close( );
+        }
+      }
+
+      private Object[] read( ResultSet resultSet ) throws SQLException {
+        Object[] row = new Object[this.types.length];
+        for ( int i = 0; i < row.length; i++ ) {
+          Object object = SynchronizationSupport.getObject( resultSet, i + 1, this.types[i] );
+          row[i] = ( resultSet.wasNull( ) ? null : object );
+        }
+        return row;
+      }
+
+      private void addBatch( PreparedStatement insertStatement, Object[] row, int rowNumber ) throws SQLException {
+        for ( int i = 0; i < row.length; i++ ) {
+          if ( row[i] == null ) {
+            insertStatement.setNull( i + 1, this.types[i] );
+          } else {
+            insertStatement.setObject( i + 1, row[i], this.types[i] );
+          }
+        }
+        if ( Logs.isExtrrreeeme( ) ) {
+          StringBuilder selected = new StringBuilder( "SELECT * FROM " ).append( this.tableName ).append( ": " ).append( rowNumber );
+          for ( int i = 0; i < row.length; i++ ) {
+            selected.append( "\n\t" ).append( this.columns.get( i ) ).append( "=" ).append( row[i] );
+          }
+          Logs.exhaust( ).trace( selected );
+        }
+        insertStatement.addBatch( );
+        if ( rowNumber % Math.max( 1, ParallelSynchronizationStrategy.this.maxBatchSize ) == 0 ) {
+          insertStatement.executeBatch( );
+          insertStatement.clearBatch( );
+        }
+      }
+
+      /**
+       * Delete the rows of the inactive database table with keys in the range (lower, upper], where
+       * a {@code null} bound is unbounded.
+       */
+      private int delete( Object lower, Object upper ) throws SQLException {
+        PreparedStatement deleteStatement = this.prepare( "DELETE FROM " + this.tableName + this.where( lower, upper ) ); //$NON-NLS-1$
+        this.bind( deleteStatement, lower, upper );
+        return deleteStatement.executeUpdate( );
+      }
+
+      /**
+       * Digest the rows of the inactive database table with keys in the range (lower, upper].
+       *
+       * @return the digest, or {@code null} if the number of rows differs from {@code expectedRows}
+       */
+      private byte[] digest( Object lower, Object upper, int expectedRows ) throws SQLException {
+        PreparedStatement selectStatement = this.prepare( this.selectSQL + this.where( lower, upper ) + " ORDER BY " + this.columns.get( this.keyIndex ) ); //$NON-NLS-1$
+        this.bind( selectStatement, lower, upper );
+        ResultSet resultSet = selectStatement.executeQuery( );
+        try {
+          MessageDigest digest = newDigest( );
+          int rows = 0;
+          while ( resultSet.next( ) ) {
+            if ( ++rows > expectedRows ) {
+              return null;
+            }
+            this.update( digest, this.read( resultSet ) );
+          }
+          return ( rows == expectedRows ? digest.digest( ) : null );
+        } finally {
+          resultSet.close( );
+        }
+      }
+
+      private byte[] digest( List<Object[]> rows ) throws SQLException {
+        MessageDigest digest = newDigest( );
+        for ( Object[] row : rows ) {
+          this.update( digest, row );
+        }
+        return digest.digest( );
+      }
+
+      private void update( MessageDigest digest, Object[] row ) throws SQLException {
+        for ( Object value : row ) {
+          byte[] bytes;
+          if ( value == null ) {
+            digest.update( ( byte ) 0 );
+            continue;
+          } else if ( value instanceof byte[] ) {
+            bytes = ( byte[] ) value;
+          } else if ( value instanceof Blob ) {
+            bytes = ( ( Blob ) value ).getBytes( 1, ( int ) ( ( Blob ) value ).length( ) );
+          } else if ( value instanceof Clob ) {
+            bytes = ( ( Clob ) value ).getSubString( 1, ( int ) ( ( Clob ) value ).length( ) ).getBytes( Charsets.UTF_8 );
+          } else {
+            bytes = value.toString( ).getBytes( Charsets.UTF_8 );
+          }
+          digest.update( ( byte ) 1 );
+          digest.update( Ints.toByteArray( bytes.length ) );
+          digest.update( bytes );
+        }
+      }
+
+      private String where( Object lower, Object upper ) {
+        String keyColumn = this.columns.get( this.keyIndex );
+        if ( lower == null && upper == null ) {
+          return "";
+        } else if ( lower == null ) {
+          return " WHERE " + keyColumn + " <= ?"; //$NON-NLS-1$ //$NON-NLS-2$
+        } else if ( upper == null ) {
+          return " WHERE " + keyColumn + " > ?"; //$NON-NLS-1$ //$NON-NLS-2$
+        } else {
+          return " WHERE " + keyColumn + " > ? AND " + keyColumn + " <= ?"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        }
+      }
+
+      private void bind( PreparedStatement statement, Object lower, Object upper ) throws SQLException {
+        int index = 0;
+        if ( lower != null ) {
+          statement.setObject( ++index, lower, this.types[this.keyIndex] );
+        }
+        if ( upper != null ) {
+          statement.setObject( ++index, upper, this.types[this.keyIndex] );
+        }
+      }
+
+      /**
+       * Statements against the inactive database are prepared once per table and reused.
+       */
+      private PreparedStatement prepare( String sql ) throws SQLException {
+        PreparedStatement statement = this.statements.get( sql );
+        if ( statement == null ) {
+          Logs.extreme( ).info( sql );
+          statement = this.target.prepareStatement( sql );
+          this.statements.put( sql, statement );
+        }
+        return statement;
+      }
+
+      void close( ) {
+        for ( PreparedStatement statement : this.statements.values( ) ) {
+          try {
+            statement.close( );
+          } catch ( SQLException e ) {
+            LOG.warn( e.toString( ), e );
+          }
+        }
+      }
+    }
+
+    private static MessageDigest newDigest( ) {
+      try {
+        return MessageDigest.getInstance( "SHA-1" );
+      } catch ( NoSuchAlgorithmException e ) {
+        throw Exceptions.toUndeclared( e );
+      }
+    }
+
+    public int getFetchSize( ) {
+      return this.fetchSize;
+    }
+
+    public void setFetchSize( int fetchSize ) {
+      this.fetchSize = fetchSize;
+    }
+
+    public int getMaxBatchSize( ) {
+      return this.maxBatchSize;
+    }
+
+    public void setMaxBatchSize( int maxBatchSize ) {
+      this.maxBatchSize = maxBatchSize;
+    }
+
+    public int getMaxThreads( ) {
+      return this.maxThreads;
+    }
+
+    public void setMaxThreads( int maxThreads ) {
+      this.maxThreads = maxThreads;
+    }
+
+    public int getChunkSize( ) {
+      return this.chunkSize;
+    }
+
+    public void setChunkSize( int chunkSize ) {
+      this.chunkSize = Math.max( 1, chunkSize );
+    }
+
+    public boolean isDifferential( ) {
+      return this.differential;
+    }
+
+    public void setDifferential( boolean differential ) {
+      this.differential = differential;
+    }
+  }
+
   public static class PassiveSynchronizationStrategy implements SynchronizationStrategy {
     @Override
     public <D> void synchronize( SynchronizationContext<D> context ) {
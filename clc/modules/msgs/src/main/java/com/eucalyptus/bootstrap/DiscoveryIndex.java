@@ -0,0 +1,245 @@
+package com.eucalyptus.bootstrap;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+/**
+ * Per-jar list of the classes which discovery needs to load.
+ *
+ * The index is written into each component jar when it is built (see the {@code do-jar} target in
+ * {@code module-inc.xml}) by running {@link #main(String[])} over the compiled classes. A class is
+ * listed when it could be accepted by some {@link ServiceJarDiscovery}, that is when it:
+ * <ul>
+ * <li>carries a runtime visible annotation (e.g., {@code @Provides}, {@code @RunDuring},
+ * {@code @PersistenceContext}, {@code @ConfigurableClass}, {@code @Bootstrap.Discovery},
+ * {@code @Entity}),</li>
+ * <li>directly extends or implements a eucalyptus type, and so may be an {@code EventListener},
+ * {@code ComponentId}, {@code ServiceBuilder}, {@link ServiceJarDiscovery}, message, etc.,</li>
+ * <li>or is a generated JiBX class.</li>
+ * </ul>
+ * Everything else (utilities, anonymous {@code Function}s, {@code Runnable}s, and so on) is
+ * never loaded during discovery. The class files are read directly rather than through javac's
+ * annotation processing so that groovyc compiled classes are indexed too.
+ *
+ * Jars without an index, and all jars when {@code -Deuca.discovery.scan} is set, are scanned
+ * in full as before.
+ */
+public class DiscoveryIndex {
+  static final String           INDEX_ENTRY    = "META-INF/eucalyptus/discovery.index";
+  private static final String   INDEX_HEADER   = "#eucalyptus-discovery-index:1";
+  private static final boolean  FULL_SCAN      = System.getProperty( "euca.discovery.scan" ) != null;
+  private static final String[] EUCA_PACKAGES  = { "com/eucalyptus/", "edu/ucsb/eucalyptus/" };
+  private static final String   ANNOTATIONS    = "RuntimeVisibleAnnotations";
+
+  /**
+   * @return the names of the candidate classes in the jar, or null if the jar has no index
+   */
+  public static List<String> candidates( final JarFile jar ) throws IOException {
+    final JarEntry entry = jar.getJarEntry( INDEX_ENTRY );
+    if ( FULL_SCAN || entry == null ) {
+      return null;
+    }
+    final BufferedReader in = new BufferedReader( new InputStreamReader( jar.getInputStream( entry ), Charsets.UTF_8 ) );
+    try {
+      if ( !INDEX_HEADER.equals( in.readLine( ) ) ) {
+        return null;
+      }
+      final List<String> classNames = Lists.newArrayList( );
+      for ( String line = in.readLine( ); line != null; line = in.readLine( ) ) {
+        if ( line.length( ) > 0 && !line.startsWith( "#" ) ) {
+          classNames.add( line );
+        }
+      }
+      return classNames;
+    } finally {
+      in.close( );
+    }
+  }
+
+  /**
+   * Convert a jar entry name to a class name, or return null if it is not a class file.
+   */
+  static String className( final String entryName ) {
+    if ( entryName.matches( ".*\\.class.{0,1}" ) ) {
+      return entryName.replaceAll( "/", "." ).replaceAll( "\\.class.{0,1}", "" );
+    } else {
+      return null;
+    }
+  }
+
+  /**
+   * Write the index for the class files under the given directory.
+   *
+   * @param args the directory containing the compiled classes
+   */
+  public static void main( final String[] args ) throws IOException {
+    if ( args.length != 1 || !new File( args[0] ).isDirectory( ) ) {
+      System.err.println( "Usage: " + DiscoveryIndex.class.getName( ) + " <classes directory>" );
+      System.exit( 1 );
+    }
+    final File classesDir = new File( args[0] );
+    final SortedSet<String> classNames = Sets.newTreeSet( );
+    final int total = index( classesDir, "", classNames );
+    final File indexFile = new File( classesDir, INDEX_ENTRY );
+    indexFile.getParentFile( ).mkdirs( );
+    final PrintWriter out = new PrintWriter( new OutputStreamWriter( new FileOutputStream( indexFile ), Charsets.UTF_8 ) );
+    try {
+      out.println( INDEX_HEADER );
+      out.println( "#candidates=" + classNames.size( ) + " classes=" + total );
+      for ( final String className : classNames ) {
+        out.println( className );
+      }
+    } finally {
+      out.close( );
+    }
+    System.out.println( "[DISCOVERY] " + indexFile.getPath( ) + ": " + classNames.size( ) + " of " + total + " classes" );
+  }
+
+  private static int index( final File dir, final String prefix, final SortedSet<String> classNames ) throws IOException {
+    int total = 0;
+    for ( final File f : dir.listFiles( ) ) {
+      if ( f.isDirectory( ) ) {
+        total += index( f, prefix + f.getName( ) + "/", classNames );
+      } else if ( className( f.getName( ) ) != null ) {
+        total++;
+        final InputStream in = new BufferedInputStream( new FileInputStream( f ) );
+        try {
+          if ( isCandidate( in ) ) {
+            classNames.add( className( prefix + f.getName( ) ) );
+          }
+        } finally {
+          in.close( );
+        }
+      }
+    }
+    return total;
+  }
+
+  /**
+   * Reads just enough of the class file to apply the rules in the class comment.
+   */
+  static boolean isCandidate( final InputStream classFile ) throws IOException {
+    final DataInputStream in = new DataInputStream( classFile );
+    if ( in.readInt( ) != 0xCAFEBABE ) {
+      throw new IOException( "Not a class file" );
+    }
+    in.readUnsignedShort( );//minor
+    in.readUnsignedShort( );//major
+    final int poolSize = in.readUnsignedShort( );
+    final String[] utf8 = new String[poolSize];
+    final int[] classNameIndex = new int[poolSize];
+    for ( int i = 1; i < poolSize; i++ ) {
+      final int tag = in.readUnsignedByte( );
+      switch ( tag ) {
+        case 1://Utf8
+          utf8[i] = in.readUTF( );
+          break;
+        case 7://Class
+          classNameIndex[i] = in.readUnsignedShort( );
+          break;
+        case 8://String
+        case 16://MethodType
+          in.readUnsignedShort( );
+          break;
+        case 15://MethodHandle
+          in.readUnsignedByte( );
+          in.readUnsignedShort( );
+          break;
+        case 3://Integer
+        case 4://Float
+        case 9://Fieldref
+        case 10://Methodref
+        case 11://InterfaceMethodref
+        case 12://NameAndType
+        case 18://InvokeDynamic
+          in.readInt( );
+          break;
+        case 5://Long
+        case 6://Double
+          in.readLong( );
+          i++;
+          break;
+        default:
+          throw new IOException( "Unknown constant pool tag " + tag + " at " + i );
+      }
+    }
+    in.readUnsignedShort( );//access flags
+    final String name = utf8[classNameIndex[in.readUnsignedShort( )]];
+    if ( name.contains( "JiBX_" ) ) {
+      return true;
+    }
+    final int superIndex = in.readUnsignedShort( );
+    if ( superIndex != 0 && isEucalyptusType( utf8[classNameIndex[superIndex]] ) ) {
+      return true;
+    }
+    boolean candidate = false;
+    for ( int i = in.readUnsignedShort( ); i > 0; i-- ) {
+      candidate |= isEucalyptusType( utf8[classNameIndex[in.readUnsignedShort( )]] );
+    }
+    if ( candidate ) {
+      return true;
+    }
+    for ( int members = 0; members < 2; members++ ) {//fields, then methods
+      for ( int i = in.readUnsignedShort( ); i > 0; i-- ) {
+        in.readUnsignedShort( );//access flags
+        in.readUnsignedShort( );//name
+        in.readUnsignedShort( );//descriptor
+        skipAttributes( in );
+      }
+    }
+    for ( int i = in.readUnsignedShort( ); i > 0; i-- ) {
+      final String attributeName = utf8[in.readUnsignedShort( )];
+      final int length = in.readInt( );
+      if ( ANNOTATIONS.equals( attributeName ) ) {
+        return in.readUnsignedShort( ) > 0;
+      } else {
+        skip( in, length );
+      }
+    }
+    return false;
+  }
+
+  private static void skipAttributes( final DataInputStream in ) throws IOException {
+    for ( int i = in.readUnsignedShort( ); i > 0; i-- ) {
+      in.readUnsignedShort( );
+      skip( in, in.readInt( ) );
+    }
+  }
+
+  private static void skip( final DataInputStream in, final int length ) throws IOException {
+    for ( int skipped = 0; skipped < length; ) {
+      final int n = in.skipBytes( length - skipped );
+      if ( n <= 0 ) {
+        in.readByte( );//throws EOFException at the end of the stream
+        skipped++;
+      } else {
+        skipped += n;
+      }
+    }
+  }
+
+  private static boolean isEucalyptusType( final String internalName ) {
+    for ( final String pkg : EUCA_PACKAGES ) {
+      if ( internalName.startsWith( pkg ) ) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
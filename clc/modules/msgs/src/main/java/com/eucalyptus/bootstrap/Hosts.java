@@ -736,6 +736,15 @@ public class Hosts {
     
   }
   
+  /**
+   * Register a header type for messages sent on the membership channel.
+   * 
+   * @return the name under which headers of this type are put on messages
+   */
+  public static <T extends Header> String registerHeader( final Class<T> header ) {
+    return HostManager.registerHeader( header );
+  }
+  
   public static Address getLocalGroupAddress( ) {
     return HostManager.getMembershipChannel( ).getAddress( );
   }
@@ -75,31 +75,27 @@ public abstract class ServiceJarDiscovery implements Comparable<ServiceJarDiscov
   private static Logger                         LOG       = Logger.getLogger( ServiceJarDiscovery.class );
   private static SortedSet<ServiceJarDiscovery> discovery = Sets.newTreeSet( );
   private static Multimap<Class, String>        classList = ArrayListMultimap.create( );
+  private static int                            indexedJars;
   
   enum JarFilePass {
     CLASSES {
       @Override
       public void process( File f ) throws Exception {
         final JarFile jar = new JarFile( f );
-        final Properties props = new Properties( );
-        final List<JarEntry> jarList = Collections.list( jar.entries( ) );
         LOG.trace( "-> Trying to load component info from " + f.getAbsolutePath( ) );
-        for ( final JarEntry j : jarList ) {
-          try {
-            if ( j.getName( ).matches( ".*\\.class.{0,1}" ) ) {
-              handleClassFile( f, j );
-            }
-          } catch ( RuntimeException ex ) {
-            LOG.error( ex, ex );
-            jar.close( );
-            throw ex;
+        try {
+          for ( final String className : classNames( jar ) ) {
+            handleClassFile( f, className );
           }
+        } catch ( RuntimeException ex ) {
+          LOG.error( ex, ex );
+          throw ex;
+        } finally {
+          jar.close( );
         }
-        jar.close( );
       }
       
-      private void handleClassFile( final File f, final JarEntry j ) throws IOException, RuntimeException {
-        final String classGuess = j.getName( ).replaceAll( "/", "." ).replaceAll( "\\.class.{0,1}", "" );
+      private void handleClassFile( final File f, final String classGuess ) throws IOException, RuntimeException {
         try {
           final Class candidate = ClassLoader.getSystemClassLoader( ).loadClass( classGuess );
           classList.put( candidate, f.getAbsolutePath( ) );
@@ -261,7 +257,31 @@ public abstract class ServiceJarDiscovery implements Comparable<ServiceJarDiscov
     return this.getDistinctPriority( ).compareTo( that.getDistinctPriority( ) );
   }
   
+  /**
+   * The names of the classes in the jar which discovery should consider: those listed in its
+   * {@link DiscoveryIndex} or, if it has none, every class in the jar.
+   */
+  public static List<String> classNames( final JarFile jar ) throws IOException {
+    final List<String> indexed = DiscoveryIndex.candidates( jar );
+    if ( indexed != null ) {
+      indexedJars++;
+      return indexed;
+    } else {
+      final List<String> classNames = Lists.newArrayList( );
+      for ( final JarEntry j : Collections.list( jar.entries( ) ) ) {
+        final String className = DiscoveryIndex.className( j.getName( ) );
+        if ( className != null ) {
+          classNames.add( className );
+        }
+      }
+      LOG.debug( "No discovery index, scanning all classes: " + jar.getName( ) );
+      return classNames;
+    }
+  }
+  
   public static void processLibraries( ) {
+    final long start = System.currentTimeMillis( );
+    indexedJars = 0;
     final File libDir = new File( BaseDirectory.LIB.toString( ) );
     for ( final File f : libDir.listFiles( ) ) {
       if ( f.getName( ).startsWith( "eucalyptus" ) && f.getName( ).endsWith( ".jar" )
@@ -275,6 +295,8 @@ public abstract class ServiceJarDiscovery implements Comparable<ServiceJarDiscov
         }
       }
     }
+    LOG.info( "Loaded " + classList.keySet( ).size( ) + " classes for discovery (" + indexedJars + " indexed jars) in "
+              + ( System.currentTimeMillis( ) - start ) + "ms" );
   }
   
   public static URLClassLoader makeClassLoader( final File libDir ) {
@@ -327,15 +349,12 @@ public abstract class ServiceJarDiscovery implements Comparable<ServiceJarDiscov
 //        LOG.trace( "Found eucalyptus component jar: " + f.getName( ) );
         try {
           final JarFile jar = new JarFile( f );
-          for ( final JarEntry j : Collections.list( jar.entries( ) ) ) {
-            if ( j.getName( ).matches( ".*\\.class.{0,1}" ) ) {
-              final String classGuess = j.getName( ).replaceAll( "/", "." ).replaceAll( "\\.class.{0,1}", "" );
-              try {
-                final Class candidate = ClassLoader.getSystemClassLoader( ).loadClass( classGuess );
-                classList.add( candidate );
-              } catch ( final ClassNotFoundException e ) {
-//                LOG.trace( e, e );
-              }
+          for ( final String classGuess : classNames( jar ) ) {
+            try {
+              final Class candidate = ClassLoader.getSystemClassLoader( ).loadClass( classGuess );
+              classList.add( candidate );
+            } catch ( final ClassNotFoundException e ) {
+//              LOG.trace( e, e );
             }
           }
           jar.close( );
@@ -83,6 +83,7 @@ import com.eucalyptus.util.Internets;
 import com.eucalyptus.util.fsm.Automata;
 import com.eucalyptus.util.fsm.StateMachine;
 import com.eucalyptus.util.fsm.TransitionException;
+import com.eucalyptus.ws.client.ChannelPools;
 import com.google.common.base.Function;
 import com.google.common.base.Functions;
 import com.google.common.base.Joiner;
@@ -239,6 +240,7 @@ public class Component implements HasName<Component> {
         EventRecord.caller( Component.class, EventType.COMPONENT_SERVICE_DESTROY, this.getName( ), configuration.getFullName( ),
                             ServiceUris.remote( configuration ).toASCIIString( ) ).info( );
         this.serviceRegistry.deregister( configuration );
+        ChannelPools.evict( configuration );
       } catch ( Exception ex ) {
         throw new ServiceRegistrationException( "Failed to destroy service: " + configuration
                                                 + " because of: "
@@ -108,6 +108,7 @@ import com.eucalyptus.util.async.Futures;
 import com.eucalyptus.util.fsm.Automata;
 import com.eucalyptus.util.fsm.TransitionAction;
 import com.eucalyptus.util.fsm.TransitionRecord;
+import com.eucalyptus.ws.client.ChannelPools;
 import com.google.common.base.Function;
 import com.google.common.base.Joiner;
 import com.google.common.base.Predicate;
@@ -568,6 +569,7 @@ public class ServiceTransitions {
         } catch ( Exception ex ) {
           LOG.error( ex, ex );
         }
+        ChannelPools.evict( parent );
       }
     };
     private static Function<TransitionActions, ServiceTransitionCallback> mapper = new Function<TransitionActions, ServiceTransitionCallback>( ) {
@@ -781,6 +783,7 @@ public class ServiceTransitions {
         } catch ( Exception ex ) {
           Logs.extreme( ).error( ex, ex );
         }
+        ChannelPools.evict( parent );
       }
     };
     
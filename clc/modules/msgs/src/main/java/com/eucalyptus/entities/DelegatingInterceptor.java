@@ -65,14 +65,26 @@ package com.eucalyptus.entities;
 
 import java.io.Serializable;
 import java.util.Iterator;
+import java.util.Map;
+import org.apache.log4j.Logger;
 import org.hibernate.CallbackException;
 import org.hibernate.EntityMode;
 import org.hibernate.Interceptor;
 import org.hibernate.Transaction;
+import org.hibernate.collection.PersistentCollection;
 import org.hibernate.type.Type;
+import com.eucalyptus.records.Logs;
+import com.google.common.collect.Maps;
 
 public class DelegatingInterceptor implements Interceptor {
-  private final Interceptor interceptor;
+  private static Logger               LOG       = Logger.getLogger( DelegatingInterceptor.class );
+  private final Interceptor           interceptor;
+  private TransactionProfiler.Profile profile;
+  /**
+   * {@link CommitListener} entities changed in the current transaction, mapped to whether they
+   * were deleted.
+   */
+  private final Map<Object, Boolean>  listeners = Maps.newIdentityHashMap( );
   
   public DelegatingInterceptor( ) {
     this.interceptor = Interceptors.get( );
@@ -83,31 +95,70 @@ public class DelegatingInterceptor implements Interceptor {
     this.interceptor = interceptor;
   }
   
+  /**
+   * @return the previous profile
+   */
+  TransactionProfiler.Profile setProfile( TransactionProfiler.Profile profile ) {
+    TransactionProfiler.Profile previous = this.profile;
+    this.profile = profile;
+    return previous;
+  }
+  
+  private void changed( final Object entity, final boolean deleted ) {
+    if ( entity instanceof CommitListener ) {
+      this.listeners.put( entity, deleted || Boolean.TRUE.equals( this.listeners.get( entity ) ) );
+    }
+  }
+  
+  private void changedCollection( final Object collection ) {
+    if ( collection instanceof PersistentCollection ) {
+      this.changed( ( ( PersistentCollection ) collection ).getOwner( ), false );
+    }
+  }
+  
   public boolean onLoad( Object entity, Serializable id, Object[] state, String[] propertyNames, Type[] types ) throws CallbackException {
+    if ( this.profile != null ) {
+      this.profile.loaded( );
+    }
     return this.interceptor.onLoad( entity, id, state, propertyNames, types );
   }
   
   public boolean onFlushDirty( Object entity, Serializable id, Object[] currentState, Object[] previousState, String[] propertyNames, Type[] types ) throws CallbackException {
+    if ( this.profile != null ) {
+      this.profile.flushed( );
+    }
+    this.changed( entity, false );
     return this.interceptor.onFlushDirty( entity, id, currentState, previousState, propertyNames, types );
   }
   
   public boolean onSave( Object entity, Serializable id, Object[] state, String[] propertyNames, Type[] types ) throws CallbackException {
+    if ( this.profile != null ) {
+      this.profile.flushed( );
+    }
+    this.changed( entity, false );
     return this.interceptor.onSave( entity, id, state, propertyNames, types );
   }
   
   public void onDelete( Object entity, Serializable id, Object[] state, String[] propertyNames, Type[] types ) throws CallbackException {
+    if ( this.profile != null ) {
+      this.profile.flushed( );
+    }
+    this.changed( entity, true );
     this.interceptor.onDelete( entity, id, state, propertyNames, types );
   }
   
   public void onCollectionRecreate( Object collection, Serializable key ) throws CallbackException {
+    this.changedCollection( collection );
     this.interceptor.onCollectionRecreate( collection, key );
   }
   
   public void onCollectionRemove( Object collection, Serializable key ) throws CallbackException {
+    this.changedCollection( collection );
     this.interceptor.onCollectionRemove( collection, key );
   }
   
   public void onCollectionUpdate( Object collection, Serializable key ) throws CallbackException {
+    this.changedCollection( collection );
     this.interceptor.onCollectionUpdate( collection, key );
   }
   
@@ -148,10 +199,29 @@ public class DelegatingInterceptor implements Interceptor {
   }
   
   public void afterTransactionCompletion( Transaction tx ) {
-    this.interceptor.afterTransactionCompletion( tx );
+    try {
+      this.interceptor.afterTransactionCompletion( tx );
+    } finally {
+      final Map<Object, Boolean> changed = Maps.newIdentityHashMap( );
+      changed.putAll( this.listeners );
+      this.listeners.clear( );
+      if ( tx.wasCommitted( ) ) {
+        for ( final Map.Entry<Object, Boolean> entry : changed.entrySet( ) ) {
+          try {
+            ( ( CommitListener ) entry.getKey( ) ).afterCommit( entry.getValue( ) );
+          } catch ( final RuntimeException ex ) {
+            LOG.error( "Commit listener failed for " + entry.getKey( ).getClass( ).getSimpleName( ) + ": " + ex.getMessage( ) );
+            Logs.extreme( ).error( ex, ex );
+          }
+        }
+      }
+    }
   }
   
   public String onPrepareStatement( String sql ) {
+    if ( this.profile != null ) {
+      this.profile.prepared( sql );
+    }
     return this.interceptor.onPrepareStatement( sql );
   }
   
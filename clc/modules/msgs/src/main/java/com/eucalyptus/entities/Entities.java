@@ -112,6 +112,15 @@ public class Entities {
   @ConfigurableField( description = "Maximum number of times a transaction may be retried before giving up.",
                       initial = "5" )
   public static Integer                                          CONCURRENT_UPDATE_RETRIES = 10;
+  @ConfigurableField( description = "Record per call site transaction statistics (exported through JMX).",
+                      initial = "true" )
+  public static Boolean                                          PROFILE_TRANSACTIONS      = Boolean.TRUE;
+  @ConfigurableField( description = "Profile one in this many transactions; the recorded counts are scaled up accordingly.",
+                      initial = "100" )
+  public static Integer                                          PROFILE_SAMPLE_RATE       = 100;
+  @ConfigurableField( description = "Number of times a transaction may prepare the same statement before it is reported as repeating it.",
+                      initial = "10" )
+  public static Integer                                          PROFILE_REPEATED_STATEMENTS = 10;
   private static ConcurrentMap<String, String>                   txLog                     = new MapMaker( ).softKeys( ).softValues( ).makeMap( );
   private static Logger                                          LOG                       = Logger.getLogger( Entities.class );
   private static ThreadLocal<String>                             txRootThreadLocal         = new ThreadLocal<String>( );
@@ -744,6 +753,9 @@ public class Entities {
       }
       
       private void doCleanup( ) {
+        if ( this.sessionRef != null ) {
+          TransactionProfiler.end( this.sessionRef.get( ), false );
+        }
         if ( ( this.transaction != null ) && this.transaction.isActive( ) ) {
           this.transaction.rollback( );
         }
@@ -773,6 +785,7 @@ public class Entities {
       public void begin( ) {
         try {
           this.transaction.begin( );
+          TransactionProfiler.begin( this.getSession( ) );
         } catch ( final RuntimeException ex ) {
           LOG.warn( ex );
           Logs.extreme( ).warn( ex, ex );
@@ -788,6 +801,7 @@ public class Entities {
       public void commit( ) {
         try {
           this.transaction.commit( );
+          TransactionProfiler.end( this.getSession( ), true );
         } catch ( final RuntimeException ex ) {
           LOG.trace( ex, ex );
           Logs.extreme( ).warn( ex, ex );
@@ -827,6 +841,8 @@ public class Entities {
           LOG.warn( ex );
           Logs.extreme( ).warn( ex, ex );
           throw ex;
+        } finally {
+          TransactionProfiler.end( this.getSession( ), false );
         }
       }
       
@@ -492,6 +492,7 @@ public class EntityWrapper<TYPE> {
         this.transaction = this.em.getTransaction( );
         this.transaction.begin( );
         this.session = new WeakReference<Session>( ( Session ) this.em.getDelegate( ) );
+        TransactionProfiler.begin( this.session.get( ) );
         this.eventLog( TxStep.END, TxEvent.CREATE );
       } catch ( final Throwable ex ) {
         Logs.exhaust( ).error( ex, ex );
@@ -545,6 +546,9 @@ public class EntityWrapper<TYPE> {
     
     private void cleanup( ) {
       try {
+        if ( this.session != null ) {
+          TransactionProfiler.end( this.session.get( ), false );
+        }
         if ( ( this.transaction != null ) && this.transaction.isActive( ) ) {
           this.transaction.rollback( );
         }
@@ -566,6 +570,7 @@ public class EntityWrapper<TYPE> {
       this.eventLog( TxStep.BEGIN, TxEvent.COMMIT );
       try {
         this.transaction.commit( );
+        TransactionProfiler.end( this.session.get( ), true );
         this.eventLog( TxStep.END, TxEvent.COMMIT );
       } catch ( final RuntimeException e ) {
         this.rollback( );
@@ -0,0 +1,356 @@
+/*******************************************************************************
+ * Copyright (c) 2009  Eucalyptus Systems, Inc.
+ * 
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, only version 3 of the License.
+ * 
+ * 
+ *  This file is distributed in the hope that it will be useful, but WITHOUT
+ *  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ *  FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ *  Please contact Eucalyptus Systems, Inc., 130 Castilian
+ *  Dr., Goleta, CA 93101 USA or visit <http://www.eucalyptus.com/licenses/>
+ *  if you need additional information or have any questions.
+ * 
+ *  This file may incorporate work covered under the following copyright and
+ *  permission notice:
+ * 
+ *    Software License Agreement (BSD License)
+ * 
+ *    Copyright (c) 2008, Regents of the University of California
+ *    All rights reserved.
+ * 
+ *    Redistribution and use of this software in source and binary forms, with
+ *    or without modification, are permitted provided that the following
+ *    conditions are met:
+ * 
+ *      Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * 
+ *      Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ * 
+ *    THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ *    IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ *    TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ *    PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ *    OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *    EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ *    PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ *    PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ *    LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ *    NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *    SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. USERS OF
+ *    THIS SOFTWARE ACKNOWLEDGE THE POSSIBLE PRESENCE OF OTHER OPEN SOURCE
+ *    LICENSED MATERIAL, COPYRIGHTED MATERIAL OR PATENTED MATERIAL IN THIS
+ *    SOFTWARE, AND IF ANY SUCH MATERIAL IS DISCOVERED THE PARTY DISCOVERING
+ *    IT MAY INFORM DR. RICH WOLSKI AT THE UNIVERSITY OF CALIFORNIA, SANTA
+ *    BARBARA WHO WILL THEN ASCERTAIN THE MOST APPROPRIATE REMEDY, WHICH IN
+ *    THE REGENTS' DISCRETION MAY INCLUDE, WITHOUT LIMITATION, REPLACEMENT
+ *    OF THE CODE SO IDENTIFIED, LICENSING OF THE CODE SO IDENTIFIED, OR
+ *    WITHDRAWAL OF THE CODE CAPABILITY TO THE EXTENT NEEDED TO COMPLY WITH
+ *    ANY SUCH LICENSES OR RIGHTS.
+ *******************************************************************************
+ */
+package com.eucalyptus.entities;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.hibernate.Interceptor;
+import org.hibernate.Session;
+import org.hibernate.engine.SessionImplementor;
+import org.hibernate.stat.Statistics;
+import com.eucalyptus.records.Logs;
+import com.eucalyptus.util.Mbeans;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Ordering;
+import com.google.common.primitives.Longs;
+
+/**
+ * Per call site statistics for database transactions, exported through {@link Mbeans}, enabled by
+ * {@link Entities#PROFILE_TRANSACTIONS}.
+ * 
+ * The call site is the first frame outside of the persistence layer (and of the JDK, Hibernate,
+ * Groovy and Guava) when the transaction begins, for both {@link Entities#get(Object)} and
+ * {@link EntityWrapper}. While the transaction runs the session's {@link DelegatingInterceptor}
+ * counts the entities loaded, the entities saved, updated or deleted and the statements prepared.
+ * A transaction which prepares the same statement more than
+ * {@link Entities#PROFILE_REPEATED_STATEMENTS} times (usually a lazy association loaded once per
+ * entity of a list, i.e., N+1 selects) is counted against its call site along with the statement.
+ * 
+ * Second-level cache hits and misses are those counted by the session factory while the
+ * transaction ran, so overlapping transactions share them; the ratio is indicative only.
+ * 
+ * Finding the call site needs a stack trace, so only one in {@link Entities#PROFILE_SAMPLE_RATE}
+ * transactions is profiled and its counts are multiplied by the rate. Totals are estimates;
+ * averages and maxima are those of the sampled transactions.
+ */
+public class TransactionProfiler {
+  private static final TransactionProfiler         instance   = new TransactionProfiler( );
+  private static final ConcurrentMap<String, Site> sites      = new ConcurrentHashMap<String, Site>( );
+  private static final AtomicLong                  begun      = new AtomicLong( );
+  private static final String[]                    FRAMEWORKS = { "java.", "javax.", "sun.", "jdk.", "org.hibernate.", "org.codehaus.groovy.", "groovy.",
+                                                                  "com.google.common.", TransactionProfiler.class.getPackage( ).getName( ) + "." };
+  
+  static {
+    Mbeans.register( instance );
+  }
+  
+  private TransactionProfiler( ) {}
+  
+  /**
+   * The counts for a single transaction, only touched by the thread running it.
+   */
+  static class Profile {
+    private final String               site;
+    private final int                  scale;
+    private final long                 startNanos = System.nanoTime( );
+    private final Statistics           stats;
+    private final long                 cacheHits;
+    private final long                 cacheMisses;
+    private final Map<String, Integer> statements = Maps.newHashMap( );
+    private int                        loaded     = 0;
+    private int                        flushed    = 0;
+    private int                        executed   = 0;
+    private String                     repeated;
+    
+    Profile( final String site, final int scale, final Statistics stats ) {
+      this.site = site;
+      this.scale = scale;
+      this.stats = stats.isStatisticsEnabled( )
+        ? stats
+        : null;
+      this.cacheHits = this.stats != null
+        ? this.stats.getSecondLevelCacheHitCount( )
+        : 0;
+      this.cacheMisses = this.stats != null
+        ? this.stats.getSecondLevelCacheMissCount( )
+        : 0;
+    }
+    
+    void loaded( ) {
+      this.loaded++;
+    }
+    
+    void flushed( ) {
+      this.flushed++;
+    }
+    
+    void prepared( final String sql ) {
+      this.executed++;
+      final Integer count = this.statements.get( sql );
+      final int next = count == null
+        ? 1
+        : count + 1;
+      this.statements.put( sql, next );
+      if ( this.repeated == null && next > Entities.PROFILE_REPEATED_STATEMENTS ) {
+        this.repeated = sql;
+      }
+    }
+  }
+  
+  private static class Site {
+    private final String     name;
+    private final AtomicLong transactions = new AtomicLong( );
+    private final AtomicLong rollbacks    = new AtomicLong( );
+    private final AtomicLong nanos        = new AtomicLong( );
+    private final AtomicLong maxNanos     = new AtomicLong( );
+    private final AtomicLong loaded       = new AtomicLong( );
+    private final AtomicLong flushed      = new AtomicLong( );
+    private final AtomicLong statements   = new AtomicLong( );
+    private final AtomicLong cacheHits    = new AtomicLong( );
+    private final AtomicLong cacheMisses  = new AtomicLong( );
+    private final AtomicLong repeats      = new AtomicLong( );
+    private volatile String  repeated;
+    
+    Site( final String name ) {
+      this.name = name;
+    }
+    
+    void record( final Profile profile, final boolean committed, final long elapsed ) {
+      final long scale = profile.scale;
+      this.transactions.addAndGet( scale );
+      if ( !committed ) {
+        this.rollbacks.addAndGet( scale );
+      }
+      this.nanos.addAndGet( elapsed * scale );
+      for ( long max = this.maxNanos.get( ); elapsed > max && !this.maxNanos.compareAndSet( max, elapsed ); max = this.maxNanos.get( ) );
+      this.loaded.addAndGet( profile.loaded * scale );
+      this.flushed.addAndGet( profile.flushed * scale );
+      this.statements.addAndGet( profile.executed * scale );
+      if ( profile.stats != null ) {
+        this.cacheHits.addAndGet( profile.stats.getSecondLevelCacheHitCount( ) - profile.cacheHits );
+        this.cacheMisses.addAndGet( profile.stats.getSecondLevelCacheMissCount( ) - profile.cacheMisses );
+      }
+      if ( profile.repeated != null ) {
+        this.repeats.addAndGet( scale );
+        this.repeated = profile.repeated;
+      }
+    }
+    
+    @Override
+    public String toString( ) {
+      final long count = Math.max( 1, this.transactions.get( ) );
+      final long lookups = this.cacheHits.get( ) + this.cacheMisses.get( );
+      return String.format( "%s tx=%d rollback=%d avg-ms=%.3f max-ms=%.3f loaded=%d flushed=%d statements=%d cache-hit=%s repeating-tx=%d",
+                            this.name, this.transactions.get( ), this.rollbacks.get( ),
+                            this.nanos.get( ) / 1000000.0 / count, this.maxNanos.get( ) / 1000000.0,
+                            this.loaded.get( ), this.flushed.get( ), this.statements.get( ),
+                            lookups > 0
+                              ? String.format( "%.1f%%", 100.0 * this.cacheHits.get( ) / lookups )
+                              : "n/a",
+                            this.repeats.get( ) );
+    }
+  }
+  
+  /**
+   * Start profiling the transaction which has just begun on the session, if it is sampled.
+   */
+  static void begin( final Session session ) {
+    if ( !Entities.PROFILE_TRANSACTIONS || session == null ) {
+      return;
+    }
+    final int rate = Math.max( 1, Entities.PROFILE_SAMPLE_RATE == null ? 1 : Entities.PROFILE_SAMPLE_RATE );
+    if ( begun.incrementAndGet( ) % rate != 0 ) {
+      return;
+    }
+    try {
+      final DelegatingInterceptor interceptor = interceptor( session );
+      if ( interceptor != null ) {
+        interceptor.setProfile( new Profile( site( ), rate, session.getSessionFactory( ).getStatistics( ) ) );
+      }
+    } catch ( final RuntimeException ex ) {
+      Logs.extreme( ).debug( ex, ex );
+    }
+  }
+  
+  /**
+   * Record the transaction on the session, if it was profiled; later calls for the same
+   * transaction are ignored.
+   */
+  static void end( final Session session, final boolean committed ) {
+    if ( session == null ) {
+      return;
+    }
+    try {
+      final DelegatingInterceptor interceptor = interceptor( session );
+      final Profile profile = interceptor != null
+        ? interceptor.setProfile( null )
+        : null;
+      if ( profile != null ) {
+        final long elapsed = System.nanoTime( ) - profile.startNanos;
+        Site site = sites.get( profile.site );
+        if ( site == null ) {
+          final Site newSite = new Site( profile.site );
+          site = sites.putIfAbsent( profile.site, newSite );
+          site = site == null
+            ? newSite
+            : site;
+        }
+        site.record( profile, committed, elapsed );
+      }
+    } catch ( final RuntimeException ex ) {
+      Logs.extreme( ).debug( ex, ex );
+    }
+  }
+  
+  private static DelegatingInterceptor interceptor( final Session session ) {
+    if ( session instanceof SessionImplementor ) {
+      final Interceptor interceptor = ( ( SessionImplementor ) session ).getInterceptor( );
+      return interceptor instanceof DelegatingInterceptor
+        ? ( DelegatingInterceptor ) interceptor
+        : null;
+    } else {
+      return null;
+    }
+  }
+  
+  private static String site( ) {
+    for ( final StackTraceElement ste : Thread.currentThread( ).getStackTrace( ) ) {
+      if ( !isFramework( ste.getClassName( ) ) ) {
+        return ste.toString( );
+      }
+    }
+    return "unknown";
+  }
+  
+  private static boolean isFramework( final String className ) {
+    for ( final String prefix : FRAMEWORKS ) {
+      if ( className.startsWith( prefix ) ) {
+        return true;
+      }
+    }
+    return false;
+  }
+  
+  private static List<Site> bySite( final Ordering<Site> ordering ) {
+    return ordering.sortedCopy( sites.values( ) );
+  }
+  
+  private static final Ordering<Site> BY_STATEMENTS = new Ordering<Site>( ) {
+                                                      @Override
+                                                      public int compare( final Site left, final Site right ) {
+                                                        return Longs.compare( right.statements.get( ), left.statements.get( ) );
+                                                      }
+                                                    };
+  
+  /**
+   * @return one line per call site, the sites issuing the most statements first
+   */
+  public String[] getCallSites( ) {
+    final List<String> lines = Lists.newArrayList( );
+    for ( final Site site : bySite( BY_STATEMENTS ) ) {
+      lines.add( site.toString( ) );
+    }
+    return lines.toArray( new String[lines.size( )] );
+  }
+  
+  /**
+   * @return the call sites with transactions repeating a statement, and the last statement repeated
+   */
+  public String[] getRepeatedStatements( ) {
+    final List<String> lines = Lists.newArrayList( );
+    for ( final Site site : bySite( BY_STATEMENTS ) ) {
+      if ( site.repeats.get( ) > 0 ) {
+        lines.add( String.format( "%s repeating-tx=%d %s", site.name, site.repeats.get( ), site.repeated ) );
+      }
+    }
+    return lines.toArray( new String[lines.size( )] );
+  }
+  
+  public long getTransactions( ) {
+    long total = 0;
+    for ( final Site site : sites.values( ) ) {
+      total += site.transactions.get( );
+    }
+    return total;
+  }
+  
+  public long getStatements( ) {
+    long total = 0;
+    for ( final Site site : sites.values( ) ) {
+      total += site.statements.get( );
+    }
+    return total;
+  }
+  
+  public void reset( ) {
+    sites.clear( );
+  }
+  
+  @Override
+  public String toString( ) {
+    return String.format( "TransactionProfiler:sites=%d:transactions=%d:statements=%d", sites.size( ), this.getTransactions( ), this.getStatements( ) );
+  }
+}
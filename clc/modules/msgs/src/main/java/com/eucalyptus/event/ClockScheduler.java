@@ -0,0 +1,324 @@
+/*******************************************************************************
+ *Copyright (c) 2009  Eucalyptus Systems, Inc.
+ * 
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, only version 3 of the License.
+ * 
+ * 
+ *  This file is distributed in the hope that it will be useful, but WITHOUT
+ *  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ *  FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ *  Please contact Eucalyptus Systems, Inc., 130 Castilian
+ *  Dr., Goleta, CA 93101 USA or visit <http://www.eucalyptus.com/licenses/>
+ *  if you need additional information or have any questions.
+ * 
+ *  This file may incorporate work covered under the following copyright and
+ *  permission notice:
+ * 
+ *    Software License Agreement (BSD License)
+ * 
+ *    Copyright (c) 2008, Regents of the University of California
+ *    All rights reserved.
+ * 
+ *    Redistribution and use of this software in source and binary forms, with
+ *    or without modification, are permitted provided that the following
+ *    conditions are met:
+ * 
+ *      Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * 
+ *      Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ * 
+ *    THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ *    IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ *    TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ *    PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ *    OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *    EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ *    PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ *    PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ *    LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ *    NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *    SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. USERS OF
+ *    THIS SOFTWARE ACKNOWLEDGE THE POSSIBLE PRESENCE OF OTHER OPEN SOURCE
+ *    LICENSED MATERIAL, COPYRIGHTED MATERIAL OR PATENTED MATERIAL IN THIS
+ *    SOFTWARE, AND IF ANY SUCH MATERIAL IS DISCOVERED THE PARTY DISCOVERING
+ *    IT MAY INFORM DR. RICH WOLSKI AT THE UNIVERSITY OF CALIFORNIA, SANTA
+ *    BARBARA WHO WILL THEN ASCERTAIN THE MOST APPROPRIATE REMEDY, WHICH IN
+ *    THE REGENTS' DISCRETION MAY INCLUDE, WITHOUT LIMITATION, REPLACEMENT
+ *    OF THE CODE SO IDENTIFIED, LICENSING OF THE CODE SO IDENTIFIED, OR
+ *    WITHDRAWAL OF THE CODE CAPABILITY TO THE EXTENT NEEDED TO COMPLY WITH
+ *    ANY SUCH LICENSES OR RIGHTS.
+ *******************************************************************************
+ */
+package com.eucalyptus.event;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
+import com.eucalyptus.bootstrap.Databases;
+import com.eucalyptus.empyrean.Empyrean;
+import com.eucalyptus.records.Logs;
+import com.eucalyptus.system.Threads;
+import com.eucalyptus.system.Threads.ThreadPool;
+import com.eucalyptus.util.Exceptions;
+import com.eucalyptus.util.Mbeans;
+import com.eucalyptus.ws.server.LatencyHistogram;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Ordering;
+import com.google.common.collect.Sets;
+
+/**
+ * Delivers the periodic {@link Hertz} and {@link ClockTick} events from a hashed timing wheel.
+ * 
+ * Each event source is a timeout on the wheel which creates the event and offers it to every
+ * listener registered for its type in the {@link ListenerRegistry}. Every listener runs on its own
+ * single threaded executor, so a slow or hung listener only delays itself: an event offered while
+ * the listener is still handling an earlier one is dropped and counted as an overrun. Listeners
+ * may ask for a longer period or a start jitter using {@link ClockSchedule}. Run times, overruns
+ * and failures are kept per listener and exported through {@link Mbeans}.
+ */
+public class ClockScheduler {
+  private static Logger                                                                  LOG             = Logger.getLogger( ClockScheduler.class );
+  private static final long                                                              TICK_MILLIS     = 50L;
+  private static final int                                                               TICKS_PER_WHEEL = 512;
+  private static final ClockScheduler                                                    instance        = new ClockScheduler( );
+  private static final ConcurrentMap<Class<? extends Event>, Map<EventListener, Schedule>> schedules       = new ConcurrentHashMap<Class<? extends Event>, Map<EventListener, Schedule>>( );
+  private static final AtomicLong                                                        overruns        = new AtomicLong( );
+  private static volatile HashedWheelTimer                                               timer;
+  
+  static {
+    Mbeans.register( instance );
+  }
+  
+  private ClockScheduler( ) {}
+  
+  /**
+   * Creates the events of one type.
+   */
+  public interface Source {
+    Class<? extends Event> getType( );
+    
+    /**
+     * @return the period in milliseconds, read before scheduling each event
+     */
+    long getPeriod( );
+    
+    Event next( );
+  }
+  
+  public static synchronized void start( final Source... sources ) {
+    if ( timer == null ) {
+      timer = new HashedWheelTimer( Threads.lookup( Empyrean.class, ClockScheduler.class ), TICK_MILLIS, TimeUnit.MILLISECONDS, TICKS_PER_WHEEL );
+      for ( final Source source : sources ) {
+        new SourceTask( source ).schedule( );
+      }
+    }
+  }
+  
+  public static synchronized void stop( ) {
+    if ( timer != null ) {
+      timer.stop( );
+      timer = null;
+      for ( final Map<EventListener, Schedule> listeners : schedules.values( ) ) {
+        for ( final Schedule schedule : listeners.values( ) ) {
+          schedule.retire( );
+        }
+        listeners.clear( );
+      }
+    }
+  }
+  
+  private static class SourceTask implements TimerTask {
+    private final Source source;
+    private long         deadline = System.currentTimeMillis( );
+    
+    SourceTask( final Source source ) {
+      this.source = source;
+    }
+    
+    /**
+     * Schedule at a fixed rate: the next deadline is relative to the previous one rather than to
+     * the time this event was delivered.
+     */
+    void schedule( ) {
+      final HashedWheelTimer current = timer;
+      if ( current != null ) {
+        final long now = System.currentTimeMillis( );
+        this.deadline = Math.max( this.deadline + this.source.getPeriod( ), now );
+        current.newTimeout( this, this.deadline - now, TimeUnit.MILLISECONDS );
+      }
+    }
+    
+    @Override
+    public void run( final Timeout timeout ) {
+      try {
+        if ( !Databases.isVolatile( ) ) {
+          dispatch( this.source.getType( ), this.source.next( ) );
+        }
+      } catch ( final Exception ex ) {
+        LOG.error( ex, ex );
+      } finally {
+        if ( !timeout.isCancelled( ) ) {
+          this.schedule( );
+        }
+      }
+    }
+  }
+  
+  /**
+   * Only ever called from the timer's worker thread.
+   */
+  private static void dispatch( final Class<? extends Event> type, final Event event ) {
+    Map<EventListener, Schedule> listeners = schedules.get( type );
+    if ( listeners == null ) {
+      schedules.putIfAbsent( type, new ConcurrentHashMap<EventListener, Schedule>( ) );
+      listeners = schedules.get( type );
+    }
+    final List<EventListener> registered = ListenerRegistry.getInstance( ).getListeners( type );
+    for ( final EventListener listener : registered ) {
+      Schedule schedule = listeners.get( listener );
+      if ( schedule == null ) {
+        listeners.put( listener, schedule = new Schedule( type, listener ) );
+      }
+      schedule.offer( event );
+    }
+    if ( listeners.size( ) > registered.size( ) ) {
+      for ( final EventListener listener : Sets.newHashSet( Sets.difference( listeners.keySet( ), Sets.newHashSet( registered ) ) ) ) {
+        listeners.remove( listener ).retire( );
+      }
+    }
+  }
+  
+  /**
+   * The delivery state of one listener for one event type.
+   */
+  private static class Schedule {
+    private static final Random    random       = new Random( );
+    private final String           name;
+    private final EventListener    listener;
+    private final long             period;
+    private final long             jitter;
+    private final ThreadPool       executor;
+    private final AtomicBoolean    running      = new AtomicBoolean( false );
+    private final LatencyHistogram runTime      = new LatencyHistogram( );
+    private final AtomicLong       overruns     = new AtomicLong( );
+    private final AtomicLong       failures     = new AtomicLong( );
+    private final AtomicLong       consecutive  = new AtomicLong( );
+    private volatile long          lastOffered  = 0L;
+    
+    Schedule( final Class<? extends Event> type, final EventListener listener ) {
+      final ClockSchedule hints = listener.getClass( ).getAnnotation( ClockSchedule.class );
+      this.name = type.getSimpleName( ) + ":" + listener.getClass( ).getSimpleName( ) + "@" + Integer.toHexString( System.identityHashCode( listener ) );
+      this.listener = listener;
+      this.period = ( hints == null ? 0L : hints.period( ) );
+      this.jitter = ( hints == null ? 0L : hints.jitter( ) );
+      this.executor = Threads.lookup( Empyrean.class, ClockScheduler.class, this.name ).limitTo( 1 );
+    }
+    
+    void offer( final Event event ) {
+      final long now = System.currentTimeMillis( );
+      if ( this.period > 0 && now - this.lastOffered < this.period ) {
+        return;
+      } else if ( !this.running.compareAndSet( false, true ) ) {
+        ClockScheduler.overruns.incrementAndGet( );
+        this.overruns.incrementAndGet( );
+        if ( this.consecutive.incrementAndGet( ) == 1 ) {
+          LOG.warn( "Skipping " + event.getClass( ).getSimpleName( ) + " for " + this.name + ": still handling the previous event" );
+        }
+        return;
+      }
+      this.lastOffered = now;
+      final HashedWheelTimer current = timer;
+      if ( this.jitter > 0 && current != null ) {
+        current.newTimeout( new TimerTask( ) {
+          @Override
+          public void run( final Timeout timeout ) {
+            Schedule.this.submit( event );
+          }
+        }, ( long ) ( random.nextDouble( ) * this.jitter ), TimeUnit.MILLISECONDS );
+      } else {
+        this.submit( event );
+      }
+    }
+    
+    private void submit( final Event event ) {
+      try {
+        this.executor.execute( new Runnable( ) {
+          @Override
+          public void run( ) {
+            Schedule.this.run( event );
+          }
+        } );
+      } catch ( final RejectedExecutionException ex ) {
+        this.running.set( false );
+      }
+    }
+    
+    private void run( final Event event ) {
+      final long start = System.nanoTime( );
+      try {
+        this.listener.fireEvent( event );
+      } catch ( final Exception ex ) {
+        this.failures.incrementAndGet( );
+        Logs.extreme( ).error( ex, ex );
+        LOG.error( "Failed to fire event: listener=" + this.name + " event=" + event + " because of: " + Exceptions.causeString( ex ) );
+      } finally {
+        this.runTime.record( System.nanoTime( ) - start );
+        final long skipped = this.consecutive.getAndSet( 0L );
+        if ( skipped > 0 ) {
+          LOG.warn( "Completed " + this.name + " after skipping " + skipped + " events; the run took "
+                    + TimeUnit.NANOSECONDS.toMillis( System.nanoTime( ) - start ) + "ms" );
+        }
+        this.running.set( false );
+      }
+    }
+    
+    void retire( ) {
+      this.executor.shutdown( );
+    }
+    
+    @Override
+    public String toString( ) {
+      return this.name + " running=" + this.running.get( ) + " overruns=" + this.overruns.get( ) + " failures=" + this.failures.get( ) + " "
+             + this.runTime;
+    }
+  }
+  
+  public long getOverruns( ) {
+    return overruns.get( );
+  }
+  
+  public String[] getListeners( ) {
+    final List<String> lines = Lists.newArrayList( );
+    for ( final Map<EventListener, Schedule> listeners : schedules.values( ) ) {
+      for ( final Schedule schedule : listeners.values( ) ) {
+        lines.add( schedule.toString( ) );
+      }
+    }
+    return Ordering.natural( ).sortedCopy( lines ).toArray( new String[lines.size( )] );
+  }
+  
+  @Override
+  public String toString( ) {
+    return "ClockScheduler:overruns=" + this.getOverruns( );
+  }
+}
@@ -139,6 +139,13 @@ public class ListenerRegistry {
     this.eventMap.fireEvent( e.getClass( ), e );
   }
   
+  /**
+   * @return a snapshot of the listeners currently registered for the given event type
+   */
+  public List<EventListener> getListeners( final Class<? extends Event> type ) {
+    return this.eventMap.getListeners( type );
+  }
+  
   @SuppressWarnings( "unchecked" )
   public void fireEvent( final Object type, final Event e ) throws EventFailedException {
     if ( !this.registryMap.containsKey( type.getClass( ) ) ) {
@@ -221,15 +228,17 @@ public class ListenerRegistry {
       }
     }
     
-    public void fireEvent( T type, Event e ) throws EventFailedException {
-      List<EventListener> listeners;
+    public List<EventListener> getListeners( T type ) {
       this.modificationLock.lock( );
       try {
-        listeners = Lists.newArrayList( this.listenerMap.get( type ) );
+        return Lists.newArrayList( this.listenerMap.get( type ) );
       } finally {
         this.modificationLock.unlock( );
       }
-      this.fireEvent( e, listeners );
+    }
+    
+    public void fireEvent( T type, Event e ) throws EventFailedException {
+      this.fireEvent( e, this.getListeners( type ) );
     }
     
     private void fireEvent( Event e, List<EventListener> listeners ) throws EventFailedException {
@@ -62,13 +62,10 @@
  */
 package com.eucalyptus.event;
 
-import java.lang.Thread.UncaughtExceptionHandler;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.log4j.Logger;
 import com.eucalyptus.bootstrap.Bootstrap;
 import com.eucalyptus.bootstrap.Bootstrapper;
-import com.eucalyptus.bootstrap.Databases;
 import com.eucalyptus.bootstrap.OrderedShutdown;
 import com.eucalyptus.bootstrap.Provides;
 import com.eucalyptus.bootstrap.RunDuring;
@@ -79,92 +76,96 @@ import com.eucalyptus.configurable.ConfigurablePropertyException;
 import com.eucalyptus.configurable.PropertyChangeListener;
 import com.eucalyptus.empyrean.Empyrean;
 
+/**
+ * Periodic {@link ClockTick} (every {@link #RATE} milliseconds) and {@link Hertz} (every second)
+ * events, delivered to their listeners by the {@link ClockScheduler}.
+ */
 @ConfigurableClass( root = "bootstrap.timer",
                     description = "Parameters controlling the system timer." )
-public class SystemClock extends TimerTask implements UncaughtExceptionHandler {
+public class SystemClock {
   private static Logger      LOG   = Logger.getLogger( SystemClock.class );
   
   @ConfigurableField( description = "Amount of time (in milliseconds) before a previously running instance which is not reported will be marked as terminated.",
                       initial = "60", changeListener=ClockRateChangeListener.class )
   public static Long         RATE  = 10000L;
   
-  private static SystemClock clock;
-  private static Timer       timer;
-  private static Timer       hzTimer;
-  private static HzClock     hertz;
-  private int                phase = 0;
+  private static boolean     started = false;
   
   public static class ClockRateChangeListener implements PropertyChangeListener {
     @Override
     public void fireChange( ConfigurableProperty t, Object newValue ) throws ConfigurablePropertyException {
       try {
         RATE = Long.parseLong( ( String ) newValue );
-        hzTimer.cancel( );
-        timer.cancel( );
-        setupTimer( );
       } catch ( Exception ex ) {
         LOG.error( ex , ex );
       }
     }
   }
   
-  public SystemClock( ) {
-    super( );
-  }
-  
   public static long getRate( ) {
     return RATE;
   }
   
   public static void setupTimer( ) {
     synchronized ( SystemClock.class ) {
-      if ( timer == null ) {
-        timer = new Timer( "SystemClockTimer" );
-        hzTimer = new Timer( "SystemHzTimer" );
-        clock = new SystemClock( );
-        hertz = new HzClock( );
+      if ( !started ) {
+        started = true;
         ListenerRegistry.getInstance( ).register( ClockTick.class, new Dummy( ) );
         ListenerRegistry.getInstance( ).register( Hertz.class, new Dummy( ) );
-        timer.scheduleAtFixedRate( clock, 0, RATE );//TODO: make configurable
-        hzTimer.scheduleAtFixedRate( hertz, 0, 1000 );
-        OrderedShutdown.registerPreShutdownHook( new Runnable( ) {
-          @Override
-          public void run( ) {
-            timer.cancel( );
-          }
-        } );
+        ClockScheduler.start( new ClockTickSource( ), new HertzSource( ) );
         OrderedShutdown.registerPreShutdownHook( new Runnable( ) {
-          
           @Override
           public void run( ) {
-            hzTimer.cancel( );
+            ClockScheduler.stop( );
           }
         } );
       }
     }
   }
   
-  @Override
-  public void run( ) {
-    Thread.currentThread( ).setUncaughtExceptionHandler( ( UncaughtExceptionHandler ) this );
-    if ( !Databases.isVolatile( ) ) {
-      try {
-        long sign = ( long ) ( Math.pow( -1f, ( float ) ( ++phase % 2 ) ) );
-        ListenerRegistry.getInstance( ).fireEvent( new ClockTick( ).setMessage( sign * System.currentTimeMillis( ) ) );
-      } catch ( EventFailedException e ) {} catch ( Exception t ) {
-        LOG.error( t, t );
-      }
+  /**
+   * Alternates the sign of the tick so that listeners can tell {@link ClockTick#isBackEdge()}.
+   */
+  private static class ClockTickSource implements ClockScheduler.Source {
+    private final AtomicInteger phase = new AtomicInteger( 0 );
+    
+    @Override
+    public Class<? extends Event> getType( ) {
+      return ClockTick.class;
+    }
+    
+    @Override
+    public long getPeriod( ) {
+      return RATE;
+    }
+    
+    @Override
+    public Event next( ) {
+      long sign = ( phase.incrementAndGet( ) % 2 == 0 ? 1l : -1l );
+      return new ClockTick( ).setMessage( sign * System.currentTimeMillis( ) );
     }
   }
   
-  public static class Dummy implements EventListener {
+  private static class HertzSource implements ClockScheduler.Source {
     @Override
-    public void fireEvent( Event event ) {}
+    public Class<? extends Event> getType( ) {
+      return Hertz.class;
+    }
+    
+    @Override
+    public long getPeriod( ) {
+      return 1000L;
+    }
+    
+    @Override
+    public Event next( ) {
+      return new Hertz( );
+    }
   }
   
-  @Override
-  public void uncaughtException( Thread t, Throwable e ) {
-    LOG.fatal( e, e );
+  public static class Dummy implements EventListener {
+    @Override
+    public void fireEvent( Event event ) {}
   }
   
   @Provides( Empyrean.class )
@@ -208,24 +209,4 @@ public class SystemClock extends TimerTask implements UncaughtExceptionHandler {
     
   }
   
-  public static class HzClock extends TimerTask implements UncaughtExceptionHandler {
-    private int phase = 0;
-    
-    @Override
-    public void uncaughtException( Thread thread, Throwable t ) {
-      LOG.error( t, t );
-    }
-    
-    public void run( ) {
-      if ( !Databases.isVolatile( ) ) {
-        Thread.currentThread( ).setUncaughtExceptionHandler( ( UncaughtExceptionHandler ) this );
-        try {
-          ListenerRegistry.getInstance( ).fireEvent( new Hertz( ) );
-        } catch ( EventFailedException e ) {} catch ( Exception t ) {
-          LOG.error( t, t );
-        }
-      }
-    }
-  }
-  
 }
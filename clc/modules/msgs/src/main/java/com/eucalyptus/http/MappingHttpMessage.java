@@ -116,7 +116,13 @@ public abstract class MappingHttpMessage extends DefaultHttpMessage implements H
     this.message = message;
   }
 
+  /**
+   * @return the message string, or the content decoded as UTF-8 if no message string was set.
+   */
   public String getMessageString( ) {
+    if ( this.messageString == null && this.getContent( ) != null ) {
+      return this.getContent( ).toString( "UTF-8" );
+    }
     return messageString;
   }
 
@@ -0,0 +1,165 @@
+package com.eucalyptus.records;
+
+import java.util.Date;
+import org.apache.log4j.Logger;
+import com.eucalyptus.bootstrap.Bootstrap;
+import com.eucalyptus.context.Context;
+import com.eucalyptus.context.Contexts;
+
+/**
+ * A {@link Record} which defers its expensive parts until it is logged at an enabled level.
+ *
+ * Creation only captures the creator, event class and type, the correlation id of the current
+ * request, the time and the unformatted arguments. The caller's stack frame and the user are
+ * resolved, and the message text formatted, the first time the record is logged at a level the
+ * target logger accepts or is rendered by an appender; both happen on the logging thread, which
+ * is the thread the record belongs to. Anything else (appending, details) materializes the
+ * underlying {@link LogFileRecord} and delegates to it.
+ */
+class LazyRecord implements Record {
+  private static final String[] INTERNAL_FRAMES = { "java.lang.Thread", LazyRecord.class.getPackage( ).getName( ) + ".", "org.apache.log4j." };
+  private final Class           creator;
+  private final EventClass      eventClass;
+  private final EventType       type;
+  private final String          correlationId;
+  private final long            timestamp;
+  private final Object[]        others;
+  private final int             dist;
+  private LogFileRecord         record;
+
+  LazyRecord( final Class creator, final EventClass eventClass, final EventType type, final String correlationId, final Object[] others, final int dist ) {
+    this.creator = creator;
+    this.eventClass = eventClass;
+    this.type = type;
+    this.correlationId = correlationId;
+    this.timestamp = System.currentTimeMillis( );
+    this.others = others;
+    this.dist = dist;
+  }
+
+  private LogFileRecord materialize( ) {
+    if ( this.record == null ) {
+      String userFn = Bootstrap.isFinished( ) ? "" : "bootstrap";
+      if ( this.correlationId != null && this.correlationId.length( ) > 0 ) {
+        try {
+          Context ctx = Contexts.lookup( this.correlationId );
+          userFn = ctx.getUserFullName( ).toString( );
+        } catch ( Exception ex ) {}
+      }
+      this.record = new LogFileRecord( this.eventClass, this.type, this.creator, callerFrame( this.dist ), userFn, this.correlationId,
+                                       EventRecord.getMessageString( this.others ) );
+      this.record.setTimestamp( new Date( this.timestamp ) );
+    }
+    return this.record;
+  }
+
+  /**
+   * @return the frame {@code dist} frames above the first one outside of the records package and
+   *         log4j
+   */
+  private static StackTraceElement callerFrame( final int dist ) {
+    StackTraceElement[] stack = Thread.currentThread( ).getStackTrace( );
+    int first = 0;
+    while ( first < stack.length && isInternal( stack[first] ) ) {
+      first++;
+    }
+    return stack.length == 0 ? null : stack[Math.min( first + dist, stack.length - 1 )];
+  }
+
+  private static boolean isInternal( final StackTraceElement frame ) {
+    for ( String prefix : INTERNAL_FRAMES ) {
+      if ( frame.getClassName( ).startsWith( prefix ) ) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public Record info( ) {
+    if ( Logger.getLogger( this.creator ).isInfoEnabled( ) ) {
+      this.materialize( ).info( );
+    }
+    return this;
+  }
+
+  @Override
+  public Record error( ) {
+    this.materialize( ).error( );
+    return this;
+  }
+
+  @Override
+  public Record trace( ) {
+    if ( Logger.getLogger( this.creator ).isTraceEnabled( ) ) {
+      this.materialize( ).trace( );
+    }
+    return this;
+  }
+
+  @Override
+  public Record debug( ) {
+    if ( Logger.getLogger( this.creator ).isDebugEnabled( ) ) {
+      this.materialize( ).debug( );
+    }
+    return this;
+  }
+
+  @Override
+  public Record extreme( ) {
+    if ( Logs.extreme( ).isTraceEnabled( ) ) {
+      this.materialize( ).extreme( );
+    }
+    return this;
+  }
+
+  @Override
+  public Record exhaust( ) {
+    if ( Logs.exhaust( ).isTraceEnabled( ) ) {
+      this.materialize( ).exhaust( );
+    }
+    return this;
+  }
+
+  @Override
+  public Record warn( ) {
+    this.materialize( ).warn( );
+    return this;
+  }
+
+  @Override
+  public Record next( ) {
+    return this.materialize( ).next( );
+  }
+
+  @Override
+  public Record append( Object... obj ) {
+    return this.materialize( ).append( obj );
+  }
+
+  @Override
+  public Record withDetails( String key, String value ) {
+    return this.materialize( ).withDetails( key, value );
+  }
+
+  @Override
+  public Record withDetails( String userName, String primaryKey, String key, String value ) {
+    return this.materialize( ).withDetails( userName, primaryKey, key, value );
+  }
+
+  @Override
+  public EventType getType( ) {
+    return this.type;
+  }
+
+  @Override
+  public EventClass getEventClass( ) {
+    return this.eventClass;
+  }
+
+  @Override
+  public String toString( ) {
+    return this.materialize( ).toString( );
+  }
+
+}
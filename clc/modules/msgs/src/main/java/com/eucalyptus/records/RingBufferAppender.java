@@ -0,0 +1,276 @@
+package com.eucalyptus.records;
+
+import java.util.Enumeration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import org.apache.log4j.Appender;
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.helpers.AppenderAttachableImpl;
+import org.apache.log4j.spi.AppenderAttachable;
+import org.apache.log4j.spi.Filter;
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * Asynchronous appender which passes events to its attached appenders from a single background
+ * thread through a bounded ring buffer.
+ *
+ * Unlike {@link AppenderSkeleton#doAppend(LoggingEvent)} logging threads take no lock: a slot is
+ * claimed with a compare-and-set on the buffer's tail sequence. Everything which depends on the
+ * logging thread (rendered message, thread name, NDC, MDC and, with {@code LocationInfo} set, the
+ * location) is captured before the event is queued; layout and I/O happen on the background
+ * thread. When the buffer is full events below {@code WARN} are discarded, and reported as
+ * discarded once there is room again, while more severe events wait for space.
+ *
+ * Configured in log4j.xml by wrapping other appenders using {@code appender-ref}; the
+ * {@code BufferSize} (rounded up to a power of two) and {@code LocationInfo} parameters are
+ * supported.
+ */
+public class RingBufferAppender extends AppenderSkeleton implements AppenderAttachable {
+  private static final long              IDLE_NANOS   = TimeUnit.MILLISECONDS.toNanos( 100 );
+  private final AppenderAttachableImpl   appenders    = new AppenderAttachableImpl( );
+  private final AtomicLong               tail         = new AtomicLong( );
+  private final AtomicLong               discarded    = new AtomicLong( );
+  private int                            bufferSize   = 8192;
+  private boolean                        locationInfo = false;
+  private AtomicReferenceArray<LoggingEvent> slots;
+  private AtomicLongArray                sequences;
+  private int                            mask;
+  private long                           head;
+  private long                           reported;
+  private volatile Thread                consumer;
+  private volatile boolean               waiting;
+
+  @Override
+  public void activateOptions( ) {
+    int size = Integer.highestOneBit( Math.max( 2, this.bufferSize - 1 ) ) << 1;
+    this.slots = new AtomicReferenceArray<LoggingEvent>( size );
+    this.sequences = new AtomicLongArray( size );
+    for ( int i = 0; i < size; i++ ) {
+      this.sequences.set( i, i );
+    }
+    this.mask = size - 1;
+    Thread thread = new Thread( new Runnable( ) {
+      @Override
+      public void run( ) {
+        RingBufferAppender.this.dispatch( );
+      }
+    }, "RingBufferAppender-" + this.getName( ) );
+    thread.setDaemon( true );
+    this.consumer = thread;
+    thread.start( );
+  }
+
+  /**
+   * Applies the threshold and filters without taking the appender lock.
+   */
+  @Override
+  public void doAppend( LoggingEvent event ) {
+    if ( this.closed || this.consumer == null || !this.isAsSevereAsThreshold( event.getLevel( ) ) ) {
+      return;
+    }
+    for ( Filter f = this.getFirstFilter( ); f != null; f = f.getNext( ) ) {
+      int decision = f.decide( event );
+      if ( decision == Filter.DENY ) {
+        return;
+      } else if ( decision == Filter.ACCEPT ) {
+        break;
+      }
+    }
+    this.append( event );
+  }
+
+  @Override
+  protected void append( LoggingEvent event ) {
+    event.getNDC( );
+    event.getThreadName( );
+    event.getMDCCopy( );
+    if ( this.locationInfo ) {
+      event.getLocationInformation( );
+    }
+    event.getRenderedMessage( );
+    event.getThrowableStrRep( );
+    while ( !this.offer( event ) ) {
+      if ( !event.getLevel( ).isGreaterOrEqual( Level.WARN ) ) {
+        this.discarded.incrementAndGet( );
+        return;
+      } else if ( this.closed ) {
+        return;
+      } else {
+        LockSupport.unpark( this.consumer );
+        Thread.yield( );
+      }
+    }
+    if ( this.waiting ) {
+      LockSupport.unpark( this.consumer );
+    }
+  }
+
+  private boolean offer( LoggingEvent event ) {
+    while ( true ) {
+      long position = this.tail.get( );
+      int index = ( int ) ( position & this.mask );
+      long available = this.sequences.get( index ) - position;
+      if ( available == 0 ) {
+        if ( this.tail.compareAndSet( position, position + 1 ) ) {
+          this.slots.set( index, event );
+          this.sequences.set( index, position + 1 );
+          return true;
+        }
+      } else if ( available < 0 ) {
+        return false;
+      }
+    }
+  }
+
+  /**
+   * Only called from the consumer thread.
+   */
+  private LoggingEvent poll( ) {
+    int index = ( int ) ( this.head & this.mask );
+    if ( this.sequences.get( index ) != this.head + 1 ) {
+      return null;
+    }
+    LoggingEvent event = this.slots.get( index );
+    this.slots.set( index, null );
+    this.sequences.set( index, this.head + this.mask + 1 );
+    this.head++;
+    return event;
+  }
+
+  private void dispatch( ) {
+    while ( true ) {
+      LoggingEvent event = this.poll( );
+      if ( event != null ) {
+        synchronized ( this.appenders ) {
+          this.appenders.appendLoopOnAppenders( event );
+        }
+        continue;
+      }
+      this.reportDiscarded( );
+      if ( this.closed ) {
+        return;
+      }
+      this.waiting = true;
+      if ( this.sequences.get( ( int ) ( this.head & this.mask ) ) != this.head + 1 ) {
+        LockSupport.parkNanos( this, IDLE_NANOS );
+      }
+      this.waiting = false;
+    }
+  }
+
+  private void reportDiscarded( ) {
+    long total = this.discarded.get( );
+    if ( total > this.reported ) {
+      LoggingEvent warning = new LoggingEvent( RingBufferAppender.class.getName( ), Logger.getLogger( RingBufferAppender.class ), Level.WARN,
+                                               "Discarded " + ( total - this.reported ) + " log events because the buffer of " + this.getName( )
+                                                   + " was full", null );
+      this.reported = total;
+      synchronized ( this.appenders ) {
+        this.appenders.appendLoopOnAppenders( warning );
+      }
+    }
+  }
+
+  @Override
+  public void close( ) {
+    synchronized ( this ) {
+      if ( this.closed ) {
+        return;
+      }
+      this.closed = true;
+    }
+    Thread thread = this.consumer;
+    if ( thread != null ) {
+      LockSupport.unpark( thread );
+      try {
+        thread.join( TimeUnit.SECONDS.toMillis( 5 ) );
+      } catch ( InterruptedException ex ) {
+        Thread.currentThread( ).interrupt( );
+      }
+    }
+    synchronized ( this.appenders ) {
+      for ( Enumeration e = this.appenders.getAllAppenders( ); e != null && e.hasMoreElements( ); ) {
+        ( ( Appender ) e.nextElement( ) ).close( );
+      }
+    }
+  }
+
+  @Override
+  public boolean requiresLayout( ) {
+    return false;
+  }
+
+  public long getDiscarded( ) {
+    return this.discarded.get( );
+  }
+
+  public int getBufferSize( ) {
+    return this.bufferSize;
+  }
+
+  public void setBufferSize( int bufferSize ) {
+    this.bufferSize = bufferSize;
+  }
+
+  public boolean getLocationInfo( ) {
+    return this.locationInfo;
+  }
+
+  public void setLocationInfo( boolean locationInfo ) {
+    this.locationInfo = locationInfo;
+  }
+
+  @Override
+  public void addAppender( Appender newAppender ) {
+    synchronized ( this.appenders ) {
+      this.appenders.addAppender( newAppender );
+    }
+  }
+
+  @Override
+  public Enumeration getAllAppenders( ) {
+    synchronized ( this.appenders ) {
+      return this.appenders.getAllAppenders( );
+    }
+  }
+
+  @Override
+  public Appender getAppender( String name ) {
+    synchronized ( this.appenders ) {
+      return this.appenders.getAppender( name );
+    }
+  }
+
+  @Override
+  public boolean isAttached( Appender appender ) {
+    synchronized ( this.appenders ) {
+      return this.appenders.isAttached( appender );
+    }
+  }
+
+  @Override
+  public void removeAllAppenders( ) {
+    synchronized ( this.appenders ) {
+      this.appenders.removeAllAppenders( );
+    }
+  }
+
+  @Override
+  public void removeAppender( Appender appender ) {
+    synchronized ( this.appenders ) {
+      this.appenders.removeAppender( appender );
+    }
+  }
+
+  @Override
+  public void removeAppender( String name ) {
+    synchronized ( this.appenders ) {
+      this.appenders.removeAppender( name );
+    }
+  }
+}
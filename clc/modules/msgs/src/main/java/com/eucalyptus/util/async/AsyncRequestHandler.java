@@ -17,13 +17,13 @@ import org.jboss.netty.channel.ChannelFactory;
 import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.ChannelHandlerContext;
-import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelPipelineCoverage;
 import org.jboss.netty.channel.ChannelPipelineFactory;
 import org.jboss.netty.channel.ChannelStateEvent;
 import org.jboss.netty.channel.ExceptionEvent;
 import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
 import org.jboss.netty.handler.codec.http.HttpMethod;
 import org.jboss.netty.handler.codec.http.HttpRequest;
 import org.jboss.netty.handler.codec.http.HttpVersion;
@@ -44,8 +44,9 @@ import com.eucalyptus.records.Logs;
 import com.eucalyptus.util.Exceptions;
 import com.eucalyptus.util.LogUtil;
 import com.eucalyptus.util.TypeMappers;
-import com.eucalyptus.ws.WebServices;
-import com.eucalyptus.ws.util.NioBootstrap;
+import com.eucalyptus.ws.StackConfiguration;
+import com.eucalyptus.ws.client.ChannelPools;
+import com.eucalyptus.ws.client.ChannelPools.ChannelPool;
 import edu.ucsb.eucalyptus.msgs.BaseMessage;
 
 /**
@@ -57,10 +58,13 @@ import edu.ucsb.eucalyptus.msgs.BaseMessage;
 public class AsyncRequestHandler<Q extends BaseMessage, R extends BaseMessage> implements RequestHandler<Q, R> {
   private static Logger                LOG           = Logger.getLogger( AsyncRequestHandler.class );
   
-  private NioBootstrap                 clientBootstrap;
-  private ChannelFuture                connectFuture;
+  private ChannelPool                  channelPool;
+  private volatile ChannelFuture       connectFuture;
+  private ChannelFutureListener        connectListener;
   
   private final AtomicBoolean          writeComplete = new AtomicBoolean( false );
+  private final AtomicBoolean          released      = new AtomicBoolean( false );
+  private final AtomicBoolean          retried       = new AtomicBoolean( false );
   private final CheckedListenableFuture<R>   response;
   private transient AtomicReference<Q> request       = new AtomicReference<Q>( null );
   
@@ -83,21 +87,16 @@ public class AsyncRequestHandler<Q extends BaseMessage, R extends BaseMessage> i
       final SocketAddress serviceSocketAddress = config.getSocketAddress( );
       final ChannelPipelineFactory factory = config.getComponentId( ).getClientPipeline( );
       try {
-        this.clientBootstrap = WebServices.clientBootstrap( new ChannelPipelineFactory( ) {
-          @Override
-          public ChannelPipeline getPipeline( ) throws Exception {
-            final ChannelPipeline pipeline = factory.getPipeline( );
-            pipeline.addLast( "request-handler", AsyncRequestHandler.this );
-            return pipeline;
-          }
-        } );
+        this.channelPool = ChannelPools.lookup( config );
 //TODO:GRZE: better logging here        LOG.debug( request.getClass( ).getSimpleName( ) + ":" + request.getCorrelationId( ) + " connecting to " + serviceSocketAddress );
         Logs.extreme( ).debug( EventRecord.here( request.getClass( ), EventClass.SYSTEM_REQUEST, EventType.CHANNEL_OPENING, request.getClass( ).getSimpleName( ),
                           request.getCorrelationId( ), serviceSocketAddress.toString( ) ) );
-        this.connectFuture = this.clientBootstrap.connect( serviceSocketAddress );
         final HttpRequest httpRequest = new MappingHttpRequest( HttpVersion.HTTP_1_1, HttpMethod.POST, config, this.request.get( ) );
+        httpRequest.setHeader( HttpHeaders.Names.CONNECTION, Boolean.TRUE.equals( StackConfiguration.CLIENT_POOL_KEEP_ALIVE )
+          ? HttpHeaders.Values.KEEP_ALIVE
+          : HttpHeaders.Values.CLOSE );
         
-        this.connectFuture.addListener( new ChannelFutureListener( ) {
+        this.connectListener = new ChannelFutureListener( ) {
           @Override
           public void operationComplete( final ChannelFuture future ) throws Exception {
             try {
@@ -124,6 +123,12 @@ public class AsyncRequestHandler<Q extends BaseMessage, R extends BaseMessage> i
                 future.getChannel( ).write( httpRequest ).addListener( new ChannelFutureListener( ) {
                   @Override
                   public void operationComplete( final ChannelFuture future ) throws Exception {
+                    if ( !future.isSuccess( ) ) {
+                      if ( AsyncRequestHandler.this.isCurrent( future.getChannel( ) ) && !AsyncRequestHandler.this.maybeRetry( future.getChannel( ) ) ) {
+                        AsyncRequestHandler.this.teardown( future.getCause( ) );
+                      }
+                      return;
+                    }
                     AsyncRequestHandler.this.writeComplete.set( true );
                     
                     Logs.extreme( ).debug(
@@ -146,7 +151,9 @@ public class AsyncRequestHandler<Q extends BaseMessage, R extends BaseMessage> i
               AsyncRequestHandler.this.teardown( ex );
             }
           }
-        } );
+        };
+        this.connectFuture = this.channelPool.acquire( this );
+        this.connectFuture.addListener( this.connectListener );
         return true;
       } catch ( final Exception t ) {
         LOG.error( t, t );
@@ -156,6 +163,27 @@ public class AsyncRequestHandler<Q extends BaseMessage, R extends BaseMessage> i
     }
   }
   
+  private boolean isCurrent( final Channel channel ) {
+    return ( this.connectFuture != null ) && ( this.connectFuture.getChannel( ) == channel );
+  }
+  
+  /**
+   * A channel leased from the pool may have been closed by the peer while it was idle. If the
+   * request could not be written to such a channel it is sent once more on a new connection.
+   */
+  private boolean maybeRetry( final Channel channel ) {
+    if ( this.writeComplete.get( ) || !ChannelPools.isPooled( this.connectFuture ) || !this.isCurrent( channel )
+         || !this.retried.compareAndSet( false, true ) ) {
+      return false;
+    } else {
+      Logs.extreme( ).debug( "Retrying request on a new connection after pooled channel failed: " + channel );
+      this.channelPool.discard( channel, this );
+      this.connectFuture = this.channelPool.connect( this );
+      this.connectFuture.addListener( this.connectListener );
+      return true;
+    }
+  }
+  
   private void teardown( Throwable t ) {
     if ( t == null ) {
       t = new NullPointerException( "teardown() called with null argument." );
@@ -171,7 +199,9 @@ public class AsyncRequestHandler<Q extends BaseMessage, R extends BaseMessage> i
   }
 
   private void maybeCloseChannel( ) {
-    if ( this.connectFuture.isDone( ) && this.connectFuture.isSuccess( ) ) {
+    if ( this.released.get( ) ) {
+      return;
+    } else if ( this.connectFuture.isDone( ) && this.connectFuture.isSuccess( ) ) {
       final Channel channel = this.connectFuture.getChannel( );
       if ( ( channel != null ) && channel.isOpen( ) ) {
         channel.close( ).addListener( new ChannelFutureListener( ) {
@@ -216,7 +246,9 @@ public class AsyncRequestHandler<Q extends BaseMessage, R extends BaseMessage> i
   
   @Override
   public void handleUpstream( final ChannelHandlerContext ctx, final ChannelEvent e ) throws Exception {
-    if ( e instanceof MessageEvent ) {
+    if ( !this.isCurrent( ctx.getChannel( ) ) ) {
+      Logs.extreme( ).debug( "Ignoring event from abandoned channel: " + e );
+    } else if ( e instanceof MessageEvent ) {
       this.messageReceived( ctx, ( MessageEvent ) e );
     } else if ( e instanceof ChannelStateEvent ) {
       final ChannelStateEvent evt = ( ChannelStateEvent ) e;
@@ -247,9 +279,11 @@ public class AsyncRequestHandler<Q extends BaseMessage, R extends BaseMessage> i
           if ( !msg.get_return( ) ) {
             this.teardown( new FailedRequestException( "Cluster response includes _return=false", msg ) );
           } else {
+            if ( this.released.compareAndSet( false, true ) ) {
+              this.channelPool.release( ctx.getChannel( ), response );
+            }
             this.response.set( msg );
           }
-          e.getFuture( ).addListener( ChannelFutureListener.CLOSE );
         } catch ( final Exception e1 ) {
           LOG.error( e1, e1 );
           this.teardown( e1 );
@@ -272,7 +306,9 @@ public class AsyncRequestHandler<Q extends BaseMessage, R extends BaseMessage> i
   }
   
   private void checkFinished( final ChannelHandlerContext ctx, final ChannelStateEvent evt ) {
-    if ( ( this.connectFuture != null ) && !this.connectFuture.isSuccess( )
+    if ( this.maybeRetry( ctx.getChannel( ) ) ) {
+      return;
+    } else if ( ( this.connectFuture != null ) && !this.connectFuture.isSuccess( )
          && ( this.connectFuture.getCause( ) instanceof IOException ) ) {
       final Throwable ioError = this.connectFuture.getCause( );
       if ( !this.writeComplete.get( ) ) {
@@ -292,7 +328,9 @@ public class AsyncRequestHandler<Q extends BaseMessage, R extends BaseMessage> i
   
   private void exceptionCaught( final ChannelHandlerContext ctx, final ExceptionEvent e ) {
     Logs.extreme( ).error( e, e.getCause( ) );
-    this.teardown( e.getCause( ) );
+    if ( !this.maybeRetry( ctx.getChannel( ) ) ) {
+      this.teardown( e.getCause( ) );
+    }
   }
   
 }
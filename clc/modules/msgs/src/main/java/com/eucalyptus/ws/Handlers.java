@@ -132,6 +132,7 @@ import com.eucalyptus.ws.handlers.http.HttpUtils;
 import com.eucalyptus.ws.handlers.http.NioHttpDecoder;
 import com.eucalyptus.ws.protocol.AddressingHandler;
 import com.eucalyptus.ws.protocol.SoapHandler;
+import com.eucalyptus.ws.server.AdmissionControlHandler;
 import com.eucalyptus.ws.server.NioServerHandler;
 import com.eucalyptus.ws.server.ServiceContextHandler;
 import com.eucalyptus.ws.server.ServiceHackeryHandler;
@@ -482,6 +483,9 @@ public class Handlers {
   public static void addSystemHandlers( final ChannelPipeline pipeline ) {
     pipeline.addLast( "service-state-check", internalServiceStateHandler( ) );
     pipeline.addLast( "service-specific-mangling", ServiceHackeryHandler.INSTANCE );
+    if ( StackConfiguration.ADMISSION_CONTROL ) {
+      pipeline.addLast( "admission-control", new AdmissionControlHandler( ) );
+    }
     if ( StackConfiguration.ASYNC_OPERATIONS ) {
       pipeline.addLast( "async-operations-execution-handler", serviceExecutionHandler( ) );
     }
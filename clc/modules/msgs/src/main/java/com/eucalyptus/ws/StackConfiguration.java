@@ -98,6 +98,8 @@ public class StackConfiguration extends AbstractPersistent {
   @ConfigurableField( description = "A max clock skew value (in seconds) between client and server accepted when validating timestamps in Query/REST protocol.",
                       changeListener = TimeChangeListener.class )
   public static Integer       CLOCK_SKEW_SEC                    = 20;
+  @ConfigurableField( description = "Share the fingerprints of request signatures with the other hosts so that replays sent to a different host are detected." )
+  public static Boolean       REPLAY_CACHE_SHARED               = Boolean.FALSE;
   @ConfigurableField( description = "Server socket reuse address.",
                       changeListener = WebServices.RestartWebServicesListener.class )
   public static final Boolean SERVER_CHANNEL_REUSE_ADDRESS      = true;
@@ -148,8 +150,8 @@ public class StackConfiguration extends AbstractPersistent {
   public static Integer       PORT                              = 8773;
   public static final Integer INTERNAL_PORT                     = 8773;
   
-  @ConfigurableField( description = "Record and report service times." )
-  public static Boolean       STATISTICS                        = Boolean.FALSE;
+  @ConfigurableField( description = "Record per-handler service time histograms (exported through JMX).", initial = "true" )
+  public static Boolean       STATISTICS                        = Boolean.TRUE;
   
   @ConfigurableField( description = "Execute service specific pipeline handlers from a separate thread pool (with respect to I/O)." )
   public static Boolean       ASYNC_PIPELINE                    = Boolean.FALSE;
@@ -162,6 +164,18 @@ public class StackConfiguration extends AbstractPersistent {
   
   @ConfigurableField( description = "Execute internal service operations out of band from the normal service bus." )
   public static Boolean       OOB_INTERNAL_OPERATIONS           = Boolean.TRUE;
+
+  @ConfigurableField( description = "Limit the service operations in progress, queueing further requests per account and operation class and rejecting them when the queues are full." )
+  public static Boolean       ADMISSION_CONTROL                 = Boolean.FALSE;
+
+  @ConfigurableField( description = "Max service operations in progress before requests are queued for admission." )
+  public static Integer       ADMISSION_MAX_IN_FLIGHT           = 64;
+
+  @ConfigurableField( description = "Max requests queued for admission per account and operation class." )
+  public static Integer       ADMISSION_MAX_QUEUE_DEPTH         = 32;
+
+  @ConfigurableField( description = "Max time (ms) a request may wait for admission before being rejected." )
+  public static Long          ADMISSION_MAX_QUEUE_MILLIS        = 5000L;
   
   @ConfigurableField( description = "Client idle timeout (secs)." )
   public static Long          CLIENT_IDLE_TIMEOUT_SECS          = 30L;
@@ -193,6 +207,15 @@ public class StackConfiguration extends AbstractPersistent {
   @ConfigurableField( description = "Client socket select timeout (ms)." )
   public static Long          CLIENT_POOL_TIMEOUT_MILLIS        = 500L;
   
+  @ConfigurableField( description = "Reuse HTTP/1.1 keep-alive connections for internal service requests." )
+  public static Boolean       CLIENT_POOL_KEEP_ALIVE            = Boolean.TRUE;
+
+  @ConfigurableField( description = "Maximum idle pooled connections per service endpoint." )
+  public static Integer       CLIENT_POOL_MAX_IDLE_CHANNELS     = 8;
+
+  @ConfigurableField( description = "Pooled connection idle timeout (secs)." )
+  public static Long          CLIENT_POOL_IDLE_TIMEOUT_SECS     = 15L;
+
   @ConfigurableField( description = "Maximum HTTP chunk size (bytes)." )
   public static Integer       HTTP_MAX_CHUNK_BYTES              = 10 * 10 * 1024;
   
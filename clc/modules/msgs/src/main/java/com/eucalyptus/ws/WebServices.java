@@ -135,6 +135,7 @@ public class WebServices {
   
   private static Logger   LOG = Logger.getLogger( WebServices.class );
   private static Executor clientWorkerThreadPool;
+  private static ChannelFactory pooledClientChannelFactory;
   private static Runnable serverShutdown;
   
   public static NioBootstrap clientBootstrap( final ChannelPipelineFactory factory ) {
@@ -144,6 +145,21 @@ public class WebServices {
     
   }
   
+  /**
+   * Bootstrap for pooled keep-alive client channels. All pools share one channel factory so that
+   * the boss and worker threads are not multiplied by the number of service endpoints.
+   */
+  public static NioBootstrap pooledClientBootstrap( final ChannelPipelineFactory factory ) {
+    return clientBootstrap( factory, pooledClientChannelFactory( ) );
+  }
+  
+  private static synchronized ChannelFactory pooledClientChannelFactory( ) {
+    if ( pooledClientChannelFactory == null ) {
+      pooledClientChannelFactory = clientChannelFactory( );
+    }
+    return pooledClientChannelFactory;
+  }
+  
   private static NioBootstrap clientBootstrap( final ChannelPipelineFactory factory, final ChannelFactory clientChannelFactory ) {
     return new NioBootstrap( clientChannelFactory ) {
       {
@@ -0,0 +1,444 @@
+/*******************************************************************************
+ *Copyright (c) 2009  Eucalyptus Systems, Inc.
+ * 
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, only version 3 of the License.
+ * 
+ * 
+ *  This file is distributed in the hope that it will be useful, but WITHOUT
+ *  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ *  FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ *  Please contact Eucalyptus Systems, Inc., 130 Castilian
+ *  Dr., Goleta, CA 93101 USA or visit <http://www.eucalyptus.com/licenses/>
+ *  if you need additional information or have any questions.
+ * 
+ *  This file may incorporate work covered under the following copyright and
+ *  permission notice:
+ * 
+ *    Software License Agreement (BSD License)
+ * 
+ *    Copyright (c) 2008, Regents of the University of California
+ *    All rights reserved.
+ * 
+ *    Redistribution and use of this software in source and binary forms, with
+ *    or without modification, are permitted provided that the following
+ *    conditions are met:
+ * 
+ *      Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * 
+ *      Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ * 
+ *    THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ *    IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ *    TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ *    PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ *    OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *    EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ *    PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ *    PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ *    LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ *    NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *    SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. USERS OF
+ *    THIS SOFTWARE ACKNOWLEDGE THE POSSIBLE PRESENCE OF OTHER OPEN SOURCE
+ *    LICENSED MATERIAL, COPYRIGHTED MATERIAL OR PATENTED MATERIAL IN THIS
+ *    SOFTWARE, AND IF ANY SUCH MATERIAL IS DISCOVERED THE PARTY DISCOVERING
+ *    IT MAY INFORM DR. RICH WOLSKI AT THE UNIVERSITY OF CALIFORNIA, SANTA
+ *    BARBARA WHO WILL THEN ASCERTAIN THE MOST APPROPRIATE REMEDY, WHICH IN
+ *    THE REGENTS' DISCRETION MAY INCLUDE, WITHOUT LIMITATION, REPLACEMENT
+ *    OF THE CODE SO IDENTIFIED, LICENSING OF THE CODE SO IDENTIFIED, OR
+ *    WITHDRAWAL OF THE CODE CAPABILITY TO THE EXTENT NEEDED TO COMPLY WITH
+ *    ANY SUCH LICENSES OR RIGHTS.
+ *******************************************************************************/
+
+package com.eucalyptus.ws.client;
+
+import java.net.InetSocketAddress;
+import java.util.Iterator;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineCoverage;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.ChannelState;
+import org.jboss.netty.channel.ChannelUpstreamHandler;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.SucceededChannelFuture;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMessage;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import com.eucalyptus.component.ServiceConfiguration;
+import com.eucalyptus.event.ClockTick;
+import com.eucalyptus.event.EventListener;
+import com.eucalyptus.event.Listeners;
+import com.eucalyptus.records.Logs;
+import com.eucalyptus.util.Mbeans;
+import com.eucalyptus.ws.StackConfiguration;
+import com.eucalyptus.ws.WebServices;
+import com.eucalyptus.ws.util.NioBootstrap;
+
+/**
+ * Pools of HTTP/1.1 keep-alive client channels, one per service endpoint and client pipeline.
+ * 
+ * A channel is leased by adding the caller's response handler to the end of the pipeline as
+ * {@link #REQUEST_HANDLER}; it is returned by {@link ChannelPool#release(Channel, HttpMessage)}
+ * which removes the handler again. Idle channels are health checked on lease, reaped on every
+ * {@link ClockTick} once they exceed {@link StackConfiguration#CLIENT_POOL_IDLE_TIMEOUT_SECS},
+ * and evicted when they are closed or fail while sitting in the pool. Pools are dropped by {@link #evict(ServiceConfiguration)}
+ * when their service is stopped or deregistered.
+ */
+public class ChannelPools {
+  private static Logger                             LOG             = Logger.getLogger( ChannelPools.class );
+  public static final String                        REQUEST_HANDLER = "request-handler";
+  private static final String                       POOL_MONITOR    = "pool-monitor";
+  private static final ConcurrentMap<String, ChannelPool> pools     = new ConcurrentHashMap<String, ChannelPool>( );
+  private static final Statistics                   statistics      = new Statistics( );
+  
+  static {
+    Mbeans.register( statistics );
+    Listeners.register( ClockTick.class, new IdleChannelReaper( ) );
+  }
+  
+  /**
+   * Pool for the component client pipeline of {@code config}.
+   */
+  public static ChannelPool lookup( final ServiceConfiguration config ) {
+    return lookup( config, config.getSocketAddress( ), config.getComponentId( ).getClientPipeline( ) );
+  }
+  
+  public static ChannelPool lookup( final ServiceConfiguration config, final InetSocketAddress address, final ChannelPipelineFactory factory ) {
+    final String key = config.getFullName( ) + "@" + address + "/" + factory.getClass( ).getName( );
+    ChannelPool pool = pools.get( key );
+    if ( pool == null ) {
+      final ChannelPool newPool = new ChannelPool( key, address, factory );
+      pool = pools.putIfAbsent( key, newPool );
+      if ( pool == null ) {
+        pool = newPool;
+      }
+    }
+    return pool;
+  }
+  
+  /**
+   * Close all idle channels and drop every pool which refers to {@code config}.
+   */
+  public static void evict( final ServiceConfiguration config ) {
+    final String prefix = config.getFullName( ) + "@";
+    for ( final Iterator<String> iter = pools.keySet( ).iterator( ); iter.hasNext( ); ) {
+      final String key = iter.next( );
+      if ( key.startsWith( prefix ) ) {
+        final ChannelPool pool = pools.remove( key );
+        if ( pool != null ) {
+          pool.clear( );
+        }
+      }
+    }
+  }
+  
+  public static Statistics getStatistics( ) {
+    return statistics;
+  }
+  
+  /**
+   * True if {@code future} leased a channel which was sitting idle in a pool, rather than a newly
+   * connected one. Such a channel may have been closed by the peer without us noticing yet.
+   */
+  public static boolean isPooled( final ChannelFuture future ) {
+    return future instanceof PooledChannelFuture;
+  }
+  
+  static boolean isKeepAlive( final HttpMessage message ) {
+    final String connection = message.getHeader( HttpHeaders.Names.CONNECTION );
+    if ( HttpHeaders.Values.CLOSE.equalsIgnoreCase( connection ) ) {
+      return false;
+    } else if ( HttpVersion.HTTP_1_1.equals( message.getProtocolVersion( ) ) ) {
+      return true;
+    } else {
+      return HttpHeaders.Values.KEEP_ALIVE.equalsIgnoreCase( connection );
+    }
+  }
+  
+  private static boolean isEnabled( ) {
+    return Boolean.TRUE.equals( StackConfiguration.CLIENT_POOL_KEEP_ALIVE );
+  }
+  
+  public static class ChannelPool {
+    private final String                    name;
+    private final InetSocketAddress         address;
+    private final ChannelPipelineFactory    factory;
+    private final NioBootstrap              bootstrap;
+    private final BlockingDeque<IdleChannel> idle = new LinkedBlockingDeque<IdleChannel>( );
+    private volatile boolean                closed;
+    
+    ChannelPool( final String name, final InetSocketAddress address, final ChannelPipelineFactory factory ) {
+      this.name = name;
+      this.address = address;
+      this.factory = factory;
+      this.bootstrap = WebServices.pooledClientBootstrap( new ChannelPipelineFactory( ) {
+        @Override
+        public ChannelPipeline getPipeline( ) throws Exception {
+          final ChannelPipeline pipeline = factory.getPipeline( );
+          pipeline.addLast( POOL_MONITOR, new PoolMonitor( ChannelPool.this ) );
+          return pipeline;
+        }
+      } );
+    }
+    
+    /**
+     * Lease a channel with {@code handler} installed as the last handler in its pipeline. The
+     * returned future completes when the channel is connected; pooled channels are returned as
+     * an already succeeded future for which {@link ChannelPools#isPooled(ChannelFuture)} is true.
+     */
+    public ChannelFuture acquire( final ChannelHandler handler ) {
+      if ( isEnabled( ) && !this.closed ) {
+        for ( IdleChannel next = this.idle.pollFirst( ); next != null; next = this.idle.pollFirst( ) ) {
+          if ( next.isUsable( ) ) {
+            statistics.hits.incrementAndGet( );
+            next.channel.getPipeline( ).addLast( REQUEST_HANDLER, handler );
+            return new PooledChannelFuture( next.channel );
+          } else {
+            statistics.evictions.incrementAndGet( );
+            next.channel.close( );
+          }
+        }
+      }
+      statistics.misses.incrementAndGet( );
+      return this.connect( handler );
+    }
+    
+    /**
+     * Lease a newly connected channel, bypassing the idle channels.
+     */
+    public ChannelFuture connect( final ChannelHandler handler ) {
+      final long start = System.nanoTime( );
+      final ChannelFuture connectFuture = this.bootstrap.connect( this.address );
+      connectFuture.getChannel( ).getPipeline( ).addLast( REQUEST_HANDLER, handler );
+      connectFuture.addListener( new ChannelFutureListener( ) {
+        @Override
+        public void operationComplete( final ChannelFuture future ) throws Exception {
+          if ( future.isSuccess( ) ) {
+            statistics.connects.incrementAndGet( );
+            statistics.connectNanos.addAndGet( System.nanoTime( ) - start );
+          } else {
+            statistics.connectFailures.incrementAndGet( );
+          }
+        }
+      } );
+      return connectFuture;
+    }
+    
+    /**
+     * Return a leased channel after {@code response} has been fully received. The channel is
+     * closed instead if pooling is disabled, the peer did not agree to keep-alive, or the pool
+     * is full.
+     */
+    public void release( final Channel channel, final HttpMessage response ) {
+      final ChannelPipeline pipeline = channel.getPipeline( );
+      if ( pipeline.get( REQUEST_HANDLER ) != null ) {
+        pipeline.remove( REQUEST_HANDLER );
+      }
+      if ( isEnabled( ) && !this.closed && channel.isConnected( ) && ( response == null || isKeepAlive( response ) )
+           && this.idle.size( ) < StackConfiguration.CLIENT_POOL_MAX_IDLE_CHANNELS ) {
+        this.idle.offerFirst( new IdleChannel( channel ) );
+      } else {
+        channel.close( );
+      }
+    }
+    
+    void discard( final Channel channel ) {
+      for ( final Iterator<IdleChannel> iter = this.idle.iterator( ); iter.hasNext( ); ) {
+        if ( iter.next( ).channel == channel ) {
+          iter.remove( );
+          statistics.evictions.incrementAndGet( );
+        }
+      }
+    }
+    
+    /**
+     * Detach the request handler from a leased channel and close it.
+     */
+    public void discard( final Channel channel, final ChannelHandler handler ) {
+      final ChannelPipeline pipeline = channel.getPipeline( );
+      if ( pipeline.get( REQUEST_HANDLER ) == handler ) {
+        pipeline.remove( REQUEST_HANDLER );
+      }
+      channel.close( );
+    }
+    
+    /**
+     * Close the idle channels which are no longer usable. Channels are leased from the head of
+     * the pool, so without this the ones at the tail would be kept open indefinitely.
+     */
+    void reap( ) {
+      for ( final IdleChannel next : this.idle ) {
+        if ( !next.isUsable( ) && this.idle.remove( next ) ) {
+          statistics.evictions.incrementAndGet( );
+          next.channel.close( );
+        }
+      }
+    }
+    
+    void clear( ) {
+      this.closed = true;
+      for ( IdleChannel next = this.idle.pollFirst( ); next != null; next = this.idle.pollFirst( ) ) {
+        next.channel.close( );
+      }
+    }
+    
+    public int getIdleCount( ) {
+      return this.idle.size( );
+    }
+    
+    public InetSocketAddress getAddress( ) {
+      return this.address;
+    }
+    
+    public ChannelPipelineFactory getPipelineFactory( ) {
+      return this.factory;
+    }
+    
+    @Override
+    public String toString( ) {
+      return String.format( "ChannelPool:name=%s:idle=%d", this.name, this.idle.size( ) );
+    }
+  }
+  
+  private static class PooledChannelFuture extends SucceededChannelFuture {
+    PooledChannelFuture( final Channel channel ) {
+      super( channel );
+    }
+  }
+  
+  private static class IdleChannel {
+    private final Channel channel;
+    private final long    since = System.currentTimeMillis( );
+    
+    IdleChannel( final Channel channel ) {
+      this.channel = channel;
+    }
+    
+    boolean isUsable( ) {
+      return this.channel.isConnected( )
+             && ( System.currentTimeMillis( ) - this.since ) < TimeUnit.SECONDS.toMillis( StackConfiguration.CLIENT_POOL_IDLE_TIMEOUT_SECS );
+    }
+  }
+  
+  private static class IdleChannelReaper implements EventListener<ClockTick> {
+    @Override
+    public void fireEvent( final ClockTick event ) {
+      for ( final ChannelPool pool : pools.values( ) ) {
+        try {
+          pool.reap( );
+        } catch ( final Exception ex ) {
+          Logs.extreme( ).error( ex, ex );
+        }
+      }
+    }
+  }
+  
+  /**
+   * Evicts a pooled channel which is closed or fails while no request handler is installed; idle
+   * timeouts are enforced by the {@link IdleChannelReaper} and when the channel is next leased.
+   * Events on leased channels are passed through to the request handler.
+   */
+  @ChannelPipelineCoverage( "one" )
+  private static class PoolMonitor implements ChannelUpstreamHandler {
+    private final ChannelPool pool;
+    
+    PoolMonitor( final ChannelPool pool ) {
+      this.pool = pool;
+    }
+    
+    @Override
+    public void handleUpstream( final ChannelHandlerContext ctx, final ChannelEvent e ) throws Exception {
+      if ( ctx.getPipeline( ).get( REQUEST_HANDLER ) == null ) {
+        if ( e instanceof ChannelStateEvent && ChannelState.OPEN.equals( ( ( ChannelStateEvent ) e ).getState( ) )
+             && Boolean.FALSE.equals( ( ( ChannelStateEvent ) e ).getValue( ) ) ) {
+          this.pool.discard( ctx.getChannel( ) );
+        } else if ( e instanceof ExceptionEvent ) {
+          Logs.extreme( ).debug( "Evicting pooled channel " + ctx.getChannel( ) + " because of: " + e );
+          this.pool.discard( ctx.getChannel( ) );
+          ctx.getChannel( ).close( );
+          return;
+        }
+      }
+      ctx.sendUpstream( e );
+    }
+  }
+  
+  /**
+   * Pool counters, exported through {@link Mbeans}.
+   */
+  public static class Statistics {
+    private final AtomicLong hits            = new AtomicLong( 0 );
+    private final AtomicLong misses          = new AtomicLong( 0 );
+    private final AtomicLong connects        = new AtomicLong( 0 );
+    private final AtomicLong connectFailures = new AtomicLong( 0 );
+    private final AtomicLong connectNanos    = new AtomicLong( 0 );
+    private final AtomicLong evictions       = new AtomicLong( 0 );
+    
+    public long getHits( ) {
+      return this.hits.get( );
+    }
+    
+    public long getMisses( ) {
+      return this.misses.get( );
+    }
+    
+    public long getConnects( ) {
+      return this.connects.get( );
+    }
+    
+    public long getConnectFailures( ) {
+      return this.connectFailures.get( );
+    }
+    
+    public long getConnectTimeMillis( ) {
+      return TimeUnit.NANOSECONDS.toMillis( this.connectNanos.get( ) );
+    }
+    
+    public double getAverageConnectTimeMillis( ) {
+      final long count = this.connects.get( );
+      return count == 0 ? 0d : ( this.connectNanos.get( ) / 1000000d ) / count;
+    }
+    
+    public long getEvictions( ) {
+      return this.evictions.get( );
+    }
+    
+    public int getIdleChannels( ) {
+      int count = 0;
+      for ( final ChannelPool pool : pools.values( ) ) {
+        count += pool.getIdleCount( );
+      }
+      return count;
+    }
+    
+    @Override
+    public String toString( ) {
+      return String.format( "ChannelPools:hits=%d:misses=%d:connects=%d:connectFailures=%d:connectTimeMillis=%d:evictions=%d",
+                            this.getHits( ), this.getMisses( ), this.getConnects( ), this.getConnectFailures( ), this.getConnectTimeMillis( ),
+                            this.getEvictions( ) );
+    }
+  }
+}
@@ -67,11 +67,13 @@ import java.net.InetSocketAddress;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import org.apache.log4j.Logger;
+import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFactory;
 import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelFutureListener;
@@ -84,10 +86,12 @@ import org.jboss.netty.channel.ExceptionEvent;
 import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.channel.SimpleChannelHandler;
 import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
 import org.jboss.netty.handler.codec.http.HttpMethod;
 import org.jboss.netty.handler.codec.http.HttpRequest;
 import org.jboss.netty.handler.codec.http.HttpVersion;
 import org.jboss.netty.handler.execution.OrderedMemoryAwareThreadPoolExecutor;
+import com.eucalyptus.component.ServiceConfiguration;
 import com.eucalyptus.http.MappingHttpMessage;
 import com.eucalyptus.http.MappingHttpRequest;
 import com.eucalyptus.http.MappingHttpResponse;
@@ -96,6 +100,8 @@ import com.eucalyptus.records.EventType;
 import com.eucalyptus.util.EucalyptusClusterException;
 import com.eucalyptus.util.LogUtil;
 import com.eucalyptus.ws.Client;
+import com.eucalyptus.ws.StackConfiguration;
+import com.eucalyptus.ws.client.ChannelPools.ChannelPool;
 import com.eucalyptus.ws.handlers.ResponseHandler;
 import com.eucalyptus.ws.util.NioBootstrap;
 import com.google.common.base.Supplier;
@@ -159,6 +165,9 @@ public class NioClient implements Client {
 
     @Override
     public void exceptionCaught( final ChannelHandlerContext ctx, final ExceptionEvent e ) {
+      if ( NioClient.this.maybeRetry( ctx.getChannel( ) ) ) {
+        return;
+      }
       this.exceptionCaught( ctx, e.getCause( ) );
       ctx.getChannel( ).close( );
     }
@@ -167,8 +176,13 @@ public class NioClient implements Client {
     public void messageReceived( final ChannelHandlerContext ctx, final MessageEvent e ) throws Exception {
       final MappingHttpMessage httpResponse = ( MappingHttpMessage ) e.getMessage( );
       final BaseMessage reply = ( BaseMessage ) httpResponse.getMessage( );
-      this.queueResponse( reply );
-      ctx.getChannel( ).close( );
+      if ( NioClient.this.channelPool != null ) {
+        NioClient.this.channelPool.release( ctx.getChannel( ), httpResponse );
+        this.queueResponse( reply );
+      } else {
+        this.queueResponse( reply );
+        ctx.getChannel( ).close( );
+      }
     }
 
     public void queueResponse( Object o ) {
@@ -226,7 +240,9 @@ public class NioClient implements Client {
 
     @Override
     public void channelClosed( ChannelHandlerContext ctx, ChannelStateEvent e ) throws Exception {
-      if( this.response.get( ) == null ) {
+      if ( NioClient.this.maybeRetry( ctx.getChannel( ) ) ) {
+        return;
+      } else if( this.response.get( ) == null ) {
         this.queueResponse( new EucalyptusClusterException( LogUtil.dumpObject( e ) ) );
       }
       super.channelClosed( ctx, e );
@@ -307,7 +323,21 @@ public class NioClient implements Client {
   private String            servicePath;
   private InetSocketAddress remoteAddr;
   private ResponseHandler   responseHandler;
-  private ChannelFuture     connectFuture;
+  private volatile ChannelFuture connectFuture;
+  private ChannelPool       channelPool;
+  private HttpRequest       httpRequest;
+  private final AtomicBoolean writeComplete = new AtomicBoolean( false );
+  private final AtomicBoolean retried       = new AtomicBoolean( false );
+  private final ChannelFutureListener writeListener = new ChannelFutureListener( ) {
+    @Override
+    public void operationComplete( ChannelFuture future ) throws Exception {
+      if ( future.isSuccess( ) ) {
+        NioClient.this.writeComplete.set( true );
+      } else {
+        NioClient.this.maybeRetry( future.getChannel( ) );
+      }
+    }
+  };
   
   
   public NioClient( String hostname, int port, String servicePath, ChannelPipelineFactory clientPipeline ) {
@@ -320,8 +350,48 @@ public class NioClient implements Client {
     this.connectFuture = this.clientBootstrap.connect( this.remoteAddr );
   }
   
-  public void write( HttpRequest httpRequest ) throws Exception {
-    this.connectFuture.addListener( WRITE( httpRequest ) );
+  /**
+   * Client which leases its channel from the keep-alive pool for {@code config}.
+   */
+  public NioClient( ServiceConfiguration config, String hostname, int port, String servicePath, ChannelPipelineFactory clientPipeline ) {
+    this.responseHandler = new NioResponseHandler( );
+    this.remoteAddr = new InetSocketAddress( hostname, port );
+    this.hostname = hostname;
+    this.port = port;
+    this.servicePath = servicePath;
+    this.channelPool = ChannelPools.lookup( config, this.remoteAddr, clientPipeline );
+    this.connectFuture = this.channelPool.acquire( this.responseHandler );
+  }
+  
+  public synchronized void write( HttpRequest httpRequest ) throws Exception {
+    if ( this.channelPool != null ) {
+      httpRequest.setHeader( HttpHeaders.Names.CONNECTION, Boolean.TRUE.equals( StackConfiguration.CLIENT_POOL_KEEP_ALIVE )
+        ? HttpHeaders.Values.KEEP_ALIVE
+        : HttpHeaders.Values.CLOSE );
+      this.httpRequest = httpRequest;
+      this.connectFuture.addListener( new DeferedWriter( httpRequest, this.writeListener ) );
+    } else {
+      this.connectFuture.addListener( WRITE( httpRequest ) );
+    }
+  }
+  
+  /**
+   * A channel leased from the pool may have been closed by the peer while it was idle. If the
+   * request could not be written to such a channel it is sent once more on a new connection.
+   */
+  private synchronized boolean maybeRetry( final Channel channel ) {
+    if ( ( this.channelPool == null ) || this.writeComplete.get( ) || !ChannelPools.isPooled( this.connectFuture )
+         || ( this.connectFuture.getChannel( ) != channel ) || !this.retried.compareAndSet( false, true ) ) {
+      return false;
+    } else {
+      LOG.debug( "Retrying request on a new connection after pooled channel failed: " + channel );
+      this.channelPool.discard( channel, this.responseHandler );
+      this.connectFuture = this.channelPool.connect( this.responseHandler );
+      if ( this.httpRequest != null ) {
+        this.connectFuture.addListener( new DeferedWriter( this.httpRequest, this.writeListener ) );
+      }
+      return true;
+    }
   }
   
   @Override
@@ -90,7 +90,7 @@ public abstract class ServiceDispatcher implements Dispatcher {
     }
     
     protected final NioClient getNioClient( ) throws Exception {
-      return new NioClient( this.address.getHost( ), this.address.getPort( ), this.address.getPath( ),
+      return new NioClient( this.serviceConfiguration, this.address.getHost( ), this.address.getPort( ), this.address.getPath( ),
                             ComponentIds.lookup( Empyrean.class ).getClientPipeline( ) );
     }
     
@@ -63,7 +63,6 @@
  */
 package com.eucalyptus.ws.handlers;
 
-import java.io.ByteArrayOutputStream;
 import java.util.MissingFormatArgumentException;
 import org.apache.log4j.Logger;
 import org.jboss.netty.buffer.ChannelBuffer;
@@ -153,17 +152,17 @@ public abstract class RestfulMarshallingHandler extends MessageStackHandler {
   public void outgoingMessage( ChannelHandlerContext ctx, MessageEvent event ) throws Exception {
     if ( event.getMessage( ) instanceof MappingHttpResponse ) {
       MappingHttpResponse httpResponse = ( MappingHttpResponse ) event.getMessage( );
-      ByteArrayOutputStream byteOut = new ByteArrayOutputStream( );
+      ChannelBuffer buffer = ChannelBuffers.EMPTY_BUFFER;
       HoldMe.canHas.lock( );
       try {
         if ( httpResponse.getMessage( ) == null ) {
 /** TODO:GRZE: doing nothing here may be needed for streaming? double check... **/
 //          String response = Binding.createRestFault( this.requestType.get( ctx.getChannel( ) ), "Recieved an response from the service which has no content.", "" );
-//          byteOut.write( response.getBytes( ) );
+//          buffer = ChannelBuffers.wrappedBuffer( response.getBytes( ) );
 //          httpResponse.setStatus( HttpResponseStatus.INTERNAL_SERVER_ERROR );
         } else if ( httpResponse.getMessage( ) instanceof EucalyptusErrorMessageType ) {
           EucalyptusErrorMessageType errMsg = ( EucalyptusErrorMessageType ) httpResponse.getMessage( );
-          byteOut.write( Binding.createRestFault( errMsg.getSource( ), errMsg.getMessage( ), errMsg.getCorrelationId( ) ).getBytes( ) );
+          buffer = ChannelBuffers.wrappedBuffer( Binding.createRestFault( errMsg.getSource( ), errMsg.getMessage( ), errMsg.getCorrelationId( ) ).getBytes( ) );
           httpResponse.setStatus( HttpResponseStatus.BAD_REQUEST );
         } else if ( httpResponse.getMessage( ) instanceof ExceptionResponseType ) {//handle error case specially
           ExceptionResponseType msg = ( ExceptionResponseType ) httpResponse.getMessage( );
@@ -171,16 +170,16 @@ public abstract class RestfulMarshallingHandler extends MessageStackHandler {
             Logs.extreme( ).debug( msg, msg.getException( ) );
           }
           String response = Binding.createRestFault( msg.getRequestType( ), msg.getMessage( ), msg.getError( ) );
-          byteOut.write( response.getBytes( ) );
+          buffer = ChannelBuffers.wrappedBuffer( response.getBytes( ) );
           httpResponse.setStatus( msg.getHttpStatus( ) );
         } else {//actually try to bind response
           try {//use request binding
-            this.binding.toOM( httpResponse.getMessage( ) ).serialize( byteOut );
+            buffer = this.binding.toChannelBuffer( httpResponse.getMessage( ) );
           } catch ( BindingException ex ) {
             try {//use default binding with request namespace
-              BindingManager.getDefaultBinding( ).toOM( httpResponse.getMessage( ), this.namespace ).serialize( byteOut );
+              buffer = BindingManager.getDefaultBinding( ).toChannelBuffer( httpResponse.getMessage( ), this.namespace );
             } catch ( BindingException ex1 ) {//use default binding
-              BindingManager.getDefaultBinding( ).toOM( httpResponse.getMessage( ) ).serialize( byteOut );
+              buffer = BindingManager.getDefaultBinding( ).toChannelBuffer( httpResponse.getMessage( ) );
             }
           } catch ( Exception e ) {
             LOG.debug( e );
@@ -188,8 +187,6 @@ public abstract class RestfulMarshallingHandler extends MessageStackHandler {
             throw e;
           }
         }
-        byte[] req = byteOut.toByteArray( );
-        ChannelBuffer buffer = ChannelBuffers.copiedBuffer( req );
         httpResponse.addHeader( HttpHeaders.Names.CONTENT_LENGTH, String.valueOf( buffer.readableBytes( ) ) );
         httpResponse.addHeader( HttpHeaders.Names.CONTENT_TYPE, "application/xml; charset=UTF-8" );
         httpResponse.setContent( buffer );
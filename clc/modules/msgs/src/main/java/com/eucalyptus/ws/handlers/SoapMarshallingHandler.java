@@ -63,7 +63,6 @@
  */
 package com.eucalyptus.ws.handlers;
 
-import java.io.ByteArrayOutputStream;
 import org.apache.axiom.soap.SOAP11Constants;
 import org.apache.axiom.soap.SOAP12Constants;
 import org.apache.axiom.soap.SOAPEnvelope;
@@ -71,6 +70,8 @@ import org.apache.axiom.soap.SOAPFactory;
 import org.apache.axiom.soap.impl.builder.StAXSOAPModelBuilder;
 import org.apache.log4j.Logger;
 import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferInputStream;
+import org.jboss.netty.buffer.ChannelBufferOutputStream;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ChannelPipelineCoverage;
@@ -82,30 +83,30 @@ import com.eucalyptus.ws.WebServicesException;
 
 @ChannelPipelineCoverage( "all" )
 public class SoapMarshallingHandler extends MessageStackHandler {
-  private static Logger LOG = Logger.getLogger( SoapMarshallingHandler.class );
+  private static Logger    LOG         = Logger.getLogger( SoapMarshallingHandler.class );
+  private static final int BUFFER_SIZE = 8192;
 
   @Override
   public void incomingMessage( final MessageEvent event ) throws Exception {
     if ( event.getMessage( ) instanceof MappingHttpMessage ) {
       MappingHttpMessage httpMessage = ( MappingHttpMessage ) event.getMessage( );
-      String content = httpMessage.getContent( ).toString( "UTF-8" );
-      httpMessage.setMessageString( content );
+      ChannelBuffer content = httpMessage.getContent( );
       HoldMe.canHas.lock( );
       SOAPEnvelope env = null;
       try {
         StAXSOAPModelBuilder soapBuilder = null;
         try {
           SOAPFactory factory = HoldMe.getOMSOAP11Factory( );
-          soapBuilder = new StAXSOAPModelBuilder( HoldMe.getXMLStreamReader( content ), factory , SOAP11Constants.SOAP_ENVELOPE_NAMESPACE_URI );
+          soapBuilder = new StAXSOAPModelBuilder( HoldMe.getXMLStreamReader( new ChannelBufferInputStream( content.duplicate( ) ) ), factory , SOAP11Constants.SOAP_ENVELOPE_NAMESPACE_URI );
         } catch ( Exception e ) {
           SOAPFactory factory = HoldMe.getOMSOAP12Factory( );
-          soapBuilder = new StAXSOAPModelBuilder( HoldMe.getXMLStreamReader( content ), factory , SOAP12Constants.SOAP_ENVELOPE_NAMESPACE_URI );
+          soapBuilder = new StAXSOAPModelBuilder( HoldMe.getXMLStreamReader( new ChannelBufferInputStream( content.duplicate( ) ) ), factory , SOAP12Constants.SOAP_ENVELOPE_NAMESPACE_URI );
         }
         env = ( SOAPEnvelope ) soapBuilder.getDocumentElement( );
       } catch( Exception ex ) {
-        LOG.error( "Failed to marshall response: " + content );
+        LOG.error( "Failed to marshall response: " + httpMessage.getMessageString( ) );
         LOG.error( ex, ex );
-        throw new WebServicesException( "Failed to marshall response: " + content, ex );
+        throw new WebServicesException( "Failed to marshall response: " + httpMessage.getMessageString( ), ex );
       } finally {
         HoldMe.canHas.unlock( );
       }
@@ -117,14 +118,13 @@ public class SoapMarshallingHandler extends MessageStackHandler {
   public void outgoingMessage( final ChannelHandlerContext ctx, final MessageEvent event ) throws Exception {
     if ( event.getMessage( ) instanceof MappingHttpMessage ) {
       MappingHttpMessage httpMessage = ( MappingHttpMessage ) event.getMessage( );
-      ByteArrayOutputStream byteOut = new ByteArrayOutputStream( );
+      ChannelBuffer buffer = ChannelBuffers.dynamicBuffer( BUFFER_SIZE );
       HoldMe.canHas.lock( );
       try {
-        httpMessage.getSoapEnvelope( ).serialize( byteOut );//HACK: does this need fixing for xml brokeness?
+        httpMessage.getSoapEnvelope( ).serializeAndConsume( new ChannelBufferOutputStream( buffer ) );//HACK: does this need fixing for xml brokeness?
       } finally {
         HoldMe.canHas.unlock( );
       }
-      ChannelBuffer buffer = ChannelBuffers.wrappedBuffer( byteOut.toByteArray( ) );
       httpMessage.addHeader( HttpHeaders.Names.CONTENT_LENGTH, String.valueOf( buffer.readableBytes( ) ) );
       httpMessage.addHeader( HttpHeaders.Names.CONTENT_TYPE, "text/xml; charset=UTF-8" );
       httpMessage.setContent( buffer );
@@ -63,30 +63,17 @@
 
 package com.eucalyptus.ws.protocol;
 
-import java.lang.reflect.Field;
-import java.lang.reflect.Modifier;
-import java.lang.reflect.ParameterizedType;
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import org.apache.log4j.Logger;
 import com.eucalyptus.binding.Binding;
 import com.eucalyptus.binding.BindingException;
 import com.eucalyptus.binding.BindingManager;
-import com.eucalyptus.binding.HttpEmbedded;
-import com.eucalyptus.binding.HttpParameterMapping;
 import com.eucalyptus.http.MappingHttpRequest;
 import com.eucalyptus.ws.handlers.RestfulMarshallingHandler;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
-import com.google.common.collect.Sets;
 import edu.emory.mathcs.backport.java.util.Arrays;
-import edu.ucsb.eucalyptus.msgs.BaseData;
 import edu.ucsb.eucalyptus.msgs.BaseMessage;
-import edu.ucsb.eucalyptus.msgs.EucalyptusData;
-import edu.ucsb.eucalyptus.msgs.EucalyptusMessage;
-import groovy.lang.GroovyObject;
 
 public class BaseQueryBinding<T extends Enum<T>> extends RestfulMarshallingHandler {
   private static Logger LOG = Logger.getLogger( BaseQueryBinding.class );
@@ -152,7 +139,7 @@ public class BaseQueryBinding<T extends Enum<T>> extends RestfulMarshallingHandl
     final Map<String, String> params = httpRequest.getParameters( );
     
     BaseMessage eucaMsg = null;
-    Map<String, String> fieldMap = null;
+    QueryBinder binder = null;
     Class<?> targetType = null;
     Binding currentBinding = null;
     try {
@@ -182,8 +169,8 @@ public class BaseQueryBinding<T extends Enum<T>> extends RestfulMarshallingHandl
           throw ex;
         }
       }
-      fieldMap = this.buildFieldMap( targetType );
-      eucaMsg = ( BaseMessage ) targetType.newInstance( );
+      binder = QueryBinder.get( targetType );
+      eucaMsg = ( BaseMessage ) binder.newInstance( );
     } catch ( final BindingException e ) {
       LOG.debug( "Failed to construct message of type: " + operationName, e );
       LOG.error( e, e );
@@ -192,7 +179,7 @@ public class BaseQueryBinding<T extends Enum<T>> extends RestfulMarshallingHandl
       throw new BindingException( "Failed to construct message of type " + operationName, e );
     }
     
-    final List<String> failedMappings = this.populateObject( ( GroovyObject ) eucaMsg, fieldMap, params );
+    final List<String> failedMappings = binder.populate( eucaMsg, params );
     
     if ( !failedMappings.isEmpty( ) || !params.isEmpty( ) ) {
       final StringBuilder errMsg = new StringBuilder( "Failed to bind the following fields:\n" );
@@ -217,178 +204,4 @@ public class BaseQueryBinding<T extends Enum<T>> extends RestfulMarshallingHandl
     return eucaMsg;
   }
   
-  private static Field getRecursiveField( Class<?> clazz, final String fieldName ) throws Exception {
-    Field ret = null;
-    Exception e = null;
-    while ( !BaseMessage.class.equals( clazz ) || !Object.class.equals( clazz ) ) {
-      try {
-        ret = clazz.getDeclaredField( fieldName );
-        return ret;
-      } catch ( final Exception e1 ) {
-        e = e1;
-        
-      }
-      clazz = clazz.getSuperclass( );
-    }
-    if ( ret == null ) {
-      throw e;
-    }
-    return ret;
-  }
-  
-  private List<String> populateObject( final GroovyObject obj, final Map<String, String> paramFieldMap, final Map<String, String> params ) {
-    final List<String> failedMappings = new ArrayList<String>( );
-    for ( final Map.Entry<String, String> e : paramFieldMap.entrySet( ) ) {
-      try {
-        if ( getRecursiveField( obj.getClass( ), e.getValue( ) ).getType( ).equals( ArrayList.class ) ) {
-          failedMappings.addAll( this.populateObjectList( obj, e, params, params.size( ) ) );
-        }
-      } catch ( final Exception e1 ) {
-        LOG.debug( "Failed mapping : ", e1 );
-        failedMappings.add( e.getKey( ) );
-      }
-    }
-    
-    Class<?> declaredType = null;
-    
-    for ( final Map.Entry<String, String> e : paramFieldMap.entrySet( ) ) {
-      
-      try {
-        declaredType = getRecursiveField( obj.getClass( ), e.getValue( ) ).getType( );
-      } catch ( final Exception e2 ) {
-        e2.printStackTrace( );
-      }
-      
-      if ( params.containsKey( e.getKey( ) )
-           && !this.populateObjectField( obj, e, params ) ) {
-        failedMappings.add( e.getKey( ) );
-      } else if ( ( declaredType != null )
-                  && EucalyptusData.class.isAssignableFrom( declaredType ) ) {
-        try {
-          final Map<String, String> fieldMap = this
-                                                   .buildFieldMap( declaredType );
-          final Object newInstance = declaredType.newInstance( );
-          final Map<String, String> subParams = Maps.newHashMap( );
-          
-          for ( final String item : Sets.newHashSet( params.keySet( ) ) ) {
-            if ( item.startsWith( e.getKey( ) ) ) {
-              params.get( item );
-              subParams.put( item.replace( e.getKey( ) + ".", "" ), params.remove( item ) );
-            }
-          }
-          this.populateObject( ( GroovyObject ) newInstance, fieldMap, subParams );
-          obj.setProperty( e.getValue( ), newInstance );
-        } catch ( final Exception e1 ) {
-          // TODO Auto-generated catch block
-          e1.printStackTrace( );
-        }
-      } else {
-        failedMappings.remove( e.getKey( ) );
-      }
-      
-    }
-    return failedMappings;
-  }
-  
-  @SuppressWarnings( "unchecked" )
-  private boolean populateObjectField( final GroovyObject obj, final Map.Entry<String, String> paramFieldPair, final Map<String, String> params ) {
-    try {
-      final Class<?> declaredType = getRecursiveField( obj.getClass( ), paramFieldPair.getValue( ) ).getType( );
-      if ( declaredType.equals( String.class ) )
-        obj.setProperty( paramFieldPair.getValue( ), params.remove( paramFieldPair.getKey( ) ) );
-      else if ( declaredType.getName( ).equals( "int" ) )
-        obj.setProperty( paramFieldPair.getValue( ), Integer.parseInt( params.remove( paramFieldPair.getKey( ) ) ) );
-      else if ( declaredType.equals( Integer.class ) )
-        obj.setProperty( paramFieldPair.getValue( ), new Integer( params.remove( paramFieldPair.getKey( ) ) ) );
-      else if ( declaredType.getName( ).equals( "boolean" ) )
-        obj.setProperty( paramFieldPair.getValue( ), Boolean.parseBoolean( params.remove( paramFieldPair.getKey( ) ) ) );
-      else if ( declaredType.equals( Boolean.class ) )
-        obj.setProperty( paramFieldPair.getValue( ), new Boolean( params.remove( paramFieldPair.getKey( ) ) ) );
-      else if ( declaredType.getName( ).equals( "long" ) )
-        obj.setProperty( paramFieldPair.getValue( ), Long.parseLong( params.remove( paramFieldPair.getKey( ) ) ) );
-      else if ( declaredType.equals( Long.class ) )
-        obj.setProperty( paramFieldPair.getValue( ), new Long( params.remove( paramFieldPair.getKey( ) ) ) );
-      else return false;
-      return true;
-      
-    } catch ( final Exception e1 ) {
-      return false;
-    }
-  }
-  
-  @SuppressWarnings( "rawtypes" )
-  private List<String> populateObjectList( final GroovyObject obj, final Map.Entry<String, String> paramFieldPair, final Map<String, String> params, final int paramSize ) {
-    final List<String> failedMappings = new ArrayList<String>( );
-    try {
-      final Field declaredField = getRecursiveField( obj.getClass( ), paramFieldPair.getValue( ) );
-      final ArrayList theList = ( ArrayList ) obj.getProperty( paramFieldPair.getValue( ) );
-      final Class genericType = ( Class ) ( ( ParameterizedType ) declaredField.getGenericType( ) ).getActualTypeArguments( )[0];
-      // :: simple case: FieldName.# :://
-      if ( String.class.equals( genericType ) ) {
-        if ( params.containsKey( paramFieldPair.getKey( ) ) ) {
-          theList.add( params.remove( paramFieldPair.getKey( ) ) );
-        } else {
-          final List<String> keys = Lists.newArrayList( params.keySet( ) );
-          for ( final String k : keys ) {
-            if ( k.matches( paramFieldPair.getKey( ) + "\\.\\d*" ) ) {
-              theList.add( params.remove( k ) );
-            }
-          }
-        }
-      } else if ( declaredField.isAnnotationPresent( HttpEmbedded.class ) ) {
-        final HttpEmbedded annoteEmbedded = ( HttpEmbedded ) declaredField.getAnnotation( HttpEmbedded.class );
-        // :: build the parameter map and call populate object recursively :://
-        if ( annoteEmbedded.multiple( ) ) {
-          final List<String> keys = Lists.newArrayList( params.keySet( ) );
-          final Map<String,String> subParams = Maps.newConcurrentMap( );
-          for ( final String k : keys ) {
-            if ( k.contains( paramFieldPair.getKey( ) + ".1." ) ) {
-              //theList.add( params.remove(k) );
-              final String currentValue = params.remove( k );
-              final String newKey = k.replaceAll( paramFieldPair.getKey( ) + ".1.", "" );
-              subParams.put( newKey, currentValue );
-            }
-          }
-          
-          failedMappings.addAll( this.populateEmbedded( genericType, subParams, theList ) );
-        } else failedMappings.addAll( this.populateEmbedded( genericType, params, theList ) );
-      }
-    } catch ( final Exception e1 ) {
-      LOG.debug( "FAILED HERE : ", e1 );
-      failedMappings.add( paramFieldPair.getKey( ) );
-    }
-    return failedMappings;
-  }
-  
-  private List<String> populateEmbedded( final Class<?> genericType, final Map<String, String> params, @SuppressWarnings( "rawtypes" ) final ArrayList theList ) throws InstantiationException, IllegalAccessException {
-    final GroovyObject embedded = ( GroovyObject ) genericType.newInstance( );
-    final Map<String, String> embeddedFields = this.buildFieldMap( genericType );
-    final int startSize = params.size( );
-    final List<String> embeddedFailures = this.populateObject( embedded, embeddedFields, params );
-    if ( embeddedFailures.isEmpty( ) && !( params.size( ) - startSize == 0 ) )
-      theList.add( embedded );
-    
-    return embeddedFailures;
-  }
-  
-  private Map<String, String> buildFieldMap( Class<?> targetType ) {
-    final Map<String, String> fieldMap = new HashMap<String, String>( );
-    while ( !BaseMessage.class.equals( targetType ) && !EucalyptusMessage.class.equals( targetType ) && !EucalyptusData.class.equals( targetType )
-            && !BaseData.class.equals( targetType ) ) {
-      final Field[] fields = targetType.getDeclaredFields( );
-      for ( final Field f : fields ) {
-        if ( Modifier.isStatic( f.getModifiers( ) ) )
-          continue;
-        else if ( f.isAnnotationPresent( HttpParameterMapping.class ) ) {
-          fieldMap.put( f.getAnnotation( HttpParameterMapping.class ).parameter( ), f.getName( ) );
-          fieldMap.put( f.getName( ).substring( 0, 1 ).toUpperCase( ).concat( f.getName( ).substring( 1 ) ), f.getName( ) );
-        } else {
-          fieldMap.put( f.getName( ).substring( 0, 1 ).toUpperCase( ).concat( f.getName( ).substring( 1 ) ), f.getName( ) );
-        }
-      }
-      targetType = targetType.getSuperclass( );
-    }
-    return fieldMap;
-  }
-  
 }
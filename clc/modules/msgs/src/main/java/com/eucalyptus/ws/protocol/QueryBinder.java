@@ -0,0 +1,407 @@
+/*******************************************************************************
+ * Copyright (c) 2009  Eucalyptus Systems, Inc.
+ * 
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, only version 3 of the License.
+ * 
+ * 
+ *  This file is distributed in the hope that it will be useful, but WITHOUT
+ *  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ *  FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ *  Please contact Eucalyptus Systems, Inc., 130 Castilian
+ *  Dr., Goleta, CA 93101 USA or visit <http://www.eucalyptus.com/licenses/>
+ *  if you need additional information or have any questions.
+ * 
+ *  This file may incorporate work covered under the following copyright and
+ *  permission notice:
+ * 
+ *    Software License Agreement (BSD License)
+ * 
+ *    Copyright (c) 2008, Regents of the University of California
+ *    All rights reserved.
+ * 
+ *    Redistribution and use of this software in source and binary forms, with
+ *    or without modification, are permitted provided that the following
+ *    conditions are met:
+ * 
+ *      Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * 
+ *      Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ * 
+ *    THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ *    IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ *    TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ *    PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ *    OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *    EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ *    PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ *    PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ *    LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ *    NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *    SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. USERS OF
+ *    THIS SOFTWARE ACKNOWLEDGE THE POSSIBLE PRESENCE OF OTHER OPEN SOURCE
+ *    LICENSED MATERIAL, COPYRIGHTED MATERIAL OR PATENTED MATERIAL IN THIS
+ *    SOFTWARE, AND IF ANY SUCH MATERIAL IS DISCOVERED THE PARTY DISCOVERING
+ *    IT MAY INFORM DR. RICH WOLSKI AT THE UNIVERSITY OF CALIFORNIA, SANTA
+ *    BARBARA WHO WILL THEN ASCERTAIN THE MOST APPROPRIATE REMEDY, WHICH IN
+ *    THE REGENTS' DISCRETION MAY INCLUDE, WITHOUT LIMITATION, REPLACEMENT
+ *    OF THE CODE SO IDENTIFIED, LICENSING OF THE CODE SO IDENTIFIED, OR
+ *    WITHDRAWAL OF THE CODE CAPABILITY TO THE EXTENT NEEDED TO COMPLY WITH
+ *    ANY SUCH LICENSES OR RIGHTS.
+ *******************************************************************************/
+
+package com.eucalyptus.ws.protocol;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+import org.apache.log4j.Logger;
+import com.eucalyptus.binding.HttpEmbedded;
+import com.eucalyptus.binding.HttpParameterMapping;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import edu.ucsb.eucalyptus.msgs.BaseData;
+import edu.ucsb.eucalyptus.msgs.BaseMessage;
+import edu.ucsb.eucalyptus.msgs.EucalyptusData;
+import edu.ucsb.eucalyptus.msgs.EucalyptusMessage;
+
+/**
+ * Binds query parameters to the fields of a message or data class.
+ *
+ * A binder is built the first time its class is bound and then reused for every request: the
+ * parameter names, field types, converters, accessors and list element types are all resolved up
+ * front, so binding a request only parses and assigns values. Fields are assigned through their
+ * Groovy generated setters (or the field itself when there is none) rather than through
+ * {@code GroovyObject.setProperty}.
+ *
+ * The binding rules are those of the original {@link BaseQueryBinding} implementation:
+ * <ul>
+ * <li>each field is bound from its capitalized name and from its {@link HttpParameterMapping}
+ * parameter, if any;</li>
+ * <li>{@code String}, {@code int}, {@code long} and {@code boolean} fields (and their boxed types)
+ * are parsed from the parameter value;</li>
+ * <li>{@code ArrayList<String>} fields take the parameter itself or every {@code Name.N}
+ * parameter, and {@link HttpEmbedded} lists take an element bound from the parameters (from the
+ * {@code Name.1.*} parameters when {@link HttpEmbedded#multiple()} is set);</li>
+ * <li>{@link EucalyptusData} fields are replaced with a value bound from the {@code Name.*}
+ * parameters.</li>
+ * </ul>
+ * Bound parameters are removed from the parameter map.
+ */
+class QueryBinder {
+  private static Logger                                     LOG     = Logger.getLogger( QueryBinder.class );
+  private static final ConcurrentMap<Class<?>, QueryBinder> binders = Maps.newConcurrentMap( );
+  private final Class<?>                                    type;
+  private final Mapping[]                                   mappings;
+  
+  private QueryBinder( final Class<?> type ) {
+    this.type = type;
+    final List<Mapping> mappings = Lists.newArrayList( );
+    for ( final Map.Entry<String, Field> e : fieldMap( type ).entrySet( ) ) {
+      mappings.add( new Mapping( type, e.getKey( ), e.getValue( ) ) );
+    }
+    this.mappings = mappings.toArray( new Mapping[mappings.size( )] );
+  }
+  
+  /**
+   * @return the binder for the given type, building it on first use.
+   */
+  static QueryBinder get( final Class<?> type ) {
+    final QueryBinder binder = binders.get( type );
+    if ( binder != null ) {
+      return binder;
+    } else {
+      final QueryBinder newBinder = new QueryBinder( type );
+      final QueryBinder existing = binders.putIfAbsent( type, newBinder );
+      return existing == null ? newBinder : existing;
+    }
+  }
+  
+  Object newInstance( ) throws InstantiationException, IllegalAccessException {
+    return this.type.newInstance( );
+  }
+  
+  /**
+   * Bind the parameters to the target, removing those which were bound.
+   * 
+   * @return the parameters which could not be bound.
+   */
+  List<String> populate( final Object target, final Map<String, String> params ) {
+    final List<String> failedMappings = new ArrayList<String>( );
+    for ( final Mapping m : this.mappings ) {
+      if ( m.list != null ) {
+        m.populateList( target, params, failedMappings );
+      }
+    }
+    for ( final Mapping m : this.mappings ) {
+      if ( params.containsKey( m.parameter ) && !m.populateField( target, params ) ) {
+        failedMappings.add( m.parameter );
+      } else if ( m.data ) {
+        m.populateData( target, params );
+      } else {
+        failedMappings.remove( m.parameter );
+      }
+    }
+    return failedMappings;
+  }
+  
+  /**
+   * Bind a new list element from the parameters and add it to the list if any parameter was bound
+   * and none failed.
+   */
+  @SuppressWarnings( "unchecked" )
+  private void populateElement( final Map<String, String> params, @SuppressWarnings( "rawtypes" ) final List theList, final List<String> failedMappings ) throws InstantiationException, IllegalAccessException {
+    final Object embedded = this.newInstance( );
+    final int startSize = params.size( );
+    final List<String> embeddedFailures = this.populate( embedded, params );
+    if ( embeddedFailures.isEmpty( ) && params.size( ) != startSize ) {
+      theList.add( embedded );
+    }
+    failedMappings.addAll( embeddedFailures );
+  }
+  
+  /**
+   * @return parameter name -> field, in the iteration order the parameters have always been bound in.
+   */
+  private static Map<String, Field> fieldMap( Class<?> targetType ) {
+    final Map<String, String> fieldNames = new HashMap<String, String>( );
+    final Map<String, Field> fields = Maps.newHashMap( );
+    while ( !BaseMessage.class.equals( targetType ) && !EucalyptusMessage.class.equals( targetType ) && !EucalyptusData.class.equals( targetType )
+            && !BaseData.class.equals( targetType ) ) {
+      for ( final Field f : targetType.getDeclaredFields( ) ) {
+        if ( Modifier.isStatic( f.getModifiers( ) ) ) {
+          continue;
+        } else if ( f.isAnnotationPresent( HttpParameterMapping.class ) ) {
+          fieldNames.put( f.getAnnotation( HttpParameterMapping.class ).parameter( ), f.getName( ) );
+        }
+        fieldNames.put( capitalize( f.getName( ) ), f.getName( ) );
+        if ( !fields.containsKey( f.getName( ) ) ) {
+          fields.put( f.getName( ), f );
+        }
+      }
+      targetType = targetType.getSuperclass( );
+    }
+    final Map<String, Field> fieldMap = new HashMap<String, Field>( );
+    for ( final Map.Entry<String, String> e : fieldNames.entrySet( ) ) {
+      fieldMap.put( e.getKey( ), fields.get( e.getValue( ) ) );
+    }
+    return fieldMap;
+  }
+  
+  private static String capitalize( final String name ) {
+    return name.substring( 0, 1 ).toUpperCase( ).concat( name.substring( 1 ) );
+  }
+  
+  enum Converter {
+    STRING {
+      @Override
+      Object convert( final String value ) {
+        return value;
+      }
+    },
+    INTEGER {
+      @Override
+      Object convert( final String value ) {
+        return Integer.valueOf( value );
+      }
+    },
+    LONG {
+      @Override
+      Object convert( final String value ) {
+        return Long.valueOf( value );
+      }
+    },
+    BOOLEAN {
+      @Override
+      Object convert( final String value ) {
+        return Boolean.valueOf( value );
+      }
+    };
+    
+    abstract Object convert( String value );
+    
+    /**
+     * @return the converter for the field type, or null if values of the type can not be bound.
+     */
+    static Converter forType( final Class<?> type ) {
+      if ( String.class.equals( type ) ) {
+        return STRING;
+      } else if ( int.class.equals( type ) || Integer.class.equals( type ) ) {
+        return INTEGER;
+      } else if ( long.class.equals( type ) || Long.class.equals( type ) ) {
+        return LONG;
+      } else if ( boolean.class.equals( type ) || Boolean.class.equals( type ) ) {
+        return BOOLEAN;
+      } else {
+        return null;
+      }
+    }
+  }
+  
+  enum ListKind {
+    /** {@code ArrayList<String>} */
+    STRING,
+    /** {@link HttpEmbedded} list of data */
+    EMBEDDED,
+    /** {@link HttpEmbedded#multiple()} list of data */
+    EMBEDDED_MULTIPLE,
+    /** any other element type, the list is left alone */
+    UNBOUND,
+    /** the element type could not be determined, binding the list always fails */
+    UNKNOWN
+  }
+  
+  private static class Mapping {
+    private final String    parameter;
+    private final Field     field;
+    private final Method    getter;
+    private final Method    setter;
+    private final Converter converter;
+    private final boolean   data;
+    private final ListKind  list;
+    private final Class<?>  elementType;
+    private final Pattern   indexedParameter;
+    private final Pattern   firstElementPrefix;
+    
+    Mapping( final Class<?> type, final String parameter, final Field field ) {
+      this.parameter = parameter;
+      this.field = field;
+      this.getter = method( type, "get" + capitalize( field.getName( ) ) );
+      this.setter = method( type, "set" + capitalize( field.getName( ) ), field.getType( ) );
+      if ( this.getter == null || this.setter == null ) {
+        field.setAccessible( true );
+      }
+      this.converter = Converter.forType( field.getType( ) );
+      this.data = EucalyptusData.class.isAssignableFrom( field.getType( ) );
+      Class<?> elementType = null;
+      if ( !ArrayList.class.equals( field.getType( ) ) ) {
+        this.list = null;
+      } else if ( !( field.getGenericType( ) instanceof ParameterizedType )
+                  || !( ( ( ParameterizedType ) field.getGenericType( ) ).getActualTypeArguments( )[0] instanceof Class ) ) {
+        this.list = ListKind.UNKNOWN;
+      } else {
+        elementType = ( Class<?> ) ( ( ParameterizedType ) field.getGenericType( ) ).getActualTypeArguments( )[0];
+        if ( String.class.equals( elementType ) ) {
+          this.list = ListKind.STRING;
+        } else if ( field.isAnnotationPresent( HttpEmbedded.class ) ) {
+          this.list = field.getAnnotation( HttpEmbedded.class ).multiple( )
+            ? ListKind.EMBEDDED_MULTIPLE
+            : ListKind.EMBEDDED;
+        } else {
+          this.list = ListKind.UNBOUND;
+        }
+      }
+      this.elementType = elementType;
+      this.indexedParameter = Pattern.compile( parameter + "\\.\\d*" );
+      this.firstElementPrefix = Pattern.compile( parameter + ".1." );
+    }
+    
+    private static Method method( final Class<?> type, final String name, final Class<?>... parameterTypes ) {
+      try {
+        return type.getMethod( name, parameterTypes );
+      } catch ( final NoSuchMethodException e ) {
+        return null;
+      }
+    }
+    
+    Object get( final Object target ) throws Exception {
+      return this.getter != null
+        ? this.getter.invoke( target )
+        : this.field.get( target );
+    }
+    
+    void set( final Object target, final Object value ) throws Exception {
+      if ( this.setter != null ) {
+        this.setter.invoke( target, value );
+      } else {
+        this.field.set( target, value );
+      }
+    }
+    
+    boolean populateField( final Object target, final Map<String, String> params ) {
+      if ( this.converter == null ) {
+        return false;
+      }
+      try {
+        this.set( target, this.converter.convert( params.remove( this.parameter ) ) );
+        return true;
+      } catch ( final Exception e ) {
+        return false;
+      }
+    }
+    
+    @SuppressWarnings( { "unchecked", "rawtypes" } )
+    void populateList( final Object target, final Map<String, String> params, final List<String> failedMappings ) {
+      if ( this.list == ListKind.UNBOUND ) {
+        return;
+      }
+      try {
+        if ( this.list == ListKind.UNKNOWN ) {
+          throw new IllegalArgumentException( "Unable to determine the element type of " + this.field );
+        }
+        final List theList = ( List ) this.get( target );
+        if ( this.list == ListKind.STRING ) {
+          if ( params.containsKey( this.parameter ) ) {
+            theList.add( params.remove( this.parameter ) );
+          } else {
+            for ( final String k : Lists.newArrayList( params.keySet( ) ) ) {
+              if ( this.indexedParameter.matcher( k ).matches( ) ) {
+                theList.add( params.remove( k ) );
+              }
+            }
+          }
+        } else if ( this.list == ListKind.EMBEDDED_MULTIPLE ) {
+          final String prefix = this.parameter + ".1.";
+          final Map<String, String> subParams = Maps.newConcurrentMap( );
+          for ( final String k : Lists.newArrayList( params.keySet( ) ) ) {
+            if ( k.contains( prefix ) ) {
+              final String currentValue = params.remove( k );
+              subParams.put( this.firstElementPrefix.matcher( k ).replaceAll( "" ), currentValue );
+            }
+          }
+          QueryBinder.get( this.elementType ).populateElement( subParams, theList, failedMappings );
+        } else {
+          QueryBinder.get( this.elementType ).populateElement( params, theList, failedMappings );
+        }
+      } catch ( final Exception e ) {
+        LOG.debug( "Failed mapping : ", e );
+        failedMappings.add( this.parameter );
+      }
+    }
+    
+    void populateData( final Object target, final Map<String, String> params ) {
+      try {
+        final QueryBinder binder = QueryBinder.get( this.field.getType( ) );
+        final Object value = binder.newInstance( );
+        final String prefix = this.parameter + ".";
+        final Map<String, String> subParams = Maps.newHashMap( );
+        for ( final String item : Lists.newArrayList( params.keySet( ) ) ) {
+          if ( item.startsWith( this.parameter ) ) {
+            subParams.put( item.replace( prefix, "" ), params.remove( item ) );
+          }
+        }
+        binder.populate( value, subParams );
+        this.set( target, value );
+      } catch ( final Exception e ) {
+        LOG.debug( "Failed mapping : " + this.parameter, e );
+      }
+    }
+  }
+  
+}
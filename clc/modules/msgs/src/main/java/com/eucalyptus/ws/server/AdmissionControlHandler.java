@@ -0,0 +1,393 @@
+/*******************************************************************************
+ * Copyright (c) 2009  Eucalyptus Systems, Inc.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, only version 3 of the License.
+ *
+ *
+ *  This file is distributed in the hope that it will be useful, but WITHOUT
+ *  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ *  FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Please contact Eucalyptus Systems, Inc., 130 Castilian
+ *  Dr., Goleta, CA 93101 USA or visit <http://www.eucalyptus.com/licenses/>
+ *  if you need additional information or have any questions.
+ *
+ *  This file may incorporate work covered under the following copyright and
+ *  permission notice:
+ *
+ *    Software License Agreement (BSD License)
+ *
+ *    Copyright (c) 2008, Regents of the University of California
+ *    All rights reserved.
+ *
+ *    Redistribution and use of this software in source and binary forms, with
+ *    or without modification, are permitted provided that the following
+ *    conditions are met:
+ *
+ *      Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ *
+ *      Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *
+ *    THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ *    IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ *    TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ *    PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ *    OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *    EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ *    PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ *    PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ *    LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ *    NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *    SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. USERS OF
+ *    THIS SOFTWARE ACKNOWLEDGE THE POSSIBLE PRESENCE OF OTHER OPEN SOURCE
+ *    LICENSED MATERIAL, COPYRIGHTED MATERIAL OR PATENTED MATERIAL IN THIS
+ *    SOFTWARE, AND IF ANY SUCH MATERIAL IS DISCOVERED THE PARTY DISCOVERING
+ *    IT MAY INFORM DR. RICH WOLSKI AT THE UNIVERSITY OF CALIFORNIA, SANTA
+ *    BARBARA WHO WILL THEN ASCERTAIN THE MOST APPROPRIATE REMEDY, WHICH IN
+ *    THE REGENTS' DISCRETION MAY INCLUDE, WITHOUT LIMITATION, REPLACEMENT
+ *    OF THE CODE SO IDENTIFIED, LICENSING OF THE CODE SO IDENTIFIED, OR
+ *    WITHDRAWAL OF THE CODE CAPABILITY TO THE EXTENT NEEDED TO COMPLY WITH
+ *    ANY SUCH LICENSES OR RIGHTS.
+ *******************************************************************************
+ */
+
+package com.eucalyptus.ws.server;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+import org.jboss.netty.channel.ChannelDownstreamHandler;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipelineCoverage;
+import org.jboss.netty.channel.ChannelState;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.ChannelUpstreamHandler;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import com.eucalyptus.auth.principal.User;
+import com.eucalyptus.context.Context;
+import com.eucalyptus.context.Contexts;
+import com.eucalyptus.http.MappingHttpMessage;
+import com.eucalyptus.records.Logs;
+import com.eucalyptus.ws.Handlers;
+import com.eucalyptus.ws.StackConfiguration;
+import com.google.common.base.Objects;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import edu.ucsb.eucalyptus.msgs.BaseMessage;
+import edu.ucsb.eucalyptus.msgs.ExceptionResponseType;
+
+/**
+ * Admission stage ahead of the {@link ServiceContextHandler}, enabled by
+ * {@link StackConfiguration#ADMISSION_CONTROL}.
+ *
+ * At most {@link StackConfiguration#ADMISSION_MAX_IN_FLIGHT} requests are dispatched at once.
+ * Further requests are queued per flow, a flow being the requesting account and the
+ * {@link OperationClass} of the request, and are admitted as replies are sent: the flows take
+ * turns, each admitting up to the weight of its operation class per turn, so that one account
+ * (or a burst of bulk transfers) can not starve the others. A request is rejected straight away
+ * with a 503 {@code RequestLimitExceeded} fault when its flow already has
+ * {@link StackConfiguration#ADMISSION_MAX_QUEUE_DEPTH} requests queued or the oldest of them has
+ * waited longer than {@link StackConfiguration#ADMISSION_MAX_QUEUE_MILLIS}; queued requests
+ * which have waited longer than that are rejected instead of being admitted.
+ *
+ * Requests from system administrators (which includes internal service requests) are never
+ * queued.
+ */
+@ChannelPipelineCoverage( "one" )
+public class AdmissionControlHandler implements ChannelUpstreamHandler, ChannelDownstreamHandler {
+  private static Logger                         LOG      = Logger.getLogger( AdmissionControlHandler.class );
+  private static final Object                   lock     = new Object( );
+  private static final Map<Flow, Flow>          flows    = Maps.newHashMap( );
+  private static final Deque<Flow>              active   = new ArrayDeque<Flow>( );
+  private static final AtomicLong               admitted = new AtomicLong( );
+  private static final AtomicLong               queued   = new AtomicLong( );
+  private static final AtomicLong               rejected = new AtomicLong( );
+  private static int                            inFlight = 0;
+  private static int                            waiting  = 0;
+  /**
+   * Number of admissions held by this channel, more than one when requests are pipelined.
+   */
+  private final AtomicInteger                   holding  = new AtomicInteger( 0 );
+
+  /**
+   * The weight of an operation class is the number of its requests a flow may admit per turn.
+   */
+  public enum OperationClass {
+    MUTATING( 2 ),
+    DESCRIBE( 4 ),
+    BULK( 1 );
+    private final int weight;
+
+    private OperationClass( final int weight ) {
+      this.weight = weight;
+    }
+
+    public int getWeight( ) {
+      return this.weight;
+    }
+
+    public static OperationClass of( final BaseMessage msg ) {
+      final String name = msg.getClass( ).getSimpleName( ).replaceAll( "Type$", "" );
+      if ( name.equals( "GetObject" ) || name.equals( "GetObjectExtended" ) || name.startsWith( "PutObject" )
+           || name.equals( "PostObject" ) || name.equals( "CopyObject" ) || name.startsWith( "Upload" ) ) {
+        return BULK;
+      } else if ( name.startsWith( "Describe" ) || name.startsWith( "List" ) || name.startsWith( "Get" ) ) {
+        return DESCRIBE;
+      } else {
+        return MUTATING;
+      }
+    }
+  }
+
+  private static class Flow {
+    private final String                 account;
+    private final OperationClass         operationClass;
+    private final Deque<Pending>         pending = new ArrayDeque<Pending>( );
+    private int                          credit  = 0;
+
+    Flow( final String account, final OperationClass operationClass ) {
+      this.account = account;
+      this.operationClass = operationClass;
+    }
+
+    @Override
+    public int hashCode( ) {
+      return Objects.hashCode( this.account, this.operationClass );
+    }
+
+    @Override
+    public boolean equals( final Object obj ) {
+      if ( !( obj instanceof Flow ) ) {
+        return false;
+      }
+      final Flow that = ( Flow ) obj;
+      return Objects.equal( this.account, that.account ) && this.operationClass == that.operationClass;
+    }
+  }
+
+  private static class Pending {
+    private final AdmissionControlHandler handler;
+    private final ChannelHandlerContext   ctx;
+    private final MessageEvent            event;
+    private final BaseMessage             msg;
+    private final long                    queuedNanos = System.nanoTime( );
+
+    Pending( final AdmissionControlHandler handler, final ChannelHandlerContext ctx, final MessageEvent event, final BaseMessage msg ) {
+      this.handler = handler;
+      this.ctx = ctx;
+      this.event = event;
+      this.msg = msg;
+    }
+
+    long waitedMillis( final long now ) {
+      return TimeUnit.NANOSECONDS.toMillis( now - this.queuedNanos );
+    }
+  }
+
+  @Override
+  public void handleUpstream( final ChannelHandlerContext ctx, final ChannelEvent e ) throws Exception {
+    final BaseMessage msg = BaseMessage.extractMessage( e );
+    if ( e instanceof MessageEvent && msg != null && MappingHttpMessage.extractMessage( e ) != null ) {
+      this.admit( ctx, ( MessageEvent ) e, msg );
+    } else {
+      if ( e instanceof ExceptionEvent ) {
+        this.release( );
+      } else if ( e instanceof ChannelStateEvent && ChannelState.OPEN.equals( ( ( ChannelStateEvent ) e ).getState( ) )
+                  && !Boolean.TRUE.equals( ( ( ChannelStateEvent ) e ).getValue( ) ) ) {
+        while ( this.release( ) );
+      }
+      ctx.sendUpstream( e );
+    }
+  }
+
+  @Override
+  public void handleDownstream( final ChannelHandlerContext ctx, final ChannelEvent e ) throws Exception {
+    if ( e instanceof MessageEvent ) {
+      this.release( );
+    }
+    ctx.sendDownstream( e );
+  }
+
+  private void admit( final ChannelHandlerContext ctx, final MessageEvent e, final BaseMessage msg ) {
+    final User user = user( msg );
+    if ( user == null || user.isSystemAdmin( ) ) {
+      ctx.sendUpstream( e );
+      return;
+    }
+    String account;
+    try {
+      account = user.getAccount( ).getAccountNumber( );
+    } catch ( Exception ex ) {
+      account = user.getName( );
+    }
+    final Flow key = new Flow( account, OperationClass.of( msg ) );
+    boolean admit = false;
+    boolean reject = false;
+    synchronized ( lock ) {
+      if ( inFlight < StackConfiguration.ADMISSION_MAX_IN_FLIGHT && waiting == 0 ) {
+        inFlight++;
+        this.holding.incrementAndGet( );
+        admit = true;
+      } else {
+        Flow flow = flows.get( key );
+        if ( flow == null ) {
+          flows.put( key, flow = key );
+        }
+        if ( flow.pending.size( ) >= StackConfiguration.ADMISSION_MAX_QUEUE_DEPTH
+             || ( !flow.pending.isEmpty( ) && flow.pending.peekFirst( ).waitedMillis( System.nanoTime( ) ) > StackConfiguration.ADMISSION_MAX_QUEUE_MILLIS ) ) {
+          reject = true;
+        } else {
+          if ( flow.pending.isEmpty( ) ) {
+            active.addLast( flow );
+          }
+          flow.pending.addLast( new Pending( this, ctx, e, msg ) );
+          waiting++;
+          queued.incrementAndGet( );
+        }
+        if ( flow.pending.isEmpty( ) ) {
+          flows.remove( flow );
+        }
+      }
+    }
+    if ( reject ) {
+      reject( msg );
+    } else if ( admit ) {
+      admitted.incrementAndGet( );
+      ctx.sendUpstream( e );
+    }
+  }
+
+  /**
+   * Release one of this channel's admissions, if it holds any, and pass it on to the next queued
+   * request.
+   * 
+   * @return false if the channel held no admission
+   */
+  private boolean release( ) {
+    int held;
+    do {
+      held = this.holding.get( );
+      if ( held <= 0 ) {
+        return false;
+      }
+    } while ( !this.holding.compareAndSet( held, held - 1 ) );
+    final List<Pending> shed = Lists.newArrayList( );
+    Pending next = null;
+    synchronized ( lock ) {
+      inFlight--;
+      final long now = System.nanoTime( );
+      while ( next == null && inFlight < StackConfiguration.ADMISSION_MAX_IN_FLIGHT && ( next = poll( ) ) != null ) {
+        if ( !next.ctx.getChannel( ).isOpen( ) ) {
+          next = null;
+        } else if ( next.waitedMillis( now ) > StackConfiguration.ADMISSION_MAX_QUEUE_MILLIS ) {
+          shed.add( next );
+          next = null;
+        }
+      }
+      if ( next != null ) {
+        inFlight++;
+        next.handler.holding.incrementAndGet( );
+      }
+    }
+    for ( final Pending p : shed ) {
+      reject( p.msg );
+    }
+    if ( next != null ) {
+      admitted.incrementAndGet( );
+      Statistics.record( Statistics.Stage.ADMISSION, System.nanoTime( ) - next.queuedNanos );
+      final Pending dispatch = next;
+      Handlers.serviceExecutionHandler( ).getExecutor( ).execute( new Runnable( ) {
+        @Override
+        public void run( ) {
+          dispatch.ctx.sendUpstream( dispatch.event );
+        }
+      } );
+    }
+    return true;
+  }
+
+  /**
+   * Take the next request from the flow whose turn it is; must hold the lock.
+   */
+  private static Pending poll( ) {
+    final Flow flow = active.peekFirst( );
+    if ( flow == null ) {
+      return null;
+    }
+    if ( flow.credit == 0 ) {
+      flow.credit = flow.operationClass.getWeight( );
+    }
+    final Pending p = flow.pending.pollFirst( );
+    flow.credit--;
+    waiting--;
+    if ( flow.pending.isEmpty( ) ) {
+      active.pollFirst( );
+      flows.remove( flow );
+      flow.credit = 0;
+    } else if ( flow.credit == 0 ) {
+      active.addLast( active.pollFirst( ) );
+    }
+    return p;
+  }
+
+  private static User user( final BaseMessage msg ) {
+    try {
+      if ( msg.getCorrelationId( ) != null && Contexts.exists( msg.getCorrelationId( ) ) ) {
+        final Context ctx = Contexts.lookup( msg.getCorrelationId( ) );
+        return ctx.getUser( );
+      }
+    } catch ( Exception ex ) {
+      Logs.extreme( ).debug( ex, ex );
+    }
+    return null;
+  }
+
+  private static void reject( final BaseMessage msg ) {
+    rejected.incrementAndGet( );
+    Logs.extreme( ).debug( "Rejecting request over the admission limits: " + msg.getClass( ).getSimpleName( ) + " " + msg.getCorrelationId( ) );
+    final ExceptionResponseType reply = new ExceptionResponseType( msg, "Request limit exceeded", HttpResponseStatus.SERVICE_UNAVAILABLE,
+                                                                   new RejectedExecutionException( "Request limit exceeded" ) );
+    reply.setRequestType( "RequestLimitExceeded" );
+    try {
+      Contexts.response( reply );
+    } catch ( Exception ex ) {
+      LOG.error( ex, ex );
+    }
+  }
+
+  public static long getAdmitted( ) {
+    return admitted.get( );
+  }
+
+  public static long getQueued( ) {
+    return queued.get( );
+  }
+
+  public static long getRejected( ) {
+    return rejected.get( );
+  }
+
+  public static int getWaiting( ) {
+    synchronized ( lock ) {
+      return waiting;
+    }
+  }
+}
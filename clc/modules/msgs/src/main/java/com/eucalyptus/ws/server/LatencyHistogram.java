@@ -0,0 +1,92 @@
+package com.eucalyptus.ws.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with log-linear buckets of microsecond resolution.
+ *
+ * Each power of two is split into {@value #SUB_BUCKETS} linear sub-buckets, so recorded values
+ * are reported with a relative error of at most 12.5%. Recording is a handful of atomic
+ * increments and never allocates; reads are not atomic with respect to concurrent writes.
+ */
+public class LatencyHistogram {
+  private static final int  SUB_BUCKET_BITS = 3;
+  private static final int  SUB_BUCKETS     = 1 << SUB_BUCKET_BITS;
+  private static final int  MAX_EXPONENT    = 40;                                             //~12 days in microseconds
+  private static final int  BUCKETS         = ( MAX_EXPONENT - SUB_BUCKET_BITS + 2 ) * SUB_BUCKETS;
+  private final AtomicLongArray counts      = new AtomicLongArray( BUCKETS );
+  private final AtomicLong      count       = new AtomicLong( );
+  private final AtomicLong      totalMicros = new AtomicLong( );
+  private final AtomicLong      maxMicros   = new AtomicLong( );
+
+  public void record( final long nanos ) {
+    final long micros = Math.max( 0l, TimeUnit.NANOSECONDS.toMicros( nanos ) );
+    this.counts.incrementAndGet( index( micros ) );
+    this.count.incrementAndGet( );
+    this.totalMicros.addAndGet( micros );
+    long max;
+    while ( micros > ( max = this.maxMicros.get( ) ) && !this.maxMicros.compareAndSet( max, micros ) );
+  }
+
+  public long getCount( ) {
+    return this.count.get( );
+  }
+
+  public double getMeanMillis( ) {
+    final long n = this.count.get( );
+    return n == 0 ? 0d : ( this.totalMicros.get( ) / ( double ) n ) / 1000d;
+  }
+
+  public double getMaxMillis( ) {
+    return this.maxMicros.get( ) / 1000d;
+  }
+
+  /**
+   * @param percentile in the range (0,100]
+   * @return the upper bound, in milliseconds, of the bucket holding the given percentile
+   */
+  public double getPercentileMillis( final double percentile ) {
+    final long n = this.count.get( );
+    if ( n == 0 ) {
+      return 0d;
+    }
+    final long rank = Math.max( 1l, ( long ) Math.ceil( n * Math.min( percentile, 100d ) / 100d ) );
+    long seen = 0;
+    for ( int i = 0; i < BUCKETS; i++ ) {
+      seen += this.counts.get( i );
+      if ( seen >= rank ) {
+        return Math.min( upperBound( i ), this.maxMicros.get( ) ) / 1000d;
+      }
+    }
+    return this.getMaxMillis( );
+  }
+
+  @Override
+  public String toString( ) {
+    return String.format( "count=%d mean=%.3fms p50=%.3fms p90=%.3fms p99=%.3fms max=%.3fms", this.getCount( ), this.getMeanMillis( ),
+                          this.getPercentileMillis( 50 ), this.getPercentileMillis( 90 ), this.getPercentileMillis( 99 ), this.getMaxMillis( ) );
+  }
+
+  static int index( final long micros ) {
+    if ( micros < SUB_BUCKETS ) {
+      return ( int ) micros;
+    }
+    final int exponent = 63 - Long.numberOfLeadingZeros( micros );
+    if ( exponent > MAX_EXPONENT ) {
+      return BUCKETS - 1;
+    }
+    final int subBucket = ( int ) ( micros >>> ( exponent - SUB_BUCKET_BITS ) ) - SUB_BUCKETS;
+    return ( exponent - SUB_BUCKET_BITS + 1 ) * SUB_BUCKETS + subBucket;
+  }
+
+  static long upperBound( final int index ) {
+    if ( index < SUB_BUCKETS ) {
+      return index;
+    }
+    final int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+    final long subBucket = index % SUB_BUCKETS;
+    return ( ( SUB_BUCKETS + subBucket + 1 ) << ( exponent - SUB_BUCKET_BITS ) ) - 1;
+  }
+}
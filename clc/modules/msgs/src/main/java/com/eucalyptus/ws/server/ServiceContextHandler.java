@@ -63,6 +63,7 @@
 
 package com.eucalyptus.ws.server;
 
+import java.util.concurrent.TimeUnit;
 import org.apache.log4j.Logger;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelDownstreamHandler;
@@ -97,6 +98,7 @@ import com.eucalyptus.records.Logs;
 import com.eucalyptus.ws.util.RequestQueue;
 import edu.ucsb.eucalyptus.msgs.BaseMessage;
 import edu.ucsb.eucalyptus.msgs.EucalyptusErrorMessageType;
+import edu.ucsb.eucalyptus.msgs.ExceptionResponseType;
 
 @ChannelPipelineCoverage( "one" )
 public class ServiceContextHandler implements ChannelUpstreamHandler, ChannelDownstreamHandler {
@@ -147,12 +149,17 @@ public class ServiceContextHandler implements ChannelUpstreamHandler, ChannelDow
         LOG.warn( "Received a null response for request: " + request.getMessageString( ) );
         reply = new EucalyptusErrorMessageType( this.getClass( ).getSimpleName( ), ( BaseMessage ) request.getMessage( ), "Received a NULL reply" );
       }
-      Long currTime = System.currentTimeMillis( );
-      try {
-    	  Logs.extreme( ).debug( EventRecord.here( reply.getClass( ), EventClass.MESSAGE, EventType.MSG_SERVICED, "request-ms",
-    			  Long.toString( currTime - this.startTime.get( ctx.getChannel( ) ) ) ) );
-      } catch ( Exception ex ) {
-    	  Logs.extreme( ).trace( ex, ex );
+      Long startNanos = this.startTime.remove( ctx.getChannel( ) );
+      if ( startNanos != null ) {
+        long elapsed = System.nanoTime( ) - startNanos;
+        Statistics.requestComplete( this.messageType.get( ctx.getChannel( ) ).getClass( ), elapsed,
+                                    reply instanceof EucalyptusErrorMessageType || reply instanceof ExceptionResponseType );
+        try {
+      	  Logs.extreme( ).debug( EventRecord.here( reply.getClass( ), EventClass.MESSAGE, EventType.MSG_SERVICED, "request-ms",
+      			  Long.toString( TimeUnit.NANOSECONDS.toMillis( elapsed ) ) ) );
+        } catch ( Exception ex ) {
+      	  Logs.extreme( ).trace( ex, ex );
+        }
       }
       final MappingHttpResponse response = new MappingHttpResponse( request.getProtocolVersion( ) );
       final DownstreamMessageEvent newEvent = new DownstreamMessageEvent( ctx.getChannel( ), e.getFuture( ), response, null );
@@ -210,7 +217,9 @@ public class ServiceContextHandler implements ChannelUpstreamHandler, ChannelDow
   }
   
   private void messageReceived( final ChannelHandlerContext ctx, final BaseMessage msg ) throws ServiceDispatchException {
-    this.startTime.set( ctx.getChannel( ), System.currentTimeMillis( ) );
+    if ( this.startTime.set( ctx.getChannel( ), System.nanoTime( ) ) == null ) {
+      Statistics.requestStarted( );
+    }
     this.messageType.set( ctx.getChannel( ), msg );
     EventRecord.here( ServiceContextHandler.class, EventType.MSG_RECEIVED, msg.getClass( ).getSimpleName( ) ).trace( );
     ServiceOperations.dispatch( msg );
@@ -224,15 +233,24 @@ public class ServiceContextHandler implements ChannelUpstreamHandler, ChannelDow
         Logs.extreme( ).debug( "Failed to remove the channel context on connection close.", ex );
       }
     }
-    try {
-      Logs.extreme( ).debug( EventRecord.here( this.messageType.getClass( ), EventClass.MESSAGE, EventType.MSG_SERVICED, "rtt-ms", Long.toString( System.currentTimeMillis( ) - this.openTime.get( ctx.getChannel( ) ) ) ) );
-    } catch ( Exception ex ) {
-      Logs.extreme( ).trace( ex, ex );
+    if ( this.startTime.remove( ctx.getChannel( ) ) != null ) {
+      Statistics.requestAborted( this.messageType.get( ctx.getChannel( ) ).getClass( ) );
+    }
+    Long openNanos = this.openTime.remove( ctx.getChannel( ) );
+    if ( openNanos != null ) {
+      long elapsed = System.nanoTime( ) - openNanos;
+      Statistics.record( Statistics.Stage.CONNECTION, elapsed );
+      try {
+        Logs.extreme( ).debug( EventRecord.here( this.messageType.getClass( ), EventClass.MESSAGE, EventType.MSG_SERVICED, "rtt-ms", Long.toString( TimeUnit.NANOSECONDS.toMillis( elapsed ) ) ) );
+      } catch ( Exception ex ) {
+        Logs.extreme( ).trace( ex, ex );
+      }
     }
+    this.messageType.remove( ctx.getChannel( ) );
   }
   
   private void channelOpened( final ChannelHandlerContext ctx, ChannelStateEvent evt ) {
-    this.openTime.set( ctx.getChannel( ), System.currentTimeMillis( ) );
+    this.openTime.set( ctx.getChannel( ), System.nanoTime( ) );
   }
   
 }
@@ -63,118 +63,213 @@
 
 package com.eucalyptus.ws.server;
 
-import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
-import java.util.concurrent.Future;
-import org.apache.log4j.Logger;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 import org.jboss.netty.channel.Channel;
-import org.jboss.netty.channel.ChannelFuture;
-import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.ChannelHandler;
-import com.eucalyptus.context.Contexts;
-import com.eucalyptus.records.Logs;
+import com.eucalyptus.util.Mbeans;
 import com.eucalyptus.ws.StackConfiguration;
-import com.google.common.base.Joiner;
-import com.google.common.collect.Maps;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Ordering;
 import com.google.common.util.concurrent.Callables;
 
+/**
+ * Always-on request metrics for the service stack, exported through {@link Mbeans}.
+ * 
+ * Latencies are kept in {@link LatencyHistogram}s per message type (dispatch to reply), per
+ * stage ({@link Stage}) and, when {@link StackConfiguration#STATISTICS} is enabled, per pipeline
+ * handler and direction. In-flight requests and errors (per message type) are counted alongside.
+ * Recording costs a few atomic operations and a map lookup keyed by class.
+ */
 public class Statistics {
-  private static Logger                            LOG               = Logger.getLogger( Statistics.class );
-  private static final Map<Integer, RequestRecord> requestStatistics = Maps.newConcurrentMap( );
-  
-  private static class HandlerRecord implements Callable<Long> {
-    private final String handlerClassName;
-    private final Long   startTime = System.currentTimeMillis( );
-    private Long         endTime;
-    
-    private HandlerRecord( Class<? extends ChannelHandler> class1 ) {
-      this.handlerClassName = class1.toString( );
-    }
-    
-    @Override
-    public String toString( ) {
-      StringBuilder builder = new StringBuilder( );
-      Long time = ( ( this.endTime == null ? System.currentTimeMillis( ) : this.endTime ) - this.startTime );
-      builder.append( " " );
-      builder.append( this.handlerClassName ).append( ": " ).append( time ).append( " msec" );
-      return builder.toString( );
-    }
-    
-    @Override
-    public Long call( ) throws Exception {
-      Logs.extreme( ).debug( "HandlerRecord:" + this.handlerClassName
-        + " "
-        + ( ( this.endTime == null ? this.endTime = System.currentTimeMillis( ) : this.endTime ) - this.startTime )
-        + "msec" );
-      return this.endTime;
-    }
-    
+  private static final Statistics                                     instance        = new Statistics( );
+  private static final ConcurrentMap<Class, LatencyHistogram>         operations      = new ConcurrentHashMap<Class, LatencyHistogram>( );
+  private static final ConcurrentMap<Class, LatencyHistogram>         upstream        = new ConcurrentHashMap<Class, LatencyHistogram>( );
+  private static final ConcurrentMap<Class, LatencyHistogram>         downstream      = new ConcurrentHashMap<Class, LatencyHistogram>( );
+  private static final ConcurrentMap<Class, AtomicLong>               errors          = new ConcurrentHashMap<Class, AtomicLong>( );
+  private static final ConcurrentMap<Stage, LatencyHistogram>         stages          = new ConcurrentHashMap<Stage, LatencyHistogram>( );
+  private static final AtomicLong                                     inFlight        = new AtomicLong( );
+  private static final AtomicLong                                     requests        = new AtomicLong( );
+  private static final AtomicLong                                     aborted         = new AtomicLong( );
+  
+  public enum Stage {
+    /** From dispatch of the request message to the reply. */
+    SERVICE,
+    /** Time spent in upstream (request) handlers. */
+    UPSTREAM,
+    /** Time spent in downstream (reply) handlers. */
+    DOWNSTREAM,
+    /** Lifetime of a server connection. */
+    CONNECTION,
+    /** Time requests spend queued by the {@link AdmissionControlHandler}. */
+    ADMISSION
   }
   
-  private static class RequestRecord {
-    private final Map<Class, HandlerRecord> handlerUpstreamStats   = Maps.newHashMap( );
-    private final Map<Class, HandlerRecord> handlerDownstreamStats = Maps.newHashMap( );
-    String                                  type;
-    private final long                      creationTime           = System.currentTimeMillis( );
-    
-    public Collection<HandlerRecord> values( ) {
-      return this.handlerUpstreamStats.values( );
-    }
-    
-    @Override
-    public String toString( ) {
-      StringBuilder builder = new StringBuilder( );
-      String typeName = ( this.type == null ? "unknown" : this.type );
-      builder.append( typeName ).append( " " ).append( Joiner.on( "\n" + typeName ).join( this.handlerUpstreamStats.values( ) ) );
-      builder.append( typeName ).append( " " ).append( Joiner.on( "\n" + typeName ).join( this.handlerDownstreamStats.values( ) ) );
-      builder.append( typeName ).append( " " ).append( System.currentTimeMillis( ) - this.creationTime ).append( " msec" );
-      return builder.toString( );
+  static {
+    Mbeans.register( instance );
+  }
+  
+  private Statistics( ) {}
+  
+  /**
+   * Note the dispatch of a request; it must be followed by exactly one call to
+   * {@link #requestComplete(Class, long, boolean)} or {@link #requestAborted(Class)}.
+   */
+  public static void requestStarted( ) {
+    requests.incrementAndGet( );
+    inFlight.incrementAndGet( );
+  }
+  
+  public static void requestComplete( final Class messageType, final long nanos, final boolean error ) {
+    inFlight.decrementAndGet( );
+    histogram( operations, messageType ).record( nanos );
+    histogram( stages, Stage.SERVICE ).record( nanos );
+    if ( error ) {
+      error( messageType );
     }
-    
   }
   
-  public static final void startRequest( final Channel channel ) {
+  /**
+   * A request whose connection was closed before a reply was sent.
+   */
+  public static void requestAborted( final Class messageType ) {
+    inFlight.decrementAndGet( );
+    aborted.incrementAndGet( );
+    error( messageType );
+  }
+  
+  public static void record( final Stage stage, final long nanos ) {
+    histogram( stages, stage ).record( nanos );
+  }
+  
+  public static final <T extends ChannelHandler> Callable<Long> startUpstream( Channel channel, T handler ) {
+    return start( upstream, Stage.UPSTREAM, handler );
+  }
+  
+  public static final <T extends ChannelHandler> Callable<Long> startDownstream( Channel channel, T handler ) {
+    return start( downstream, Stage.DOWNSTREAM, handler );
+  }
+  
+  private static Callable<Long> start( final ConcurrentMap<Class, LatencyHistogram> handlers, final Stage stage, final ChannelHandler handler ) {
     if ( StackConfiguration.STATISTICS ) {
-      final RequestRecord record = new RequestRecord( );
-      requestStatistics.put( channel.getId( ), record );
-      channel.getCloseFuture( ).addListener( new ChannelFutureListener( ) {
-        
+      final LatencyHistogram histogram = histogram( handlers, handler.getClass( ) );
+      final long start = System.nanoTime( );
+      return new Callable<Long>( ) {
         @Override
-        public void operationComplete( ChannelFuture future ) throws Exception {
-          LOG.info( requestStatistics.remove( channel.getId( ) ) );
+        public Long call( ) {
+          final long elapsed = System.nanoTime( ) - start;
+          histogram.record( elapsed );
+          histogram( stages, stage ).record( elapsed );
+          return elapsed;
         }
-      } );
+      };
+    } else {
+      return Callables.returning( 0L );
     }
   }
   
-  public static final <T extends ChannelHandler> Callable<Long> startUpstream( Channel channel, T handler ) {
-    Integer correlationId = channel.getId( );
-    if ( StackConfiguration.STATISTICS && requestStatistics.containsKey( correlationId ) ) {
-      RequestRecord record = requestStatistics.get( correlationId );
-      if ( record.type == null ) {
-        try {
-          record.type = Contexts.lookup( channel ).getRequest( ).getClass( ).getSimpleName( );
-        } catch ( Exception ex ) {}
+  private static void error( final Class messageType ) {
+    AtomicLong count = errors.get( messageType );
+    if ( count == null ) {
+      final AtomicLong newCount = new AtomicLong( );
+      count = errors.putIfAbsent( messageType, newCount );
+      if ( count == null ) {
+        count = newCount;
       }
-      HandlerRecord handlerRecord = new HandlerRecord( handler.getClass( ) );
-      record.handlerUpstreamStats.put( handler.getClass( ), handlerRecord );
-      return handlerRecord;
-    } else {
-      return Callables.returning( 0L );
     }
+    count.incrementAndGet( );
   }
   
-  public static final <T extends ChannelHandler> Callable<Long> startDownstream( Channel channel, T handler ) {
-    Integer correlationId = channel.getId( );
-    if ( StackConfiguration.STATISTICS && requestStatistics.containsKey( correlationId ) ) {
-      RequestRecord record = requestStatistics.get( correlationId );
-      HandlerRecord handlerRecord = new HandlerRecord( handler.getClass( ) );
-      record.handlerDownstreamStats.put( handler.getClass( ), handlerRecord );
-      return handlerRecord;
-    } else {
-      return Callables.returning( 0L );
+  private static <K> LatencyHistogram histogram( final ConcurrentMap<K, LatencyHistogram> map, final K key ) {
+    LatencyHistogram histogram = map.get( key );
+    if ( histogram == null ) {
+      final LatencyHistogram newHistogram = new LatencyHistogram( );
+      histogram = map.putIfAbsent( key, newHistogram );
+      if ( histogram == null ) {
+        histogram = newHistogram;
+      }
     }
+    return histogram;
   }
   
+  private static String[] describe( final Map<? extends Object, LatencyHistogram> map ) {
+    final List<String> lines = Lists.newArrayList( );
+    for ( final Map.Entry<? extends Object, LatencyHistogram> entry : map.entrySet( ) ) {
+      lines.add( name( entry.getKey( ) ) + " " + entry.getValue( ) );
+    }
+    return Ordering.natural( ).sortedCopy( lines ).toArray( new String[lines.size( )] );
+  }
+  
+  private static String name( final Object key ) {
+    return key instanceof Class ? ( ( Class ) key ).getSimpleName( ) : key.toString( );
+  }
+  
+  public long getInFlightRequests( ) {
+    return inFlight.get( );
+  }
+  
+  public long getRequests( ) {
+    return requests.get( );
+  }
+  
+  public long getAbortedRequests( ) {
+    return aborted.get( );
+  }
+  
+  public long getErrors( ) {
+    long total = 0;
+    for ( final AtomicLong count : errors.values( ) ) {
+      total += count.get( );
+    }
+    return total;
+  }
+  
+  public long getAdmittedRequests( ) {
+    return AdmissionControlHandler.getAdmitted( );
+  }
+  
+  public long getQueuedRequests( ) {
+    return AdmissionControlHandler.getQueued( );
+  }
+  
+  public long getRejectedRequests( ) {
+    return AdmissionControlHandler.getRejected( );
+  }
+  
+  public int getWaitingRequests( ) {
+    return AdmissionControlHandler.getWaiting( );
+  }
+  
+  public String[] getErrorCounts( ) {
+    final List<String> lines = Lists.newArrayList( );
+    for ( final Map.Entry<Class, AtomicLong> entry : errors.entrySet( ) ) {
+      lines.add( name( entry.getKey( ) ) + " " + entry.getValue( ).get( ) );
+    }
+    return Ordering.natural( ).sortedCopy( lines ).toArray( new String[lines.size( )] );
+  }
+  
+  public String[] getOperationLatencies( ) {
+    return describe( operations );
+  }
+  
+  public String[] getStageLatencies( ) {
+    return describe( stages );
+  }
+  
+  public String[] getUpstreamHandlerLatencies( ) {
+    return describe( upstream );
+  }
+  
+  public String[] getDownstreamHandlerLatencies( ) {
+    return describe( downstream );
+  }
+  
+  @Override
+  public String toString( ) {
+    return String.format( "Statistics:requests=%d:inflight=%d:errors=%d", this.getRequests( ), this.getInFlightRequests( ), this.getErrors( ) );
+  }
 }
@@ -79,8 +79,10 @@ import org.apache.log4j.Logger;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.FileRegion;
 import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
 import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.ssl.SslHandler;
 import org.jboss.netty.handler.stream.ChunkedInput;
 
 import com.eucalyptus.context.Contexts;
@@ -93,6 +95,7 @@ import edu.ucsb.eucalyptus.cloud.BucketLogData;
 import edu.ucsb.eucalyptus.cloud.entities.WalrusInfo;
 import edu.ucsb.eucalyptus.cloud.ws.ChunkedDataFile;
 import edu.ucsb.eucalyptus.cloud.ws.CompressedChunkedFile;
+import edu.ucsb.eucalyptus.cloud.ws.DataFileRegion;
 import edu.ucsb.eucalyptus.msgs.WalrusDataGetRequestType;
 import edu.ucsb.eucalyptus.storage.StorageManager;
 import edu.ucsb.eucalyptus.util.StreamConsumer;
@@ -331,12 +334,12 @@ public class FileSystemStorageManager implements StorageManager {
 			httpResponse.addHeader(HttpHeaders.Names.LAST_MODIFIED, lastModified);
 			if(contentDisposition != null)
 				httpResponse.addHeader("Content-Disposition", contentDisposition);
-			final ChunkedInput file;
+			final Object file;
 			isCompressed = isCompressed == null ? false : isCompressed;
 			if(isCompressed) {
 				file = new CompressedChunkedFile(raf, size);
 			} else {
-				file = new ChunkedDataFile(raf, 0, size, 8192);
+				file = isZeroCopy(channel) ? new DataFileRegion(raf.getChannel(), 0, size) : new ChunkedDataFile(raf, 0, size, 8192);
 				httpResponse.addHeader( HttpHeaders.Names.CONTENT_LENGTH, String.valueOf(size));
 			}
 			if(logData != null) {
@@ -350,7 +353,7 @@ public class FileSystemStorageManager implements StorageManager {
 			channel.write(file).addListener(new ChannelFutureListener( ) {
 				@Override public void operationComplete( ChannelFuture future ) throws Exception {
 					Contexts.clear(request.getCorrelationId());
-					file.close();
+					close(file);
 					if(logData != null) {
 						logData.setTotalTime(System.currentTimeMillis() - logData.getTotalTime());
 						WalrusBucketLogger.getInstance().addLogEntry(logData);	
@@ -372,12 +375,12 @@ public class FileSystemStorageManager implements StorageManager {
 			httpResponse.addHeader(HttpHeaders.Names.LAST_MODIFIED, lastModified);
 			if(contentDisposition != null)
 				httpResponse.addHeader("Content-Disposition", contentDisposition);
-			final ChunkedInput file;
+			final Object file;
 			isCompressed = isCompressed == null ? false : isCompressed;
 			if(isCompressed) {
 				file = new CompressedChunkedFile(raf, start, end, (int)Math.min((end - start), 8192));
 			} else {
-				file = new ChunkedDataFile(raf, start, end, (int)Math.min((end - start), 8192));
+				file = isZeroCopy(channel) ? new DataFileRegion(raf.getChannel(), start, end - start) : new ChunkedDataFile(raf, start, end, (int)Math.min((end - start), 8192));
 				httpResponse.addHeader( HttpHeaders.Names.CONTENT_LENGTH, String.valueOf((end - start)));
 			}
 			httpResponse.addHeader("Content-Range", start + "-" + (end -1) + "/" + size);		
@@ -392,7 +395,7 @@ public class FileSystemStorageManager implements StorageManager {
 			channel.write(file).addListener(new ChannelFutureListener( ) {
 				@Override public void operationComplete( ChannelFuture future ) throws Exception {
 					Contexts.clear(request.getCorrelationId());
-					file.close();
+					close(file);
 					if(logData != null) {
 						logData.setTotalTime(System.currentTimeMillis() - logData.getTotalTime());
 						WalrusBucketLogger.getInstance().addLogEntry(logData);
@@ -404,6 +407,22 @@ public class FileSystemStorageManager implements StorageManager {
 		}	
 	}
 
+	/**
+	 * Plain connections can hand the object straight from the page cache to the socket;
+	 * the SSL handler needs the bytes on the heap so those still go through the chunked path.
+	 */
+	private static boolean isZeroCopy(Channel channel) {
+		return WalrusProperties.enableZeroCopyTransfer && channel.getPipeline().get(SslHandler.class) == null;
+	}
+
+	private static void close(Object file) throws Exception {
+		if(file instanceof FileRegion) {
+			((FileRegion) file).releaseExternalResources();
+		} else {
+			((ChunkedInput) file).close();
+		}
+	}
+
 	public void sendHeaders(final WalrusDataGetRequestType request, DefaultHttpResponse httpResponse, Long size, String etag,
 			String lastModified, String contentType, String contentDisposition, String versionId, final BucketLogData logData) {
 		Channel channel = request.getChannel();
@@ -0,0 +1,417 @@
+/*******************************************************************************
+*Copyright (c) 2009  Eucalyptus Systems, Inc.
+* 
+*  This program is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, only version 3 of the License.
+* 
+* 
+*  This file is distributed in the hope that it will be useful, but WITHOUT
+*  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+*  FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+*  for more details.
+* 
+*  You should have received a copy of the GNU General Public License along
+*  with this program.  If not, see <http://www.gnu.org/licenses/>.
+* 
+*  Please contact Eucalyptus Systems, Inc., 130 Castilian
+*  Dr., Goleta, CA 93101 USA or visit <http://www.eucalyptus.com/licenses/>
+*  if you need additional information or have any questions.
+* 
+*  This file may incorporate work covered under the following copyright and
+*  permission notice:
+* 
+*    Software License Agreement (BSD License)
+* 
+*    Copyright (c) 2008, Regents of the University of California
+*    All rights reserved.
+* 
+*    Redistribution and use of this software in source and binary forms, with
+*    or without modification, are permitted provided that the following
+*    conditions are met:
+* 
+*      Redistributions of source code must retain the above copyright notice,
+*      this list of conditions and the following disclaimer.
+* 
+*      Redistributions in binary form must reproduce the above copyright
+*      notice, this list of conditions and the following disclaimer in the
+*      documentation and/or other materials provided with the distribution.
+* 
+*    THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+*    IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+*    TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+*    PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+*    OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+*    EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+*    PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+*    PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+*    LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+*    NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+*    SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. USERS OF
+*    THIS SOFTWARE ACKNOWLEDGE THE POSSIBLE PRESENCE OF OTHER OPEN SOURCE
+*    LICENSED MATERIAL, COPYRIGHTED MATERIAL OR PATENTED MATERIAL IN THIS
+*    SOFTWARE, AND IF ANY SUCH MATERIAL IS DISCOVERED THE PARTY DISCOVERING
+*    IT MAY INFORM DR. RICH WOLSKI AT THE UNIVERSITY OF CALIFORNIA, SANTA
+*    BARBARA WHO WILL THEN ASCERTAIN THE MOST APPROPRIATE REMEDY, WHICH IN
+*    THE REGENTS' DISCRETION MAY INCLUDE, WITHOUT LIMITATION, REPLACEMENT
+*    OF THE CODE SO IDENTIFIED, LICENSING OF THE CODE SO IDENTIFIED, OR
+*    WITHDRAWAL OF THE CODE CAPABILITY TO THE EXTENT NEEDED TO COMPLY WITH
+*    ANY SUCH LICENSES OR RIGHTS.
+*******************************************************************************/
+package edu.ucsb.eucalyptus.cloud.ws;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import org.apache.log4j.Logger;
+import com.eucalyptus.util.WalrusProperties;
+
+/**
+ * Unbundles an uploaded image in a single pass.
+ * 
+ * The manifest parts are read in order and decrypted, gunzipped and untarred in-process through
+ * buffers of {@link WalrusProperties#IO_CHUNK_SIZE}; only the contents of the bundled file are
+ * written to disk, so the image grows on disk as it is unbundled.
+ */
+public class ImageUnbundler {
+	private static Logger LOG = Logger.getLogger( ImageUnbundler.class );
+	private static final int TAR_BLOCK_SIZE = 512;
+	private static final int MAX_PAX_HEADER_SIZE = 1024 * 1024;
+
+	private final List<String> parts;
+	private final byte[] key;
+	private final byte[] iv;
+
+	/**
+	 * @param parts the absolute paths of the encrypted parts, in manifest order
+	 * @param key the AES key from the manifest
+	 * @param iv the AES initialization vector from the manifest
+	 */
+	public ImageUnbundler(List<String> parts, byte[] key, byte[] iv) {
+		this.parts = parts;
+		this.key = key;
+		this.iv = iv;
+	}
+
+	/**
+	 * Unbundle the image to {@code imageName}.
+	 * 
+	 * @return the size of the image
+	 */
+	public long unbundle(String imageName) throws Exception {
+		Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding", "BC");
+		cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+		DecryptingInputStream decrypted = new DecryptingInputStream(new BufferedInputStream(new SequenceInputStream(new PartEnumeration(parts.iterator())), WalrusProperties.IO_CHUNK_SIZE), cipher);
+		InputStream in = new GZIPInputStream(decrypted, WalrusProperties.IO_CHUNK_SIZE);
+		FileOutputStream fileOutputStream = null;
+		try {
+			fileOutputStream = new FileOutputStream(new File(imageName));
+			long size = untar(in, fileOutputStream.getChannel());
+			//the tar end marker may come before the final cipher block, which is where the padding is checked
+			decrypted.drain();
+			return size;
+		} finally {
+			if(fileOutputStream != null) {
+				try {
+					fileOutputStream.close();
+				} catch (IOException ex) {
+					LOG.error(ex);
+				}
+			}
+			try {
+				in.close();
+			} catch (IOException ex) {
+				LOG.error(ex);
+			}
+		}
+	}
+
+	/**
+	 * Write the contents of every regular file in the tar stream to {@code out}, as "tar xfO" does.
+	 * Handles ustar, GNU base-256 sizes and pax extended sizes.
+	 */
+	static long untar(InputStream in, FileChannel out) throws IOException {
+		byte[] header = new byte[TAR_BLOCK_SIZE];
+		byte[] buffer = new byte[WalrusProperties.IO_CHUNK_SIZE];
+		long written = 0;
+		long paxSize = -1;
+		while(readBlock(in, header)) {
+			if(isEndOfArchive(header)) {
+				break;
+			}
+			long size = paxSize >= 0 ? paxSize : parseSize(header);
+			paxSize = -1;
+			byte type = header[156];
+			if(type == 'x') {
+				if(size > MAX_PAX_HEADER_SIZE) {
+					throw new IOException("Invalid tar extended header size: " + size);
+				}
+				byte[] pax = new byte[(int) size];
+				readFully(in, pax, pax.length);
+				paxSize = parsePaxSize(pax);
+			} else if(type == '0' || type == 0 || type == '7') {
+				long remaining = size;
+				while(remaining > 0) {
+					int length = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+					if(length < 0) {
+						throw new EOFException("Truncated image");
+					}
+					ByteBuffer data = ByteBuffer.wrap(buffer, 0, length);
+					while(data.hasRemaining()) {
+						out.write(data);
+					}
+					remaining -= length;
+				}
+				written += size;
+			} else {
+				skipFully(in, size);
+			}
+			skipFully(in, padding(size));
+		}
+		return written;
+	}
+
+	private static long padding(long size) {
+		long remainder = size % TAR_BLOCK_SIZE;
+		return remainder == 0 ? 0 : TAR_BLOCK_SIZE - remainder;
+	}
+
+	private static boolean readBlock(InputStream in, byte[] block) throws IOException {
+		int read = 0;
+		while(read < block.length) {
+			int length = in.read(block, read, block.length - read);
+			if(length < 0) {
+				if(read == 0) {
+					return false;
+				}
+				throw new EOFException("Truncated tar header");
+			}
+			read += length;
+		}
+		return true;
+	}
+
+	private static void readFully(InputStream in, byte[] bytes, int count) throws IOException {
+		int read = 0;
+		while(read < count) {
+			int length = in.read(bytes, read, count - read);
+			if(length < 0) {
+				throw new EOFException("Truncated tar entry");
+			}
+			read += length;
+		}
+	}
+
+	private static void skipFully(InputStream in, long count) throws IOException {
+		byte[] scratch = null;
+		while(count > 0) {
+			long skipped = in.skip(count);
+			if(skipped <= 0) {
+				if(scratch == null) {
+					scratch = new byte[TAR_BLOCK_SIZE];
+				}
+				int length = in.read(scratch, 0, (int) Math.min(scratch.length, count));
+				if(length < 0) {
+					throw new EOFException("Truncated tar entry");
+				}
+				skipped = length;
+			}
+			count -= skipped;
+		}
+	}
+
+	private static boolean isEndOfArchive(byte[] header) {
+		for(byte b : header) {
+			if(b != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static long parseSize(byte[] header) throws IOException {
+		if((header[124] & 0x80) != 0) {
+			//GNU base-256 encoding for sizes of 8GB and above
+			long size = header[124] & 0x7f;
+			for(int i = 125; i < 136; i++) {
+				size = (size << 8) | (header[i] & 0xff);
+			}
+			return size;
+		}
+		long size = 0;
+		for(int i = 124; i < 136; i++) {
+			byte b = header[i];
+			if(b == 0 || b == ' ') {
+				if(size > 0) break;
+				continue;
+			}
+			if(b < '0' || b > '7') {
+				throw new IOException("Invalid tar entry size");
+			}
+			size = (size << 3) + (b - '0');
+		}
+		return size;
+	}
+
+	/**
+	 * Pax records are "length keyword=value\n" where the length counts the bytes of the whole
+	 * record, so the header is walked as bytes and only the record itself is decoded.
+	 */
+	private static long parsePaxSize(byte[] pax) throws IOException {
+		int offset = 0;
+		try {
+			while(offset < pax.length && pax[offset] != 0) {
+				int space = offset;
+				while(space < pax.length && pax[space] != ' ') {
+					space++;
+				}
+				if(space >= pax.length) {
+					throw new IOException("Invalid tar extended header");
+				}
+				int length = Integer.parseInt(new String(pax, offset, space - offset, "US-ASCII"));
+				if(length <= space - offset || length > pax.length - offset) {
+					throw new IOException("Invalid tar extended header record length: " + length);
+				}
+				String record = new String(pax, space + 1, offset + length - space - 1, "UTF-8").trim();
+				if(record.startsWith("size=")) {
+					return Long.parseLong(record.substring("size=".length()));
+				}
+				offset += length;
+			}
+		} catch (NumberFormatException ex) {
+			throw new IOException("Invalid tar extended header: " + ex.getMessage());
+		}
+		return -1;
+	}
+
+	/**
+	 * Decrypts with Cipher.update and doFinal. Unlike CipherInputStream, which swallows the
+	 * exception from doFinal, a bad final block or padding fails the read and so the unbundle.
+	 */
+	private static class DecryptingInputStream extends FilterInputStream {
+		private final Cipher cipher;
+		private final byte[] input = new byte[WalrusProperties.IO_CHUNK_SIZE];
+		private final byte[] output;
+		private int position = 0;
+		private int limit = 0;
+		private boolean finished = false;
+
+		DecryptingInputStream(InputStream in, Cipher cipher) {
+			super(in);
+			this.cipher = cipher;
+			this.output = new byte[cipher.getOutputSize(input.length)];
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] one = new byte[1];
+			int length = read(one, 0, 1);
+			return length < 0 ? -1 : one[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length) throws IOException {
+			if(length == 0) {
+				return 0;
+			}
+			while(position >= limit) {
+				if(finished) {
+					return -1;
+				}
+				fill();
+			}
+			int count = Math.min(length, limit - position);
+			System.arraycopy(output, position, bytes, offset, count);
+			position += count;
+			return count;
+		}
+
+		@Override
+		public long skip(long count) throws IOException {
+			byte[] scratch = new byte[TAR_BLOCK_SIZE];
+			long skipped = 0;
+			while(skipped < count) {
+				int length = read(scratch, 0, (int) Math.min(scratch.length, count - skipped));
+				if(length < 0) break;
+				skipped += length;
+			}
+			return skipped;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return limit - position;
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+
+		/**
+		 * Read to the end of the encrypted data so that the final block is checked.
+		 */
+		void drain() throws IOException {
+			while(!finished) {
+				fill();
+			}
+			position = limit;
+		}
+
+		private void fill() throws IOException {
+			int length = in.read(input);
+			try {
+				if(length < 0) {
+					finished = true;
+					limit = cipher.doFinal(output, 0);
+				} else {
+					limit = cipher.update(input, 0, length, output, 0);
+				}
+			} catch (GeneralSecurityException ex) {
+				throw new IOException("Image decryption failed: " + ex.getMessage());
+			}
+			position = 0;
+		}
+	}
+
+	private static class PartEnumeration implements Enumeration<InputStream> {
+		private final Iterator<String> parts;
+
+		PartEnumeration(Iterator<String> parts) {
+			this.parts = parts;
+		}
+
+		@Override
+		public boolean hasMoreElements() {
+			return parts.hasNext();
+		}
+
+		@Override
+		public InputStream nextElement() {
+			String part = parts.next();
+			try {
+				return new FileInputStream(new File(part));
+			} catch (FileNotFoundException ex) {
+				LOG.error(ex);
+				throw new IllegalStateException("Missing image part: " + part, ex);
+			}
+		}
+	}
+}
@@ -64,19 +64,10 @@ package edu.ucsb.eucalyptus.cloud.ws;
  * Author: Sunil Soman sunils@cs.ucsb.edu
  */
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.nio.ByteBuffer;
-import java.nio.channels.Channels;
-import java.nio.channels.FileChannel;
-import java.nio.channels.ReadableByteChannel;
-import java.nio.channels.WritableByteChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
@@ -88,11 +79,7 @@ import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.zip.GZIPInputStream;
 import javax.crypto.Cipher;
-import javax.crypto.SecretKey;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.transform.Result;
@@ -122,7 +109,6 @@ import com.eucalyptus.context.Context;
 import com.eucalyptus.context.Contexts;
 import com.eucalyptus.crypto.Digest;
 import com.eucalyptus.entities.EntityWrapper;
-import com.eucalyptus.records.Logs;
 import com.eucalyptus.system.Threads;
 import com.eucalyptus.util.EucalyptusCloudException;
 import com.eucalyptus.util.Lookups;
@@ -167,7 +153,12 @@ public class WalrusImageManager {
 		this.imageMessenger = imageMessenger;
 	}
 
-	private String decryptImage(String bucketName, String objectKey, Account account, boolean isAdministrator) throws EucalyptusCloudException {
+	/**
+	 * Verify the manifest signature and decrypt the image key.
+	 * 
+	 * @return the unbundler for the image, or null if the manifest does not exist
+	 */
+	private ImageUnbundler prepareImage(String bucketName, String objectKey, Account account, boolean isAdministrator) throws EucalyptusCloudException {
 		EntityWrapper<BucketInfo> db = EntityWrapper.get(BucketInfo.class);
 		BucketInfo bucketInfo = new BucketInfo(bucketName);
 		List<BucketInfo> bucketList = db.query(bucketInfo);
@@ -284,15 +275,7 @@ public class WalrusImageManager {
 							}
 						}
 					}
-					//Assemble parts
-					String encryptedImageKey = UUID.randomUUID().toString() + ".crypt.gz";
-					String encryptedImageName = storageManager.getObjectPath(bucketName, encryptedImageKey);
-					String decryptedImageKey = encryptedImageKey.substring(0, encryptedImageKey.lastIndexOf("crypt.gz")) + "tgz";
-
-					String decryptedImageName = storageManager.getObjectPath(bucketName, decryptedImageKey);
-					assembleParts(encryptedImageName, qualifiedPaths);
 					//Decrypt key and IV
-
 					byte[] key;
 					byte[] iv;
 					try {
@@ -307,42 +290,10 @@ public class WalrusImageManager {
 					} catch(Exception ex) {
 						db.rollback();
 						LOG.error(ex);
-						try {
-							storageManager.deleteAbsoluteObject(encryptedImageName);
-						} catch (Exception e) {
-							LOG.error(e);
-							throw new WalrusException("Unable to delete: " + encryptedImageKey);
-						}
 						throw new DecryptionFailedException("AES params");
 					}
-
-					//Unencrypt image
-					try {
-						db.commit();
-						Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding", "BC");
-						IvParameterSpec salt = new IvParameterSpec(iv);
-						SecretKey keySpec = new SecretKeySpec(key, "AES");
-						cipher.init(Cipher.DECRYPT_MODE, keySpec, salt);
-						decryptImage(encryptedImageName, decryptedImageName, cipher);
-					} catch (Exception ex) {
-						db.rollback();
-						LOG.error(ex);
-						try {
-							storageManager.deleteAbsoluteObject(encryptedImageName);
-							storageManager.deleteAbsoluteObject(decryptedImageName);
-						} catch (Exception e) {
-							LOG.error(e);
-							throw new WalrusException("Unable to delete: " + encryptedImageKey);
-						}
-						throw new DecryptionFailedException("decryption failed");
-					}
-					try {
-						storageManager.deleteAbsoluteObject(encryptedImageName);
-					} catch (Exception ex) {
-						LOG.error(ex);
-						throw new WalrusException("Unable to delete: " + encryptedImageKey);
-					}
-					return decryptedImageKey;
+					db.commit();
+					return new ImageUnbundler(qualifiedPaths, key, iv);
 				}
 			}
 		}
@@ -497,17 +448,22 @@ public class WalrusImageManager {
 			}
 		}
 		db.commit();
-		//unzip, untar image in the background
+		//decrypt, unzip, untar image in the background
 		ImageCacher imageCacher = imageCachers.putIfAbsent(bucketName + manifestKey, new ImageCacher(bucketName, manifestKey, decryptedImageKey));
 		if(imageCacher == null) {
-			if(decryptedImageKey == null) {
-				try {
-					decryptedImageKey = decryptImage(bucketName, manifestKey, account, isAdministrator);
-				} catch(EucalyptusCloudException ex) {
-					imageCachers.remove(bucketName + manifestKey);
-					throw ex;
+			ImageUnbundler unbundler;
+			try {
+				unbundler = prepareImage(bucketName, manifestKey, account, isAdministrator);
+				if(unbundler == null) {
+					throw new NoSuchEntityException(manifestKey);
 				}
-				//decryption worked. Add it.
+			} catch(EucalyptusCloudException ex) {
+				imageCachers.remove(bucketName + manifestKey);
+				throw ex;
+			}
+			if(decryptedImageKey == null) {
+				decryptedImageKey = UUID.randomUUID().toString() + ".tgz";
+				//manifest verified. Add it.
 				ImageCacheInfo foundImageCacheInfo = new ImageCacheInfo(bucketName, manifestKey);
 				foundImageCacheInfo.setImageName(decryptedImageKey);
 				foundImageCacheInfo.setInCache(false);
@@ -519,6 +475,7 @@ public class WalrusImageManager {
 			}
 			imageCacher = imageCachers.get(bucketName + manifestKey);
 			imageCacher.setDecryptedImageKey(decryptedImageKey);
+			imageCacher.setUnbundler(unbundler);
 			Threads.lookup(Walrus.class, WalrusImageManager.ImageCacher.class).limitTo(10).submit(imageCacher);
 		} 
 	}
@@ -694,6 +651,7 @@ public class WalrusImageManager {
 		private String decryptedImageKey;
 		private boolean imageSizeExceeded;
 		private long spaceNeeded;
+		private ImageUnbundler unbundler;
 
 		public ImageCacher(String bucketName, String manifestKey, String decryptedImageKey) {
 			this.bucketName = bucketName;
@@ -707,15 +665,17 @@ public class WalrusImageManager {
 			this.decryptedImageKey = key;
 		}
 
-		private long tryToCache(String decryptedImageName, String tarredImageName, String imageName) {
+		public void setUnbundler(ImageUnbundler unbundler) {
+			this.unbundler = unbundler;
+		}
+
+		private long tryToCache(String imageName) {
 			Long unencryptedSize = 0L;
 			boolean failed = false;
 			try {
 				if(!imageSizeExceeded) {
-					LOG.info("Unzipping image: " + bucketName + "/" + manifestKey);
-					unzipImage(decryptedImageName, tarredImageName);
-					LOG.info("Untarring image: " + bucketName + "/" + manifestKey);
-					unencryptedSize = untarImage(tarredImageName, imageName);
+					LOG.info("Unbundling image: " + bucketName + "/" + manifestKey);
+					unencryptedSize = unbundler.unbundle(imageName);
 				} else {
 					File imageFile = new File(imageName);
 					if(imageFile.exists()) {
@@ -750,7 +710,6 @@ public class WalrusImageManager {
 			if(failed) {
 				if(!imageSizeExceeded) {
 					try {
-						storageManager.deleteAbsoluteObject(tarredImageName);
 						storageManager.deleteAbsoluteObject(imageName);
 					} catch (Exception exception) {
 						LOG.error(exception);
@@ -776,11 +735,10 @@ public class WalrusImageManager {
 			//wake up any waiting consumers
 			String decryptedImageName = storageManager.getObjectPath(bucketName, decryptedImageKey);
 			String imageName = decryptedImageName.substring(0, decryptedImageName.lastIndexOf(".tgz"));
-			String tarredImageName = imageName + (".tar");
 			String imageKey = decryptedImageKey.substring(0, decryptedImageKey.lastIndexOf(".tgz"));
 			Long unencryptedSize;
 			int numberOfRetries = 0;
-			while((unencryptedSize = tryToCache(decryptedImageName, tarredImageName, imageName)) < 0) {
+			while((unencryptedSize = tryToCache(imageName)) < 0) {
 				try {
 					Thread.sleep(WalrusProperties.IMAGE_CACHE_RETRY_TIMEOUT);
 				} catch(InterruptedException ex) {
@@ -835,8 +793,8 @@ public class WalrusImageManager {
 				}
 			}
 			try {
+				//remove any intermediate file left by an earlier version
 				storageManager.deleteAbsoluteObject(decryptedImageName);
-				storageManager.deleteAbsoluteObject(tarredImageName);
 
 				EntityWrapper<ImageCacheInfo> db = EntityWrapper.get(ImageCacheInfo.class);
 				ImageCacheInfo searchImageCacheInfo = new ImageCacheInfo(bucketName, manifestKey);
@@ -859,190 +817,6 @@ public class WalrusImageManager {
 		}
 	}
 
-	private void unzipImage(String decryptedImageName, String tarredImageName) throws Exception {
-		GZIPInputStream in = new GZIPInputStream(new FileInputStream(new File(decryptedImageName)));
-		File outFile = new File(tarredImageName);
-		ReadableByteChannel inChannel = Channels.newChannel(in);
-		FileOutputStream fileOutputStream = new FileOutputStream(outFile);
-		WritableByteChannel outChannel = fileOutputStream.getChannel();
-
-		ByteBuffer buffer = ByteBuffer.allocate(102400);
-		try {
-			while (inChannel.read(buffer) != -1) {
-				buffer.flip();
-				outChannel.write(buffer);
-				buffer.clear();
-			}
-		} catch(IOException ex) {
-			throw ex;
-		} finally {
-			outChannel.close();
-			fileOutputStream.close();
-			inChannel.close();
-			in.close();
-		}		
-	}
-
-	private long untarImage(String tarredImageName, String imageName) throws Exception {
-		/*TarInputStream in = new TarInputStream(new FileInputStream(new File(tarredImageName)));
-       File outFile = new File(imageName);
-       BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(outFile));
-
-       TarEntry tEntry = in.getNextEntry();
-       assert(!tEntry.isDirectory());
-
-       in.copyEntryContents(out);
-       out.close();
-       in.close();
-       return outFile.length();*/
-
-		//Workaround because TarInputStream is broken
-		Tar tarrer = new Tar();
-		tarrer.untar(tarredImageName, imageName);
-		File outFile = new File(imageName);
-		if(outFile.exists())
-			return outFile.length();
-		else
-			throw new WalrusException("Could not untar image " + imageName);
-	}
-
-	private class StreamConsumer extends Thread
-	{
-		private InputStream is;
-		private File file;
-
-		public StreamConsumer(InputStream is) {
-			this.is = is;
-		}
-
-		public StreamConsumer(InputStream is, File file) {
-			this(is);
-			this.file = file;
-		}
-
-		public void run()
-		{
-			BufferedOutputStream outStream = null;
-			try
-			{
-				BufferedInputStream inStream = new BufferedInputStream(is);
-				if(file != null) {
-					outStream = new BufferedOutputStream(new FileOutputStream(file));
-				}
-				byte[] bytes = new byte[WalrusProperties.IO_CHUNK_SIZE];
-				int bytesRead;
-				while((bytesRead = inStream.read(bytes)) > 0) {
-					if(outStream != null) {
-						outStream.write(bytes, 0, bytesRead);
-					}
-				}
-				if(outStream != null)
-					outStream.close();
-			} catch (IOException ex)
-			{
-				if(outStream != null)
-					try {
-						outStream.close();
-					} catch (IOException e) {
-						LOG.error(e);
-					}
-					LOG.error(ex);
-			}
-		}
-	}
-
-	private class Tar {
-		public void untar(String tarFile, String outFile) {
-			try
-			{
-				Runtime rt = Runtime.getRuntime();
-				Process proc = rt.exec(new String[]{ "/bin/tar", "xfO", tarFile});
-				StreamConsumer error = new StreamConsumer(proc.getErrorStream());
-				StreamConsumer output = new StreamConsumer(proc.getInputStream(), new File(outFile));
-				error.start();
-				output.start();
-				int exitVal = proc.waitFor();
-				output.join();
-			} catch (Exception t) {
-				LOG.error(t);
-			}
-		}
-	}
-
-	private void decryptImage(final String encryptedImageName, final String decryptedImageName, final Cipher cipher) throws Exception {
-		LOG.info("Decrypting image: " + decryptedImageName);
-		BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(new File(decryptedImageName)));
-		File inFile = new File(encryptedImageName);
-		BufferedInputStream in = new BufferedInputStream(new FileInputStream(inFile));
-
-		int bytesRead = 0;
-		byte[] bytes = new byte[8192];
-
-		try {
-			while((bytesRead = in.read(bytes)) > 0) {
-				byte[] outBytes = cipher.update(bytes, 0, bytesRead);
-				out.write(outBytes);
-			}
-
-			byte[] outBytes = cipher.doFinal();
-			out.write(outBytes);
-		} catch (IOException ex) {
-			LOG.error( ex );
-			Logs.extreme( ).error( ex, ex );
-			throw ex;
-		} finally {
-			try {
-				out.close();
-			} catch (IOException ex) {
-				LOG.error( ex );
-			}
-			try {
-				in.close();
-			} catch (IOException ex) {
-				LOG.error( ex );
-			}
-		}
-		
-		LOG.info("Done decrypting: " + decryptedImageName);
-	}
-
-	private void assembleParts(final String name, List<String> parts) {
-		FileOutputStream fileOutputStream = null;
-		FileInputStream fileInputStream = null;
-		try {
-			fileOutputStream = new FileOutputStream(new File(name));
-			FileChannel out = fileOutputStream.getChannel();
-			for (String partName: parts) {
-				fileInputStream = new FileInputStream(new File(partName));
-				FileChannel in = fileInputStream.getChannel();
-				in.transferTo(0, in.size(), out);
-				in.close();
-				fileInputStream.close();
-			}
-			out.close();
-			fileOutputStream.close();
-		} catch (Exception ex) {
-			LOG.error(ex);
-		} finally {
-			if(fileOutputStream != null) {
-				try {
-					fileOutputStream.close();
-				} catch (IOException e) {
-					LOG.error(e);
-				}
-			}
-			if(fileInputStream != null) {
-				try {
-					fileInputStream.close();
-				} catch (IOException e) {
-					LOG.error(e);
-				}
-			}
-		}
-	}
-
-
-
 	public GetDecryptedImageResponseType getDecryptedImage(GetDecryptedImageType request) throws EucalyptusCloudException {
 		GetDecryptedImageResponseType reply = (GetDecryptedImageResponseType) request.getReply();
 		String bucketName = request.getBucket();
@@ -70,7 +70,6 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.URL;
 import java.nio.ByteBuffer;
-import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -105,6 +104,7 @@ import com.eucalyptus.auth.principal.User;
 import com.eucalyptus.auth.util.Hashes;
 import com.eucalyptus.context.Context;
 import com.eucalyptus.context.Contexts;
+import com.eucalyptus.context.NoSuchContextException;
 import com.eucalyptus.crypto.Digest;
 import com.eucalyptus.entities.EntityWrapper;
 import com.eucalyptus.entities.TransactionException;
@@ -147,6 +147,7 @@ import edu.ucsb.eucalyptus.msgs.AccessControlListType;
 import edu.ucsb.eucalyptus.msgs.AccessControlPolicyType;
 import edu.ucsb.eucalyptus.msgs.AddObjectResponseType;
 import edu.ucsb.eucalyptus.msgs.AddObjectType;
+import edu.ucsb.eucalyptus.msgs.BaseMessage;
 import edu.ucsb.eucalyptus.msgs.BucketListEntry;
 import edu.ucsb.eucalyptus.msgs.CanonicalUserType;
 import edu.ucsb.eucalyptus.msgs.CopyObjectResponseType;
@@ -209,11 +210,11 @@ import edu.ucsb.eucalyptus.msgs.SetRESTObjectAccessControlPolicyType;
 import edu.ucsb.eucalyptus.msgs.Status;
 import edu.ucsb.eucalyptus.msgs.TargetGrants;
 import edu.ucsb.eucalyptus.msgs.VersionEntry;
+import edu.ucsb.eucalyptus.msgs.WalrusDataRequestType;
 import edu.ucsb.eucalyptus.storage.StorageManager;
 import edu.ucsb.eucalyptus.storage.fs.FileIO;
-import edu.ucsb.eucalyptus.util.WalrusDataMessage;
 import edu.ucsb.eucalyptus.util.WalrusDataMessenger;
-import edu.ucsb.eucalyptus.util.WalrusDataQueue;
+import edu.ucsb.eucalyptus.util.WalrusUploadStream;
 import edu.ucsb.eucalyptus.util.WalrusMonitor;
 import edu.ucsb.eucalyptus.util.SystemUtil;
 import com.eucalyptus.system.Threads;
@@ -228,6 +229,86 @@ public class WalrusManager {
 
 	public static void configure() {
 		walrusStatistics = new WalrusStatistics();
+		WalrusRESTBinding.getWriteMessenger().setUploadCheck(new WalrusDataMessenger.UploadCheck() {
+			@Override
+			public void check(BaseMessage request) throws EucalyptusCloudException {
+				if (request instanceof PutObjectType) {
+					PutObjectType putObject = (PutObjectType) request;
+					checkUpload(putObject, putObject.getContentLength());
+				} else if (request instanceof PostObjectType) {
+					PostObjectType postObject = (PostObjectType) request;
+					checkUpload(postObject, postObject.getContentLength());
+				}
+			}
+		});
+	}
+
+	/**
+	 * Runs the bucket, ACL and quota checks of putObject before any of the content is received,
+	 * so that a refused upload is rejected when it starts rather than once it is on disk.
+	 */
+	private static void checkUpload(WalrusDataRequestType request, String contentLength) throws EucalyptusCloudException {
+		Context ctx;
+		try {
+			ctx = Contexts.lookup(request.getCorrelationId());
+		} catch (NoSuchContextException ex) {
+			throw new EucalyptusCloudException(ex);
+		}
+		Contexts.threadLocal(ctx);
+		try {
+			String bucketName = request.getBucket();
+			String objectKey = request.getKey();
+			EntityWrapper<BucketInfo> db = EntityWrapper.get(BucketInfo.class);
+			try {
+				List<BucketInfo> bucketList = db.query(new BucketInfo(bucketName));
+				if (bucketList.size() == 0) {
+					throw new NoSuchBucketException(bucketName);
+				}
+				BucketInfo bucket = bucketList.get(0);
+				BucketLogData logData = bucket.getLoggingEnabled() ? request.getLogData() : null;
+				if (!canPutObject(ctx, bucket)) {
+					throw new AccessDeniedException("Bucket", bucketName, logData);
+				}
+				if (!bucket.isVersioningEnabled()) {
+					ObjectInfo searchObject = new ObjectInfo(bucketName, objectKey);
+					searchObject.setVersionId(WalrusProperties.NULL_VERSION_ID);
+					List<ObjectInfo> objectInfos = db.recast(ObjectInfo.class).query(searchObject);
+					if (objectInfos.size() > 0 && !objectInfos.get(0).canWrite(ctx.getAccount().getAccountNumber())) {
+						throw new AccessDeniedException("Key", objectKey, logData);
+					}
+				}
+			} finally {
+				db.rollback();
+			}
+			long size = 0L;
+			try {
+				size = Long.parseLong(contentLength);
+			} catch (NumberFormatException e) {
+				//unknown length, the quota is checked again once the content is on disk
+			}
+			if (!ctx.hasAdministrativePrivileges() &&
+					!Permissions.canAllocate(PolicySpec.VENDOR_S3,
+							PolicySpec.S3_RESOURCE_OBJECT,
+							bucketName,
+							PolicySpec.S3_PUTOBJECT,
+							ctx.getUser(),
+							size)) {
+				LOG.error("Quota exceeded for Walrus putObject");
+				throw new EntityTooLargeException("Key", objectKey);
+			}
+		} finally {
+			Contexts.removeThreadLocal();
+		}
+	}
+
+	private static boolean canPutObject(Context ctx, BucketInfo bucket) {
+		return ctx.hasAdministrativePrivileges() || (
+				bucket.canWrite(ctx.getAccount().getAccountNumber()) &&
+				(bucket.isGlobalWrite() || Lookups.checkPrivilege(PolicySpec.S3_PUTOBJECT,
+						PolicySpec.VENDOR_S3,
+						PolicySpec.S3_RESOURCE_BUCKET,
+						bucket.getBucketName(),
+						null)));
 	}
 
 	public WalrusManager(StorageManager storageManager, WalrusImageManager walrusImageManager) {
@@ -809,13 +890,7 @@ public class WalrusManager {
 				// TODO(wenye): should handle this properly.
 				objSize = 1L;
 			}
-			if (ctx.hasAdministrativePrivileges() || (
-					bucket.canWrite(account.getAccountNumber()) &&
-					(bucket.isGlobalWrite() || Lookups.checkPrivilege(PolicySpec.S3_PUTOBJECT,
-							PolicySpec.VENDOR_S3,
-							PolicySpec.S3_RESOURCE_BUCKET,
-							bucketName,
-							null)))) {
+			if (canPutObject(ctx, bucket)) {
 				if (logData != null) {
 					reply.setLogData(logData);
 				}
@@ -845,7 +920,7 @@ public class WalrusManager {
 						if (!foundObject.canWrite(account.getAccountNumber())) {
 							//Found existing object, but don't have write access
 							db.rollback();
-							messenger.removeQueue(key, randomKey);
+							messenger.abortUpload(key, randomKey);
 							throw new AccessDeniedException("Key", objectKey, logData);
 						} 
 						objectName = foundObject.getObjectName();
@@ -866,32 +941,47 @@ public class WalrusManager {
 
 				String bucketOwnerId = bucket.getOwnerId();
 				db.commit();
-				// writes are unconditional
-				WalrusDataQueue<WalrusDataMessage> putQueue = messenger.getQueue(key, randomKey);
-
+				// the binding dispatches the request once the upload has reached EOF, so this does not normally wait
+				WalrusUploadStream upload = messenger.getUpload(key, randomKey);
+				if (upload == null) {
+					throw new EucalyptusCloudException("No upload in progress for: " + key + "." + randomKey);
+				}
 				try {
-					WalrusDataMessage dataMessage;
-					String tempObjectName = objectName;
-					MessageDigest digest = null;
-					long size = 0;
-					FileIO fileIO = null;
-					while ((dataMessage = putQueue.take()) != null) {
-						if(putQueue.getInterrupted()) {                                         
-							if(WalrusDataMessage.isEOF(dataMessage)) {
-								WalrusMonitor monitor = messenger.getMonitor(key);
-								if(monitor.getLastModified() == null) {
-									LOG.trace("Monitor wait: " + key + " random: " + randomKey);
-									synchronized (monitor) {
-										monitor.wait();
-									}
-								}
-								LOG.trace("Monitor resume: " + key + " random: " + randomKey);
-								lastModified = monitor.getLastModified();
-								md5 = monitor.getMd5();
-								//ok we are done here
-								if(fileIO != null) {					
-									fileIO.finish();
-								}
+					upload.await();
+					String tempObjectName = upload.getObjectName();
+					long size = upload.getSize();
+					if(upload.isInterrupted()) {
+						WalrusMonitor monitor = messenger.getMonitor(key);
+						if(monitor.getLastModified() == null) {
+							LOG.trace("Monitor wait: " + key + " random: " + randomKey);
+							synchronized (monitor) {
+								monitor.wait();
+							}
+						}
+						LOG.trace("Monitor resume: " + key + " random: " + randomKey);
+						lastModified = monitor.getLastModified();
+						md5 = monitor.getMd5();
+						//ok we are done here
+						ObjectDeleter objectDeleter = new ObjectDeleter(bucketName,
+								tempObjectName,
+								-1L,
+								ctx.getUser().getName(),
+								ctx.getUser().getUserId(),
+								ctx.getAccount().getName(),
+								ctx.getAccount().getAccountNumber());
+						Threads.lookup(Walrus.class, WalrusManager.ObjectDeleter.class).limitTo(10).submit(objectDeleter);
+						LOG.info("Transfer interrupted: "+ key);
+						messenger.removeUpload(key, randomKey);
+					} else if (upload.getFailure() != null) {
+						LOG.error(upload.getFailure());
+						messenger.abortUpload(key, randomKey);
+						throw new EucalyptusCloudException("Transfer failed: " + key + "." + randomKey);
+					} else {
+						md5 = upload.getMd5();
+						String contentMD5 = request.getContentMD5();
+						if (contentMD5 != null) {
+							String contentMD5AsHex = Hashes.bytesToHex(Base64.decode(contentMD5));
+							if(!contentMD5AsHex.equals(md5)) {
 								ObjectDeleter objectDeleter = new ObjectDeleter(bucketName,
 										tempObjectName,
 										-1L,
@@ -900,246 +990,181 @@ public class WalrusManager {
 										ctx.getAccount().getName(),
 										ctx.getAccount().getAccountNumber());
 								Threads.lookup(Walrus.class, WalrusManager.ObjectDeleter.class).limitTo(10).submit(objectDeleter);
-								LOG.info("Transfer interrupted: "+ key);
-								messenger.removeQueue(key, randomKey);
-								break;  
+								messenger.removeUpload(key, randomKey);
+								LOG.error("ETag did not match for: " + randomKey + " Expected: " + contentMD5AsHex + " Computed: " + md5);
+								throw new ContentMismatchException(bucketName + "/" + objectKey);
 							}
-							continue;
 						}
-						if (WalrusDataMessage.isStart(dataMessage)) {
-							tempObjectName = UUID.randomUUID().toString();
-							digest = Digest.MD5.get();
-							try {
-								fileIO = storageManager.prepareForWrite(bucketName, tempObjectName);
-							} catch (Exception ex) {
-								messenger.removeQueue(key, randomKey);
-								throw new EucalyptusCloudException(ex);
-							}
-						} else if (WalrusDataMessage.isEOF(dataMessage)) {
-							if (digest != null) {
-								md5 = Hashes.bytesToHex(digest.digest());
-							} else {
-								WalrusMonitor monitor = messenger.getMonitor(key);
-								md5 = monitor.getMd5();
-								lastModified = monitor.getLastModified();
-								if (md5 == null) {
-									LOG.error("ETag did not match for: " + randomKey + " Computed MD5 is null");
-									throw new ContentMismatchException(bucketName + "/" + objectKey);
-								}
-								break;
-							}
-							String contentMD5 = request.getContentMD5();
-							if (contentMD5 != null) {
-								String contentMD5AsHex = Hashes.bytesToHex(Base64.decode(contentMD5));
-								if(!contentMD5AsHex.equals(md5)) {
-									if(fileIO != null) {										
-										fileIO.finish();
-									}
-									ObjectDeleter objectDeleter = new ObjectDeleter(bucketName,
-											tempObjectName,
-											-1L,
-											ctx.getUser().getName(),
-											ctx.getUser().getUserId(),
-											ctx.getAccount().getName(),
-											ctx.getAccount().getAccountNumber());
-									Threads.lookup(Walrus.class, WalrusManager.ObjectDeleter.class).limitTo(10).submit(objectDeleter);
-									messenger.removeQueue(key, randomKey);
-									LOG.error("ETag did not match for: " + randomKey + " Expected: " + contentMD5AsHex + " Computed: " + md5);
-									throw new ContentMismatchException(bucketName + "/" + objectKey);
-								}
-							}
-							// commit object
-							try {
-								if (fileIO != null) { 
-									fileIO.finish();
-								}
-								storageManager.renameObject(bucketName, tempObjectName, objectName);
-							} catch (IOException ex) {
-								LOG.error(ex);
-								messenger.removeQueue(key, randomKey);
-								throw new EucalyptusCloudException(objectKey);
+						// commit object
+						try {
+							storageManager.renameObject(bucketName, tempObjectName, objectName);
+						} catch (IOException ex) {
+							LOG.error(ex);
+							messenger.abortUpload(key, randomKey);
+							throw new EucalyptusCloudException(objectKey);
+						}
+						lastModified = new Date();
+						ObjectInfo searchObject = new ObjectInfo(bucketName, objectKey);
+						searchObject.setVersionId(versionId);
+						EntityWrapper<ObjectInfo> dbObject = EntityWrapper.get(ObjectInfo.class);
+						ObjectInfo foundObject;
+						try {
+							foundObject = dbObject.getUnique(searchObject);
+							if (ctx.hasAdministrativePrivileges() || foundObject.canWriteACP(account.getAccountNumber())) {
+								List<GrantInfo> grantInfos = new ArrayList<GrantInfo>();
+								foundObject.addGrants(account.getAccountNumber(), bucketOwnerId, grantInfos, accessControlList);
+								foundObject.setGrants(grantInfos);
 							}
-							lastModified = new Date();
-							ObjectInfo searchObject = new ObjectInfo(bucketName, objectKey);
-							searchObject.setVersionId(versionId);
-							EntityWrapper<ObjectInfo> dbObject = EntityWrapper.get(ObjectInfo.class);
-							ObjectInfo foundObject;
-							try {
-								foundObject = dbObject.getUnique(searchObject);
-								if (ctx.hasAdministrativePrivileges() || foundObject.canWriteACP(account.getAccountNumber())) {
-									List<GrantInfo> grantInfos = new ArrayList<GrantInfo>();
-									foundObject.addGrants(account.getAccountNumber(), bucketOwnerId, grantInfos, accessControlList);
-									foundObject.setGrants(grantInfos);
-								}
-								if (WalrusProperties.enableTorrents) {
-									EntityWrapper<TorrentInfo> dbTorrent = dbObject.recast(TorrentInfo.class);
-									TorrentInfo torrentInfo = new TorrentInfo(bucketName, objectKey);
-									List<TorrentInfo> torrentInfos = dbTorrent.query(torrentInfo);
-									if (torrentInfos.size() > 0) {
-										TorrentInfo foundTorrentInfo = torrentInfos.get(0);
-										TorrentClient torrentClient = Torrents.getClient(bucketName + objectKey);
-										if (torrentClient != null) {
-											torrentClient.bye();
-										}
-										dbTorrent.delete(foundTorrentInfo);
+							if (WalrusProperties.enableTorrents) {
+								EntityWrapper<TorrentInfo> dbTorrent = dbObject.recast(TorrentInfo.class);
+								TorrentInfo torrentInfo = new TorrentInfo(bucketName, objectKey);
+								List<TorrentInfo> torrentInfos = dbTorrent.query(torrentInfo);
+								if (torrentInfos.size() > 0) {
+									TorrentInfo foundTorrentInfo = torrentInfos.get(0);
+									TorrentClient torrentClient = Torrents.getClient(bucketName + objectKey);
+									if (torrentClient != null) {
+										torrentClient.bye();
 									}
-								} else {
-									LOG.warn("Bittorrent support has been disabled. Please check pre-requisites");
-								}
-							} catch (EucalyptusCloudException ex) {
-								if(objectInfo != null) {
-									foundObject = objectInfo;
-								} else {
-									dbObject.rollback();
-									throw new EucalyptusCloudException("Unable to update object: " + bucketName + "/" + objectKey);
+									dbTorrent.delete(foundTorrentInfo);
 								}
+							} else {
+								LOG.warn("Bittorrent support has been disabled. Please check pre-requisites");
 							}
-							foundObject.setVersionId(versionId);
-							foundObject.replaceMetaData(request.getMetaData());
-							foundObject.setEtag(md5);
-							foundObject.setSize(size);
-							foundObject.setLastModified(lastModified);
-							foundObject.setStorageClass("STANDARD");
-							foundObject.setContentType(request.getContentType());
-							foundObject.setContentDisposition(request.getContentDisposition());
-							foundObject.setLast(true);
-							foundObject.setDeleted(false);
-							reply.setSize(size);
-							if (!ctx.hasAdministrativePrivileges() &&
-									!Permissions.canAllocate(PolicySpec.VENDOR_S3,
-											PolicySpec.S3_RESOURCE_OBJECT,
-											bucketName,
-											PolicySpec.S3_PUTOBJECT,
-											ctx.getUser(),
-											oldBucketSize + size)) {
+						} catch (EucalyptusCloudException ex) {
+							if(objectInfo != null) {
+								foundObject = objectInfo;
+							} else {
 								dbObject.rollback();
-								LOG.error("Quota exceeded for Walrus putObject");
-								throw new EntityTooLargeException("Key", objectKey);
-							}							
-							boolean success = false;
-							int retryCount = 0;
-							do {
-								try {
-									incrementBucketSize(bucketName, objectKey, oldBucketSize, size);
-									success = true;
-								} catch (EntityTooLargeException ex) {
-									messenger.removeQueue(key, randomKey);
-									dbObject.rollback();
-									throw ex;
-								} catch (NoSuchBucketException ex) {
-									dbObject.rollback();
-									throw ex;
-								} catch (RollbackException ex) {
-									retryCount++;
-									LOG.trace("retrying update: " + bucketName);
-								} catch (EucalyptusCloudException ex) {
-									dbObject.rollback();
-									throw ex;
-								}
-							} while(!success && (retryCount < 5));
-							if (WalrusProperties.trackUsageStatistics) {
-								walrusStatistics.updateBytesIn(size);
-								walrusStatistics.updateSpaceUsed(size);
-							}
-							if (logData != null) {
-								logData.setObjectSize(size);
-								updateLogData(bucket, logData);
+								throw new EucalyptusCloudException("Unable to update object: " + bucketName + "/" + objectKey);
 							}
-							if(objectInfo != null) {
-								dbObject.add(foundObject);
-							} 
-							success = false;
+						}
+						foundObject.setVersionId(versionId);
+						foundObject.replaceMetaData(request.getMetaData());
+						foundObject.setEtag(md5);
+						foundObject.setSize(size);
+						foundObject.setLastModified(lastModified);
+						foundObject.setStorageClass("STANDARD");
+						foundObject.setContentType(request.getContentType());
+						foundObject.setContentDisposition(request.getContentDisposition());
+						foundObject.setLast(true);
+						foundObject.setDeleted(false);
+						reply.setSize(size);
+						if (!ctx.hasAdministrativePrivileges() &&
+								!Permissions.canAllocate(PolicySpec.VENDOR_S3,
+										PolicySpec.S3_RESOURCE_OBJECT,
+										bucketName,
+										PolicySpec.S3_PUTOBJECT,
+										ctx.getUser(),
+										oldBucketSize + size)) {
+							dbObject.rollback();
+							LOG.error("Quota exceeded for Walrus putObject");
+							throw new EntityTooLargeException("Key", objectKey);
+						}							
+						boolean success = false;
+						int retryCount = 0;
+						do {
 							try {
-								dbObject.commit();
+								incrementBucketSize(bucketName, objectKey, oldBucketSize, size);
 								success = true;
+							} catch (EntityTooLargeException ex) {
+								messenger.removeUpload(key, randomKey);
+								dbObject.rollback();
+								throw ex;
+							} catch (NoSuchBucketException ex) {
+								dbObject.rollback();
+								throw ex;
 							} catch (RollbackException ex) {
+								retryCount++;
+								LOG.trace("retrying update: " + bucketName);
+							} catch (EucalyptusCloudException ex) {
 								dbObject.rollback();
-								LOG.error(ex, ex);
+								throw ex;
 							}
+						} while(!success && (retryCount < 5));
+						if (WalrusProperties.trackUsageStatistics) {
+							walrusStatistics.updateBytesIn(size);
+							walrusStatistics.updateSpaceUsed(size);
+						}
+						if (logData != null) {
+							logData.setObjectSize(size);
+							updateLogData(bucket, logData);
+						}
+						if(objectInfo != null) {
+							dbObject.add(foundObject);
+						} 
+						success = false;
+						try {
+							dbObject.commit();
+							success = true;
+						} catch (RollbackException ex) {
+							dbObject.rollback();
+							LOG.error(ex, ex);
+						}
 
-							dbObject = EntityWrapper.get(ObjectInfo.class);
-							List<ObjectInfo> objectInfos = dbObject.query(new ObjectInfo(bucketName, objectKey));
-							for(ObjectInfo objInfo : objectInfos) {
-								if (!success) {
-									if (objInfo.getLast()) {
-										lastModified = objInfo.getLastModified();
-										md5 = objInfo.getEtag();
-									}
-									success = true;
-								}
-								if (!versionId.equals(objInfo.getVersionId())) {
-									objInfo.setLast(false);
+						dbObject = EntityWrapper.get(ObjectInfo.class);
+						List<ObjectInfo> objectInfos = dbObject.query(new ObjectInfo(bucketName, objectKey));
+						for(ObjectInfo objInfo : objectInfos) {
+							if (!success) {
+								if (objInfo.getLast()) {
+									lastModified = objInfo.getLastModified();
+									md5 = objInfo.getEtag();
 								}
+								success = true;
 							}
-							dbObject.commit();
-
-							//See if a delete marker exists that needs to be removed now
-							dbObject = EntityWrapper.get(ObjectInfo.class);
-							ObjectInfo deleteMarker = new ObjectInfo(bucketName, objectKey);
-							deleteMarker.setDeleted(true);
-							ObjectInfo foundDeleteMarker = null;			
-							try {
-								foundDeleteMarker = dbObject.getUnique(deleteMarker);
-								dbObject.delete(foundDeleteMarker);
-							} catch(Exception ex) {
-								if(foundDeleteMarker != null) {
-									LOG.error("Deletion of delete marker failed for: " + bucketName + "/" + objectKey, ex);	
-								}															
+							if (!versionId.equals(objInfo.getVersionId())) {
+								objInfo.setLast(false);
 							}
-														
-							dbObject.commit();
+						}
+						dbObject.commit();
 
-							if (logData != null) {
-								logData.setTurnAroundTime(Long
-										.parseLong(new String(dataMessage
-												.getPayload())));
-							}
-							// restart all interrupted puts
-							WalrusMonitor monitor = messenger.getMonitor(key);
-							synchronized (monitor) {
-								monitor.setLastModified(lastModified);
-								monitor.setMd5(md5);
-								monitor.notifyAll();
-							}
-							//messenger.removeMonitor(key);
-							messenger.clearQueues(key);
-							messenger.removeQueue(key, randomKey);
-							LOG.info("Transfer complete: " + key);
-
-							/* Send an event to reporting to report this S3 usage. */
-							reportWalrusEvent(genObjectEvent(ctx,true,size));
-							
-							break;
-						} else {
-							assert (WalrusDataMessage.isData(dataMessage));
-							byte[] data = dataMessage.getPayload();
-							// start writing object (but do not commit yet)
-							try {
-								if (fileIO != null)
-									fileIO.write(data);
-							} catch (IOException ex) {
-								LOG.error(ex);
-							}
-							// calculate md5 on the fly
-							size += data.length;
-							if (digest != null) {
-								digest.update(data);
-							}
+						//See if a delete marker exists that needs to be removed now
+						dbObject = EntityWrapper.get(ObjectInfo.class);
+						ObjectInfo deleteMarker = new ObjectInfo(bucketName, objectKey);
+						deleteMarker.setDeleted(true);
+						ObjectInfo foundDeleteMarker = null;			
+						try {
+							foundDeleteMarker = dbObject.getUnique(deleteMarker);
+							dbObject.delete(foundDeleteMarker);
+						} catch(Exception ex) {
+							if(foundDeleteMarker != null) {
+								LOG.error("Deletion of delete marker failed for: " + bucketName + "/" + objectKey, ex);	
+							}															
+						}
+													
+						dbObject.commit();
+
+						if (logData != null) {
+							logData.setTurnAroundTime(upload.getCompletionTime());
+						}
+						// restart all interrupted puts
+						WalrusMonitor monitor = messenger.getMonitor(key);
+						synchronized (monitor) {
+							monitor.setLastModified(lastModified);
+							monitor.setMd5(md5);
+							monitor.notifyAll();
 						}
+						//messenger.removeMonitor(key);
+						messenger.clearUploads(key);
+						messenger.removeUpload(key, randomKey);
+						LOG.info("Transfer complete: " + key);
+
+						/* Send an event to reporting to report this S3 usage. */
+						reportWalrusEvent(genObjectEvent(ctx,true,size));
+						
 					}
 				} catch (InterruptedException ex) {
 					LOG.error(ex, ex);
-					messenger.removeQueue(key, randomKey);
+					messenger.abortUpload(key, randomKey);
 					throw new EucalyptusCloudException("Transfer interrupted: " + key + "." + randomKey);
 				}
 			} else {
 				db.rollback();
-				messenger.removeQueue(key, randomKey);
+				messenger.abortUpload(key, randomKey);
 				throw new AccessDeniedException("Bucket", bucketName, logData);
 			}
 		} else {
 			db.rollback();
-			messenger.removeQueue(key, randomKey);
+			messenger.abortUpload(key, randomKey);
 			throw new NoSuchBucketException(bucketName);
 		}
 		
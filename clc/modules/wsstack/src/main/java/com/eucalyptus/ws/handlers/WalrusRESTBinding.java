@@ -61,6 +61,7 @@
 package com.eucalyptus.ws.handlers;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
@@ -74,7 +75,6 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.TimeUnit;
 
 import net.sf.json.JSONArray;
 import net.sf.json.JSONObject;
@@ -88,7 +88,9 @@ import org.apache.tools.ant.util.DateUtils;
 import org.apache.xml.dtm.ref.DTMNodeList;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.Channels;
 import org.jboss.netty.channel.DownstreamMessageEvent;
@@ -113,6 +115,7 @@ import com.eucalyptus.binding.HttpParameterMapping;
 import com.eucalyptus.context.Contexts;
 import com.eucalyptus.http.MappingHttpRequest;
 import com.eucalyptus.http.MappingHttpResponse;
+import com.eucalyptus.util.EucalyptusCloudException;
 import com.eucalyptus.util.LogUtil;
 import com.eucalyptus.util.StorageProperties;
 import com.eucalyptus.util.WalrusProperties;
@@ -123,6 +126,8 @@ import com.eucalyptus.ws.util.XMLParser;
 import com.google.common.collect.Lists;
 
 import edu.ucsb.eucalyptus.cloud.BucketLogData;
+import edu.ucsb.eucalyptus.cloud.InternalErrorException;
+import edu.ucsb.eucalyptus.cloud.WalrusException;
 import edu.ucsb.eucalyptus.msgs.AccessControlListType;
 import edu.ucsb.eucalyptus.msgs.AccessControlPolicyType;
 import edu.ucsb.eucalyptus.msgs.BaseMessage;
@@ -138,9 +143,8 @@ import edu.ucsb.eucalyptus.msgs.TargetGrants;
 import edu.ucsb.eucalyptus.msgs.WalrusDataGetRequestType;
 import edu.ucsb.eucalyptus.msgs.WalrusDataRequestType;
 import edu.ucsb.eucalyptus.msgs.WalrusRequestType;
-import edu.ucsb.eucalyptus.util.WalrusDataMessage;
 import edu.ucsb.eucalyptus.util.WalrusDataMessenger;
-import edu.ucsb.eucalyptus.util.WalrusDataQueue;
+import edu.ucsb.eucalyptus.util.WalrusUploadStream;
 import groovy.lang.GroovyObject;
 
 public class WalrusRESTBinding extends RestfulMarshallingHandler {
@@ -153,7 +157,11 @@ public class WalrusRESTBinding extends RestfulMarshallingHandler {
 	public static final int DATA_MESSAGE_SIZE = 102400;
 	private String key;
 	private String randomKey;
-	private WalrusDataQueue<WalrusDataMessage> putQueue;
+	private WalrusUploadStream upload;
+	private Channel channel;
+	private String uploadBucket;
+	private ChannelBuffer firstChunk;
+	private boolean rejected;
 
 	public WalrusRESTBinding( ) {
 		super( "http://s3.amazonaws.com/doc/" + WalrusProperties.NAMESPACE_VERSION );
@@ -171,20 +179,53 @@ public class WalrusRESTBinding extends RestfulMarshallingHandler {
 				Channels.fireExceptionCaught( channelHandlerContext, e );
 				return;
 			} 
+			if ( rejected ) {
+				//the error has been sent and the connection is closing, drop what is left of the request
+				return;
+			}
+			if ( upload != null ) {
+				//the operation is dispatched once the content is on disk, chunks are consumed by the upload
+				if ( msgEvent.getMessage( ) instanceof MappingHttpRequest ) {
+					dispatchOnCompletion( channelHandlerContext, msgEvent );
+				}
+				return;
+			}
 		} else if (channelEvent.toString().contains("DISCONNECTED") || 
 				channelEvent.toString().contains("CLOSED")) {
-			if(key != null && randomKey != null) {
-				putMessenger.removeQueue(key, randomKey);
-				putQueue = null;
+			if(key != null && randomKey != null && upload != null && !upload.isDone()) {
+				putMessenger.abortUpload(key, randomKey);
+				upload = null;
 			}
 		}
 		channelHandlerContext.sendUpstream( channelEvent );
 	}
 
+	private void dispatchOnCompletion( final ChannelHandlerContext ctx, final MessageEvent msgEvent ) {
+		upload.whenComplete( new Runnable( ) {
+			@Override
+			public void run( ) {
+				if ( !ctx.getChannel( ).isOpen( ) ) {
+					return;
+				}
+				try {
+					ctx.sendUpstream( msgEvent );
+				} catch ( Exception e ) {
+					LOG.error( e, e );
+					Channels.fireExceptionCaught( ctx, e );
+				}
+			}
+		} );
+	}
+
 	@Override
 	public void incomingMessage( ChannelHandlerContext ctx, MessageEvent event ) throws Exception {
 		if ( event.getMessage( ) instanceof MappingHttpRequest ) {
 			MappingHttpRequest httpRequest = ( MappingHttpRequest ) event.getMessage( );
+			upload = null;
+			uploadBucket = null;
+			firstChunk = null;
+			rejected = false;
+			channel = ctx.getChannel( );
 			// TODO: get real user data here too
 			BaseMessage msg = (BaseMessage) this.bind( httpRequest );
 			httpRequest.setMessage( msg );
@@ -192,6 +233,17 @@ public class WalrusRESTBinding extends RestfulMarshallingHandler {
 				WalrusDataGetRequestType getObject = (WalrusDataGetRequestType) msg;
 				getObject.setChannel(ctx.getChannel());
 			}
+			if(uploadBucket != null) {
+				try {
+					getWriteMessenger().checkUpload(msg);
+					upload = startUpload(uploadBucket);
+				} catch (EucalyptusCloudException ex) {
+					reject(ctx, msg, ex);
+					return;
+				} finally {
+					uploadBucket = null;
+				}
+			}
 			if(msg instanceof WalrusDataRequestType) {
 				String expect = httpRequest.getHeader(HttpHeaders.Names.EXPECT);
 				if(expect != null) {
@@ -202,8 +254,12 @@ public class WalrusRESTBinding extends RestfulMarshallingHandler {
 					}
 				}
 			}
+			if(upload != null) {
+				handleFirstChunk(httpRequest, firstChunk);
+				firstChunk = null;
+			}
 		} else if(event.getMessage() instanceof HttpChunk) {
-			if(putQueue != null) {
+			if(upload != null) {
 				HttpChunk httpChunk = (HttpChunk) event.getMessage();
 				handleHttpChunk(httpChunk);
 			}
@@ -219,14 +275,10 @@ public class WalrusRESTBinding extends RestfulMarshallingHandler {
 
 			if(!(msg instanceof EucalyptusErrorMessageType)&&!(msg instanceof ExceptionResponseType)) {
 				binding = BindingManager.getBinding( BindingManager.sanitizeNamespace( super.getNamespace( ) ) );
-				if(putQueue != null) {
-					putQueue = null;
-				}
+				upload = null;
 			} else {
 				binding = BindingManager.getBinding( BindingManager.sanitizeNamespace( "http://msgs.eucalyptus.com" ) );
-				if(putQueue != null) {
-					putQueue = null;
-				}
+				upload = null;
 			}
 			if(msg != null) {
 				OMElement omMsg = binding.toOM( msg );
@@ -478,8 +530,8 @@ public class WalrusRESTBinding extends RestfulMarshallingHandler {
 					if(contentLengthString != null)
 						operationParams.put("ContentLength", (new Long(contentLength).toString()));
 					operationParams.put(WalrusProperties.Headers.RandomKey.toString(), randomKey);
-					putQueue = getWriteMessenger().interruptAllAndGetQueue(key, randomKey);
-					handleFirstChunk(httpRequest, (ChannelBuffer)formFields.get(WalrusProperties.IGNORE_PREFIX + "FirstDataChunk"), contentLength);
+					uploadBucket = target[0];
+					firstChunk = (ChannelBuffer)formFields.get(WalrusProperties.IGNORE_PREFIX + "FirstDataChunk");
 				} else if(WalrusProperties.HTTPVerb.PUT.toString().equals(verb)) {  
 					if(params.containsKey(WalrusProperties.BucketParameter.logging.toString())) {
 						//read logging params
@@ -585,8 +637,8 @@ public class WalrusRESTBinding extends RestfulMarshallingHandler {
 						if(contentLengthString != null)
 							operationParams.put("ContentLength", (new Long(contentLength).toString()));
 						operationParams.put(WalrusProperties.Headers.RandomKey.toString(), randomKey);
-						putQueue = getWriteMessenger().interruptAllAndGetQueue(key, randomKey);
-						handleFirstChunk(httpRequest, contentLength);
+						uploadBucket = target[0];
+						firstChunk = httpRequest.getContent();
 					}
 				} else if(verb.equals(WalrusProperties.HTTPVerb.GET.toString())) {
 					if(!walrusInternalOperation) {
@@ -1180,87 +1232,51 @@ public class WalrusRESTBinding extends RestfulMarshallingHandler {
 		return new String( read );
 	}
 
-	private void handleHttpChunk(HttpChunk httpChunk) throws Exception {
-		ChannelBuffer buffer = httpChunk.getContent();
+	private WalrusUploadStream startUpload(String bucketName) throws EucalyptusCloudException {
 		try {
-			buffer.markReaderIndex( );
-			byte[] read = new byte[buffer.readableBytes( )];
-			buffer.readBytes( read );
-			while((putQueue != null) && (!putQueue.offer(WalrusDataMessage.DataMessage(read), 500, TimeUnit.MILLISECONDS)));
-			if(httpChunk.isLast()) {
-				while((putQueue != null) && (!putQueue.offer(WalrusDataMessage.EOF(), 1000, TimeUnit.MILLISECONDS)));
-			}
-		} catch (Exception ex) {
-			LOG.error(ex, ex);
+			return getWriteMessenger().startUpload(channel, bucketName, UUID.randomUUID().toString(), key, randomKey);
+		} catch (IOException ex) {
+			LOG.error("Unable to start upload for: " + key, ex);
+			throw new InternalErrorException("Key", key);
 		}
-
 	}
 
-	private void handleFirstChunk(MappingHttpRequest httpRequest, long dataLength) {
-		ChannelBuffer buffer = httpRequest.getContent();
-		try {
-			putQueue.put(WalrusDataMessage.StartOfData(dataLength));
-			buffer.markReaderIndex( );
-			byte[] read = new byte[buffer.readableBytes( )];
-			buffer.readBytes( read );
-			putQueue.put(WalrusDataMessage.DataMessage(read));
-			if(!httpRequest.isChunked())
-				putQueue.put(WalrusDataMessage.EOF());
-		} catch (Exception ex) {
-			LOG.error(ex, ex);
+	/**
+	 * Refuses an upload before its content is accepted: the error is sent right away and the
+	 * connection is closed so the rest of the body is never read.
+	 */
+	private void reject(ChannelHandlerContext ctx, BaseMessage msg, EucalyptusCloudException ex) {
+		rejected = true;
+		HttpResponseStatus status = HttpResponseStatus.INTERNAL_SERVER_ERROR;
+		if(ex instanceof WalrusException && ((WalrusException) ex).getStatus() != null) {
+			status = ((WalrusException) ex).getStatus();
 		}
+		LOG.info("Rejecting upload for: " + key + " " + ex.getMessage());
+		Channels.write(ctx.getChannel(), new ExceptionResponseType(msg, ex.getMessage(), status, ex)).addListener(ChannelFutureListener.CLOSE);
+		Contexts.clear(msg.getCorrelationId());
+	}
 
+	private void handleHttpChunk(HttpChunk httpChunk) throws Exception {
+		upload.write(httpChunk.getContent());
+		if(httpChunk.isLast()) {
+			upload.finish();
+		}
 	}
 
-	private void handleFirstChunk(MappingHttpRequest httpRequest, ChannelBuffer firstChunk, long dataLength) {
-		try {
-			putQueue.put(WalrusDataMessage.StartOfData(dataLength));
-			byte[] read = new byte[firstChunk.readableBytes( )];
-			firstChunk.readBytes( read );
-			putQueue.put(WalrusDataMessage.DataMessage(read));
+	private void handleFirstChunk(MappingHttpRequest httpRequest, ChannelBuffer firstChunk) {
+		if(upload != null) {
+			if(firstChunk != null)
+				upload.write(firstChunk.readSlice(firstChunk.readableBytes()));
 			if(!httpRequest.isChunked())
-				putQueue.put(WalrusDataMessage.EOF());
-		} catch (Exception ex) {
-			LOG.error(ex, ex);
+				upload.finish();
 		}
-
 	}
 
-
 	public static synchronized WalrusDataMessenger getWriteMessenger() {
 		if (putMessenger == null) {
 			putMessenger = new WalrusDataMessenger();
 		}
 		return putMessenger;
-	}	
-
-	class Writer extends Thread {
-
-		private ChannelBuffer firstBuffer;
-		private long dataLength;
-		public Writer(ChannelBuffer firstBuffer, long dataLength) {
-			this.firstBuffer = firstBuffer;
-			this.dataLength = dataLength;
-		}
-
-		public void run() {
-			byte[] bytes = new byte[DATA_MESSAGE_SIZE];
-
-			try {
-				LOG.info("Starting upload");                
-				putQueue.put(WalrusDataMessage.StartOfData(dataLength));
-
-				firstBuffer.markReaderIndex( );
-				byte[] read = new byte[firstBuffer.readableBytes( )];
-				firstBuffer.readBytes( read );
-				putQueue.put(WalrusDataMessage.DataMessage(read));
-				//putQueue.put(WalrusDataMessage.EOF());
-
-			} catch (Exception ex) {
-				LOG.error(ex, ex);
-			}
-		}
-
 	}
 
 }